@@ -0,0 +1,181 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+
+import static de.m3y.prometheus.exporter.fsimage.DuHttpHandler.appendString;
+import static de.m3y.prometheus.exporter.fsimage.DuHttpHandler.error;
+import static de.m3y.prometheus.exporter.fsimage.DuHttpHandler.sendResponse;
+
+/**
+ * Serves admin requests as JSON, authenticated by the configured admin token as bearer token.
+ * <ul>
+ * <li>GET /admin/progress shows the live progress of the latest reload, including phase, processed inodes,
+ * estimated remaining time and the transaction id of the FSImage</li>
+ * <li>POST /admin/reload rescans and reloads the latest FSImage right away, even if unchanged,
+ * e.g. after a manual saveNamespace</li>
+ * <li>POST /admin/abort aborts a stuck reload, keeping the previous report</li>
+ * </ul>
+ * When exporting several namespaces, the optional cluster parameter selects a namespace instead of all.
+ */
+class AdminHttpHandler implements HttpHandler {
+    static final String PATH = "/admin";
+    static final String PROGRESS_PATH = PATH + "/progress";
+    static final String RELOAD_PATH = PATH + "/reload";
+    static final String ABORT_PATH = PATH + "/abort";
+    private static final String BEARER = "Bearer ";
+
+    private final Map<String, FsImageCollector> fsImageCollectors;
+    private volatile byte[] adminToken;
+
+    /**
+     * @param fsImageCollectors the FSImage collectors by cluster name
+     * @param adminToken        the admin token, or null for disabled
+     */
+    AdminHttpHandler(Map<String, FsImageCollector> fsImageCollectors, String adminToken) {
+        this.fsImageCollectors = fsImageCollectors;
+        setAdminToken(adminToken);
+    }
+
+    /**
+     * @param adminToken the reloaded admin token, or null for disabled
+     */
+    void setAdminToken(String adminToken) {
+        this.adminToken = null == adminToken || adminToken.isEmpty()
+                ? null : adminToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        try {
+            final byte[] token = adminToken;
+            if (null == token) {
+                sendResponse(httpExchange, HttpURLConnection.HTTP_NOT_FOUND,
+                        error("Admin endpoint disabled, see configuration option adminToken"));
+                return;
+            }
+            if (!isAuthorized(httpExchange.getRequestHeaders().getFirst("Authorization"), token)) {
+                httpExchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                sendResponse(httpExchange, HttpURLConnection.HTTP_UNAUTHORIZED, error("Expected admin token"));
+                return;
+            }
+
+            final String path = httpExchange.getRequestURI().getPath();
+            final String method = httpExchange.getRequestMethod();
+            final boolean progress = PROGRESS_PATH.equals(path);
+            if (!progress && !RELOAD_PATH.equals(path) && !ABORT_PATH.equals(path)) {
+                sendResponse(httpExchange, HttpURLConnection.HTTP_NOT_FOUND,
+                        error("Expected one of " + PROGRESS_PATH + ", " + RELOAD_PATH + " or " + ABORT_PATH));
+                return;
+            }
+            final String expectedMethod = progress ? "GET" : "POST";
+            if (!expectedMethod.equals(method)) {
+                httpExchange.getResponseHeaders().set("Allow", expectedMethod);
+                sendResponse(httpExchange, HttpURLConnection.HTTP_BAD_METHOD,
+                        error("Expected " + expectedMethod + " for " + path));
+                return;
+            }
+
+            final String cluster = DuHttpHandler.parseQuery(httpExchange.getRequestURI().getRawQuery()).get("cluster");
+            final Map<String, FsImageCollector> collectors = null == cluster ? fsImageCollectors
+                    : fsImageCollectors.containsKey(cluster)
+                    ? Collections.singletonMap(cluster, fsImageCollectors.get(cluster)) : null;
+            if (null == collectors) {
+                sendResponse(httpExchange, HttpURLConnection.HTTP_BAD_REQUEST,
+                        error("Expected cluster parameter with one of " + fsImageCollectors.keySet()));
+                return;
+            }
+
+            StringBuilder buf = new StringBuilder(256);
+            if (progress) {
+                appendProgress(buf, collectors);
+                sendResponse(httpExchange, HttpURLConnection.HTTP_OK, buf.toString());
+            } else if (RELOAD_PATH.equals(path)) {
+                collectors.values().forEach(FsImageCollector::reload);
+                buf.append("{\"reloading\":");
+                appendClusters(buf, collectors.keySet());
+                sendResponse(httpExchange, HttpURLConnection.HTTP_ACCEPTED, buf.append('}').toString());
+            } else {
+                buf.append("{\"aborting\":");
+                appendClusters(buf, collectors.entrySet().stream()
+                        .filter(entry -> entry.getValue().abort()).map(Map.Entry::getKey).toList());
+                sendResponse(httpExchange, HttpURLConnection.HTTP_OK, buf.append('}').toString());
+            }
+        } finally {
+            httpExchange.close();
+        }
+    }
+
+    static boolean isAuthorized(String authorization, byte[] token) {
+        return null != authorization && authorization.startsWith(BEARER)
+                // Constant time, not revealing matching prefix
+                && MessageDigest.isEqual(token,
+                authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void appendProgress(StringBuilder buf, Map<String, FsImageCollector> collectors) {
+        buf.append("{\"namespaces\":[");
+        boolean first = true;
+        for (Map.Entry<String, FsImageCollector> entry : collectors.entrySet()) {
+            if (!first) {
+                buf.append(',');
+            }
+            first = false;
+            final FsImageCollector collector = entry.getValue();
+            buf.append("{\"cluster\":");
+            appendString(buf, entry.getKey());
+            buf.append(",\"phase\":\"").append(collector.getPhase().label).append('"');
+            final FsImageReporter.Report report = collector.getFsImageReport();
+            buf.append(",\"reportGeneration\":").append(null == report ? "null" : report.generation);
+            final ComputeProgress progress = collector.getProgress();
+            if (null != progress) {
+                buf.append(",\"reload\":");
+                appendProgress(buf, progress);
+            }
+            buf.append('}');
+        }
+        buf.append("]}");
+    }
+
+    static void appendProgress(StringBuilder buf, ComputeProgress progress) {
+        buf.append("{\"fsImage\":");
+        if (null == progress.fsImage) {
+            buf.append("null");
+        } else {
+            appendString(buf, progress.fsImage);
+        }
+        final long etaNanos = progress.getEtaNanos();
+        final long estimatedInodes = progress.getEstimatedInodes();
+        buf.append(",\"txId\":").append(progress.txId)
+                .append(",\"startTime\":").append(progress.startTime)
+                .append(",\"status\":\"").append(progress.getStatus().label).append('"')
+                .append(",\"computePhase\":\"").append(progress.getPhase().label).append('"')
+                .append(",\"inodes\":").append(progress.getInodes())
+                .append(",\"estimatedInodes\":").append(estimatedInodes < 0 ? "null" : estimatedInodes)
+                .append(",\"elapsedSeconds\":").append(progress.getElapsedNanos() / 1e9)
+                .append(",\"phaseElapsedSeconds\":").append(progress.getPhaseElapsedNanos() / 1e9)
+                .append(",\"etaSeconds\":").append(etaNanos < 0 ? "null" : etaNanos / 1e9)
+                .append(",\"abortRequested\":").append(progress.isAbortRequested())
+                .append('}');
+    }
+
+    private static void appendClusters(StringBuilder buf, Iterable<String> clusters) {
+        buf.append('[');
+        boolean first = true;
+        for (String cluster : clusters) {
+            if (!first) {
+                buf.append(',');
+            }
+            first = false;
+            appendString(buf, cluster);
+        }
+        buf.append(']');
+    }
+}
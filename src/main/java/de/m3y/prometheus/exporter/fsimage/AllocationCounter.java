@@ -0,0 +1,70 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts heap bytes allocated by the worker threads since creation of the counter.
+ * <p>
+ * Worker threads are the creating thread and the common fork join pool threads, which run the parallel
+ * FSImage visits and parallel streams. Threads started after creation count completely,
+ * while allocations of threads terminated before {@link #getAllocatedBytes()} get lost.
+ */
+class AllocationCounter {
+    private static final String COMMON_POOL_WORKER_PREFIX = "ForkJoinPool.commonPool-worker-";
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = threadMXBean();
+
+    private final long threadId;
+    private final Map<Long, Long> startAllocatedBytes;
+
+    AllocationCounter() {
+        threadId = Thread.currentThread().getId();
+        startAllocatedBytes = isSupported() ? allocatedBytesByWorkerThread() : null;
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadMXBean
+                && threadMXBean.isThreadAllocatedMemorySupported()) {
+            return threadMXBean;
+        }
+        return null;
+    }
+
+    /**
+     * @return true, if the JVM supports and enabled per thread allocation counters
+     */
+    static boolean isSupported() {
+        return null != THREAD_MX_BEAN && THREAD_MX_BEAN.isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * @return the bytes allocated by worker threads since creation, or -1 if not supported
+     */
+    long getAllocatedBytes() {
+        if (null == startAllocatedBytes) {
+            return -1;
+        }
+        long allocatedBytes = 0;
+        for (Map.Entry<Long, Long> entry : allocatedBytesByWorkerThread().entrySet()) {
+            allocatedBytes += entry.getValue() - startAllocatedBytes.getOrDefault(entry.getKey(), 0L);
+        }
+        return allocatedBytes;
+    }
+
+    private Map<Long, Long> allocatedBytesByWorkerThread() {
+        final long[] threadIds = THREAD_MX_BEAN.getAllThreadIds();
+        final ThreadInfo[] threadInfos = THREAD_MX_BEAN.getThreadInfo(threadIds, 0);
+        final long[] allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadIds);
+        final Map<Long, Long> allocatedBytesByThread = new HashMap<>();
+        for (int i = 0; i < threadIds.length; i++) {
+            // Terminated threads have no thread info and -1 allocated bytes
+            if (allocatedBytes[i] >= 0 && null != threadInfos[i]
+                    && (threadIds[i] == threadId || threadInfos[i].getThreadName().startsWith(COMMON_POOL_WORKER_PREFIX))) {
+                allocatedBytesByThread.put(threadIds[i], allocatedBytes[i]);
+            }
+        }
+        return allocatedBytesByThread;
+    }
+}
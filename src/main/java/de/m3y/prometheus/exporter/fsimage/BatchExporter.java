@@ -0,0 +1,278 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import de.m3y.hadoop.hdfs.hfsa.util.IECBinary;
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.apache.log4j.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.log4j.Logger.getRootLogger;
+
+/**
+ * Computes metrics for a batch of (archived) FSImages, e.g. for backfilling capacity history.
+ * <p>
+ * Processes FSImages concurrently, limited by a heap memory budget, and writes one output file
+ * per FSImage with samples timestamped by FSImage modification time.
+ * Existing output files are skipped, so that an interrupted batch can be resumed.
+ */
+public class BatchExporter {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchExporter.class);
+
+    /**
+     * Estimated heap required per FSImage byte while loading and computing, see README.
+     */
+    static final int HEAP_PER_FSIMAGE_BYTE = 3;
+
+    /**
+     * Output format.
+     */
+    enum Format {
+        /** OpenMetrics text format, e.g. for backfilling via 'promtool tsdb create-blocks-from openmetrics' */
+        OPENMETRICS(".txt"),
+        /** CSV with columns timestamp (ms), name, labels and value */
+        CSV(".csv");
+
+        final String fileSuffix;
+
+        Format(String fileSuffix) {
+            this.fileSuffix = fileSuffix;
+        }
+    }
+
+    private final Config config;
+    private final Path outputDir;
+    private final Format format;
+    private final int threads;
+    private final int memoryBudgetMiB;
+    private final Semaphore memoryPermits;
+
+    /**
+     * @param config       the configuration
+     * @param outputDir    the output directory
+     * @param format       the output format
+     * @param threads      the max number of FSImages processed concurrently
+     * @param memoryBudget the heap budget in bytes shared by concurrently processed FSImages
+     */
+    BatchExporter(Config config, Path outputDir, Format format, int threads, long memoryBudget) {
+        if (config.hasNamespaces()) {
+            throw new IllegalArgumentException("Expected single namespace configuration without namespaces");
+        }
+        if (!Files.isDirectory(outputDir)) {
+            throw new IllegalArgumentException("The output directory " + outputDir + " does not exist");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Expected threads >= 1, but got " + threads);
+        }
+        this.config = config;
+        // Drill-down index is only served via HTTP
+        config.setNamespaceIndexEnabled(false);
+        this.outputDir = outputDir;
+        this.format = format;
+        this.threads = threads;
+        memoryBudgetMiB = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget >> 20));
+        memoryPermits = new Semaphore(memoryBudgetMiB, true);
+    }
+
+    /**
+     * Lists the FSImage files, expanding directories into the contained FSImage files.
+     *
+     * @param fsImagePaths FSImage files or directories
+     * @return the FSImage files, sorted by name
+     */
+    static List<File> listFsImages(List<String> fsImagePaths) {
+        List<File> fsImages = new ArrayList<>();
+        for (String fsImagePath : fsImagePaths) {
+            final File file = new File(fsImagePath);
+            if (file.isDirectory()) {
+                final File[] files = file.listFiles(FsImageWatcher.FSIMAGE_FILTER);
+                if (null != files) {
+                    fsImages.addAll(Arrays.asList(files));
+                }
+            } else if (file.isFile()) {
+                fsImages.add(file);
+            } else {
+                throw new IllegalArgumentException("No such fsimage file or directory " + file.getAbsolutePath());
+            }
+        }
+        fsImages.sort(Collections.reverseOrder(FsImageWatcher.FSIMAGE_FILENAME_COMPARATOR));
+        return fsImages;
+    }
+
+    /**
+     * Processes the FSImages, continuing with remaining FSImages on error.
+     *
+     * @param fsImages the FSImage files
+     * @return the number of failed FSImages
+     * @throws InterruptedException if interrupted while waiting
+     */
+    int run(List<File> fsImages) throws InterruptedException {
+        final long time = System.currentTimeMillis();
+        final AtomicInteger done = new AtomicInteger();
+        final ExecutorService executorService =
+                Executors.newFixedThreadPool(Math.min(threads, Math.max(1, fsImages.size())));
+        int failed = 0;
+        try {
+            List<Future<?>> futures = new ArrayList<>(fsImages.size());
+            for (File fsImage : fsImages) {
+                futures.add(executorService.submit(() -> {
+                    process(fsImage);
+                    LOG.info("Processed {} ({}/{})", fsImage, done.incrementAndGet(), fsImages.size());
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    LOG.error("Can not process {}", fsImages.get(i), e.getCause());
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        LOG.info("Processed {} fsimages with {} failures in {}ms", fsImages.size(), failed,
+                System.currentTimeMillis() - time);
+        return failed;
+    }
+
+    void process(File fsImage) throws IOException, InterruptedException {
+        final Path outputFile = outputDir.resolve(fsImage.getName() + format.fileSuffix);
+        if (Files.exists(outputFile)) {
+            LOG.info("Skipping {} with existing output {}", fsImage, outputFile);
+            return;
+        }
+
+        // Images exceeding the budget run exclusively, while spilling to disk bounds heap by the spill buffer
+        final int permits = (int) Math.min(memoryBudgetMiB, Math.max(1, config.isSpillToDiskEnabled()
+                ? config.getSpillBufferMiB() : (fsImage.length() * HEAP_PER_FSIMAGE_BYTE) >> 20));
+        final FsImageReporter.Report report;
+        memoryPermits.acquire(permits);
+        try {
+            if (config.isSpillToDiskEnabled()) {
+                report = ExternalMemoryReporter.computeStatsReport(fsImage, config);
+            } else {
+                FsImageData fsImageData = FsImageUpdateHandler.load(fsImage);
+                report = FsImageReporter.computeStatsReport(fsImageData, fsImage, config);
+            }
+        } finally {
+            memoryPermits.release(permits);
+        }
+        if (report.error) {
+            throw new IOException("Error computing report for " + fsImage);
+        }
+
+        List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        new FsImageUpdateHandler.ReportMetrics().collect(mfs, report, null);
+        write(outputFile, withTimestamp(mfs, fsImage.lastModified()));
+    }
+
+    static List<Collector.MetricFamilySamples> withTimestamp(List<Collector.MetricFamilySamples> mfs, long timestampMs) {
+        List<Collector.MetricFamilySamples> timestamped = new ArrayList<>(mfs.size());
+        for (Collector.MetricFamilySamples family : mfs) {
+            List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>(family.samples.size());
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                samples.add(new Collector.MetricFamilySamples.Sample(sample.name, sample.labelNames,
+                        sample.labelValues, sample.value, sample.exemplar, timestampMs));
+            }
+            timestamped.add(new Collector.MetricFamilySamples(family.name, family.unit, family.type,
+                    family.help, samples));
+        }
+        return timestamped;
+    }
+
+    private void write(Path outputFile, List<Collector.MetricFamilySamples> mfs) throws IOException {
+        // Write atomically, as existing output files are skipped when resuming
+        final Path tmpFile = Files.createTempFile(outputDir, "." + outputFile.getFileName(), ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+                if (format == Format.CSV) {
+                    writeCsv(writer, mfs);
+                } else {
+                    TextFormat.writeOpenMetrics100(writer, Collections.enumeration(mfs));
+                }
+            }
+            Files.move(tmpFile, outputFile, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    static void writeCsv(Writer writer, List<Collector.MetricFamilySamples> mfs) throws IOException {
+        writer.write("timestamp,name,labels,value\n");
+        StringBuilder labels = new StringBuilder();
+        for (Collector.MetricFamilySamples family : mfs) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                labels.setLength(0);
+                for (int i = 0; i < sample.labelNames.size(); i++) {
+                    if (i > 0) {
+                        labels.append(';');
+                    }
+                    labels.append(sample.labelNames.get(i)).append('=').append(sample.labelValues.get(i));
+                }
+                writer.write(String.valueOf(sample.timestampMs));
+                writer.write(',');
+                writer.write(sample.name);
+                writer.write(',');
+                writer.write(csvField(labels.toString()));
+                writer.write(',');
+                writer.write(Collector.doubleToGoString(sample.value));
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Quotes a CSV field if required, see RFC 4180.
+     */
+    static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: BatchExporter [-Dlog.level=[WARN|INFO|DEBUG]] [-Dformat=[openmetrics|csv]] " // NOSONAR
+                    + "[-Dthreads=<number>] [-DmemoryBudget=<size, e.g. 16GiB>] "
+                    + "<output directory> <yml configuration file> <fsimage file or directory>...");
+            System.exit(1);
+        }
+
+        getRootLogger().setLevel(Level.toLevel(System.getProperty("log.level"), Level.INFO));
+
+        final Format format = Format.valueOf(System.getProperty("format", "openmetrics").toUpperCase(Locale.ROOT));
+        final int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+        final String memoryBudget = System.getProperty("memoryBudget");
+        final long memoryBudgetBytes = null == memoryBudget
+                ? Runtime.getRuntime().maxMemory() / 10 * 8 : IECBinary.parse(memoryBudget);
+
+        final BatchExporter batchExporter = new BatchExporter(ConfigWatcher.load(new File(args[1])),
+                Paths.get(args[0]), format, threads, memoryBudgetBytes);
+        final int failed = batchExporter.run(listFsImages(Arrays.asList(args).subList(2, args.length)));
+        System.exit(failed > 0 ? 2 : 0);
+    }
+}
@@ -0,0 +1,247 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Predicate;
+import io.prometheus.client.SampleNameFilter;
+import io.prometheus.client.Summary;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves metrics, sharing one in-flight render between concurrent requests.
+ * <p>
+ * Concurrent requests asking for the same scope, content type and name[] filter wait for the
+ * already running render instead of collecting all metrics again.
+ * Requests waiting longer than {@value #SHARED_RENDER_TIMEOUT_MILLIS}ms render on their own,
+ * for never blocking on a stuck shared render.
+ * <p>
+ * Besides all metrics at {@value #METRICS_PATH}, serves subsets of metrics families via the {@link Scope} endpoints.
+ */
+class CoalescingMetricsHttpHandler implements HttpHandler {
+    static final String METRICS_PATH = "/metrics";
+    static final long SHARED_RENDER_TIMEOUT_MILLIS = 10_000L;
+    private static final String NAME_FILTER_PARAM = "name[]";
+    private static final String[] USER_PREFIXES = {
+            FsImageUpdateHandler.METRIC_PREFIX_USER, FsImageUpdateHandler.METRIC_PREFIX_GROUP};
+    private static final String[] PATH_PREFIXES = {FsImageUpdateHandler.METRIC_PREFIX_PATH};
+
+    /**
+     * Metric endpoints, each restricted to a subset of metric families.
+     */
+    enum Scope {
+        /** All metrics */
+        ALL(METRICS_PATH, null),
+        /** Overall and exporter internal metrics, without any user, group, path or path set metrics */
+        OVERALL(METRICS_PATH + "/overall", new SampleNameFilter.Builder()
+                .nameMustNotStartWith(USER_PREFIXES).nameMustNotStartWith(PATH_PREFIXES).build()),
+        /** User and group metrics */
+        USERS(METRICS_PATH + "/users", new SampleNameFilter.Builder().nameMustStartWith(USER_PREFIXES).build()),
+        /** Path and path set metrics */
+        PATHS(METRICS_PATH + "/paths", new SampleNameFilter.Builder().nameMustStartWith(PATH_PREFIXES).build());
+
+        final String path;
+        final Predicate<String> sampleNameFilter;
+
+        Scope(String path, Predicate<String> sampleNameFilter) {
+            this.path = path;
+            this.sampleNameFilter = sampleNameFilter;
+        }
+
+        static Scope fromPath(String path) {
+            String normalizedPath = path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            for (Scope scope : values()) {
+                if (scope.path.equals(normalizedPath)) {
+                    return scope;
+                }
+            }
+            return null; // NOSONAR : null means unknown scope
+        }
+    }
+
+    private final CollectorRegistry registry;
+    private final long sharedRenderTimeoutMillis;
+    private final ConcurrentMap<RenderKey, CompletableFuture<byte[]>> inFlightRenders = new ConcurrentHashMap<>();
+
+    private final Summary requestDuration = Summary.build()
+            .name(FsImageCollector.METRIC_PREFIX + "http_request_duration_seconds")
+            .help("HTTP metrics request duration, including waiting for a shared in-flight render").create();
+    private final Gauge requestsInFlight = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "http_requests_in_flight")
+            .help("Number of HTTP metrics requests currently being served").create();
+    private final Counter coalescedRequests = Counter.build()
+            .name(FsImageCollector.METRIC_PREFIX + "http_requests_coalesced_total")
+            .help("Number of HTTP metrics requests served by a shared in-flight render").create();
+    private final Counter sharedRenderTimeouts = Counter.build()
+            .name(FsImageCollector.METRIC_PREFIX + "http_shared_render_timeouts_total")
+            .help("Number of HTTP metrics requests rendering on their own, after timing out waiting for a shared render")
+            .create();
+
+    /**
+     * Identifies renders which can be shared.
+     */
+    record RenderKey(Scope scope, String contentType, Set<String> names) {
+    }
+
+    CoalescingMetricsHttpHandler(CollectorRegistry registry) {
+        this(registry, SHARED_RENDER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param registry                  the registry to render
+     * @param sharedRenderTimeoutMillis the max time waiting for a shared in-flight render, before rendering on its own
+     */
+    CoalescingMetricsHttpHandler(CollectorRegistry registry, long sharedRenderTimeoutMillis) {
+        this.registry = registry;
+        this.sharedRenderTimeoutMillis = sharedRenderTimeoutMillis;
+    }
+
+    /**
+     * Registers the HTTP request metrics.
+     *
+     * @param registry the registry to register with
+     */
+    void register(CollectorRegistry registry) {
+        requestDuration.register(registry);
+        requestsInFlight.register(registry);
+        coalescedRequests.register(registry);
+        sharedRenderTimeouts.register(registry);
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        requestsInFlight.inc();
+        try (Summary.Timer timer = requestDuration.startTimer()) {
+            final Scope scope = Scope.fromPath(httpExchange.getRequestURI().getPath());
+            if (null == scope) {
+                httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                return;
+            }
+            final String contentType = TextFormat.chooseContentType(
+                    httpExchange.getRequestHeaders().getFirst("Accept"));
+            final byte[] content = render(new RenderKey(scope, contentType,
+                    parseNameFilter(httpExchange.getRequestURI().getRawQuery())));
+            sendResponse(httpExchange, contentType, content);
+        } finally {
+            requestsInFlight.dec();
+            httpExchange.close();
+        }
+    }
+
+    private byte[] render(RenderKey key) throws IOException {
+        CompletableFuture<byte[]> ownRender = new CompletableFuture<>();
+        CompletableFuture<byte[]> sharedRender = inFlightRenders.putIfAbsent(key, ownRender);
+        if (null != sharedRender) {
+            coalescedRequests.inc();
+            return awaitRender(key, sharedRender);
+        }
+
+        try {
+            byte[] content = renderContent(key);
+            ownRender.complete(content);
+            return content;
+        } catch (IOException | RuntimeException e) {
+            ownRender.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightRenders.remove(key, ownRender);
+        }
+    }
+
+    private byte[] awaitRender(RenderKey key, CompletableFuture<byte[]> sharedRender) throws IOException {
+        try {
+            return sharedRender.get(sharedRenderTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            sharedRenderTimeouts.inc();
+            return renderContent(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for shared metrics render", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Shared metrics render failed", e.getCause());
+        }
+    }
+
+    private byte[] renderContent(RenderKey key) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(1 << 16);
+        try (Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8)) {
+            TextFormat.writeFormat(key.contentType(), writer, registry.filteredMetricFamilySamples(
+                    SampleNameFilter.restrictToNamesEqualTo(key.scope().sampleNameFilter, key.names())));
+        }
+        return os.toByteArray();
+    }
+
+    private static void sendResponse(HttpExchange httpExchange, String contentType, byte[] content)
+            throws IOException {
+        httpExchange.getResponseHeaders().set("Content-Type", contentType);
+        if ("HEAD".equals(httpExchange.getRequestMethod())) {
+            httpExchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+            httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+        } else if (acceptsGzip(httpExchange)) {
+            httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+            try (OutputStream os = new GZIPOutputStream(httpExchange.getResponseBody())) {
+                os.write(content);
+            }
+        } else {
+            httpExchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+            httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, content.length);
+            httpExchange.getResponseBody().write(content);
+        }
+    }
+
+    private static boolean acceptsGzip(HttpExchange httpExchange) {
+        for (String encodingHeader : httpExchange.getRequestHeaders().getOrDefault("Accept-Encoding", List.of())) {
+            for (String encoding : encodingHeader.split(",")) {
+                if ("gzip".equalsIgnoreCase(encoding.trim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the name[] parameters of a query.
+     *
+     * @param rawQuery the raw (encoded) query, may be null
+     * @return the requested metric names, or null if unfiltered
+     */
+    static Set<String> parseNameFilter(String rawQuery) {
+        if (null == rawQuery || rawQuery.isEmpty()) {
+            return null; // NOSONAR : null means no filter
+        }
+        Set<String> names = new TreeSet<>();
+        for (String pair : rawQuery.split("&")) {
+            int idx = pair.indexOf('=');
+            if (idx > 0) {
+                String key = URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8);
+                if (NAME_FILTER_PARAM.equals(key)) {
+                    names.add(URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return names.isEmpty() ? null : names;
+    }
+}
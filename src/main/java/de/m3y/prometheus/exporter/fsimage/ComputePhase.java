@@ -0,0 +1,25 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+/**
+ * Phases of loading a FSImage and computing its report, instrumented via metrics and {@link PhaseEvent}.
+ */
+enum ComputePhase {
+    /** Loading/parsing FSImage, including string table, inode and directory sections */
+    LOAD("load"),
+    /** Computing overall, group and user stats */
+    STATS("stats"),
+    /** Building the optional namespace index */
+    NAMESPACE_INDEX("namespace_index"),
+    /** Expanding configured path patterns, summed over parallel path set expansions */
+    PATH_EXPANSION("path_expansion"),
+    /** Computing path stats */
+    PATH_STATS("path_stats"),
+    /** Computing path set stats */
+    PATH_SET_STATS("path_set_stats");
+
+    final String label;
+
+    ComputePhase(String label) {
+        this.label = label;
+    }
+}
@@ -0,0 +1,189 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the progress of loading a FSImage and computing its report, and handles abort requests.
+ * <p>
+ * Visitors count processed inodes via {@link #onInode()}, which also aborts a requested computation
+ * by throwing a {@link CancellationException}. Loading aborts once the FSImage has been loaded.
+ * <p>
+ * Estimates the remaining time from the phase durations and processed inodes of the previous report.
+ */
+class ComputeProgress {
+    /**
+     * Outcome of the tracked FSImage reload.
+     */
+    enum Status {
+        /** Loading or computing */
+        RUNNING,
+        /** Computed and published the report */
+        COMPLETED,
+        /** Aborted by request, keeping the previous report */
+        ABORTED,
+        /** Failed or superseded, keeping the previous report */
+        FAILED;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    final String fsImage;
+    final long txId;
+    final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    // Previous report phase durations and inodes by phase ordinal, or null if no previous report
+    private final long[] estimatedPhaseNanos;
+    private final long[] estimatedPhaseInodes;
+    private final LongAdder inodes = new LongAdder();
+    private volatile ComputePhase phase = ComputePhase.LOAD;
+    private volatile long phaseStartNanos = startNanos;
+    private volatile boolean abortRequested;
+    private volatile Status status = Status.RUNNING;
+    private volatile long finishNanos;
+
+    /**
+     * @param fsImageFile the FSImage file, or null if unknown
+     * @param previous    the previous report for estimating the remaining time, or null
+     */
+    ComputeProgress(File fsImageFile, FsImageReporter.Report previous) {
+        fsImage = null == fsImageFile ? null : fsImageFile.getName();
+        txId = null == fsImageFile ? -1 : FsImageWatcher.getTxId(fsImageFile);
+        if (null == previous) {
+            estimatedPhaseNanos = null;
+            estimatedPhaseInodes = null;
+        } else {
+            estimatedPhaseNanos = new long[ComputePhase.values().length];
+            estimatedPhaseInodes = new long[ComputePhase.values().length];
+            for (ComputePhase p : ComputePhase.values()) {
+                estimatedPhaseNanos[p.ordinal()] = previous.phaseDurationNanos.get(p).sum();
+                estimatedPhaseInodes[p.ordinal()] = previous.phaseInodes.get(p).sum();
+            }
+        }
+    }
+
+    /**
+     * Enters the next phase, resetting the processed inodes.
+     *
+     * @param newPhase the phase
+     * @throws CancellationException if aborted
+     */
+    void enterPhase(ComputePhase newPhase) {
+        checkAborted();
+        inodes.reset();
+        phaseStartNanos = System.nanoTime();
+        phase = newPhase;
+    }
+
+    /**
+     * Counts a processed inode.
+     *
+     * @throws CancellationException if aborted
+     */
+    void onInode() {
+        checkAborted();
+        inodes.increment();
+    }
+
+    /**
+     * @throws CancellationException if aborted
+     */
+    void checkAborted() {
+        if (abortRequested) {
+            throw new CancellationException("Aborted computing report of " + fsImage);
+        }
+    }
+
+    /**
+     * Requests aborting, taking effect with the next processed inode or phase.
+     *
+     * @return true, if still running
+     */
+    boolean abort() {
+        if (status != Status.RUNNING) {
+            return false;
+        }
+        abortRequested = true;
+        return true;
+    }
+
+    boolean isAbortRequested() {
+        return abortRequested;
+    }
+
+    /**
+     * Finishes tracking, stopping elapsed times.
+     *
+     * @param outcome the outcome
+     */
+    void finish(Status outcome) {
+        finishNanos = System.nanoTime();
+        status = outcome;
+    }
+
+    Status getStatus() {
+        return status;
+    }
+
+    ComputePhase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the processed inodes of the current phase
+     */
+    long getInodes() {
+        return inodes.sum();
+    }
+
+    /**
+     * @return the inodes of the current phase in the previous report, or -1 if unknown
+     */
+    long getEstimatedInodes() {
+        return null == estimatedPhaseInodes ? -1 : estimatedPhaseInodes[phase.ordinal()];
+    }
+
+    long getElapsedNanos() {
+        return now() - startNanos;
+    }
+
+    long getPhaseElapsedNanos() {
+        return now() - phaseStartNanos;
+    }
+
+    private long now() {
+        return status == Status.RUNNING ? System.nanoTime() : finishNanos;
+    }
+
+    /**
+     * Estimates the remaining time of the current and subsequent phases.
+     * <p>
+     * Extrapolates the current phase from its inode rate if counting inodes, or else from its previous duration.
+     *
+     * @return the estimated remaining nanoseconds, 0 if no longer running or -1 if unknown
+     */
+    long getEtaNanos() {
+        if (status != Status.RUNNING) {
+            return 0;
+        }
+        if (null == estimatedPhaseNanos) {
+            return -1;
+        }
+        final ComputePhase current = phase;
+        final long phaseElapsedNanos = getPhaseElapsedNanos();
+        final long processed = inodes.sum();
+        final long estimated = estimatedPhaseInodes[current.ordinal()];
+        long remaining;
+        if (processed > 0 && estimated > processed) {
+            remaining = (long) ((double) phaseElapsedNanos / processed * (estimated - processed));
+        } else {
+            remaining = Math.max(0, estimatedPhaseNanos[current.ordinal()] - phaseElapsedNanos);
+        }
+        for (int i = current.ordinal() + 1; i < estimatedPhaseNanos.length; i++) {
+            remaining += estimatedPhaseNanos[i];
+        }
+        return remaining;
+    }
+}
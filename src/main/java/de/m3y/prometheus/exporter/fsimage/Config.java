@@ -18,6 +18,24 @@ public class Config {
      * Path where HDFS NameNode stores fsimage file snapshots
      */
     private String fsImagePath;
+    /**
+     * Interval in seconds for checking fsImagePath for a new fsimage file.
+     */
+    private int fsImageWatchIntervalSeconds = 60;
+    /**
+     * Cluster name of namespace, added as label to all metrics when exporting several namespaces.
+     */
+    private String cluster;
+    /**
+     * Several namespaces exported by one process, each with own fsImagePath, paths and pathSets.
+     * <p>
+     * Alternative to a single fsImagePath.
+     */
+    private List<Config> namespaces;
+    /**
+     * Max number of FSImages loaded in memory at once, when exporting several namespaces.
+     */
+    private int maxConcurrentLoads = 1;
     /**
      * A list of paths to report statistics for.
      * <p>
@@ -51,6 +69,104 @@ public class Config {
      * File size distribution buckets, supporting IEC units of KiB, MiB, GiB, TiB, PiB
      */
     private List<String> fileSizeDistributionBuckets = DEFAULT_FILE_SIZE_DISTRIBUTION_BUCKETS;
+    /**
+     * Compute distributions of direct child files and directories per directory, overall and per path.
+     */
+    private boolean directoryFanOutEnabled = false;
+    /**
+     * Number of directories with most direct child files and directories exported, or 0 for none.
+     */
+    private int directoryFanOutTopK = 10;
+    /**
+     * Count files with anomalies overall, per user, path and path set.
+     */
+    private boolean anomalyDetectionEnabled = false;
+    /**
+     * Non-empty files smaller than this size count as small files, supporting IEC units of KiB, MiB, GiB, TiB, PiB
+     */
+    private String anomalySmallFileSize = "1MiB";
+    /**
+     * Expected replication, counting files with higher or lower replication, or 0 for none.
+     */
+    private int anomalyExpectedReplication = 3;
+    /**
+     * Files with several blocks and last block filled less than this percent of block size count, or 0 for none.
+     */
+    private int anomalyLastBlockFillPercent = 10;
+    /**
+     * Count files and file size by file name suffix, overall and per user.
+     */
+    private boolean fileExtensionStatsEnabled = false;
+    /**
+     * File name suffixes counted overall and per user, e.g. <code>.crc</code> or <code>_SUCCESS</code>.
+     */
+    private List<String> fileExtensions = new ArrayList<>();
+    /**
+     * Number of discovered extensions with most files exported overall, in addition to configured suffixes.
+     */
+    private int fileExtensionTopK = 10;
+
+    /**
+     * Max number of HTTP server threads serving requests.
+     */
+    private int httpServerThreads = 5;
+    /**
+     * Serve HTTP requests using virtual threads (requires Java 21+), instead of a bounded thread pool.
+     */
+    private boolean httpServerVirtualThreads = false;
+
+    /**
+     * Retain a per-directory aggregate index after computing the report, for drill-down queries via /api/du.
+     */
+    private boolean namespaceIndexEnabled = false;
+    /**
+     * Max directory depth of the namespace index, aggregating deeper directories into their ancestor.
+     */
+    private int namespaceIndexMaxDepth = 4;
+    /**
+     * Decode only the INode fields required for overall, group and user stats, by streaming the FSImage INODE section.
+     * Not applied to compressed FSImages, if namespace index or directory fan-out is enabled, as requiring the
+     * directory tree, or if file extension stats are enabled, as requiring the file names.
+     */
+    private boolean selectiveDecodingEnabled = false;
+    /**
+     * Compute the report without loading the FSImage into heap, by spilling sorted inode and directory records
+     * to disk and aggregating path stats via external merge joins. Supports uncompressed FSImages only,
+     * and no namespace index.
+     */
+    private boolean spillToDiskEnabled = false;
+    /**
+     * Directory for temporary spill files, or null for java.io.tmpdir.
+     */
+    private String spillDirectory;
+    /**
+     * Max MiB of records buffered in heap before spilling a sorted run to disk.
+     */
+    private int spillBufferMiB = 64;
+
+    /**
+     * Replace the current report by a compacted snapshot of its metric samples before loading the next FSImage,
+     * so that the heap never holds two reports. The namespace index is unavailable until the next report,
+     * also if the reload fails or gets aborted.
+     */
+    private boolean lowMemoryReloadEnabled = false;
+
+    /**
+     * Watch the YAML config file and apply changes at runtime, checking every fsImageWatchIntervalSeconds.
+     * Recomputes only changed path and path set stats from the namespace index, if enabled and deep enough.
+     */
+    private boolean configReloadEnabled = false;
+
+    /**
+     * Bearer token required by the admin endpoint for forcing a reload, showing progress and aborting,
+     * or null for disabled.
+     */
+    private String adminToken;
+
+    /**
+     * Number of reports retained for computing growth rates, or 0 for disabled.
+     */
+    private int reportHistorySize = 0;
 
     public String getFsImagePath() {
         return fsImagePath;
@@ -60,6 +176,42 @@ public class Config {
         this.fsImagePath = fsImagePath;
     }
 
+    public int getFsImageWatchIntervalSeconds() {
+        return fsImageWatchIntervalSeconds;
+    }
+
+    public void setFsImageWatchIntervalSeconds(int fsImageWatchIntervalSeconds) {
+        this.fsImageWatchIntervalSeconds = fsImageWatchIntervalSeconds;
+    }
+
+    public String getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(String cluster) {
+        this.cluster = cluster;
+    }
+
+    public List<Config> getNamespaces() {
+        return namespaces;
+    }
+
+    public void setNamespaces(List<Config> namespaces) {
+        this.namespaces = namespaces;
+    }
+
+    public boolean hasNamespaces() {
+        return null != namespaces && !namespaces.isEmpty();
+    }
+
+    public int getMaxConcurrentLoads() {
+        return maxConcurrentLoads;
+    }
+
+    public void setMaxConcurrentLoads(int maxConcurrentLoads) {
+        this.maxConcurrentLoads = maxConcurrentLoads;
+    }
+
     public Set<String> getPaths() {
         return paths;
     }
@@ -127,4 +279,172 @@ public class Config {
     public double[] getFileSizeDistributionBucketsAsDoubles() {
         return getFileSizeDistributionBuckets().stream().mapToDouble(IECBinary::parse).toArray();
     }
+
+    public boolean isDirectoryFanOutEnabled() {
+        return directoryFanOutEnabled;
+    }
+
+    public void setDirectoryFanOutEnabled(boolean directoryFanOutEnabled) {
+        this.directoryFanOutEnabled = directoryFanOutEnabled;
+    }
+
+    public int getDirectoryFanOutTopK() {
+        return directoryFanOutTopK;
+    }
+
+    public void setDirectoryFanOutTopK(int directoryFanOutTopK) {
+        this.directoryFanOutTopK = directoryFanOutTopK;
+    }
+
+    public boolean isAnomalyDetectionEnabled() {
+        return anomalyDetectionEnabled;
+    }
+
+    public void setAnomalyDetectionEnabled(boolean anomalyDetectionEnabled) {
+        this.anomalyDetectionEnabled = anomalyDetectionEnabled;
+    }
+
+    public String getAnomalySmallFileSize() {
+        return anomalySmallFileSize;
+    }
+
+    public void setAnomalySmallFileSize(String anomalySmallFileSize) {
+        this.anomalySmallFileSize = anomalySmallFileSize;
+    }
+
+    public int getAnomalyExpectedReplication() {
+        return anomalyExpectedReplication;
+    }
+
+    public void setAnomalyExpectedReplication(int anomalyExpectedReplication) {
+        this.anomalyExpectedReplication = anomalyExpectedReplication;
+    }
+
+    public int getAnomalyLastBlockFillPercent() {
+        return anomalyLastBlockFillPercent;
+    }
+
+    public void setAnomalyLastBlockFillPercent(int anomalyLastBlockFillPercent) {
+        this.anomalyLastBlockFillPercent = anomalyLastBlockFillPercent;
+    }
+
+    public boolean isFileExtensionStatsEnabled() {
+        return fileExtensionStatsEnabled;
+    }
+
+    public void setFileExtensionStatsEnabled(boolean fileExtensionStatsEnabled) {
+        this.fileExtensionStatsEnabled = fileExtensionStatsEnabled;
+    }
+
+    public List<String> getFileExtensions() {
+        return fileExtensions;
+    }
+
+    public void setFileExtensions(List<String> fileExtensions) {
+        this.fileExtensions = fileExtensions;
+    }
+
+    public int getFileExtensionTopK() {
+        return fileExtensionTopK;
+    }
+
+    public void setFileExtensionTopK(int fileExtensionTopK) {
+        this.fileExtensionTopK = fileExtensionTopK;
+    }
+
+    public int getHttpServerThreads() {
+        return httpServerThreads;
+    }
+
+    public void setHttpServerThreads(int httpServerThreads) {
+        this.httpServerThreads = httpServerThreads;
+    }
+
+    public boolean isHttpServerVirtualThreads() {
+        return httpServerVirtualThreads;
+    }
+
+    public void setHttpServerVirtualThreads(boolean httpServerVirtualThreads) {
+        this.httpServerVirtualThreads = httpServerVirtualThreads;
+    }
+
+    public boolean isNamespaceIndexEnabled() {
+        return namespaceIndexEnabled;
+    }
+
+    public void setNamespaceIndexEnabled(boolean namespaceIndexEnabled) {
+        this.namespaceIndexEnabled = namespaceIndexEnabled;
+    }
+
+    public int getNamespaceIndexMaxDepth() {
+        return namespaceIndexMaxDepth;
+    }
+
+    public void setNamespaceIndexMaxDepth(int namespaceIndexMaxDepth) {
+        this.namespaceIndexMaxDepth = namespaceIndexMaxDepth;
+    }
+
+    public boolean isSelectiveDecodingEnabled() {
+        return selectiveDecodingEnabled;
+    }
+
+    public void setSelectiveDecodingEnabled(boolean selectiveDecodingEnabled) {
+        this.selectiveDecodingEnabled = selectiveDecodingEnabled;
+    }
+
+    public boolean isSpillToDiskEnabled() {
+        return spillToDiskEnabled;
+    }
+
+    public void setSpillToDiskEnabled(boolean spillToDiskEnabled) {
+        this.spillToDiskEnabled = spillToDiskEnabled;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public int getSpillBufferMiB() {
+        return spillBufferMiB;
+    }
+
+    public void setSpillBufferMiB(int spillBufferMiB) {
+        this.spillBufferMiB = spillBufferMiB;
+    }
+
+    public boolean isLowMemoryReloadEnabled() {
+        return lowMemoryReloadEnabled;
+    }
+
+    public void setLowMemoryReloadEnabled(boolean lowMemoryReloadEnabled) {
+        this.lowMemoryReloadEnabled = lowMemoryReloadEnabled;
+    }
+
+    public boolean isConfigReloadEnabled() {
+        return configReloadEnabled;
+    }
+
+    public void setConfigReloadEnabled(boolean configReloadEnabled) {
+        this.configReloadEnabled = configReloadEnabled;
+    }
+
+    public String getAdminToken() {
+        return adminToken;
+    }
+
+    public void setAdminToken(String adminToken) {
+        this.adminToken = adminToken;
+    }
+
+    public int getReportHistorySize() {
+        return reportHistorySize;
+    }
+
+    public void setReportHistorySize(int reportHistorySize) {
+        this.reportHistorySize = reportHistorySize;
+    }
 }
@@ -15,12 +15,19 @@ import java.util.Map;
  */
 public class ConfigHttpHandler implements com.sun.net.httpserver.HttpHandler {
 
-    private final Config config;
+    private volatile Config config;
 
     public ConfigHttpHandler(Config config) {
         this.config = config;
     }
 
+    /**
+     * @param config the reloaded config
+     */
+    void setConfig(Config config) {
+        this.config = config;
+    }
+
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -36,12 +43,16 @@ public class ConfigHttpHandler implements com.sun.net.httpserver.HttpHandler {
     }
 
     private String buildContent() {
+        final Config config = this.config; // Consistent, even if reloaded meanwhile
         StringBuilder buf = new StringBuilder().append("""
                 <html>
                 <head><title>Hadoop HDFS FSImage Exporter</title></head>
                 <body>
                 <h1>Hadoop HDFS FSImage Exporter</h1>
-                <p><a href="/metrics">Metrics</a></p>
+                <p><a href="/metrics">Metrics</a>
+                 (<a href="/metrics/overall">overall</a>,
+                  <a href="/metrics/users">users and groups</a>,
+                  <a href="/metrics/paths">paths and path sets</a>)</p>
                 <h2>Build info</h2>\
                 <ul>\
                 <li>App version:\s""").append(BuildMetaInfo.INSTANCE.getVersion()).append("</li>"
@@ -51,9 +62,19 @@ public class ConfigHttpHandler implements com.sun.net.httpserver.HttpHandler {
                 + "</ul>"
                 + "<h2>Configuration</h2><ul>"
                 + "<li>Path to HDFS NameNode fsImage snapshots : ").append(config.getFsImagePath()).append("</li>");
+        buf.append("<li>fsImageWatchIntervalSeconds : ").append(config.getFsImageWatchIntervalSeconds()).append("</li>");
         buf.append("<li>skipFileDistributionForGroupStats : ").append(config.isSkipFileDistributionForGroupStats()).append("</li>");
         buf.append("<li>skipFileDistributionForUserStats : ").append(config.isSkipFileDistributionForUserStats()).append("</li>");
         buf.append("<li>fileSizeDistributionBuckets : ").append(config.getFileSizeDistributionBuckets()).append("</li>");
+        buf.append("<li>directoryFanOutEnabled : ").append(config.isDirectoryFanOutEnabled()).append("</li>");
+        buf.append("<li>directoryFanOutTopK : ").append(config.getDirectoryFanOutTopK()).append("</li>");
+        buf.append("<li>anomalyDetectionEnabled : ").append(config.isAnomalyDetectionEnabled()).append("</li>");
+        buf.append("<li>anomalySmallFileSize : ").append(config.getAnomalySmallFileSize()).append("</li>");
+        buf.append("<li>anomalyExpectedReplication : ").append(config.getAnomalyExpectedReplication()).append("</li>");
+        buf.append("<li>anomalyLastBlockFillPercent : ").append(config.getAnomalyLastBlockFillPercent()).append("</li>");
+        buf.append("<li>fileExtensionStatsEnabled : ").append(config.isFileExtensionStatsEnabled()).append("</li>");
+        buf.append("<li>fileExtensions : ").append(config.getFileExtensions()).append("</li>");
+        buf.append("<li>fileExtensionTopK : ").append(config.getFileExtensionTopK()).append("</li>");
 
         if (config.hasPaths()) {
             buf.append("<li>Paths : <ul>");
@@ -72,6 +93,28 @@ public class ConfigHttpHandler implements com.sun.net.httpserver.HttpHandler {
             buf.append("</ul></li>");
         }
         buf.append("<li>skipFileDistributionForPathSetStats : ").append(config.isSkipFileDistributionForPathSetStats()).append("</li>");
+        buf.append("<li>httpServerThreads : ").append(config.getHttpServerThreads()).append("</li>");
+        buf.append("<li>httpServerVirtualThreads : ").append(config.isHttpServerVirtualThreads()).append("</li>");
+        buf.append("<li>namespaceIndexEnabled : ").append(config.isNamespaceIndexEnabled()).append("</li>");
+        buf.append("<li>namespaceIndexMaxDepth : ").append(config.getNamespaceIndexMaxDepth()).append("</li>");
+        buf.append("<li>selectiveDecodingEnabled : ").append(config.isSelectiveDecodingEnabled()).append("</li>");
+        buf.append("<li>spillToDiskEnabled : ").append(config.isSpillToDiskEnabled()).append("</li>");
+        buf.append("<li>spillDirectory : ").append(null == config.getSpillDirectory()
+                ? System.getProperty("java.io.tmpdir") : config.getSpillDirectory()).append("</li>");
+        buf.append("<li>spillBufferMiB : ").append(config.getSpillBufferMiB()).append("</li>");
+        buf.append("<li>lowMemoryReloadEnabled : ").append(config.isLowMemoryReloadEnabled()).append("</li>");
+        buf.append("<li>configReloadEnabled : ").append(config.isConfigReloadEnabled()).append("</li>");
+        buf.append("<li>adminToken : ").append(null == config.getAdminToken() ? "disabled" : "***").append("</li>");
+        buf.append("<li>reportHistorySize : ").append(config.getReportHistorySize()).append("</li>");
+        if (config.hasNamespaces()) {
+            buf.append("<li>maxConcurrentLoads : ").append(config.getMaxConcurrentLoads()).append("</li>");
+            buf.append("<li>Namespaces : <ul>");
+            for (Config namespace : config.getNamespaces()) {
+                buf.append("<li>").append(namespace.getCluster()).append(" : ").append(namespace.getFsImagePath())
+                        .append("</li>");
+            }
+            buf.append("</ul></li>");
+        }
         buf.append(
                 "</ul></body>\n"
                         + "</html>");
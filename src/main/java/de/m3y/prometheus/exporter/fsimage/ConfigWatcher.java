@@ -0,0 +1,73 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Watches the YAML config file for changes (modification time or size) and triggers the change handler
+ * with the re-read config.
+ * <p>
+ * Keeps the previous config if the changed file can not be parsed, until the file changes again.
+ */
+public class ConfigWatcher implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigWatcher.class);
+    private final File configFile;
+    private final Consumer<Config> changeHandler;
+    private long lastModified;
+    private long length;
+
+    /**
+     * @param configFile    the YAML config file, as already loaded
+     * @param changeHandler the handler for changed configs
+     */
+    public ConfigWatcher(File configFile, Consumer<Config> changeHandler) {
+        this.configFile = configFile;
+        this.changeHandler = changeHandler;
+        lastModified = configFile.lastModified();
+        length = configFile.length();
+    }
+
+    @Override
+    public void run() {
+        final long modified = configFile.lastModified();
+        final long size = configFile.length();
+        if (modified == lastModified && size == length) {
+            LOGGER.debug("Skipping unchanged {}", configFile);
+            return;
+        }
+        lastModified = modified;
+        length = size;
+        final Config config;
+        try {
+            config = load(configFile);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Can not read changed config {}, keeping previous config : {}", configFile, e.getMessage());
+            return;
+        }
+        LOGGER.info("Detected changed config {}", configFile.getAbsoluteFile());
+        changeHandler.accept(config);
+    }
+
+    /**
+     * Loads a YAML config file.
+     *
+     * @param configFile the config file
+     * @return the config
+     * @throws IOException on error
+     */
+    static Config load(File configFile) throws IOException {
+        try (FileInputStream reader = new FileInputStream(configFile)) {
+            final Config config = new Yaml().loadAs(reader, Config.class);
+            if (null == config) {
+                throw new IOException("Empty config " + configFile);
+            }
+            return config;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Predicate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distributions of direct child files and direct child directories per directory,
+ * and the directories with most direct children.
+ * <p>
+ * Huge flat directories strain the NameNode independent of total file counts,
+ * see dfs.namenode.fs-limits.max-directory-items.
+ * Visitors observe each directory once after visiting its children, updating primitive counters concurrently.
+ */
+class DirectoryFanOut {
+    static final double[] BUCKETS = {0, 1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+    static final String DIR_FILES = "dir_files";
+    static final String DIR_SUBDIRS = "dir_subdirs";
+    static final String DIR_TOP_FILES = "dir_top_files";
+    static final String DIR_TOP_SUBDIRS = "dir_top_subdirs";
+    static final String TOP_LABEL_DIRECTORY = "directory";
+
+    // Non-cumulative counts per bucket, with last bucket for +Inf
+    private final AtomicLongArray fileBuckets = new AtomicLongArray(BUCKETS.length + 1);
+    private final AtomicLongArray subdirectoryBuckets = new AtomicLongArray(BUCKETS.length + 1);
+    private final LongAdder sumFiles = new LongAdder();
+    private final LongAdder sumSubdirectories = new LongAdder();
+    private final TopK topFiles;
+    private final TopK topSubdirectories;
+
+    /**
+     * @param topK the number of tracked directories with most direct children, or 0 for none
+     */
+    DirectoryFanOut(int topK) {
+        topFiles = topK > 0 ? new TopK(topK) : null;
+        topSubdirectories = topK > 0 ? new TopK(topK) : null;
+    }
+
+    /**
+     * @param directory      the directory, resolving its path only if tracked as top directory
+     * @param files          the number of direct child files
+     * @param subdirectories the number of direct child directories
+     */
+    void observe(InodeVisitor.Directory directory, int files, int subdirectories) {
+        fileBuckets.incrementAndGet(bucket(files));
+        subdirectoryBuckets.incrementAndGet(bucket(subdirectories));
+        sumFiles.add(files);
+        sumSubdirectories.add(subdirectories);
+        if (null != topFiles) {
+            topFiles.offer(directory, files);
+            topSubdirectories.offer(directory, subdirectories);
+        }
+    }
+
+    static int bucket(long value) {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            if (value <= BUCKETS[i]) {
+                return i;
+            }
+        }
+        return BUCKETS.length;
+    }
+
+    /**
+     * @return the number of observed directories
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0; i < fileBuckets.length(); i++) {
+            count += fileBuckets.get(i);
+        }
+        return count;
+    }
+
+    long sumFiles() {
+        return sumFiles.sum();
+    }
+
+    long sumSubdirectories() {
+        return sumSubdirectories.sum();
+    }
+
+    /**
+     * @return the directories with most direct child files, sorted descending
+     */
+    List<TopK.Entry> topFiles() {
+        return null == topFiles ? Collections.emptyList() : topFiles.get();
+    }
+
+    /**
+     * @return the directories with most direct child directories, sorted descending
+     */
+    List<TopK.Entry> topSubdirectories() {
+        return null == topSubdirectories ? Collections.emptyList() : topSubdirectories.get();
+    }
+
+    /**
+     * Collects the histograms of several fan-outs into one metric family each, and the top directories of each.
+     *
+     * @param mfs              the collected metric families
+     * @param prefix           the metric name prefix
+     * @param labelName        the label name, or null for a single unlabeled fan-out
+     * @param fanOuts          the fan-outs by label value
+     * @param sampleNameFilter the sample name filter, or null for all metric families
+     */
+    static void collect(List<Collector.MetricFamilySamples> mfs, String prefix, String labelName,
+                        Map<String, DirectoryFanOut> fanOuts, Predicate<String> sampleNameFilter) {
+        final List<String> labelNames = null == labelName ? List.of() : List.of(labelName);
+        collectHistogram(mfs, prefix + DIR_FILES, "Distribution of direct child files per directory",
+                labelNames, fanOuts, true, sampleNameFilter);
+        collectHistogram(mfs, prefix + DIR_SUBDIRS, "Distribution of direct child directories per directory",
+                labelNames, fanOuts, false, sampleNameFilter);
+        collectTop(mfs, prefix + DIR_TOP_FILES, "Direct child files of the directories with most files",
+                labelNames, fanOuts, true, sampleNameFilter);
+        collectTop(mfs, prefix + DIR_TOP_SUBDIRS,
+                "Direct child directories of the directories with most child directories",
+                labelNames, fanOuts, false, sampleNameFilter);
+    }
+
+    private static void collectHistogram(List<Collector.MetricFamilySamples> mfs, String name, String help,
+                                         List<String> labelNames, Map<String, DirectoryFanOut> fanOuts,
+                                         boolean files, Predicate<String> sampleNameFilter) {
+        if (null != sampleNameFilter && !sampleNameFilter.test(name + "_bucket")
+                && !sampleNameFilter.test(name + "_count") && !sampleNameFilter.test(name + "_sum")) {
+            return;
+        }
+        final List<String> bucketLabelNames = new ArrayList<>(labelNames);
+        bucketLabelNames.add("le");
+        final List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+        for (Map.Entry<String, DirectoryFanOut> entry : fanOuts.entrySet()) {
+            final List<String> labelValues = labelNames.isEmpty() ? List.of() : List.of(entry.getKey());
+            final DirectoryFanOut fanOut = entry.getValue();
+            final AtomicLongArray buckets = files ? fanOut.fileBuckets : fanOut.subdirectoryBuckets;
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                cumulative += buckets.get(i);
+                final List<String> bucketLabelValues = new ArrayList<>(labelValues);
+                bucketLabelValues.add(i < BUCKETS.length ? Collector.doubleToGoString(BUCKETS[i]) : "+Inf");
+                samples.add(new Collector.MetricFamilySamples.Sample(name + "_bucket", bucketLabelNames,
+                        bucketLabelValues, cumulative));
+            }
+            samples.add(new Collector.MetricFamilySamples.Sample(name + "_count", labelNames, labelValues,
+                    cumulative));
+            samples.add(new Collector.MetricFamilySamples.Sample(name + "_sum", labelNames, labelValues,
+                    files ? fanOut.sumFiles() : fanOut.sumSubdirectories()));
+        }
+        mfs.add(new Collector.MetricFamilySamples(name, Collector.Type.HISTOGRAM, help, samples));
+    }
+
+    private static void collectTop(List<Collector.MetricFamilySamples> mfs, String name, String help,
+                                   List<String> labelNames, Map<String, DirectoryFanOut> fanOuts,
+                                   boolean files, Predicate<String> sampleNameFilter) {
+        if (null != sampleNameFilter && !sampleNameFilter.test(name)) {
+            return;
+        }
+        final List<String> topLabelNames = new ArrayList<>(labelNames);
+        topLabelNames.add(TOP_LABEL_DIRECTORY);
+        final List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+        for (Map.Entry<String, DirectoryFanOut> entry : fanOuts.entrySet()) {
+            final List<String> labelValues = labelNames.isEmpty() ? List.of() : List.of(entry.getKey());
+            for (TopK.Entry top : files ? entry.getValue().topFiles() : entry.getValue().topSubdirectories()) {
+                final List<String> topLabelValues = new ArrayList<>(labelValues);
+                topLabelValues.add(top.path());
+                samples.add(new Collector.MetricFamilySamples.Sample(name, topLabelNames, topLabelValues,
+                        top.count()));
+            }
+        }
+        if (!samples.isEmpty()) {
+            mfs.add(new Collector.MetricFamilySamples(name, Collector.Type.GAUGE, help, samples));
+        }
+    }
+
+    /**
+     * Bounded set of the directories with the highest counts.
+     * <p>
+     * Skips counts not exceeding the current minimum without locking, so that only few directories
+     * resolve their path and take the lock.
+     */
+    static class TopK {
+        record Entry(String path, long count) {
+        }
+
+        private static final Comparator<Entry> ASCENDING = Comparator.comparingLong(Entry::count)
+                .thenComparing(Entry::path, Comparator.reverseOrder());
+
+        private final int k;
+        private final PriorityQueue<Entry> heap;
+        // Min count of a full heap, or 0 while filling
+        private volatile long threshold;
+
+        TopK(int k) {
+            this.k = k;
+            heap = new PriorityQueue<>(k, ASCENDING);
+        }
+
+        void offer(InodeVisitor.Directory directory, long count) {
+            if (count <= threshold) {
+                return;
+            }
+            final String path = directory.getPath();
+            synchronized (this) {
+                if (heap.size() < k) {
+                    heap.add(new Entry(path, count));
+                } else if (count > heap.peek().count()) {
+                    heap.poll();
+                    heap.add(new Entry(path, count));
+                }
+                if (heap.size() == k) {
+                    threshold = heap.peek().count();
+                }
+            }
+        }
+
+        synchronized List<Entry> get() {
+            final List<Entry> entries = new ArrayList<>(heap);
+            entries.sort(ASCENDING.reversed());
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves drill-down disk usage queries as JSON from the namespace index of the current report.
+ * <p>
+ * Example: /api/du?path=/user&amp;depth=2&amp;limit=10 returns the rolled-up stats of /user,
+ * its top 10 users and its top 10 child directories by size, nested two levels deep.
+ * <p>
+ * When exporting several namespaces, the cluster parameter selects the namespace.
+ */
+class DuHttpHandler implements HttpHandler {
+    static final String PATH = "/api/du";
+    static final int DEFAULT_DEPTH = 1;
+    static final int DEFAULT_LIMIT = 10;
+
+    private final Map<String, FsImageCollector> fsImageCollectors;
+
+    /**
+     * @param fsImageCollectors the FSImage collectors by cluster name
+     */
+    DuHttpHandler(Map<String, FsImageCollector> fsImageCollectors) {
+        this.fsImageCollectors = fsImageCollectors;
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        try {
+            final Map<String, String> params = parseQuery(httpExchange.getRequestURI().getRawQuery());
+            final String cluster = params.get("cluster");
+            final FsImageCollector fsImageCollector = null == cluster && fsImageCollectors.size() == 1
+                    ? fsImageCollectors.values().iterator().next() : fsImageCollectors.get(cluster);
+            if (null == fsImageCollector) {
+                sendResponse(httpExchange, HttpURLConnection.HTTP_BAD_REQUEST,
+                        error("Expected cluster parameter with one of " + fsImageCollectors.keySet()));
+                return;
+            }
+            if (!fsImageCollector.getConfig().isNamespaceIndexEnabled()) {
+                sendResponse(httpExchange, HttpURLConnection.HTTP_NOT_FOUND,
+                        error("Namespace index disabled, see configuration option namespaceIndexEnabled"));
+                return;
+            }
+            final FsImageReporter.Report report = fsImageCollector.getFsImageReport();
+            if (null == report || null == report.namespaceIndex) {
+                sendResponse(httpExchange, HttpURLConnection.HTTP_UNAVAILABLE,
+                        error("Namespace index not available, waiting for next computed fsimage report"));
+                return;
+            }
+
+            final String path = params.getOrDefault("path", NamespaceIndex.ROOT);
+            final int depth;
+            final int limit;
+            try {
+                depth = Integer.parseInt(params.getOrDefault("depth", String.valueOf(DEFAULT_DEPTH)));
+                limit = Integer.parseInt(params.getOrDefault("limit", String.valueOf(DEFAULT_LIMIT)));
+            } catch (NumberFormatException e) {
+                sendResponse(httpExchange, HttpURLConnection.HTTP_BAD_REQUEST,
+                        error("Invalid depth or limit: " + e.getMessage()));
+                return;
+            }
+            if (depth < 0 || limit < 0) {
+                sendResponse(httpExchange, HttpURLConnection.HTTP_BAD_REQUEST,
+                        error("Expected depth and limit >= 0"));
+                return;
+            }
+
+            final NamespaceIndex namespaceIndex = report.namespaceIndex;
+            final NamespaceIndex.Node node = namespaceIndex.get(path);
+            if (null == node) {
+                sendResponse(httpExchange, HttpURLConnection.HTTP_NOT_FOUND,
+                        error("No indexed directory " + path + " (max depth " + namespaceIndex.getMaxDepth() + ")"));
+                return;
+            }
+
+            StringBuilder buf = new StringBuilder(1024);
+            appendNode(buf, node, depth, limit);
+            sendResponse(httpExchange, HttpURLConnection.HTTP_OK, buf.toString());
+        } finally {
+            httpExchange.close();
+        }
+    }
+
+    static void appendNode(StringBuilder buf, NamespaceIndex.Node node, int depth, int limit) {
+        buf.append("{\"path\":");
+        appendString(buf, node.path);
+        buf.append(",\"directories\":").append(node.directories)
+                .append(",\"files\":").append(node.files)
+                .append(",\"blocks\":").append(node.blocks)
+                .append(",\"size\":").append(node.size)
+                .append(",\"consumedSize\":").append(node.consumedSize)
+                .append(",\"users\":[");
+        boolean first = true;
+        for (Map.Entry<String, NamespaceIndex.Usage> entry : node.topUsers(limit)) {
+            if (!first) {
+                buf.append(',');
+            }
+            first = false;
+            final NamespaceIndex.Usage usage = entry.getValue();
+            buf.append("{\"user\":");
+            appendString(buf, entry.getKey());
+            buf.append(",\"files\":").append(usage.files)
+                    .append(",\"size\":").append(usage.size)
+                    .append(",\"consumedSize\":").append(usage.consumedSize)
+                    .append('}');
+        }
+        buf.append(']');
+        if (depth > 0) {
+            buf.append(",\"children\":[");
+            first = true;
+            for (NamespaceIndex.Node child : node.topChildren(limit)) {
+                if (!first) {
+                    buf.append(',');
+                }
+                first = false;
+                appendNode(buf, child, depth - 1, limit);
+            }
+            buf.append(']');
+        }
+        buf.append('}');
+    }
+
+    static void appendString(StringBuilder buf, String value) {
+        buf.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> buf.append("\\\"");
+                case '\\' -> buf.append("\\\\");
+                case '\n' -> buf.append("\\n");
+                case '\r' -> buf.append("\\r");
+                case '\t' -> buf.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        buf.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        buf.append(c);
+                    }
+                }
+            }
+        }
+        buf.append('"');
+    }
+
+    static String error(String message) {
+        StringBuilder buf = new StringBuilder("{\"error\":");
+        appendString(buf, message);
+        return buf.append('}').toString();
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (null != rawQuery) {
+            for (String pair : rawQuery.split("&")) {
+                int idx = pair.indexOf('=');
+                if (idx > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return params;
+    }
+
+    static void sendResponse(HttpExchange httpExchange, int status, String content) throws IOException {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        httpExchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        httpExchange.sendResponseHeaders(status, bytes.length);
+        httpExchange.getResponseBody().write(bytes);
+    }
+}
@@ -0,0 +1,673 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import org.apache.hadoop.hdfs.server.namenode.FSImageFormatProtobuf;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the report of namespaces exceeding the heap, using bounded memory and mostly sequential disk I/O.
+ * <p>
+ * Streams the INODE section once for computing overall, group and user stats. For path and path set stats,
+ * spills compact inode, directory name and directory entry records into sorted temporary files:
+ * <ol>
+ *     <li>Expands configured paths via binary search on the child directories sorted by parent and name</li>
+ *     <li>Labels each expanded path, and propagates labels level by level down the tree,
+ *     via merge joins of the sorted label frontier with the directory entries sorted by parent</li>
+ *     <li>Merge joins all labeled inodes with the inodes sorted by id, aggregating path and path set stats</li>
+ * </ol>
+ * Inodes only referenced by snapshots are skipped, as by {@link SelectiveINodeReader}, and never get labeled
+ * as not being children of any current directory.
+ * Supports uncompressed FSImages only, and no namespace index.
+ * Path and path set stats get computed jointly, in the path stats phase.
+ * <p>
+ * Counts streamed and aggregated inodes in the optional {@link ComputeProgress}, and checks for abort requests
+ * between sort and merge passes.
+ */
+class ExternalMemoryReporter {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalMemoryReporter.class);
+    private static final int NAME_LENGTH_BITS = 20;
+
+    private final File fsImageFile;
+    private final FsImageProto.FileSummary summary;
+    private final Config config;
+    private final Path directory;
+    private final long bufferBytes;
+    // Progress, or null if not tracked
+    private final ComputeProgress progress;
+    private final FsImageReporter.Report report;
+    private final Map<Integer, String> strings = new HashMap<>();
+
+    // Records of id, type << 32 | replication, file size or space quota, blocks
+    private ExternalSorter.SortedFile inodes;
+    // Records of directory id, name offset << NAME_LENGTH_BITS | name length
+    private ExternalSorter.SortedFile directoryNames;
+    private Path names;
+    // Records of parent id, child id
+    private ExternalSorter.SortedFile entries;
+    // Records of parent id, name key, child directory id, name offset << NAME_LENGTH_BITS | name length
+    private ExternalSorter.SortedFile childDirectories;
+
+    private ExternalMemoryReporter(File fsImageFile, FsImageProto.FileSummary summary, Config config,
+                                   Path directory, long bufferBytes, ComputeProgress progress) {
+        this.fsImageFile = fsImageFile;
+        this.summary = summary;
+        this.config = config;
+        this.directory = directory;
+        this.bufferBytes = bufferBytes;
+        this.progress = progress;
+        report = new FsImageReporter.Report(config);
+    }
+
+    /**
+     * Computes the report, spilling to a temporary directory below the configured spill directory.
+     *
+     * @param fsImageFile the FSImage file
+     * @param config      the config
+     * @return the report
+     * @throws IOException on error, or if FSImage is compressed
+     */
+    static FsImageReporter.Report computeStatsReport(File fsImageFile, Config config) throws IOException {
+        return computeStatsReport(fsImageFile, config, null);
+    }
+
+    /**
+     * Computes the report, tracking progress.
+     *
+     * @param fsImageFile the FSImage file
+     * @param config      the config
+     * @param progress    the progress, counting inodes and aborting on request, or null
+     * @return the report
+     * @throws IOException                                 on error, or if FSImage is compressed
+     * @throws java.util.concurrent.CancellationException if aborted
+     */
+    static FsImageReporter.Report computeStatsReport(File fsImageFile, Config config, ComputeProgress progress)
+            throws IOException {
+        return computeStatsReport(fsImageFile, config, (long) config.getSpillBufferMiB() << 20, progress);
+    }
+
+    static FsImageReporter.Report computeStatsReport(File fsImageFile, Config config, long bufferBytes,
+                                                     ComputeProgress progress) throws IOException {
+        final FsImageProto.FileSummary summary = SelectiveINodeReader.loadSummary(fsImageFile);
+        if (SelectiveINodeReader.isCompressed(summary)) {
+            throw new IOException("Spill to disk requires uncompressed FSImage, but " + fsImageFile
+                    + " is compressed with " + summary.getCodec());
+        }
+        if (config.isNamespaceIndexEnabled()) {
+            LOG.warn("Skipping namespace index, as not supported when spilling to disk");
+        }
+        if (config.isDirectoryFanOutEnabled()) {
+            LOG.warn("Skipping directory fan-out distributions, as not supported when spilling to disk");
+        }
+        if (config.isAnomalyDetectionEnabled()) {
+            LOG.warn("Skipping file anomalies, as not supported when spilling to disk");
+        }
+        if (config.isFileExtensionStatsEnabled()) {
+            LOG.warn("Skipping file extension stats, as not supported when spilling to disk");
+        }
+        final Path spillDirectory = Paths.get(null == config.getSpillDirectory()
+                ? System.getProperty("java.io.tmpdir") : config.getSpillDirectory());
+        final Path directory = Files.createTempDirectory(spillDirectory, "fsimage-spill-");
+        try {
+            return new ExternalMemoryReporter(fsImageFile, summary, config, directory, bufferBytes, progress)
+                    .compute();
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private FsImageReporter.Report compute() throws IOException {
+        final boolean hasPaths = config.hasPaths() || config.hasPathSets();
+        loadStrings();
+
+        long t = System.currentTimeMillis();
+        enterPhase(ComputePhase.STATS);
+        final PhaseEvent statsEvent = new PhaseEvent(ComputePhase.STATS);
+        computeStats(hasPaths);
+        report.recordPhase(statsEvent, report.getInodes());
+        LOG.info("Finished computing overall/group/user stats in {}ms", System.currentTimeMillis() - t);
+
+        if (hasPaths) {
+            t = System.currentTimeMillis();
+            spillDirectoryEntries();
+            checkAborted();
+            spillChildDirectories();
+            checkAborted();
+            LOG.info("Spilled {} inodes, {} directory names, {} directory entries and {} child directories "
+                            + "to {} in {}ms", inodes.size, directoryNames.size, entries.size, childDirectories.size,
+                    directory, System.currentTimeMillis() - t);
+            try {
+                computePathStats();
+            } finally {
+                inodes.close();
+                directoryNames.close();
+                entries.close();
+                childDirectories.close();
+            }
+        }
+        return report;
+    }
+
+    private void enterPhase(ComputePhase phase) {
+        if (null != progress) {
+            progress.enterPhase(phase);
+        }
+    }
+
+    private void countInode() {
+        if (null != progress) {
+            progress.onInode();
+        }
+    }
+
+    private void checkAborted() {
+        if (null != progress) {
+            progress.checkAborted();
+        }
+    }
+
+    private void loadStrings() throws IOException {
+        try (InputStream in = SelectiveINodeReader.openSection(fsImageFile, summary,
+                FSImageFormatProtobuf.SectionName.STRING_TABLE)) {
+            final FsImageProto.StringTableSection stringTable = FsImageProto.StringTableSection.parseDelimitedFrom(in);
+            for (int i = 0; i < stringTable.getNumEntry(); i++) {
+                final FsImageProto.StringTableSection.Entry entry =
+                        FsImageProto.StringTableSection.Entry.parseDelimitedFrom(in);
+                strings.put(entry.getId(), entry.getStr());
+            }
+        }
+    }
+
+    /**
+     * Computes overall, group and user stats, and spills inode and directory name records if required.
+     */
+    private void computeStats(boolean spill) throws IOException {
+        final SelectiveINodeReader reader = new SelectiveINodeReader();
+        if (!spill) {
+            reader.parallel().read(fsImageFile, new SelectiveINodeReader.Visitor() {
+                @Override
+                public void onFile(long id, long permission, int replication, long fileSize, long blocks) {
+                    countInode();
+                    FsImageReporter.observeFile(report, userName(permission), groupName(permission),
+                            fileSize, fileSize * replication, blocks, replication);
+                }
+
+                @Override
+                public void onDirectory(long id, long permission, long dsQuota, ByteString name) {
+                    countInode();
+                    FsImageReporter.observeDirectory(report, userName(permission), groupName(permission));
+                }
+
+                @Override
+                public void onSymLink(long id, long permission) {
+                    countInode();
+                    FsImageReporter.observeSymLink(report, userName(permission), groupName(permission));
+                }
+            });
+            return;
+        }
+
+        names = Files.createTempFile(directory, "names-", ".bin");
+        try (ExternalSorter inodeSorter = new ExternalSorter(directory, "inodes", 4, bufferBytes * 3 / 4);
+             ExternalSorter nameSorter = new ExternalSorter(directory, "directory-names", 2, bufferBytes / 4);
+             OutputStream nameOut = new BufferedOutputStream(Files.newOutputStream(names), 64 * 1024)) {
+            final long[] record = new long[4];
+            final long[] nameOffset = new long[1];
+            reader.directoryNames().read(fsImageFile, new SelectiveINodeReader.Visitor() {
+                @Override
+                public void onFile(long id, long permission, int replication, long fileSize, long blocks) {
+                    countInode();
+                    FsImageReporter.observeFile(report, userName(permission), groupName(permission),
+                            fileSize, fileSize * replication, blocks, replication);
+                    add(id, FsImageProto.INodeSection.INode.Type.FILE_VALUE, replication, fileSize, blocks);
+                }
+
+                @Override
+                public void onDirectory(long id, long permission, long dsQuota, ByteString name) {
+                    countInode();
+                    FsImageReporter.observeDirectory(report, userName(permission), groupName(permission));
+                    add(id, FsImageProto.INodeSection.INode.Type.DIRECTORY_VALUE, 0, dsQuota, 0);
+                    try {
+                        if (name.size() >= 1 << NAME_LENGTH_BITS) {
+                            throw new IOException("Name of directory " + id + " exceeds max length");
+                        }
+                        name.writeTo(nameOut);
+                        nameSorter.add(id, nameOffset[0] << NAME_LENGTH_BITS | name.size());
+                        nameOffset[0] += name.size();
+                    } catch (IOException e) {
+                        throw new SpillException(e);
+                    }
+                }
+
+                @Override
+                public void onSymLink(long id, long permission) {
+                    countInode();
+                    FsImageReporter.observeSymLink(report, userName(permission), groupName(permission));
+                    add(id, FsImageProto.INodeSection.INode.Type.SYMLINK_VALUE, 0, 0, 0);
+                }
+
+                private void add(long id, int type, int replication, long fileSizeOrQuota, long blocks) {
+                    record[0] = id;
+                    record[1] = (long) type << 32 | replication;
+                    record[2] = fileSizeOrQuota;
+                    record[3] = blocks;
+                    try {
+                        inodeSorter.add(record);
+                    } catch (IOException e) {
+                        throw new SpillException(e);
+                    }
+                }
+            });
+            nameOut.flush();
+            checkAborted();
+            inodes = inodeSorter.sort();
+            checkAborted();
+            directoryNames = nameSorter.sort();
+        } catch (SpillException e) {
+            throw e.getCause();
+        }
+    }
+
+    private String userName(long permission) {
+        return strings.get(SelectiveINodeReader.getUserId(permission));
+    }
+
+    private String groupName(long permission) {
+        return strings.get(SelectiveINodeReader.getGroupId(permission));
+    }
+
+    /**
+     * Spills the directory entries of the INODE_DIR section, sorted by parent.
+     */
+    private void spillDirectoryEntries() throws IOException {
+        try (InputStream in = SelectiveINodeReader.openSection(fsImageFile, summary,
+                FSImageFormatProtobuf.SectionName.INODE_DIR);
+             ExternalSorter sorter = new ExternalSorter(directory, "entries", 2, bufferBytes)) {
+            SelectiveINodeReader.readDirectoryEntries(in, (parent, children, numChildren) -> {
+                for (int i = 0; i < numChildren; i++) {
+                    sorter.add(parent, children[i]);
+                }
+            });
+            entries = sorter.sort();
+        }
+    }
+
+    /**
+     * Spills the child directories with their names, sorted by parent and name key, for binary search by name.
+     * Joins the directory entries re-sorted by child with the directory names.
+     */
+    private void spillChildDirectories() throws IOException {
+        final ExternalSorter.SortedFile parents;
+        try (ExternalSorter parentSorter = new ExternalSorter(directory, "parents", 2, bufferBytes);
+             ExternalSorter.RecordReader entryReader = entries.reader()) {
+            while (entryReader.next()) {
+                parentSorter.add(entryReader.record[1], entryReader.record[0]);
+            }
+            parents = parentSorter.sort();
+        }
+        checkAborted();
+        try (ExternalSorter childSorter = new ExternalSorter(directory, "child-directories", 4, bufferBytes);
+             ExternalSorter.RecordReader parentReader = parents.reader();
+             ExternalSorter.RecordReader nameReader = directoryNames.reader();
+             FileChannel nameChannel = FileChannel.open(names, StandardOpenOption.READ)) {
+            final long[] record = new long[4];
+            boolean hasParent = parentReader.next();
+            boolean hasName = nameReader.next();
+            while (hasParent && hasName) {
+                final long child = parentReader.record[0];
+                final long id = nameReader.record[0];
+                if (child < id) {
+                    hasParent = parentReader.next(); // Not a directory
+                } else if (child > id) {
+                    hasName = nameReader.next(); // Root, or not a current child
+                } else {
+                    record[0] = parentReader.record[1];
+                    record[1] = nameKey(readName(nameChannel, nameReader.record[1], Long.BYTES));
+                    record[2] = child;
+                    record[3] = nameReader.record[1];
+                    childSorter.add(record);
+                    hasParent = parentReader.next();
+                }
+            }
+            childDirectories = childSorter.sort();
+        } finally {
+            Files.deleteIfExists(parents.path);
+        }
+    }
+
+    /**
+     * Orders names by their first bytes, as unsigned big endian long padded with zero bytes.
+     *
+     * @param name the raw UTF-8 name
+     * @return the name key
+     */
+    private static long nameKey(ByteString name) {
+        long key = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            key = key << 8 | (i < name.size() ? name.byteAt(i) & 0xff : 0);
+        }
+        return key ^ Long.MIN_VALUE; // Unsigned order via signed comparison
+    }
+
+    /**
+     * @param nameChannel the spilled names
+     * @param nameRef     the name offset << NAME_LENGTH_BITS | name length
+     * @param maxLength   the max bytes to read
+     * @return the raw UTF-8 name, truncated to max length
+     */
+    private static ByteString readName(FileChannel nameChannel, long nameRef, int maxLength) throws IOException {
+        final int length = Math.min(maxLength, nameLength(nameRef));
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        final long offset = nameRef >>> NAME_LENGTH_BITS;
+        while (buffer.hasRemaining()) {
+            if (nameChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Can not read spilled name at offset " + offset);
+            }
+        }
+        buffer.flip();
+        return ByteString.copyFrom(buffer);
+    }
+
+    private static int nameLength(long nameRef) {
+        return (int) (nameRef & ((1 << NAME_LENGTH_BITS) - 1));
+    }
+
+    private static long[] append(long[] values, int index, long value) {
+        final long[] a = index < values.length ? values : Arrays.copyOf(values, values.length * 2);
+        a[index] = value;
+        return a;
+    }
+
+    private void computePathStats() throws IOException {
+        final SpilledDirectoryLookup directoryLookup = new SpilledDirectoryLookup();
+        final Map<Long, Integer> labels = new HashMap<>();
+        final List<List<FsImageReporter.PathStats>> labelStats = new ArrayList<>();
+        try (FileChannel nameChannel = FileChannel.open(names, StandardOpenOption.READ)) {
+            directoryLookup.nameChannel = nameChannel;
+            enterPhase(ComputePhase.PATH_EXPANSION);
+            if (config.hasPaths()) {
+                final PhaseEvent expansionEvent = new PhaseEvent(ComputePhase.PATH_EXPANSION);
+                final Set<String> expandedPaths = FsImageReporter.expandPaths(directoryLookup, config.getPaths());
+                report.recordPhase(expansionEvent, 0);
+                LOG.info("Expanded paths {} for path stats {}", expandedPaths, config.getPaths());
+                for (String path : expandedPaths) {
+                    final FsImageReporter.PathStats pathStats =
+                            report.pathStats.computeIfAbsent(path, report.createPathStat);
+                    final long id = directoryLookup.resolve(path);
+                    pathStats.spaceQuota = directoryLookup.getSpaceQuota(id);
+                    label(labels, labelStats, id).add(pathStats);
+                }
+            }
+            if (config.hasPathSets()) {
+                for (Map.Entry<String, List<String>> entry : config.getPathSets().entrySet()) {
+                    final PhaseEvent expansionEvent = new PhaseEvent(ComputePhase.PATH_EXPANSION);
+                    final Set<String> expandedPaths = FsImageReporter.expandPaths(directoryLookup, entry.getValue());
+                    report.recordPhase(expansionEvent, 0);
+                    LOG.info("Expanded paths {} for path set stats {}", expandedPaths, entry.getKey());
+                    final FsImageReporter.PathStats pathStats =
+                            report.pathSetStats.computeIfAbsent(entry.getKey(), report.createPathSetStat);
+                    for (String path : expandedPaths) {
+                        label(labels, labelStats, directoryLookup.resolve(path)).add(pathStats);
+                    }
+                }
+            }
+        }
+        directoryLookup.close();
+
+        final long t = System.currentTimeMillis();
+        enterPhase(ComputePhase.PATH_STATS);
+        final PhaseEvent pathStatsEvent = new PhaseEvent(ComputePhase.PATH_STATS);
+        final ExternalSorter.SortedFile members = propagateLabels(labels);
+        try {
+            aggregate(members, labelStats);
+        } finally {
+            Files.deleteIfExists(members.path);
+        }
+        report.recordPhase(pathStatsEvent, report.pathStats.values().stream()
+                .mapToLong(FsImageReporter.Report::getInodes).sum()
+                + report.pathSetStats.values().stream().mapToLong(FsImageReporter.Report::getInodes).sum());
+        LOG.info("Finished {} path stats and {} path set stats with {} labeled inodes in {}ms",
+                report.pathStats.size(), report.pathSetStats.size(), members.size, System.currentTimeMillis() - t);
+    }
+
+    private static List<FsImageReporter.PathStats> label(Map<Long, Integer> labels,
+                                                         List<List<FsImageReporter.PathStats>> labelStats, long id) {
+        final int label = labels.computeIfAbsent(id, i -> {
+            labelStats.add(new ArrayList<>());
+            return labelStats.size() - 1;
+        });
+        return labelStats.get(label);
+    }
+
+    /**
+     * Propagates the labels of start directories to all inodes below, level by level.
+     *
+     * @return the labeled inodes, as records of inode id and label, excluding start directories
+     */
+    private ExternalSorter.SortedFile propagateLabels(Map<Long, Integer> labels) throws IOException {
+        ExternalSorter frontierSorter = new ExternalSorter(directory, "frontier", 2, bufferBytes / 2);
+        for (Map.Entry<Long, Integer> entry : labels.entrySet()) {
+            frontierSorter.add(entry.getKey(), entry.getValue());
+        }
+        try (ExternalSorter memberSorter = new ExternalSorter(directory, "members", 2, bufferBytes / 2)) {
+            int level = 0;
+            long[] levelLabels = new long[16];
+            while (frontierSorter.size() > 0) {
+                checkAborted();
+                final ExternalSorter.SortedFile frontier = frontierSorter.sort();
+                frontierSorter = new ExternalSorter(directory, "frontier", 2, bufferBytes / 2);
+                try (ExternalSorter.RecordReader frontierReader = frontier.reader();
+                     ExternalSorter.RecordReader entryReader = entries.reader()) {
+                    boolean hasFrontier = frontierReader.next();
+                    boolean hasEntry = entryReader.next();
+                    while (hasFrontier && hasEntry) {
+                        // Labels of the next frontier directory
+                        final long id = frontierReader.record[0];
+                        int numLabels = 0;
+                        while (hasFrontier && frontierReader.record[0] == id) {
+                            levelLabels = append(levelLabels, numLabels++, frontierReader.record[1]);
+                            hasFrontier = frontierReader.next();
+                        }
+                        while (hasEntry && entryReader.record[0] < id) {
+                            hasEntry = entryReader.next();
+                        }
+                        while (hasEntry && entryReader.record[0] == id) {
+                            final long child = entryReader.record[1];
+                            for (int i = 0; i < numLabels; i++) {
+                                memberSorter.add(child, levelLabels[i]);
+                                frontierSorter.add(child, levelLabels[i]);
+                            }
+                            hasEntry = entryReader.next();
+                        }
+                    }
+                } finally {
+                    Files.deleteIfExists(frontier.path);
+                }
+                LOG.debug("Propagated labels to level {} with {} labeled inodes", ++level, frontierSorter.size());
+            }
+            frontierSorter.close();
+            checkAborted();
+            return memberSorter.sort();
+        }
+    }
+
+    private void aggregate(ExternalSorter.SortedFile members, List<List<FsImageReporter.PathStats>> labelStats)
+            throws IOException {
+        try (ExternalSorter.RecordReader memberReader = members.reader();
+             ExternalSorter.RecordReader inodeReader = inodes.reader()) {
+            boolean hasInode = inodeReader.next();
+            while (memberReader.next()) {
+                countInode();
+                final long id = memberReader.record[0];
+                while (hasInode && inodeReader.record[0] < id) {
+                    hasInode = inodeReader.next();
+                }
+                if (!hasInode) {
+                    break;
+                }
+                if (inodeReader.record[0] != id) {
+                    continue; // Not an inode, e.g. referencing a snapshot
+                }
+                final long[] inode = inodeReader.record;
+                final int type = (int) (inode[1] >>> 32);
+                for (FsImageReporter.PathStats pathStats : labelStats.get((int) memberReader.record[1])) {
+                    switch (type) {
+                        case FsImageProto.INodeSection.INode.Type.FILE_VALUE:
+                            final long fileSize = inode[2];
+                            pathStats.sumBlocks.add(inode[3]);
+                            pathStats.fileSize.observe(fileSize);
+                            pathStats.fileConsumedSize.observe(fileSize * (int) inode[1]);
+                            break;
+                        case FsImageProto.INodeSection.INode.Type.DIRECTORY_VALUE:
+                            pathStats.sumDirectories.increment();
+                            break;
+                        default:
+                            pathStats.sumSymLinks.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up directories via binary search on the spilled child directories, sorted by parent and name key.
+     */
+    private class SpilledDirectoryLookup implements FsImageReporter.DirectoryLookup {
+        private final long[] record = new long[4];
+        private FileChannel nameChannel;
+
+        /**
+         * @param path the absolute path
+         * @return the inode id of directory, or -1 if not existing
+         */
+        long resolve(String path) throws IOException {
+            if (!path.startsWith("/")) {
+                return -1;
+            }
+            long id = FsImageData.ROOT_INODE_ID;
+            for (String part : path.split("/")) {
+                if (part.isEmpty()) {
+                    continue;
+                }
+                final ByteString name = ByteString.copyFromUtf8(part);
+                final long key = nameKey(name);
+                long childId = -1;
+                // Scans names with same key only, usually a single name
+                for (long index = childDirectories.lowerBound(id, key, record); index < childDirectories.size;
+                     index++) {
+                    childDirectories.read(index, record);
+                    if (record[0] != id || record[1] != key) {
+                        break;
+                    }
+                    // Same key and length implies same name, for names up to key length
+                    if (nameLength(record[3]) == name.size() && (name.size() <= Long.BYTES
+                            || name.equals(readName(nameChannel, record[3], name.size())))) {
+                        childId = record[2];
+                        break;
+                    }
+                }
+                if (-1 == childId) {
+                    return -1;
+                }
+                id = childId;
+            }
+            return id;
+        }
+
+        long getSpaceQuota(long id) throws IOException {
+            final long index = inodes.lowerBound(id, record);
+            if (index < inodes.size) {
+                inodes.read(index, record);
+                if (record[0] == id && (int) (record[1] >>> 32) == FsImageProto.INodeSection.INode.Type.DIRECTORY_VALUE) {
+                    return FsImageReporter.getSpaceQuota(record[2]);
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean hasDirectory(String path) throws IOException {
+            return "/".equals(path) || -1 != resolve(path);
+        }
+
+        @Override
+        public List<String> getChildDirectories(String path, NameMatcher nameMatcher) throws IOException {
+            final long id = resolve(path);
+            if (-1 == id) {
+                throw new FileNotFoundException("No such directory " + path);
+            }
+            final String parentPath = path.endsWith("/") ? path : path + "/";
+            final List<String> childPaths = new ArrayList<>();
+            final long[] child = new long[4];
+            for (long index = childDirectories.lowerBound(id, child); index < childDirectories.size; index++) {
+                childDirectories.read(index, child);
+                if (child[0] != id) {
+                    break;
+                }
+                final ByteString name = readName(nameChannel, child[3], Integer.MAX_VALUE);
+                if (nameMatcher.matches(name)) {
+                    childPaths.add(parentPath + name.toStringUtf8());
+                }
+            }
+            return childPaths;
+        }
+
+        void close() throws IOException {
+            childDirectories.close();
+            inodes.close();
+        }
+    }
+
+    /**
+     * Propagates I/O errors of spilling out of visitor callbacks.
+     */
+    private static class SpillException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SpillException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException e) {
+                    LOG.warn("Can not delete spill file {}", p, e);
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Can not delete spill directory {}", directory, e);
+        }
+    }
+}
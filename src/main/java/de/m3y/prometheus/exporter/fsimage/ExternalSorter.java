@@ -0,0 +1,368 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts fixed width records of longs by ascending first and second long, using bounded memory.
+ * <p>
+ * Buffers records up to the buffer size, and spills each full buffer as a sorted run to a temporary file.
+ * Sorting merges all runs into a single {@link SortedFile}, for sequential merge joins and binary search.
+ */
+class ExternalSorter implements Closeable {
+    private static final int IO_BUFFER_BYTES = 64 * 1024;
+
+    private final Path directory;
+    private final String name;
+    private final int width;
+    private final int bufferRecords;
+    private final List<Path> runs = new ArrayList<>();
+    private long[] buffer;
+    private int bufferedRecords;
+    private long size;
+
+    /**
+     * @param directory   the directory for temporary files
+     * @param name        the name prefix of temporary files
+     * @param width       the number of longs per record, at least one
+     * @param bufferBytes the max bytes of buffered records
+     */
+    ExternalSorter(Path directory, String name, int width, long bufferBytes) {
+        if (width < 1) {
+            throw new IllegalArgumentException("Expected width >= 1, but got " + width);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.width = width;
+        bufferRecords = (int) Math.max(1, Math.min(bufferBytes / (8L * width), (Integer.MAX_VALUE - 8) / width));
+    }
+
+    /**
+     * Adds a record.
+     *
+     * @param record the record, copied
+     * @throws IOException on error spilling a run
+     */
+    void add(long[] record) throws IOException {
+        final long[] b = ensureCapacity();
+        System.arraycopy(record, 0, b, bufferedRecords * width, width);
+        bufferedRecords++;
+        size++;
+    }
+
+    /**
+     * Adds a record of width two.
+     *
+     * @param first  the first long
+     * @param second the second long
+     * @throws IOException on error spilling a run
+     */
+    void add(long first, long second) throws IOException {
+        final long[] b = ensureCapacity();
+        final int offset = bufferedRecords * width;
+        b[offset] = first;
+        b[offset + 1] = second;
+        bufferedRecords++;
+        size++;
+    }
+
+    private long[] ensureCapacity() throws IOException {
+        if (null == buffer) {
+            buffer = new long[bufferRecords * width]; // Allocated on demand, as sorters may be idle
+        } else if (bufferedRecords == bufferRecords) {
+            spill();
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the number of added records
+     */
+    long size() {
+        return size;
+    }
+
+    private void spill() throws IOException {
+        sort(buffer, width, bufferedRecords);
+        final Path run = Files.createTempFile(directory, name + "-run-", ".bin");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(run), IO_BUFFER_BYTES))) {
+            final int length = bufferedRecords * width;
+            for (int i = 0; i < length; i++) {
+                out.writeLong(buffer[i]);
+            }
+        }
+        bufferedRecords = 0;
+    }
+
+    /**
+     * Merges all runs into a single sorted file, and releases the buffer.
+     *
+     * @return the sorted file
+     * @throws IOException on error
+     */
+    SortedFile sort() throws IOException {
+        final Path sorted = Files.createTempFile(directory, name + "-", ".bin");
+        if (bufferedRecords > 0 || runs.isEmpty()) {
+            if (null != buffer) {
+                spill();
+            } else {
+                runs.add(Files.createTempFile(directory, name + "-run-", ".bin")); // Empty
+            }
+        }
+        buffer = null;
+        if (runs.size() == 1) {
+            Files.move(runs.get(0), sorted, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            merge(sorted);
+            for (Path run : runs) {
+                Files.delete(run);
+            }
+        }
+        runs.clear();
+        return new SortedFile(sorted, width, size);
+    }
+
+    private void merge(Path sorted) throws IOException {
+        final PriorityQueue<RecordReader> queue = new PriorityQueue<>(runs.size(),
+                (a, b) -> compare(a.record, 0, b.record, 0, width));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(sorted), IO_BUFFER_BYTES))) {
+            for (Path run : runs) {
+                final RecordReader reader = new RecordReader(run, width);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!queue.isEmpty()) {
+                final RecordReader reader = queue.poll();
+                for (long value : reader.record) {
+                    out.writeLong(value);
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RecordReader reader : queue) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes any spilled runs.
+     */
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+    }
+
+    static int compare(long[] a, int offsetA, long[] b, int offsetB, int width) {
+        final int c = Long.compare(a[offsetA], b[offsetB]);
+        if (0 != c || width < 2) {
+            return c;
+        }
+        return Long.compare(a[offsetA + 1], b[offsetB + 1]);
+    }
+
+    /**
+     * Sorts records in place, via heap sort as it requires no extra memory.
+     */
+    static void sort(long[] records, int width, int n) {
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(records, width, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(records, width, 0, end);
+            siftDown(records, width, 0, end);
+        }
+    }
+
+    private static void siftDown(long[] records, int width, int i, int n) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                return;
+            }
+            if (child + 1 < n && compare(records, (child + 1) * width, records, child * width, width) > 0) {
+                child++;
+            }
+            if (compare(records, child * width, records, i * width, width) <= 0) {
+                return;
+            }
+            swap(records, width, i, child);
+            i = child;
+        }
+    }
+
+    private static void swap(long[] records, int width, int i, int j) {
+        final int offsetI = i * width;
+        final int offsetJ = j * width;
+        for (int k = 0; k < width; k++) {
+            final long tmp = records[offsetI + k];
+            records[offsetI + k] = records[offsetJ + k];
+            records[offsetJ + k] = tmp;
+        }
+    }
+
+    /**
+     * Reads records sequentially.
+     */
+    static class RecordReader implements Closeable {
+        final long[] record;
+        private final DataInputStream in;
+
+        RecordReader(Path file, int width) throws IOException {
+            record = new long[width];
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), IO_BUFFER_BYTES));
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return true, if read, or false if reaching the end
+         * @throws IOException on error
+         */
+        boolean next() throws IOException {
+            try {
+                record[0] = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            for (int i = 1; i < record.length; i++) {
+                record[i] = in.readLong();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * A file of sorted records.
+     */
+    static class SortedFile implements Closeable {
+        final Path path;
+        final int width;
+        final long size;
+        private FileChannel channel;
+        private ByteBuffer recordBuffer;
+
+        SortedFile(Path path, int width, long size) {
+            this.path = path;
+            this.width = width;
+            this.size = size;
+        }
+
+        RecordReader reader() throws IOException {
+            return new RecordReader(path, width);
+        }
+
+        /**
+         * Reads a record by index via random access, not safe for concurrent use.
+         *
+         * @param index  the record index
+         * @param record the record to read into
+         * @throws IOException on error
+         */
+        void read(long index, long[] record) throws IOException {
+            if (null == channel) {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                recordBuffer = ByteBuffer.allocate(8 * width);
+            }
+            recordBuffer.clear();
+            final long position = index * 8 * width;
+            while (recordBuffer.hasRemaining()) {
+                if (channel.read(recordBuffer, position + recordBuffer.position()) < 0) {
+                    throw new EOFException("Can not read record " + index + " of " + path);
+                }
+            }
+            recordBuffer.flip();
+            for (int i = 0; i < width; i++) {
+                record[i] = recordBuffer.getLong();
+            }
+        }
+
+        /**
+         * Binary searches the first record with a first long of at least given key.
+         *
+         * @param key    the key
+         * @param record the record to read into
+         * @return the index of the first record with first long >= key, or size if none
+         * @throws IOException on error
+         */
+        long lowerBound(long key, long[] record) throws IOException {
+            long low = 0;
+            long high = size;
+            while (low < high) {
+                final long mid = (low + high) >>> 1;
+                read(mid, record);
+                if (record[0] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Binary searches the first record with first and second long of at least given keys.
+         *
+         * @param key    the key of the first long
+         * @param key2   the key of the second long
+         * @param record the record to read into, of width two or more
+         * @return the index of the first record with (first long, second long) >= (key, key2), or size if none
+         * @throws IOException on error
+         */
+        long lowerBound(long key, long key2, long[] record) throws IOException {
+            long low = 0;
+            long high = size;
+            while (low < high) {
+                final long mid = (low + high) >>> 1;
+                read(mid, record);
+                if (record[0] < key || (record[0] == key && record[1] < key2)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (null != channel) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import de.m3y.hadoop.hdfs.hfsa.util.IECBinary;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Predicate;
+import org.apache.hadoop.hdfs.protocol.proto.HdfsProtos;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts files with anomalies, such as empty or small files, unexpected replication
+ * or a mostly empty last block.
+ * <p>
+ * A {@link Detector} evaluates each file once while visiting, from the replication and block list already decoded.
+ * Counters are only updated for anomalous files.
+ */
+class FileAnomalies {
+    static final String ANOMALY_FILES = "anomaly_files";
+    static final String LABEL_ANOMALY = "anomaly";
+
+    /**
+     * Detected file anomaly, with bit in the anomalies mask by ordinal.
+     */
+    enum Anomaly {
+        /** File without any bytes */
+        EMPTY,
+        /** Non-empty file smaller than configured small file size */
+        SMALL,
+        /** Contiguous file with replication above the expected replication */
+        OVER_REPLICATED,
+        /** Contiguous file with replication below the expected replication */
+        UNDER_REPLICATED,
+        /** Contiguous file with several blocks, and last block filled less than configured percent of block size */
+        PARTIAL_LAST_BLOCK;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+        final int mask = 1 << ordinal();
+    }
+
+    private static final Anomaly[] ANOMALIES = Anomaly.values();
+
+    /**
+     * Detects anomalies of a file, using the configured thresholds.
+     */
+    static class Detector {
+        private final long smallFileSize;
+        private final int expectedReplication;
+        private final int lastBlockFillPercent;
+
+        Detector(Config config) {
+            smallFileSize = IECBinary.parse(config.getAnomalySmallFileSize());
+            expectedReplication = config.getAnomalyExpectedReplication();
+            lastBlockFillPercent = config.getAnomalyLastBlockFillPercent();
+        }
+
+        /**
+         * @param f        the file
+         * @param fileSize the file size, as computed from its blocks
+         * @return the anomalies mask, or 0 if none
+         */
+        int detect(FsImageProto.INodeSection.INodeFile f, long fileSize) {
+            final int blocks = f.getBlocksCount();
+            return detect(fileSize, f.getReplication(), blocks,
+                    blocks > 0 ? f.getBlocks(blocks - 1).getNumBytes() : 0, f.getPreferredBlockSize(),
+                    f.getBlockType() == HdfsProtos.BlockTypeProto.STRIPED);
+        }
+
+        /**
+         * @param fileSize           the file size
+         * @param replication        the replication
+         * @param blocks             the number of blocks
+         * @param lastBlockSize      the size of the last block, or 0 if none
+         * @param preferredBlockSize the preferred block size
+         * @param striped            true, if erasure coded, not applying replication and block fill checks
+         * @return the anomalies mask, or 0 if none
+         */
+        int detect(long fileSize, int replication, long blocks, long lastBlockSize, long preferredBlockSize,
+                   boolean striped) {
+            int anomalies = 0;
+            if (fileSize == 0) {
+                anomalies |= Anomaly.EMPTY.mask;
+            } else if (fileSize < smallFileSize) {
+                anomalies |= Anomaly.SMALL.mask;
+            }
+            if (!striped) {
+                if (expectedReplication > 0) {
+                    if (replication > expectedReplication) {
+                        anomalies |= Anomaly.OVER_REPLICATED.mask;
+                    } else if (replication < expectedReplication) {
+                        anomalies |= Anomaly.UNDER_REPLICATED.mask;
+                    }
+                }
+                // Single block files are covered by small files
+                if (lastBlockFillPercent > 0 && blocks > 1
+                        && lastBlockSize * 100 < preferredBlockSize * lastBlockFillPercent) {
+                    anomalies |= Anomaly.PARTIAL_LAST_BLOCK.mask;
+                }
+            }
+            return anomalies;
+        }
+    }
+
+    private final LongAdder[] counts = new LongAdder[ANOMALIES.length];
+
+    FileAnomalies() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param anomalies the anomalies mask of a file, as detected by {@link Detector}
+     */
+    void observe(int anomalies) {
+        for (Anomaly anomaly : ANOMALIES) {
+            if ((anomalies & anomaly.mask) != 0) {
+                counts[anomaly.ordinal()].increment();
+            }
+        }
+    }
+
+    /**
+     * @return the number of files with given anomaly
+     */
+    long get(Anomaly anomaly) {
+        return counts[anomaly.ordinal()].sum();
+    }
+
+    /**
+     * Collects the anomaly counts of several stats into one metric family.
+     *
+     * @param mfs              the collected metric families
+     * @param prefix           the metric name prefix
+     * @param labelName        the label name, or null for a single unlabeled stats
+     * @param anomalies        the anomalies by label value
+     * @param sampleNameFilter the sample name filter, or null for all metric families
+     */
+    static void collect(List<Collector.MetricFamilySamples> mfs, String prefix, String labelName,
+                        Map<String, FileAnomalies> anomalies, Predicate<String> sampleNameFilter) {
+        final String name = prefix + ANOMALY_FILES;
+        if (null != sampleNameFilter && !sampleNameFilter.test(name)) {
+            return;
+        }
+        final List<String> labelNames = null == labelName ? List.of(LABEL_ANOMALY) : List.of(labelName, LABEL_ANOMALY);
+        final List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+        for (Map.Entry<String, FileAnomalies> entry : anomalies.entrySet()) {
+            for (Anomaly anomaly : ANOMALIES) {
+                final List<String> labelValues = null == labelName
+                        ? List.of(anomaly.label) : List.of(entry.getKey(), anomaly.label);
+                samples.add(new Collector.MetricFamilySamples.Sample(name, labelNames, labelValues,
+                        entry.getValue().get(anomaly)));
+            }
+        }
+        mfs.add(new Collector.MetricFamilySamples(name, Collector.Type.GAUGE,
+                "Number of files with anomaly (empty, small, over_replicated, under_replicated or partial_last_block)",
+                samples));
+    }
+}
@@ -0,0 +1,263 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Predicate;
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts files and file sizes by file name suffix, such as <code>.crc</code>, <code>.parquet</code>
+ * or <code>_SUCCESS</code>.
+ * <p>
+ * Matches the configured suffixes on the raw UTF-8 inode name bytes via a {@link SuffixTable}, without decoding names.
+ * Optionally discovers other extensions (last <code>.</code> and following bytes) in a bounded table,
+ * exporting the extensions with most files. Ignores extensions which are not valid UTF-8, as these can not be
+ * exported as distinct label values.
+ */
+class FileExtensionStats {
+    static final String EXTENSION_FILES = "extension_files";
+    static final String EXTENSION_FSIZE = "extension_fsize_bytes";
+    static final String LABEL_EXTENSION = "extension";
+    /** Max bytes of a discovered extension, including the dot */
+    static final int MAX_EXTENSION_LENGTH = 16;
+    /** Max number of distinct discovered extensions, ignoring any further extensions */
+    static final int MAX_DISCOVERED_EXTENSIONS = 1024;
+
+    /**
+     * Looks up the longest configured suffix of a name, comparing only suffixes ending with the same last byte.
+     */
+    static class SuffixTable {
+        private final String[] suffixes;
+        private final byte[][] suffixBytes;
+        // Suffix indices by last byte, longest suffix first
+        private final int[][] byLastByte = new int[256][];
+
+        /**
+         * @param suffixes the suffixes, ignoring empty and duplicate suffixes
+         */
+        SuffixTable(List<String> suffixes) {
+            this.suffixes = new LinkedHashSet<>(suffixes).stream().filter(s -> !s.isEmpty()).toArray(String[]::new);
+            suffixBytes = new byte[this.suffixes.length][];
+            for (int i = 0; i < this.suffixes.length; i++) {
+                suffixBytes[i] = ByteString.copyFromUtf8(this.suffixes[i]).toByteArray();
+            }
+            final Integer[] longestFirst = new Integer[suffixBytes.length];
+            Arrays.setAll(longestFirst, i -> i);
+            Arrays.sort(longestFirst, Comparator.comparingInt((Integer i) -> suffixBytes[i].length).reversed());
+            for (int i : longestFirst) {
+                final int lastByte = suffixBytes[i][suffixBytes[i].length - 1] & 0xff;
+                final int[] candidates = byLastByte[lastByte];
+                if (null == candidates) {
+                    byLastByte[lastByte] = new int[]{i};
+                } else {
+                    byLastByte[lastByte] = Arrays.copyOf(candidates, candidates.length + 1);
+                    byLastByte[lastByte][candidates.length] = i;
+                }
+            }
+        }
+
+        /**
+         * @param name the raw UTF-8 name
+         * @return the index of the longest matching suffix, or -1 if none
+         */
+        int match(ByteString name) {
+            final int length = name.size();
+            if (length == 0) {
+                return -1;
+            }
+            final int[] candidates = byLastByte[name.byteAt(length - 1) & 0xff];
+            if (null != candidates) {
+                for (int candidate : candidates) {
+                    if (endsWith(name, length, suffixBytes[candidate])) {
+                        return candidate;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private static boolean endsWith(ByteString name, int length, byte[] suffix) {
+            if (suffix.length > length) {
+                return false;
+            }
+            final int offset = length - suffix.length;
+            // Last byte already matched
+            for (int i = suffix.length - 2; i >= 0; i--) {
+                if (name.byteAt(offset + i) != suffix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String get(int index) {
+            return suffixes[index];
+        }
+
+        int size() {
+            return suffixes.length;
+        }
+    }
+
+    /**
+     * @param name the raw UTF-8 name
+     * @return the extension including the dot, or null if none or exceeding {@link #MAX_EXTENSION_LENGTH}
+     */
+    static ByteString extension(ByteString name) {
+        final int length = name.size();
+        // Leading dot marks a hidden file, not an extension
+        final int min = Math.max(1, length - MAX_EXTENSION_LENGTH);
+        for (int i = length - 1; i >= min; i--) {
+            if (name.byteAt(i) == '.') {
+                return i == length - 1 ? null : name.substring(i);
+            }
+        }
+        return null;
+    }
+
+    private static class Counts {
+        final LongAdder files = new LongAdder();
+        final LongAdder size = new LongAdder();
+    }
+
+    final SuffixTable suffixes;
+    private final Counts[] suffixCounts;
+    // Discovered extensions, or null if not discovering
+    private final Map<ByteString, Counts> discovered;
+
+    /**
+     * @param suffixes the configured suffixes
+     * @param discover true, if discovering extensions of files not matching any configured suffix
+     */
+    FileExtensionStats(SuffixTable suffixes, boolean discover) {
+        this.suffixes = suffixes;
+        suffixCounts = new Counts[suffixes.size()];
+        for (int i = 0; i < suffixCounts.length; i++) {
+            suffixCounts[i] = new Counts();
+        }
+        discovered = discover ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * @param suffix   the index of the matching configured suffix, or -1 if none
+     * @param name     the raw UTF-8 name, for discovering extensions
+     * @param fileSize the file size
+     */
+    void observe(int suffix, ByteString name, long fileSize) {
+        Counts counts;
+        if (suffix >= 0) {
+            counts = suffixCounts[suffix];
+        } else if (null != discovered) {
+            final ByteString extension = extension(name);
+            if (null == extension || !extension.isValidUtf8()) {
+                return;
+            }
+            counts = discovered.get(extension);
+            if (null == counts) {
+                if (discovered.size() >= MAX_DISCOVERED_EXTENSIONS) {
+                    return;
+                }
+                // Copy, not retaining the name bytes
+                counts = discovered.computeIfAbsent(ByteString.copyFrom(extension.toByteArray()),
+                        key -> new Counts());
+            }
+        } else {
+            return;
+        }
+        counts.files.increment();
+        counts.size.add(fileSize);
+    }
+
+    /**
+     * @return the number of files with configured suffix
+     */
+    long getFiles(int suffix) {
+        return suffixCounts[suffix].files.sum();
+    }
+
+    /**
+     * @return the total size of files with configured suffix
+     */
+    long getSize(int suffix) {
+        return suffixCounts[suffix].size.sum();
+    }
+
+    /**
+     * @param topK the max number of discovered extensions
+     * @return the discovered extensions with most files, as extension and file count and size
+     */
+    List<Map.Entry<String, long[]>> getTopDiscovered(int topK) {
+        if (null == discovered || topK == 0) {
+            return List.of();
+        }
+        return discovered.entrySet().stream()
+                .map(entry -> Map.entry(entry.getKey().toStringUtf8(),
+                        new long[]{entry.getValue().files.sum(), entry.getValue().size.sum()}))
+                .sorted(Comparator.comparingLong((Map.Entry<String, long[]> entry) -> entry.getValue()[0]).reversed()
+                        .thenComparing(Map.Entry::getKey))
+                .limit(topK)
+                .toList();
+    }
+
+    /**
+     * Collects the file count and size per configured suffix and top discovered extensions of several stats.
+     *
+     * @param mfs              the collected metric families
+     * @param prefix           the metric name prefix
+     * @param labelName        the label name, or null for a single unlabeled stats
+     * @param stats            the stats by label value
+     * @param topK             the max number of discovered extensions per stats
+     * @param sampleNameFilter the sample name filter, or null for all metric families
+     */
+    static void collect(List<Collector.MetricFamilySamples> mfs, String prefix, String labelName,
+                        Map<String, FileExtensionStats> stats, int topK, Predicate<String> sampleNameFilter) {
+        final String filesName = prefix + EXTENSION_FILES;
+        final String sizeName = prefix + EXTENSION_FSIZE;
+        final boolean collectFiles = null == sampleNameFilter || sampleNameFilter.test(filesName);
+        final boolean collectSize = null == sampleNameFilter || sampleNameFilter.test(sizeName);
+        if (!collectFiles && !collectSize) {
+            return;
+        }
+        final List<String> labelNames = null == labelName
+                ? List.of(LABEL_EXTENSION) : List.of(labelName, LABEL_EXTENSION);
+        final List<Collector.MetricFamilySamples.Sample> filesSamples = new ArrayList<>();
+        final List<Collector.MetricFamilySamples.Sample> sizeSamples = new ArrayList<>();
+        for (Map.Entry<String, FileExtensionStats> entry : stats.entrySet()) {
+            final FileExtensionStats extensionStats = entry.getValue();
+            for (int i = 0; i < extensionStats.suffixes.size(); i++) {
+                final List<String> labelValues = labelValues(labelName, entry.getKey(), extensionStats.suffixes.get(i));
+                filesSamples.add(new Collector.MetricFamilySamples.Sample(filesName, labelNames, labelValues,
+                        extensionStats.getFiles(i)));
+                sizeSamples.add(new Collector.MetricFamilySamples.Sample(sizeName, labelNames, labelValues,
+                        extensionStats.getSize(i)));
+            }
+            for (Map.Entry<String, long[]> top : extensionStats.getTopDiscovered(topK)) {
+                final List<String> labelValues = labelValues(labelName, entry.getKey(), top.getKey());
+                filesSamples.add(new Collector.MetricFamilySamples.Sample(filesName, labelNames, labelValues,
+                        top.getValue()[0]));
+                sizeSamples.add(new Collector.MetricFamilySamples.Sample(sizeName, labelNames, labelValues,
+                        top.getValue()[1]));
+            }
+        }
+        if (collectFiles) {
+            mfs.add(new Collector.MetricFamilySamples(filesName, Collector.Type.GAUGE,
+                    "Number of files by file name suffix or extension", filesSamples));
+        }
+        if (collectSize) {
+            mfs.add(new Collector.MetricFamilySamples(sizeName, Collector.Type.GAUGE,
+                    "Total file size by file name suffix or extension", sizeSamples));
+        }
+    }
+
+    private static List<String> labelValues(String labelName, String labelValue, String extension) {
+        return null == labelName ? List.of(extension) : Arrays.asList(labelValue, extension);
+    }
+}
@@ -3,15 +3,20 @@ package de.m3y.prometheus.exporter.fsimage;
 import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Collects stats from Hadoop FSImage.
@@ -20,12 +25,13 @@ import java.util.concurrent.TimeUnit;
  * <ul>
  * <li>A background thread watches and parses FSImage, therefore not blocking metrics collection itself.
  * Parse time depends on FSImage size and can be up to minutes.
+ * Until the first report is available, scrapes return immediately with exporter and progress metrics only.
  * <p>
  * See {@link FsImageWatcher}
  * </li>
  * </ul>
  */
-public class FsImageCollector extends Collector {
+public class FsImageCollector extends Collector implements Collector.Describable {
     private static final Logger LOGGER = LoggerFactory.getLogger(FsImageCollector.class);
 
     static final String METRIC_PREFIX = "fsimage_";
@@ -41,38 +47,134 @@ public class FsImageCollector extends Collector {
             .help("Scrape duration").create();
 
     private final FsImageUpdateHandler fsImageReportUpdater;
+    private final FsImageWatcher fsImageWatcher;
+    private volatile Config config;
+    private final int watchIntervalSeconds;
 
 
     private final ScheduledExecutorService scheduler;
 
     FsImageCollector(Config config) {
+        this(config, null);
+    }
+
+    /**
+     * Creates a collector, starting the background FSImage parsing.
+     *
+     * @param config         the configuration
+     * @param reportListener an optional listener invoked after each computed report, or null
+     */
+    FsImageCollector(Config config, Consumer<FsImageReporter.Report> reportListener) {
+        this(config, reportListener, null);
+        start();
+    }
+
+    /**
+     * Creates a collector, without starting the background FSImage parsing.
+     * <p>
+     * Allows registering the collector before the first report gets computed, see {@link #start()}.
+     *
+     * @param config         the configuration
+     * @param reportListener an optional listener invoked after each computed report, or null
+     * @param loadPermits    optional permits shared by several namespaces for limiting FSImages in memory, or null
+     */
+    FsImageCollector(Config config, Consumer<FsImageReporter.Report> reportListener, Semaphore loadPermits) {
+        validate(config);
+        this.config = config;
+        watchIntervalSeconds = config.getFsImageWatchIntervalSeconds();
+
+        fsImageReportUpdater = new FsImageUpdateHandler(config, loadPermits);
+        if (null != reportListener) {
+            fsImageReportUpdater.addReportListener(reportListener);
+        }
+        fsImageWatcher = new FsImageWatcher(new File(config.getFsImagePath()),
+                fsImageReportUpdater::onFsImageChange);
+
+        scheduler = Executors.newScheduledThreadPool(1);
+    }
+
+    /**
+     * Checks the options of a single namespace.
+     *
+     * @param config the configuration
+     * @throws IllegalArgumentException if an option is invalid
+     */
+    static void validate(Config config) {
         final String path = config.getFsImagePath();
         if (null == path || path.isEmpty()) {
             throw new IllegalArgumentException("Please set the the directory location to the FSImage snapshots (fsImagePath)");
         }
 
+        if (config.getFsImageWatchIntervalSeconds() < 1) {
+            throw new IllegalArgumentException("Expected fsImageWatchIntervalSeconds >= 1, but got "
+                    + config.getFsImageWatchIntervalSeconds());
+        }
+        if (config.getDirectoryFanOutTopK() < 0) {
+            throw new IllegalArgumentException("Expected directoryFanOutTopK >= 0, but got "
+                    + config.getDirectoryFanOutTopK());
+        }
+        if (config.getFileExtensionTopK() < 0) {
+            throw new IllegalArgumentException("Expected fileExtensionTopK >= 0, but got "
+                    + config.getFileExtensionTopK());
+        }
+        if (config.getAnomalyLastBlockFillPercent() < 0 || config.getAnomalyLastBlockFillPercent() > 100) {
+            throw new IllegalArgumentException("Expected anomalyLastBlockFillPercent between 0 and 100, but got "
+                    + config.getAnomalyLastBlockFillPercent());
+        }
+        if (config.isSpillToDiskEnabled() && config.getSpillBufferMiB() < 1) {
+            throw new IllegalArgumentException("Expected spillBufferMiB >= 1, but got " + config.getSpillBufferMiB());
+        }
+
         File fsImageDir = new File(path);
         if (!fsImageDir.exists()) {
             throw new IllegalArgumentException("The directory for FSImage snapshots (fsImagePath) " +
                     fsImageDir.getAbsolutePath() + " does not exist");
         }
+    }
 
-        fsImageReportUpdater = new FsImageUpdateHandler(config);
-        FsImageWatcher fsImageWatcher = new FsImageWatcher(fsImageDir,
-                fsImageReportUpdater::onFsImageChange);
+    /**
+     * Starts the background FSImage parsing, checking for a changed FSImage immediately.
+     *
+     * @return this collector
+     */
+    FsImageCollector start() {
+        scheduler.scheduleWithFixedDelay(fsImageWatcher, 0 /* Trigger immediately */,
+                watchIntervalSeconds, TimeUnit.SECONDS);
+        return this;
+    }
 
-        scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.scheduleWithFixedDelay(fsImageWatcher, 0 /* Trigger immediately */, 60, TimeUnit.SECONDS);
+    /**
+     * Describes no metric families, as families depend on the computed report.
+     * <p>
+     * A collector without described families always gets collected by the registry, which
+     * lets {@link #collect(Predicate)} skip any families not requested by the name filter.
+     *
+     * @return an empty list
+     */
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Collections.emptyList();
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
+        return collect(null);
+    }
+
+    /**
+     * Collects only the metric families requested by the sample name filter.
+     *
+     * @param sampleNameFilter the sample name filter, or null for all metric families
+     * @return the collected metric families
+     */
+    @Override
+    public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
         List<MetricFamilySamples> mfs = new ArrayList<>();
 
         try (Gauge.Timer timer = scrapeDuration.startTimer()) {
             scapeRequests.inc();
 
-            if (fsImageReportUpdater.collectFsImageSamples(mfs)) {
+            if (fsImageReportUpdater.collectFsImageSamples(mfs, sampleNameFilter)) {
                 scrapeErrors.inc();
             }
         } catch (Exception e) {
@@ -87,6 +189,136 @@ public class FsImageCollector extends Collector {
         return mfs;
     }
 
+    /**
+     * Checks if any sample of a collector's metric family is requested.
+     *
+     * @param collector        the collector
+     * @param sampleNameFilter the sample name filter, or null for all metric families
+     * @return true, if requested or collector does not describe its metric families
+     */
+    static boolean isRequested(Collector collector, Predicate<String> sampleNameFilter) {
+        if (null == sampleNameFilter || !(collector instanceof Describable describable)) {
+            return true;
+        }
+        for (MetricFamilySamples family : describable.describe()) {
+            for (String name : family.getNames()) {
+                if (sampleNameFilter.test(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the metric families of a collector, if requested.
+     *
+     * @param mfs              the collected metric families
+     * @param collector        the collector
+     * @param sampleNameFilter the sample name filter, or null for all metric families
+     */
+    static void collectIfRequested(List<MetricFamilySamples> mfs, Collector collector,
+                                   Predicate<String> sampleNameFilter) {
+        if (isRequested(collector, sampleNameFilter)) {
+            mfs.addAll(collector.collect());
+        }
+    }
+
+    Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Applies a changed config in the background thread, serialized with FSImage reloads.
+     * <p>
+     * Keeps the current FSImage path, watch interval and report history size, as changing these requires a restart.
+     * Ignores an invalid config, see {@link #validate(Config)}.
+     *
+     * @param newConfig the changed config
+     */
+    void reconfigure(Config newConfig) {
+        try {
+            validate(newConfig);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Ignoring invalid changed config : {}", e.getMessage());
+            return;
+        }
+        final Config oldConfig = config;
+        if (!Objects.equals(oldConfig.getFsImagePath(), newConfig.getFsImagePath())) {
+            LOGGER.warn("Ignoring changed fsImagePath {}, requiring restart", newConfig.getFsImagePath());
+        }
+        if (watchIntervalSeconds != newConfig.getFsImageWatchIntervalSeconds()) {
+            LOGGER.warn("Ignoring changed fsImageWatchIntervalSeconds {}, requiring restart",
+                    newConfig.getFsImageWatchIntervalSeconds());
+        }
+        if (oldConfig.getReportHistorySize() != newConfig.getReportHistorySize()) {
+            LOGGER.warn("Ignoring changed reportHistorySize {}, requiring restart", newConfig.getReportHistorySize());
+        }
+        config = newConfig;
+        scheduler.execute(() -> {
+            try {
+                fsImageReportUpdater.reconfigure(newConfig);
+            } catch (Exception e) {
+                LOGGER.error("Can not apply changed config", e);
+            }
+        });
+    }
+
+    /**
+     * Rescans and reloads the latest FSImage in the background thread, even if unchanged,
+     * e.g. right after a manual saveNamespace instead of waiting for the next watch interval.
+     * <p>
+     * Queues behind any reload in progress.
+     */
+    void reload() {
+        scheduler.execute(fsImageWatcher::reload);
+    }
+
+    /**
+     * Requests aborting the running reload, keeping the previous report.
+     *
+     * @return true, if a reload was running
+     * @see FsImageUpdateHandler#abort()
+     */
+    boolean abort() {
+        return fsImageReportUpdater.abort();
+    }
+
+    /**
+     * @return the progress of the latest started reload, or null if none started yet
+     */
+    ComputeProgress getProgress() {
+        return fsImageReportUpdater.getProgress();
+    }
+
+    /**
+     * @return the current processing phase
+     */
+    FsImageUpdateHandler.Phase getPhase() {
+        return fsImageReportUpdater.getPhase();
+    }
+
+    /**
+     * Gets the current report, never blocking.
+     *
+     * @return the current FSImage report, or null if no report has been computed yet
+     */
+    FsImageReporter.Report getFsImageReport() {
+        return fsImageReportUpdater.getFsImageReport();
+    }
+
+    /**
+     * Waits for the first computed FSImage report, e.g. when running without HTTP scrapes.
+     *
+     * @param timeout the max time to wait
+     * @param unit    the time unit of the timeout
+     * @return true if a report is available, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitFsImageReport(long timeout, TimeUnit unit) throws InterruptedException {
+        return fsImageReportUpdater.awaitFsImageReport(timeout, unit);
+    }
+
     /**
      * Closes resources such as scheduler for background parsing thread.
      */
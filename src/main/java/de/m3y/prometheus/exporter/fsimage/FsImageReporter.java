@@ -1,26 +1,29 @@
 package de.m3y.prometheus.exporter.fsimage;
 
 import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
-import de.m3y.hadoop.hdfs.hfsa.core.FsVisitor;
 import de.m3y.hadoop.hdfs.hfsa.util.FsUtil;
+import io.prometheus.client.Collector;
 import io.prometheus.client.Histogram;
+import io.prometheus.client.Predicate;
 import io.prometheus.client.SimpleCollector;
 import io.prometheus.client.Summary;
 import org.apache.hadoop.fs.permission.PermissionStatus;
 import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
-import java.util.regex.Pattern;
 
 import static de.m3y.prometheus.exporter.fsimage.FsImageCollector.METRIC_PREFIX;
 import static de.m3y.prometheus.exporter.fsimage.FsImageCollector.MetricFamilySamples;
+import static de.m3y.prometheus.exporter.fsimage.FsImageCollector.collectIfRequested;
 import static de.m3y.prometheus.exporter.fsimage.FsImageUpdateHandler.*;
 
 /**
@@ -33,6 +36,8 @@ public class FsImageReporter {
         void observe(long metricValue);
 
         long count();
+
+        double sum();
     }
 
     record HistogramMetricAdapter(Histogram.Child child) implements MetricAdapter {
@@ -43,15 +48,14 @@ public class FsImageReporter {
 
             @Override
             public long count() {
-                return (long) sum(child.get().buckets);
+                // Buckets are cumulative, so the last (+Inf) bucket holds the count
+                final double[] buckets = child.get().buckets;
+                return (long) buckets[buckets.length - 1];
             }
 
-            private static double sum(double[] doubles) {
-                double s = 0;
-                for (double d : doubles) {
-                    s += d;
-                }
-                return s;
+            @Override
+            public double sum() {
+                return child.get().sum;
             }
         }
 
@@ -65,6 +69,11 @@ public class FsImageReporter {
             public long count() {
                 return (long) child.get().count;
             }
+
+            @Override
+            public double sum() {
+                return child.get().sum;
+            }
         }
 
     abstract static class AbstractFileSystemStats {
@@ -114,6 +123,14 @@ public class FsImageReporter {
 
     static class PathStats extends AbstractFileSystemStats {
         final String path;
+        // Space quota of path, or -1 if none
+        long spaceQuota = -1;
+        // Optional directory fan-out distributions of path
+        DirectoryFanOut directoryFanOut;
+        // Optional file anomalies of path
+        FileAnomalies anomalies;
+        // Time for computing the path stats
+        long computeDurationNanos;
 
         PathStats(String path, MetricAdapter fileSize, MetricAdapter fileConsumedSize) {
             super(fileSize, fileConsumedSize);
@@ -126,6 +143,8 @@ public class FsImageReporter {
      */
     static class Report {
         volatile boolean error = false;
+        // Reload generation, increasing with each started reload
+        long generation;
 
         // Overall stats
         final OverallStats overallStats;
@@ -145,175 +164,356 @@ public class FsImageReporter {
         final Summary userReplication;
         // Path stats
         final Map<String, PathStats> pathStats;
-        final SimpleCollector<?> pathFileSizeDistribution;
-        final Summary pathConsumedFileSize;
+        final Collector pathFileSizeDistribution;
+        final Collector pathConsumedFileSize;
         final Function<String, PathStats> createPathStat;
         // Path sets
         final Map<String, PathStats> pathSetStats;
-        final SimpleCollector<?> pathSetFileSizeDistribution;
-        final Summary pathSetConsumedFileSize;
+        final Collector pathSetFileSizeDistribution;
+        final Collector pathSetConsumedFileSize;
         final Function<String, PathStats> createPathSetStat;
+        // Optional namespace index for drill-down queries
+        NamespaceIndex namespaceIndex;
+        // Optional overall directory fan-out distributions
+        DirectoryFanOut directoryFanOut;
+        // Optional file anomaly detector, with overall and per user anomalies
+        FileAnomalies.Detector anomalyDetector;
+        FileAnomalies overallAnomalies;
+        final Map<String, FileAnomalies> userAnomalies;
+        // Optional overall and per user file extension stats, with number of exported discovered extensions
+        FileExtensionStats extensionStats;
+        final Map<String, FileExtensionStats> userExtensionStats;
+        int extensionTopK;
+        // Duration, processed inodes and allocated bytes by phase
+        final Map<ComputePhase, LongAdder> phaseDurationNanos = new EnumMap<>(ComputePhase.class);
+        final Map<ComputePhase, LongAdder> phaseInodes = new EnumMap<>(ComputePhase.class);
+        final Map<ComputePhase, LongAdder> phaseAllocatedBytes = new EnumMap<>(ComputePhase.class);
 
         Report(Config config) {
-            groupStats = new ConcurrentHashMap<>();
-            userStats = new ConcurrentHashMap<>();
-            pathStats = new ConcurrentHashMap<>();
-            pathSetStats = new ConcurrentHashMap<>();
+            this(config, null, false, false, false);
+        }
+
+        /**
+         * Creates a report, optionally sharing computed stats of a previous report.
+         * <p>
+         * Shared stats must not be modified anymore, as scrapes of the previous report may still read them.
+         *
+         * @param config            the config
+         * @param previous          the previous report for sharing overall, group and user stats, or null for none
+         * @param reusePathStats    true, if sharing path stats of previous report
+         * @param reusePathSetStats true, if sharing path set stats of previous report
+         * @param indexed           true, if deriving not shared path and path set stats from the namespace index
+         */
+        Report(Config config, Report previous, boolean reusePathStats, boolean reusePathSetStats, boolean indexed) {
+            for (ComputePhase phase : ComputePhase.values()) {
+                phaseDurationNanos.put(phase, new LongAdder());
+                phaseInodes.put(phase, new LongAdder());
+                phaseAllocatedBytes.put(phase, new LongAdder());
+            }
 
             double[] configuredBuckets = config.getFileSizeDistributionBucketsAsDoubles();
 
-            // Overall
-            Histogram overallHistogram = Histogram.build()
-                    .name(METRIC_PREFIX + FSIZE)
-                    .buckets(configuredBuckets)
-                    .help("Overall file size distribution")
-                    .create();
-            Histogram overallCHistogram = Histogram.build()
-                    .name(METRIC_PREFIX + CSIZE)
-                    .buckets(configuredBuckets)
-                    .help("Overall consumed file size distribution")
-                    .create();
-            overallFileSizeDistribution = overallHistogram;
-            overallConsumedFileSizeDistribution = overallCHistogram;
-            overallReplication = Summary.build()
-                    .name(FsImageCollector.METRIC_PREFIX + REPLICATION)
-                    .help("Overall file replication").create();
-            overallStats = new OverallStats(new HistogramMetricAdapter(overallHistogram.labels()),
-                    new HistogramMetricAdapter(overallCHistogram.labels()), overallReplication);
-
-            // Group
-            groupConsumedFileSize = Summary.build()
-                    .name(FsImageUpdateHandler.METRIC_PREFIX_GROUP + CSIZE)
-                    .labelNames(FsImageUpdateHandler.LABEL_GROUP_NAME)
-                    .help("Per group consumed file size and file count").create();
-            if (config.isSkipFileDistributionForGroupStats()) {
-                Summary summary = Summary.build()
-                        .name(FsImageUpdateHandler.METRIC_PREFIX_GROUP + FSIZE)
-                        .labelNames(FsImageUpdateHandler.LABEL_GROUP_NAME)
-                        .help("Per group file size and file count").create();
-                createGroupStats = groupName -> new GroupStats(groupName,
-                        new SummaryMetricAdapter(summary.labels(groupName)),
-                        new SummaryMetricAdapter(groupConsumedFileSize.labels(groupName)));
-                groupFileSizeDistribution = summary;
+            if (null != previous) {
+                overallStats = previous.overallStats;
+                overallFileSizeDistribution = previous.overallFileSizeDistribution;
+                overallConsumedFileSizeDistribution = previous.overallConsumedFileSizeDistribution;
+                overallReplication = previous.overallReplication;
+                groupStats = previous.groupStats;
+                groupFileSizeDistribution = previous.groupFileSizeDistribution;
+                groupConsumedFileSize = previous.groupConsumedFileSize;
+                createGroupStats = previous.createGroupStats;
+                userStats = previous.userStats;
+                userFileSizeDistribution = previous.userFileSizeDistribution;
+                userConsumedFileSize = previous.userConsumedFileSize;
+                createUserStat = previous.createUserStat;
+                userReplication = previous.userReplication;
+                directoryFanOut = previous.directoryFanOut;
+                anomalyDetector = previous.anomalyDetector;
+                overallAnomalies = previous.overallAnomalies;
+                userAnomalies = previous.userAnomalies;
+                extensionStats = previous.extensionStats;
+                userExtensionStats = previous.userExtensionStats;
+                extensionTopK = previous.extensionTopK;
             } else {
-                Histogram histogram = Histogram.build()
-                        .name(FsImageUpdateHandler.METRIC_PREFIX_GROUP + FSIZE)
-                        .labelNames(FsImageUpdateHandler.LABEL_GROUP_NAME)
+                groupStats = new ConcurrentHashMap<>();
+                userStats = new ConcurrentHashMap<>();
+                userAnomalies = new ConcurrentHashMap<>();
+                userExtensionStats = new ConcurrentHashMap<>();
+
+                // Overall
+                Histogram overallHistogram = Histogram.build()
+                        .name(METRIC_PREFIX + FSIZE)
+                        .buckets(configuredBuckets)
+                        .help("Overall file size distribution")
+                        .create();
+                Histogram overallCHistogram = Histogram.build()
+                        .name(METRIC_PREFIX + CSIZE)
                         .buckets(configuredBuckets)
-                        .help("Per group file size distribution.").create();
-                createGroupStats = groupName -> new GroupStats(groupName,
-                        new HistogramMetricAdapter(histogram.labels(groupName)),
-                        new SummaryMetricAdapter(groupConsumedFileSize.labels(groupName)));
-                groupFileSizeDistribution = histogram;
-            }
-
-            // User
-            userReplication = Summary.build()
-                    .name(FsImageUpdateHandler.METRIC_PREFIX_USER + REPLICATION)
-                    .labelNames(FsImageUpdateHandler.LABEL_USER_NAME)
-                    .help("Per user file replication").create();
-            userConsumedFileSize = Summary.build()
-                    .name(FsImageUpdateHandler.METRIC_PREFIX_USER + CSIZE)
-                    .labelNames(FsImageUpdateHandler.LABEL_USER_NAME)
-                    .help("Per user consumed file size and file count").create();
-            if (config.isSkipFileDistributionForUserStats()) {
-                Summary summary = Summary.build()
-                        .name(FsImageUpdateHandler.METRIC_PREFIX_USER + FSIZE)
+                        .help("Overall consumed file size distribution")
+                        .create();
+                overallFileSizeDistribution = overallHistogram;
+                overallConsumedFileSizeDistribution = overallCHistogram;
+                overallReplication = Summary.build()
+                        .name(FsImageCollector.METRIC_PREFIX + REPLICATION)
+                        .help("Overall file replication").create();
+                overallStats = new OverallStats(new HistogramMetricAdapter(overallHistogram.labels()),
+                        new HistogramMetricAdapter(overallCHistogram.labels()), overallReplication);
+
+                // Group
+                groupConsumedFileSize = Summary.build()
+                        .name(FsImageUpdateHandler.METRIC_PREFIX_GROUP + CSIZE)
+                        .labelNames(FsImageUpdateHandler.LABEL_GROUP_NAME)
+                        .help("Per group consumed file size and file count").create();
+                if (config.isSkipFileDistributionForGroupStats()) {
+                    Summary summary = Summary.build()
+                            .name(FsImageUpdateHandler.METRIC_PREFIX_GROUP + FSIZE)
+                            .labelNames(FsImageUpdateHandler.LABEL_GROUP_NAME)
+                            .help("Per group file size and file count").create();
+                    createGroupStats = groupName -> new GroupStats(groupName,
+                            new SummaryMetricAdapter(summary.labels(groupName)),
+                            new SummaryMetricAdapter(groupConsumedFileSize.labels(groupName)));
+                    groupFileSizeDistribution = summary;
+                } else {
+                    Histogram histogram = Histogram.build()
+                            .name(FsImageUpdateHandler.METRIC_PREFIX_GROUP + FSIZE)
+                            .labelNames(FsImageUpdateHandler.LABEL_GROUP_NAME)
+                            .buckets(configuredBuckets)
+                            .help("Per group file size distribution.").create();
+                    createGroupStats = groupName -> new GroupStats(groupName,
+                            new HistogramMetricAdapter(histogram.labels(groupName)),
+                            new SummaryMetricAdapter(groupConsumedFileSize.labels(groupName)));
+                    groupFileSizeDistribution = histogram;
+                }
+
+                // User
+                userReplication = Summary.build()
+                        .name(FsImageUpdateHandler.METRIC_PREFIX_USER + REPLICATION)
                         .labelNames(FsImageUpdateHandler.LABEL_USER_NAME)
-                        .help("Per user file size and file count").create();
-                createUserStat = userName -> new UserStats(userName,
-                        new SummaryMetricAdapter(summary.labels(userName)),
-                        new SummaryMetricAdapter(userConsumedFileSize.labels(userName)),
-                        new SummaryMetricAdapter(userReplication.labels(userName)));
-                userFileSizeDistribution = summary;
-            } else {
-                Histogram histogram = Histogram.build()
-                        .name(FsImageUpdateHandler.METRIC_PREFIX_USER + FSIZE)
+                        .help("Per user file replication").create();
+                userConsumedFileSize = Summary.build()
+                        .name(FsImageUpdateHandler.METRIC_PREFIX_USER + CSIZE)
                         .labelNames(FsImageUpdateHandler.LABEL_USER_NAME)
-                        .buckets(configuredBuckets)
-                        .help("Per user file size distribution").create();
-                createUserStat = userName -> new UserStats(userName,
-                        new HistogramMetricAdapter(histogram.labels(userName)),
-                        new SummaryMetricAdapter(userConsumedFileSize.labels(userName)),
-                        new SummaryMetricAdapter(userReplication.labels(userName)));
-                userFileSizeDistribution = histogram;
-            }
-
-            // Paths
-            pathConsumedFileSize = Summary.build()
-                    .name(FsImageUpdateHandler.METRIC_PREFIX_PATH + CSIZE)
-                    .labelNames(FsImageUpdateHandler.LABEL_PATH)
-                    .help("Path specific consumed file size and file count").create();
-            if (config.isSkipFileDistributionForPathStats()) {
-                Summary summary = Summary.build()
-                        .name(FsImageUpdateHandler.METRIC_PREFIX_PATH + FSIZE)
-                        .labelNames(FsImageUpdateHandler.LABEL_PATH)
-                        .help("Path specific file size and file count").create();
-                createPathStat = path -> new PathStats(path,
-                        new SummaryMetricAdapter(summary.labels(path)),
-                        new SummaryMetricAdapter(pathConsumedFileSize.labels(path)));
-                pathFileSizeDistribution = summary;
+                        .help("Per user consumed file size and file count").create();
+                if (config.isSkipFileDistributionForUserStats()) {
+                    Summary summary = Summary.build()
+                            .name(FsImageUpdateHandler.METRIC_PREFIX_USER + FSIZE)
+                            .labelNames(FsImageUpdateHandler.LABEL_USER_NAME)
+                            .help("Per user file size and file count").create();
+                    createUserStat = userName -> new UserStats(userName,
+                            new SummaryMetricAdapter(summary.labels(userName)),
+                            new SummaryMetricAdapter(userConsumedFileSize.labels(userName)),
+                            new SummaryMetricAdapter(userReplication.labels(userName)));
+                    userFileSizeDistribution = summary;
+                } else {
+                    Histogram histogram = Histogram.build()
+                            .name(FsImageUpdateHandler.METRIC_PREFIX_USER + FSIZE)
+                            .labelNames(FsImageUpdateHandler.LABEL_USER_NAME)
+                            .buckets(configuredBuckets)
+                            .help("Per user file size distribution").create();
+                    createUserStat = userName -> new UserStats(userName,
+                            new HistogramMetricAdapter(histogram.labels(userName)),
+                            new SummaryMetricAdapter(userConsumedFileSize.labels(userName)),
+                            new SummaryMetricAdapter(userReplication.labels(userName)));
+                    userFileSizeDistribution = histogram;
+                }
+            }
+
+            if (null != previous && reusePathStats) {
+                pathStats = previous.pathStats;
+                pathFileSizeDistribution = previous.pathFileSizeDistribution;
+                pathConsumedFileSize = previous.pathConsumedFileSize;
+                createPathStat = previous.createPathStat;
             } else {
-                Histogram histogram = Histogram.build()
-                        .name(FsImageUpdateHandler.METRIC_PREFIX_PATH + FSIZE)
-                        .buckets(configuredBuckets)
-                        .labelNames(FsImageUpdateHandler.LABEL_PATH)
-                        .help("Path specific file size distribution").create();
-                createPathStat = path -> new PathStats(path,
-                        new HistogramMetricAdapter(histogram.labels(path)),
-                        new SummaryMetricAdapter(pathConsumedFileSize.labels(path)));
-                pathFileSizeDistribution = histogram;
-            }
-
-            // Path sets
-            pathSetConsumedFileSize = Summary.build()
-                    .name(FsImageUpdateHandler.METRIC_PREFIX_PATH_SET + CSIZE)
-                    .labelNames(FsImageUpdateHandler.LABEL_PATH_SET)
-                    .help("Path set specific consumed file size and file count").create();
-            if (config.isSkipFileDistributionForPathSetStats()) {
-                Summary summary = Summary.build()
-                        .name(FsImageUpdateHandler.METRIC_PREFIX_PATH_SET + FSIZE)
-                        .labelNames(FsImageUpdateHandler.LABEL_PATH_SET)
-                        .help("Path set specific file size and file count").create();
-                createPathSetStat = path -> new PathStats(path,
-                        new SummaryMetricAdapter(summary.labels(path)),
-                        new SummaryMetricAdapter(pathSetConsumedFileSize.labels(path)));
-                pathSetFileSizeDistribution = summary;
+                pathStats = new ConcurrentHashMap<>();
+
+                // Paths
+                if (indexed) {
+                    final IndexedDistribution consumed = new IndexedDistribution(
+                            FsImageUpdateHandler.METRIC_PREFIX_PATH + CSIZE,
+                            "Path specific consumed file size and file count", FsImageUpdateHandler.LABEL_PATH, null);
+                    final IndexedDistribution distribution = new IndexedDistribution(
+                            FsImageUpdateHandler.METRIC_PREFIX_PATH + FSIZE,
+                            config.isSkipFileDistributionForPathStats() ? "Path specific file size and file count"
+                                    : "Path specific file size distribution",
+                            FsImageUpdateHandler.LABEL_PATH,
+                            config.isSkipFileDistributionForPathStats() ? null : configuredBuckets);
+                    createPathStat = path -> new PathStats(path, distribution.labels(path), consumed.labels(path));
+                    pathConsumedFileSize = consumed;
+                    pathFileSizeDistribution = distribution;
+                } else {
+                    final Summary consumed = Summary.build()
+                            .name(FsImageUpdateHandler.METRIC_PREFIX_PATH + CSIZE)
+                            .labelNames(FsImageUpdateHandler.LABEL_PATH)
+                            .help("Path specific consumed file size and file count").create();
+                    pathConsumedFileSize = consumed;
+                    if (config.isSkipFileDistributionForPathStats()) {
+                        Summary summary = Summary.build()
+                                .name(FsImageUpdateHandler.METRIC_PREFIX_PATH + FSIZE)
+                                .labelNames(FsImageUpdateHandler.LABEL_PATH)
+                                .help("Path specific file size and file count").create();
+                        createPathStat = path -> new PathStats(path,
+                                new SummaryMetricAdapter(summary.labels(path)),
+                                new SummaryMetricAdapter(consumed.labels(path)));
+                        pathFileSizeDistribution = summary;
+                    } else {
+                        Histogram histogram = Histogram.build()
+                                .name(FsImageUpdateHandler.METRIC_PREFIX_PATH + FSIZE)
+                                .buckets(configuredBuckets)
+                                .labelNames(FsImageUpdateHandler.LABEL_PATH)
+                                .help("Path specific file size distribution").create();
+                        createPathStat = path -> new PathStats(path,
+                                new HistogramMetricAdapter(histogram.labels(path)),
+                                new SummaryMetricAdapter(consumed.labels(path)));
+                        pathFileSizeDistribution = histogram;
+                    }
+                }
+            }
+
+            if (null != previous && reusePathSetStats) {
+                pathSetStats = previous.pathSetStats;
+                pathSetFileSizeDistribution = previous.pathSetFileSizeDistribution;
+                pathSetConsumedFileSize = previous.pathSetConsumedFileSize;
+                createPathSetStat = previous.createPathSetStat;
             } else {
-                Histogram histogram = Histogram.build()
-                        .name(FsImageUpdateHandler.METRIC_PREFIX_PATH_SET + FSIZE)
-                        .buckets(configuredBuckets)
-                        .labelNames(FsImageUpdateHandler.LABEL_PATH_SET)
-                        .help("Path set specific file size distribution").create();
-                createPathSetStat = path -> new PathStats(path,
-                        new HistogramMetricAdapter(histogram.labels(path)),
-                        new SummaryMetricAdapter(pathSetConsumedFileSize.labels(path)));
-                pathSetFileSizeDistribution = histogram;
+                pathSetStats = new ConcurrentHashMap<>();
+
+                // Path sets
+                if (indexed) {
+                    final IndexedDistribution consumed = new IndexedDistribution(
+                            FsImageUpdateHandler.METRIC_PREFIX_PATH_SET + CSIZE,
+                            "Path set specific consumed file size and file count",
+                            FsImageUpdateHandler.LABEL_PATH_SET, null);
+                    final IndexedDistribution distribution = new IndexedDistribution(
+                            FsImageUpdateHandler.METRIC_PREFIX_PATH_SET + FSIZE,
+                            config.isSkipFileDistributionForPathSetStats() ? "Path set specific file size and file count"
+                                    : "Path set specific file size distribution",
+                            FsImageUpdateHandler.LABEL_PATH_SET,
+                            config.isSkipFileDistributionForPathSetStats() ? null : configuredBuckets);
+                    createPathSetStat = path -> new PathStats(path, distribution.labels(path), consumed.labels(path));
+                    pathSetConsumedFileSize = consumed;
+                    pathSetFileSizeDistribution = distribution;
+                } else {
+                    final Summary consumed = Summary.build()
+                            .name(FsImageUpdateHandler.METRIC_PREFIX_PATH_SET + CSIZE)
+                            .labelNames(FsImageUpdateHandler.LABEL_PATH_SET)
+                            .help("Path set specific consumed file size and file count").create();
+                    pathSetConsumedFileSize = consumed;
+                    if (config.isSkipFileDistributionForPathSetStats()) {
+                        Summary summary = Summary.build()
+                                .name(FsImageUpdateHandler.METRIC_PREFIX_PATH_SET + FSIZE)
+                                .labelNames(FsImageUpdateHandler.LABEL_PATH_SET)
+                                .help("Path set specific file size and file count").create();
+                        createPathSetStat = path -> new PathStats(path,
+                                new SummaryMetricAdapter(summary.labels(path)),
+                                new SummaryMetricAdapter(consumed.labels(path)));
+                        pathSetFileSizeDistribution = summary;
+                    } else {
+                        Histogram histogram = Histogram.build()
+                                .name(FsImageUpdateHandler.METRIC_PREFIX_PATH_SET + FSIZE)
+                                .buckets(configuredBuckets)
+                                .labelNames(FsImageUpdateHandler.LABEL_PATH_SET)
+                                .help("Path set specific file size distribution").create();
+                        createPathSetStat = path -> new PathStats(path,
+                                new HistogramMetricAdapter(histogram.labels(path)),
+                                new SummaryMetricAdapter(consumed.labels(path)));
+                        pathSetFileSizeDistribution = histogram;
+                    }
+                }
             }
         }
 
-        public void collect(List<MetricFamilySamples> mfs) {
-            mfs.addAll(overallFileSizeDistribution.collect());
-            mfs.addAll(overallConsumedFileSizeDistribution.collect());
-            mfs.addAll(overallReplication.collect());
+        public void collect(List<MetricFamilySamples> mfs, Predicate<String> sampleNameFilter) {
+            collectIfRequested(mfs, overallFileSizeDistribution, sampleNameFilter);
+            collectIfRequested(mfs, overallConsumedFileSizeDistribution, sampleNameFilter);
+            collectIfRequested(mfs, overallReplication, sampleNameFilter);
 
-            mfs.addAll(groupFileSizeDistribution.collect());
-            mfs.addAll(groupConsumedFileSize.collect());
+            collectIfRequested(mfs, groupFileSizeDistribution, sampleNameFilter);
+            collectIfRequested(mfs, groupConsumedFileSize, sampleNameFilter);
 
-            mfs.addAll(userFileSizeDistribution.collect());
-            mfs.addAll(userConsumedFileSize.collect());
-            mfs.addAll(userReplication.collect());
+            collectIfRequested(mfs, userFileSizeDistribution, sampleNameFilter);
+            collectIfRequested(mfs, userConsumedFileSize, sampleNameFilter);
+            collectIfRequested(mfs, userReplication, sampleNameFilter);
+
+            if (null != directoryFanOut) {
+                DirectoryFanOut.collect(mfs, METRIC_PREFIX, null, Map.of("", directoryFanOut), sampleNameFilter);
+            }
+            if (null != overallAnomalies) {
+                FileAnomalies.collect(mfs, METRIC_PREFIX, null, Map.of("", overallAnomalies), sampleNameFilter);
+                if (!userAnomalies.isEmpty()) {
+                    FileAnomalies.collect(mfs, METRIC_PREFIX_USER, LABEL_USER_NAME, new TreeMap<>(userAnomalies),
+                            sampleNameFilter);
+                }
+            }
+            if (null != extensionStats) {
+                FileExtensionStats.collect(mfs, METRIC_PREFIX, null, Map.of("", extensionStats), extensionTopK,
+                        sampleNameFilter);
+                if (!userExtensionStats.isEmpty()) {
+                    FileExtensionStats.collect(mfs, METRIC_PREFIX_USER, LABEL_USER_NAME,
+                            new TreeMap<>(userExtensionStats), 0, sampleNameFilter);
+                }
+            }
 
             if (hasPathStats()) {
-                mfs.addAll(pathFileSizeDistribution.collect());
-                mfs.addAll(pathConsumedFileSize.collect());
+                collectIfRequested(mfs, pathFileSizeDistribution, sampleNameFilter);
+                collectIfRequested(mfs, pathConsumedFileSize, sampleNameFilter);
+                final Map<String, DirectoryFanOut> pathFanOuts = new TreeMap<>();
+                for (PathStats stats : pathStats.values()) {
+                    if (null != stats.directoryFanOut) {
+                        pathFanOuts.put(stats.path, stats.directoryFanOut);
+                    }
+                }
+                if (!pathFanOuts.isEmpty()) {
+                    DirectoryFanOut.collect(mfs, METRIC_PREFIX_PATH, LABEL_PATH, pathFanOuts, sampleNameFilter);
+                }
+                collectAnomalies(mfs, METRIC_PREFIX_PATH, LABEL_PATH, pathStats, sampleNameFilter);
             }
             if (hasPathSetStats()) {
-                mfs.addAll(pathSetFileSizeDistribution.collect());
-                mfs.addAll(pathSetConsumedFileSize.collect());
+                collectIfRequested(mfs, pathSetFileSizeDistribution, sampleNameFilter);
+                collectIfRequested(mfs, pathSetConsumedFileSize, sampleNameFilter);
+                collectAnomalies(mfs, METRIC_PREFIX_PATH_SET, LABEL_PATH_SET, pathSetStats, sampleNameFilter);
+            }
+        }
+
+        private static void collectAnomalies(List<MetricFamilySamples> mfs, String prefix, String labelName,
+                                             Map<String, PathStats> stats, Predicate<String> sampleNameFilter) {
+            final Map<String, FileAnomalies> anomalies = new TreeMap<>();
+            for (PathStats pathStats : stats.values()) {
+                if (null != pathStats.anomalies) {
+                    anomalies.put(pathStats.path, pathStats.anomalies);
+                }
+            }
+            if (!anomalies.isEmpty()) {
+                FileAnomalies.collect(mfs, prefix, labelName, anomalies, sampleNameFilter);
             }
         }
 
+        /**
+         * Finishes and commits the phase event, and records its duration and allocated bytes, if counted.
+         *
+         * @param event  the phase event
+         * @param inodes the number of processed inodes
+         */
+        void recordPhase(PhaseEvent event, long inodes) {
+            phaseDurationNanos.get(event.computePhase).add(event.finish());
+            phaseInodes.get(event.computePhase).add(inodes);
+            if (event.allocatedBytes >= 0) {
+                phaseAllocatedBytes.get(event.computePhase).add(event.allocatedBytes);
+            }
+            event.inodes = inodes;
+            event.commit();
+        }
+
+        /**
+         * @return the number of visited inodes, including root
+         */
+        long getInodes() {
+            return getInodes(overallStats);
+        }
+
+        static long getInodes(AbstractFileSystemStats stats) {
+            return stats.fileSize.count() + stats.sumDirectories.longValue() + stats.sumSymLinks.longValue();
+        }
+
         boolean hasPathStats() {
             return null != pathStats && !pathStats.isEmpty();
         }
@@ -329,100 +529,178 @@ public class FsImageReporter {
     }
 
     static Report computeStatsReport(final FsImageData fsImageData, Config config) throws IOException {
+        return computeStatsReport(fsImageData, null, config);
+    }
+
+    /**
+     * Computes the report.
+     *
+     * @param fsImageData the loaded FSImage
+     * @param fsImageFile the FSImage file for selective decoding of overall, group and user stats, or null
+     * @param config      the config
+     * @return the report
+     * @throws IOException on error
+     */
+    static Report computeStatsReport(final FsImageData fsImageData, File fsImageFile, Config config)
+            throws IOException {
+        return computeStatsReport(fsImageData, fsImageFile, config, null);
+    }
+
+    /**
+     * Computes the report, tracking progress.
+     *
+     * @param fsImageData the loaded FSImage
+     * @param fsImageFile the FSImage file for selective decoding of overall, group and user stats, or null
+     * @param config      the config
+     * @param progress    the progress, counting visited inodes and aborting on request, or null
+     * @return the report
+     * @throws IOException on error
+     * @throws java.util.concurrent.CancellationException if aborted
+     */
+    static Report computeStatsReport(final FsImageData fsImageData, File fsImageFile, Config config,
+                                     ComputeProgress progress) throws IOException {
         Report report = new Report(config);
-        final OverallStats overallStats = report.overallStats;
+        if (config.isDirectoryFanOutEnabled()) {
+            report.directoryFanOut = new DirectoryFanOut(config.getDirectoryFanOutTopK());
+        }
+        if (config.isAnomalyDetectionEnabled()) {
+            report.anomalyDetector = new FileAnomalies.Detector(config);
+            report.overallAnomalies = new FileAnomalies();
+        }
+        if (config.isFileExtensionStatsEnabled()) {
+            report.extensionStats = new FileExtensionStats(
+                    new FileExtensionStats.SuffixTable(config.getFileExtensions()), true);
+            report.extensionTopK = config.getFileExtensionTopK();
+        }
+        final NamespaceIndex.Builder indexBuilder = config.isNamespaceIndexEnabled()
+                ? new NamespaceIndex.Builder(config.getNamespaceIndexMaxDepth(),
+                config.getFileSizeDistributionBucketsAsDoubles()) : null;
 
         long t = System.currentTimeMillis();
-        new FsVisitor.Builder().parallel().visit(fsImageData, new FsVisitor() {
-            @Override
-            public void onFile(FsImageProto.INodeSection.INode inode, String path) {
-                FsImageProto.INodeSection.INodeFile f = inode.getFile();
-                PermissionStatus p = fsImageData.getPermissionStatus(f.getPermission());
-
-                final long fileSize = FsUtil.getFileSize(f);
-                final long fileConsumedSize = FsUtil.getConsumedFileSize(f);
-                final long fileBlocks = f.getBlocksCount();
-                overallStats.sumBlocks.add(fileBlocks);
-                overallStats.fileSize.observe(fileSize);
-                overallStats.fileConsumedSize.observe(fileConsumedSize);
-                overallStats.replication.observe(f.getReplication());
-
-                // Group stats
-                final String groupName = p.getGroupName();
-                final GroupStats groupStat = report.groupStats.computeIfAbsent(groupName, report.createGroupStats);
-                groupStat.sumBlocks.add(fileBlocks);
-                groupStat.fileSize.observe(fileSize);
-                groupStat.fileConsumedSize.observe(fileConsumedSize);
-
-                // User stats
-                final String userName = p.getUserName();
-                UserStats userStat = report.userStats.computeIfAbsent(userName, report.createUserStat);
-                userStat.sumBlocks.add(fileBlocks);
-                userStat.fileSize.observe(fileSize);
-                userStat.fileConsumedSize.observe(fileConsumedSize);
-                userStat.replication.observe(f.getReplication());
-            }
-
-            @Override
-            public void onDirectory(FsImageProto.INodeSection.INode inode, String path) {
-                FsImageProto.INodeSection.INodeDirectory d = inode.getDirectory();
-                PermissionStatus p = fsImageData.getPermissionStatus(d.getPermission());
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Visiting directory {}",
-                            path + ("/".equals(path) ? "" : "/") + inode.getName().toStringUtf8());
+        enterPhase(progress, ComputePhase.STATS);
+        final PhaseEvent statsEvent = new PhaseEvent(ComputePhase.STATS);
+        // Namespace index and directory fan-out require the directory tree, and extension stats the file names
+        if (null == fsImageFile || !config.isSelectiveDecodingEnabled() || null != indexBuilder
+                || null != report.directoryFanOut || null != report.extensionStats
+                || !computeStatsSelective(fsImageData, fsImageFile, report)) {
+            new InodeVisitor.Builder().parallel().progress(progress).visit(fsImageData, new InodeVisitor() {
+                @Override
+                public void onFile(FsImageProto.INodeSection.INode inode, Directory parent) {
+                    FsImageProto.INodeSection.INodeFile f = inode.getFile();
+                    PermissionStatus p = fsImageData.getPermissionStatus(f.getPermission());
+
+                    final long fileSize = FsUtil.getFileSize(f);
+                    final long fileConsumedSize = FsUtil.getConsumedFileSize(f);
+                    final long fileBlocks = f.getBlocksCount();
+                    observeFile(report, p.getUserName(), p.getGroupName(), fileSize, fileConsumedSize, fileBlocks,
+                            f.getReplication());
+                    if (null != report.anomalyDetector) {
+                        observeAnomalies(report, p.getUserName(), report.anomalyDetector.detect(f, fileSize));
+                    }
+                    if (null != report.extensionStats) {
+                        observeExtension(report, p.getUserName(), inode.getName(), fileSize);
+                    }
+
+                    if (null != indexBuilder) {
+                        indexBuilder.onFile(parent, p.getUserName(), fileSize, fileConsumedSize, fileBlocks);
+                    }
                 }
 
-                // Group stats
-                final String groupName = p.getGroupName();
-                final GroupStats groupStat = report.groupStats.computeIfAbsent(groupName, report.createGroupStats);
-                groupStat.sumDirectories.increment();
-
-                // User stats
-                final String userName = p.getUserName();
-                final UserStats userStat = report.userStats.computeIfAbsent(userName, report.createUserStat);
-                userStat.sumDirectories.increment();
-
-                overallStats.sumDirectories.increment();
-            }
-
-            @Override
-            public void onSymLink(FsImageProto.INodeSection.INode inode, String path) {
-                FsImageProto.INodeSection.INodeSymlink d = inode.getSymlink();
-                PermissionStatus p = fsImageData.getPermissionStatus(d.getPermission());
+                @Override
+                public void onDirectory(FsImageProto.INodeSection.INode inode, Directory directory) {
+                    FsImageProto.INodeSection.INodeDirectory d = inode.getDirectory();
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Visiting directory {}", directory.getPath());
+                    }
+                    final PermissionStatus p = fsImageData.getPermissionStatus(d.getPermission());
+                    observeDirectory(report, p.getUserName(), p.getGroupName());
+
+                    if (null != indexBuilder) {
+                        indexBuilder.onDirectory(directory, getSpaceQuota(d.getDsQuota()));
+                    }
+                }
 
-                // Group stats
-                final String groupName = p.getGroupName();
-                final GroupStats groupStat = report.groupStats.computeIfAbsent(groupName, report.createGroupStats);
-                groupStat.sumSymLinks.increment();
+                @Override
+                public void onSymLink(FsImageProto.INodeSection.INode inode, Directory parent) {
+                    FsImageProto.INodeSection.INodeSymlink d = inode.getSymlink();
+                    final PermissionStatus p = fsImageData.getPermissionStatus(d.getPermission());
+                    observeSymLink(report, p.getUserName(), p.getGroupName());
 
-                // User stats
-                final String userName = p.getUserName();
-                final UserStats userStat = report.userStats.computeIfAbsent(userName, report.createUserStat);
-                userStat.sumSymLinks.increment();
+                    if (null != indexBuilder) {
+                        indexBuilder.onSymLink(parent);
+                    }
+                }
 
-                overallStats.sumSymLinks.increment();
-            }
-        });
+                @Override
+                public void onDirectoryChildren(Directory directory, int files, int subdirectories) {
+                    if (null != report.directoryFanOut) {
+                        report.directoryFanOut.observe(directory, files, subdirectories);
+                    }
+                }
+            });
+        }
+        report.recordPhase(statsEvent, report.getInodes());
         LOG.info("Finished computing overall/group/user stats in {}ms", System.currentTimeMillis() - t);
+        if (null != indexBuilder) {
+            t = System.currentTimeMillis();
+            enterPhase(progress, ComputePhase.NAMESPACE_INDEX);
+            final PhaseEvent indexEvent = new PhaseEvent(ComputePhase.NAMESPACE_INDEX);
+            report.namespaceIndex = indexBuilder.build();
+            report.recordPhase(indexEvent, report.namespaceIndex.size());
+            LOG.info("Finished namespace index with {} directories in {}ms",
+                    report.namespaceIndex.size(), System.currentTimeMillis() - t);
+        }
         if (config.hasPaths()) {
-            computePathStats(fsImageData, config, report);
+            computePathStats(fsImageData, config, report, progress);
         }
         if (config.hasPathSets()) {
-            computePathSetStatsParallel(fsImageData, config, report);
+            computePathSetStatsParallel(fsImageData, config, report, progress);
         }
 
         return report;
     }
 
-    private static void computePathStats(FsImageData fsImageData, Config config, Report report) throws IOException {
+    private static void enterPhase(ComputeProgress progress, ComputePhase phase) {
+        if (null != progress) {
+            progress.enterPhase(phase);
+        }
+    }
+
+    static void computePathStats(FsImageData fsImageData, Config config, Report report) throws IOException {
+        computePathStats(fsImageData, config, report, null);
+    }
+
+    static void computePathStats(FsImageData fsImageData, Config config, Report report, ComputeProgress progress)
+            throws IOException {
+        enterPhase(progress, ComputePhase.PATH_EXPANSION);
+        final PhaseEvent expansionEvent = new PhaseEvent(ComputePhase.PATH_EXPANSION);
         Set<String> expandedPaths = expandPaths(fsImageData, config.getPaths());
+        report.recordPhase(expansionEvent, 0);
         LOG.info("Expanded paths {} for path stats {}", expandedPaths, config.getPaths());
         long s = System.currentTimeMillis();
+        enterPhase(progress, ComputePhase.PATH_STATS);
+        final PhaseEvent pathStatsEvent = new PhaseEvent(ComputePhase.PATH_STATS);
         expandedPaths.parallelStream().forEach(p -> {
             try {
                 long t = System.currentTimeMillis();
+                final PathStatsEvent event = new PathStatsEvent();
+                event.begin();
+                final long start = System.nanoTime();
                 final PathStats pathStats = report.pathStats.computeIfAbsent(p, report.createPathStat);
-                new FsVisitor.Builder().visit(fsImageData, new PathStatVisitor(pathStats), p);
+                pathStats.spaceQuota = getSpaceQuota(fsImageData, p);
+                if (config.isDirectoryFanOutEnabled()) {
+                    // Top directories only overall, bounding the number of time series
+                    pathStats.directoryFanOut = new DirectoryFanOut(0);
+                }
+                if (null != report.anomalyDetector) {
+                    pathStats.anomalies = new FileAnomalies();
+                }
+                new InodeVisitor.Builder().progress(progress).visit(fsImageData,
+                        new PathStatVisitor(pathStats, report.anomalyDetector), p);
+                pathStats.computeDurationNanos = System.nanoTime() - start;
+                event.path = p;
+                event.inodes = Report.getInodes(pathStats);
+                event.commit();
                 // Subtract start dir, as only child dirs count
                 pathStats.sumDirectories.decrement();
                 if (LOG.isDebugEnabled()) {
@@ -434,28 +712,84 @@ public class FsImageReporter {
                 report.error = true;
             }
         });
+        report.recordPhase(pathStatsEvent, report.pathStats.values().stream().mapToLong(Report::getInodes).sum());
         LOG.info("Finished {} path stats in {}ms", report.pathStats.size(), System.currentTimeMillis() - s);
     }
 
-    private static void computePathSetStatsParallel(FsImageData fsImageData, Config config, Report report) {
+    /**
+     * Gets the space quota of a directory.
+     *
+     * @return the space quota, or -1 if none
+     */
+    static long getSpaceQuota(FsImageData fsImageData, String path) throws IOException {
+        final FsImageProto.INodeSection.INode inode = fsImageData.getINodeFromPath(path);
+        return inode.hasDirectory() ? getSpaceQuota(inode.getDirectory().getDsQuota()) : -1;
+    }
+
+    /**
+     * @param dsQuota the raw directory space quota
+     * @return the space quota, or -1 if none
+     */
+    static long getSpaceQuota(long dsQuota) {
+        // HDFS uses -1 for no quota and Long.MAX_VALUE for not set
+        return dsQuota > 0 && dsQuota < Long.MAX_VALUE ? dsQuota : -1;
+    }
+
+    static void computePathSetStatsParallel(FsImageData fsImageData, Config config, Report report) {
+        computePathSetStatsParallel(fsImageData, config, report, null);
+    }
+
+    static void computePathSetStatsParallel(FsImageData fsImageData, Config config, Report report,
+                                            ComputeProgress progress) {
+        // Expands all path sets before computing stats, not timing the expansion as part of path set stats
+        enterPhase(progress, ComputePhase.PATH_EXPANSION);
+        final PhaseEvent expansionEvent = new PhaseEvent(ComputePhase.PATH_EXPANSION);
+        final Map<String, Set<String>> expandedPathSets = new ConcurrentHashMap<>();
+        config.getPathSets().entrySet().parallelStream().forEach(entry -> {
+            try {
+                Set<String> expandedPaths = expandPaths(fsImageData, entry.getValue());
+                LOG.info("Expanded paths {} for path set stats {}", expandedPaths, entry.getKey());
+                expandedPathSets.put(entry.getKey(), expandedPaths);
+            } catch (IOException e) {
+                LOG.error("Can not expand path set {} using paths {}", entry.getKey(), entry.getValue(), e);
+                report.error = true;
+            }
+        });
+        report.recordPhase(expansionEvent, 0);
+
         long s = System.currentTimeMillis();
-        config.getPathSets().entrySet().parallelStream().forEach(entry ->
-                computePathSetStats(fsImageData, entry, report)
+        enterPhase(progress, ComputePhase.PATH_SET_STATS);
+        final PhaseEvent pathSetStatsEvent = new PhaseEvent(ComputePhase.PATH_SET_STATS);
+        expandedPathSets.entrySet().parallelStream().forEach(entry ->
+                computePathSetStats(fsImageData, entry, report, progress)
         );
+        report.recordPhase(pathSetStatsEvent,
+                report.pathSetStats.values().stream().mapToLong(Report::getInodes).sum());
         LOG.info("Finished {} path set stats in {}ms", report.pathSetStats.size(), System.currentTimeMillis() - s);
     }
 
-    private static void computePathSetStats(FsImageData fsImageData, Map.Entry<String, List<String>> entry, Report report) {
-        final FsVisitor.Builder builder = new FsVisitor.Builder();
+    private static void computePathSetStats(FsImageData fsImageData, Map.Entry<String, Set<String>> entry,
+                                            Report report, ComputeProgress progress) {
+        final InodeVisitor.Builder builder = new InodeVisitor.Builder().progress(progress);
+        final Set<String> expandedPaths = entry.getValue();
         try {
-            Set<String> expandedPaths = expandPaths(fsImageData, entry.getValue());
-            LOG.info("Expanded paths {} for path set stats {}", expandedPaths, entry.getKey());
             long t = System.currentTimeMillis();
+            final PathStatsEvent event = new PathStatsEvent();
+            event.begin();
+            final long start = System.nanoTime();
             final PathStats pathStats = report.pathSetStats.computeIfAbsent(entry.getKey(), report.createPathSetStat);
-            final PathStatVisitor visitor = new PathStatVisitor(pathStats);
+            if (null != report.anomalyDetector) {
+                pathStats.anomalies = new FileAnomalies();
+            }
+            final PathStatVisitor visitor = new PathStatVisitor(pathStats, report.anomalyDetector);
             for (String path : expandedPaths) {
                 builder.visit(fsImageData, visitor, path);
             }
+            pathStats.computeDurationNanos = System.nanoTime() - start;
+            event.path = entry.getKey();
+            event.pathSet = true;
+            event.inodes = Report.getInodes(pathStats);
+            event.commit();
             // Subtract number of start dirs, as only child dirs count
             pathStats.sumDirectories.add(-expandedPaths.size());
             if (LOG.isDebugEnabled()) {
@@ -463,17 +797,204 @@ public class FsImageReporter {
                         entry.getKey(), pathStats.fileSize.count(), System.currentTimeMillis() - t);
             }
         } catch (IOException e) {
-            LOG.error("Can not traverse path set {} using paths {}", entry.getKey(), entry.getValue(), e);
+            LOG.error("Can not traverse path set {} using paths {}", entry.getKey(), expandedPaths, e);
             report.error = true;
         }
     }
 
+    /**
+     * Recomputes the path and path set stats of a report for a changed config, from its retained namespace index.
+     * <p>
+     * Shares overall, group and user stats and any unchanged path or path set stats with the previous report,
+     * without visiting the FSImage. Derives file size distributions from the file size buckets of the index,
+     * so the config must have the same file size buckets as when the index was built.
+     *
+     * @param previous            the previous report with namespace index
+     * @param config              the changed config
+     * @param pathStatsChanged    true, if recomputing path stats
+     * @param pathSetStatsChanged true, if recomputing path set stats
+     * @return the new report, or null if the index does not cover all configured paths,
+     * their directory fan-out or file anomalies
+     * @throws IOException on error
+     */
+    static Report recomputePathStats(Report previous, Config config, boolean pathStatsChanged,
+                                     boolean pathSetStatsChanged) throws IOException {
+        final NamespaceIndex index = previous.namespaceIndex;
+        if (null == index || !Arrays.equals(index.getFileSizeBuckets(), config.getFileSizeDistributionBucketsAsDoubles())
+                // Index has no per directory fan-out
+                || (pathStatsChanged && config.isDirectoryFanOutEnabled())
+                // Index has no per directory file anomalies
+                || ((pathStatsChanged || pathSetStatsChanged) && config.isAnomalyDetectionEnabled())) {
+            return null;
+        }
+        final Report report = new Report(config, previous, !pathStatsChanged, !pathSetStatsChanged, true);
+        report.namespaceIndex = index;
+        report.error = previous.error;
+        // Keep phase stats of shared stats
+        final Set<ComputePhase> recomputedPhases = EnumSet.noneOf(ComputePhase.class);
+        if (pathStatsChanged) {
+            recomputedPhases.add(ComputePhase.PATH_STATS);
+        }
+        if (pathSetStatsChanged) {
+            recomputedPhases.add(ComputePhase.PATH_SET_STATS);
+        }
+        if (!recomputedPhases.isEmpty()) {
+            recomputedPhases.add(ComputePhase.PATH_EXPANSION);
+        }
+        for (ComputePhase phase : ComputePhase.values()) {
+            if (!recomputedPhases.contains(phase)) {
+                report.phaseDurationNanos.get(phase).add(previous.phaseDurationNanos.get(phase).sum());
+                report.phaseInodes.get(phase).add(previous.phaseInodes.get(phase).sum());
+                report.phaseAllocatedBytes.get(phase).add(previous.phaseAllocatedBytes.get(phase).sum());
+            }
+        }
+
+        final IndexDirectoryLookup directoryLookup = new IndexDirectoryLookup(index);
+        if (pathStatsChanged && config.hasPaths()) {
+            final PhaseEvent expansionEvent = new PhaseEvent(ComputePhase.PATH_EXPANSION);
+            final Set<String> expandedPaths = expandPaths(directoryLookup, config.getPaths());
+            report.recordPhase(expansionEvent, 0);
+            if (directoryLookup.exceedsIndex) {
+                return null;
+            }
+            final PhaseEvent pathStatsEvent = new PhaseEvent(ComputePhase.PATH_STATS);
+            for (String path : expandedPaths) {
+                final long start = System.nanoTime();
+                final NamespaceIndex.Node node = index.get(path);
+                final PathStats pathStats = report.pathStats.computeIfAbsent(path, report.createPathStat);
+                pathStats.spaceQuota = node.spaceQuota;
+                observeIndexed(pathStats, node);
+                pathStats.computeDurationNanos = System.nanoTime() - start;
+            }
+            report.recordPhase(pathStatsEvent, report.pathStats.values().stream().mapToLong(Report::getInodes).sum());
+        }
+        if (pathSetStatsChanged && config.hasPathSets()) {
+            final PhaseEvent expansionEvent = new PhaseEvent(ComputePhase.PATH_EXPANSION);
+            final Map<String, Set<String>> expandedPathSets = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> entry : config.getPathSets().entrySet()) {
+                expandedPathSets.put(entry.getKey(), expandPaths(directoryLookup, entry.getValue()));
+                if (directoryLookup.exceedsIndex) {
+                    return null;
+                }
+            }
+            report.recordPhase(expansionEvent, 0);
+            final PhaseEvent pathSetStatsEvent = new PhaseEvent(ComputePhase.PATH_SET_STATS);
+            for (Map.Entry<String, Set<String>> entry : expandedPathSets.entrySet()) {
+                final long start = System.nanoTime();
+                final PathStats pathStats = report.pathSetStats.computeIfAbsent(entry.getKey(), report.createPathSetStat);
+                for (String path : entry.getValue()) {
+                    observeIndexed(pathStats, index.get(path));
+                }
+                pathStats.computeDurationNanos = System.nanoTime() - start;
+            }
+            report.recordPhase(pathSetStatsEvent,
+                    report.pathSetStats.values().stream().mapToLong(Report::getInodes).sum());
+        }
+        return report;
+    }
+
+    /**
+     * Observes the rolled-up stats of an indexed directory.
+     * <p>
+     * Adds the file count and size sum of each file size bucket at once, as the index buckets match
+     * the file size histogram buckets.
+     *
+     * @param pathStats the path stats, created by an indexed report
+     * @param node      the indexed directory
+     */
+    private static void observeIndexed(PathStats pathStats, NamespaceIndex.Node node) {
+        pathStats.sumDirectories.add(node.directories);
+        pathStats.sumBlocks.add(node.blocks);
+        pathStats.sumSymLinks.add(node.symLinks);
+        final IndexedDistribution.Child fileSize = (IndexedDistribution.Child) pathStats.fileSize;
+        for (int i = 0; i < node.bucketFiles.length; i++) {
+            fileSize.observeBucket(i, node.bucketFiles[i], node.bucketSizes[i]);
+        }
+        ((IndexedDistribution.Child) pathStats.fileConsumedSize).observeBucket(0, node.files, node.consumedSize);
+    }
+
+    /**
+     * Looks up directories in the namespace index, flagging lookups deeper than the indexed directories.
+     */
+    static class IndexDirectoryLookup implements DirectoryLookup {
+        private final NamespaceIndex index;
+        boolean exceedsIndex;
+
+        IndexDirectoryLookup(NamespaceIndex index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean hasDirectory(String path) {
+            if (NamespaceIndex.depth(NamespaceIndex.normalize(path)) > index.getMaxDepth()) {
+                exceedsIndex = true;
+                return false;
+            }
+            return null != index.get(path);
+        }
+
+        @Override
+        public List<String> getChildDirectories(String path, NameMatcher nameMatcher) throws IOException {
+            final NamespaceIndex.Node node = index.get(path);
+            if (null == node) {
+                throw new FileNotFoundException("No such directory " + path);
+            }
+            if (NamespaceIndex.depth(node.path) >= index.getMaxDepth()) {
+                exceedsIndex = true; // Children not indexed
+                return Collections.emptyList();
+            }
+            final String parentPath = path.endsWith("/") ? path : path + "/";
+            final List<String> childPaths = new ArrayList<>();
+            for (NamespaceIndex.Node child : node.children) {
+                final String name = child.getName();
+                if (nameMatcher.matches(ByteString.copyFromUtf8(name))) {
+                    childPaths.add(parentPath + name);
+                }
+            }
+            return childPaths;
+        }
+    }
+
+    /**
+     * Looks up directories for expanding configured path patterns.
+     */
+    interface DirectoryLookup {
+        /**
+         * @param path the absolute path
+         * @return true, if an inode exists for path
+         * @throws IOException on error
+         */
+        boolean hasDirectory(String path) throws IOException;
+
+        /**
+         * @param path        the absolute path of an existing directory
+         * @param nameMatcher the matcher for child directory names
+         * @return the paths of matching child directories
+         * @throws IOException on error, and FileNotFoundException if path does not exist
+         */
+        List<String> getChildDirectories(String path, NameMatcher nameMatcher) throws IOException;
+    }
+
     static Set<String> expandPaths(FsImageData fsImageData, Collection<String> paths) throws IOException {
+        return expandPaths(new DirectoryLookup() {
+            @Override
+            public boolean hasDirectory(String path) throws IOException {
+                return FsImageReporter.hasDirectory(fsImageData, path);
+            }
+
+            @Override
+            public List<String> getChildDirectories(String path, NameMatcher nameMatcher) throws IOException {
+                return fsImageData.getChildDirectories(path, nameMatcher);
+            }
+        }, paths);
+    }
+
+    static Set<String> expandPaths(DirectoryLookup directoryLookup, Collection<String> paths) throws IOException {
         Set<String> expandedPaths = new HashSet<>();
         for (String path : paths) {
             // If path does not exist, match child directories
-            if (!hasDirectory(fsImageData, path)) {
-                addMatchingPaths(fsImageData, expandedPaths, path);
+            if (!directoryLookup.hasDirectory(path)) {
+                addMatchingPaths(directoryLookup, expandedPaths, path);
             } else { // Existing directory
                 expandedPaths.add(path);
             }
@@ -482,7 +1003,7 @@ public class FsImageReporter {
         return expandedPaths;
     }
 
-    private static void addMatchingPaths(FsImageData fsImageData, Set<String> expandedPaths, String path)
+    private static void addMatchingPaths(DirectoryLookup directoryLookup, Set<String> expandedPaths, String path)
             throws IOException {
         // 1. Find base path
         //    Example: path= "/foo/bar/.*" -> "/foo/bar/"
@@ -491,7 +1012,7 @@ public class FsImageReporter {
         int i = 1;
         while (i < parts.length) {
             String part = parts[i];
-            if (hasDirectory(fsImageData, basePath + part)) {
+            if (directoryLookup.hasDirectory(basePath + part)) {
                 i++;
                 basePath.append(part).append('/');
             } else break;
@@ -502,12 +1023,11 @@ public class FsImageReporter {
         Set<String> paths = Collections.singleton(basePath.toString());
         for (int j = i; j < parts.length; j++) {
             String part = parts[j];
-            Pattern pattern = Pattern.compile(part);
+            final NameMatcher nameMatcher = NameMatcher.compile(part);
             Set<String> matchedPaths = new HashSet<>();
             for (String currentPath : paths) {
                 try {
-                    List<String> childPaths = fsImageData.getChildDirectories(currentPath,
-                            iNode -> pattern.matcher(iNode.getName().toStringUtf8()).matches());
+                    List<String> childPaths = directoryLookup.getChildDirectories(currentPath, nameMatcher);
                     matchedPaths.addAll(childPaths);
                 } catch (FileNotFoundException | NoSuchElementException ex) {
                     LOG.warn("Skipping configured, non-existing path {} for metric computations." +
@@ -533,31 +1053,155 @@ public class FsImageReporter {
         }
     }
 
+    private static boolean computeStatsSelective(FsImageData fsImageData, File fsImageFile, Report report)
+            throws IOException {
+        return new SelectiveINodeReader().parallel().read(fsImageFile, new SelectiveINodeReader.Visitor() {
+            @Override
+            public void onFile(long id, long permission, int replication, long fileSize, long blocks) {
+                // Not invoked, as reader provides the block layout
+                onFile(id, permission, replication, fileSize, blocks, 0, 0, false);
+            }
+
+            @Override
+            public void onFile(long id, long permission, int replication, long fileSize, long blocks,
+                               long lastBlockSize, long preferredBlockSize, boolean striped) {
+                final PermissionStatus p = fsImageData.getPermissionStatus(permission);
+                // Consumed size as computed by FsUtil.getConsumedFileSize
+                observeFile(report, p.getUserName(), p.getGroupName(),
+                        fileSize, fileSize * replication, blocks, replication);
+                if (null != report.anomalyDetector) {
+                    observeAnomalies(report, p.getUserName(), report.anomalyDetector.detect(fileSize, replication,
+                            blocks, lastBlockSize, preferredBlockSize, striped));
+                }
+            }
+
+            @Override
+            public void onDirectory(long id, long permission, long dsQuota, ByteString name) {
+                final PermissionStatus p = fsImageData.getPermissionStatus(permission);
+                observeDirectory(report, p.getUserName(), p.getGroupName());
+            }
+
+            @Override
+            public void onSymLink(long id, long permission) {
+                final PermissionStatus p = fsImageData.getPermissionStatus(permission);
+                observeSymLink(report, p.getUserName(), p.getGroupName());
+            }
+        });
+    }
+
+    static void observeFile(Report report, String userName, String groupName, long fileSize, long fileConsumedSize,
+                            long fileBlocks, int replication) {
+        final OverallStats overallStats = report.overallStats;
+        overallStats.sumBlocks.add(fileBlocks);
+        overallStats.fileSize.observe(fileSize);
+        overallStats.fileConsumedSize.observe(fileConsumedSize);
+        overallStats.replication.observe(replication);
 
-    static class PathStatVisitor implements FsVisitor {
+        // Group stats
+        final GroupStats groupStat = report.groupStats.computeIfAbsent(groupName, report.createGroupStats);
+        groupStat.sumBlocks.add(fileBlocks);
+        groupStat.fileSize.observe(fileSize);
+        groupStat.fileConsumedSize.observe(fileConsumedSize);
+
+        // User stats
+        UserStats userStat = report.userStats.computeIfAbsent(userName, report.createUserStat);
+        userStat.sumBlocks.add(fileBlocks);
+        userStat.fileSize.observe(fileSize);
+        userStat.fileConsumedSize.observe(fileConsumedSize);
+        userStat.replication.observe(replication);
+    }
+
+    /**
+     * @param anomalies the detected anomalies mask of a file
+     */
+    static void observeAnomalies(Report report, String userName, int anomalies) {
+        if (anomalies != 0) {
+            report.overallAnomalies.observe(anomalies);
+            report.userAnomalies.computeIfAbsent(userName, name -> new FileAnomalies()).observe(anomalies);
+        }
+    }
+
+    /**
+     * Observes a file by its matching configured suffix overall and per user, or else its discovered extension.
+     *
+     * @param name the raw UTF-8 file name
+     */
+    static void observeExtension(Report report, String userName, ByteString name, long fileSize) {
+        final FileExtensionStats extensionStats = report.extensionStats;
+        final int suffix = extensionStats.suffixes.match(name);
+        extensionStats.observe(suffix, name, fileSize);
+        if (suffix >= 0) {
+            // Configured suffixes only, bounding the number of time series
+            report.userExtensionStats.computeIfAbsent(userName,
+                    key -> new FileExtensionStats(extensionStats.suffixes, false)).observe(suffix, name, fileSize);
+        }
+    }
+
+    static void observeDirectory(Report report, String userName, String groupName) {
+        // Group stats
+        final GroupStats groupStat = report.groupStats.computeIfAbsent(groupName, report.createGroupStats);
+        groupStat.sumDirectories.increment();
+
+        // User stats
+        final UserStats userStat = report.userStats.computeIfAbsent(userName, report.createUserStat);
+        userStat.sumDirectories.increment();
+
+        report.overallStats.sumDirectories.increment();
+    }
+
+    static void observeSymLink(Report report, String userName, String groupName) {
+        // Group stats
+        final GroupStats groupStat = report.groupStats.computeIfAbsent(groupName, report.createGroupStats);
+        groupStat.sumSymLinks.increment();
+
+        // User stats
+        final UserStats userStat = report.userStats.computeIfAbsent(userName, report.createUserStat);
+        userStat.sumSymLinks.increment();
+
+        report.overallStats.sumSymLinks.increment();
+    }
+
+    static class PathStatVisitor implements InodeVisitor {
         private final PathStats pathStats;
+        private final FileAnomalies.Detector anomalyDetector;
 
-        PathStatVisitor(PathStats pathStats) {
+        /**
+         * @param pathStats       the path stats
+         * @param anomalyDetector the detector for file anomalies of path stats, or null
+         */
+        PathStatVisitor(PathStats pathStats, FileAnomalies.Detector anomalyDetector) {
             this.pathStats = pathStats;
+            this.anomalyDetector = anomalyDetector;
         }
 
         @Override
-        public void onFile(FsImageProto.INodeSection.INode inode, String path) {
+        public void onFile(FsImageProto.INodeSection.INode inode, Directory parent) {
             FsImageProto.INodeSection.INodeFile f = inode.getFile();
+            final long fileSize = FsUtil.getFileSize(f);
             pathStats.sumBlocks.add(f.getBlocksCount());
-            pathStats.fileSize.observe(FsUtil.getFileSize(f));
+            pathStats.fileSize.observe(fileSize);
             pathStats.fileConsumedSize.observe(FsUtil.getConsumedFileSize(f));
+            if (null != anomalyDetector) {
+                pathStats.anomalies.observe(anomalyDetector.detect(f, fileSize));
+            }
         }
 
         @Override
-        public void onDirectory(FsImageProto.INodeSection.INode inode, String path) {
+        public void onDirectory(FsImageProto.INodeSection.INode inode, Directory directory) {
             pathStats.sumDirectories.increment();
         }
 
         @Override
-        public void onSymLink(FsImageProto.INodeSection.INode inode, String path) {
+        public void onSymLink(FsImageProto.INodeSection.INode inode, Directory parent) {
             pathStats.sumSymLinks.increment();
         }
+
+        @Override
+        public void onDirectoryChildren(Directory directory, int files, int subdirectories) {
+            if (null != pathStats.directoryFanOut) {
+                pathStats.directoryFanOut.observe(directory, files, subdirectories);
+            }
+        }
     }
 
 }
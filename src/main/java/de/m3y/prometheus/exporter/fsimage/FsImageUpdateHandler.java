@@ -3,7 +3,9 @@ package de.m3y.prometheus.exporter.fsimage;
 import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
 import de.m3y.hadoop.hdfs.hfsa.core.FsImageLoader;
 import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.Predicate;
 import io.prometheus.client.Summary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,10 +13,25 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static de.m3y.prometheus.exporter.fsimage.FsImageCollector.collectIfRequested;
 
 /**
  * Loads FSImage and computes metrics.
@@ -72,37 +89,116 @@ class FsImageUpdateHandler {
             }
         }
 
-        void collect(List<Collector.MetricFamilySamples> mfs) {
-            mfs.addAll(sumDirs.collect());
-            mfs.addAll(sumBlocks.collect());
-            mfs.addAll(sumLinks.collect());
+        boolean isRequested(Predicate<String> sampleNameFilter) {
+            return FsImageCollector.isRequested(sumDirs, sampleNameFilter)
+                    || FsImageCollector.isRequested(sumBlocks, sampleNameFilter)
+                    || FsImageCollector.isRequested(sumLinks, sampleNameFilter);
         }
-    }
 
-    private final FsMetrics overall = new FsMetrics(FsImageCollector.METRIC_PREFIX);
+        void clear() {
+            sumDirs.clear();
+            sumLinks.clear();
+            sumBlocks.clear();
+        }
+
+        void collect(List<Collector.MetricFamilySamples> mfs, Predicate<String> sampleNameFilter) {
+            collectIfRequested(mfs, sumDirs, sampleNameFilter);
+            collectIfRequested(mfs, sumBlocks, sampleNameFilter);
+            collectIfRequested(mfs, sumLinks, sampleNameFilter);
+        }
+    }
 
     // By user
     static final String METRIC_PREFIX_USER = FsImageCollector.METRIC_PREFIX + "user_";
-    private final FsMetrics userFsMetrics = new FsMetrics(FsImageCollector.METRIC_PREFIX + "user_",
-            new String[]{LABEL_USER_NAME});
 
     // By group
     static final String METRIC_PREFIX_GROUP = FsImageCollector.METRIC_PREFIX + "group_";
     static final String LABEL_GROUP_NAME = "group_name";
-    private final FsMetrics groupFsMetrics = new FsMetrics(METRIC_PREFIX_GROUP,
-            new String[]{LABEL_GROUP_NAME});
 
     // By path
     static final String METRIC_PREFIX_PATH = FsImageCollector.METRIC_PREFIX + "path_";
     static final String LABEL_PATH = "path";
-    private final FsMetrics pathFsMetrics = new FsMetrics(METRIC_PREFIX_PATH,
-            new String[]{LABEL_PATH});
 
     // By path set
     static final String METRIC_PREFIX_PATH_SET = FsImageCollector.METRIC_PREFIX + "path_set_";
     static final String LABEL_PATH_SET = "path_set";
-    private final FsMetrics pathSetFsMetrics = new FsMetrics(METRIC_PREFIX_PATH_SET,
-            new String[]{LABEL_PATH_SET});
+
+    /**
+     * Metrics of a computed report, excluding exporter internal metrics.
+     */
+    static class ReportMetrics {
+        private final FsMetrics overall = new FsMetrics(FsImageCollector.METRIC_PREFIX);
+        private final FsMetrics userFsMetrics = new FsMetrics(METRIC_PREFIX_USER,
+                new String[]{LABEL_USER_NAME});
+        private final FsMetrics groupFsMetrics = new FsMetrics(METRIC_PREFIX_GROUP,
+                new String[]{LABEL_GROUP_NAME});
+        private final FsMetrics pathFsMetrics = new FsMetrics(METRIC_PREFIX_PATH,
+                new String[]{LABEL_PATH});
+        private final FsMetrics pathSetFsMetrics = new FsMetrics(METRIC_PREFIX_PATH_SET,
+                new String[]{LABEL_PATH_SET});
+
+        /**
+         * Collects the report MFS requested by sample name filter.
+         *
+         * @param mfs              the sampled metrics
+         * @param report           the computed report
+         * @param sampleNameFilter the sample name filter, or null for all metric families
+         */
+        void collect(List<Collector.MetricFamilySamples> mfs, FsImageReporter.Report report,
+                     Predicate<String> sampleNameFilter) {
+            // Overall stats
+            if (overall.isRequested(sampleNameFilter)) {
+                overall.update(report.overallStats);
+                overall.collect(mfs, sampleNameFilter);
+            }
+
+            // User stats
+            if (userFsMetrics.isRequested(sampleNameFilter)) {
+                for (FsImageReporter.UserStats userStat : report.userStats.values()) {
+                    userFsMetrics.update(userStat, userStat.userName);
+                }
+                userFsMetrics.collect(mfs, sampleNameFilter);
+            }
+
+            // Group stats
+            if (groupFsMetrics.isRequested(sampleNameFilter)) {
+                for (FsImageReporter.GroupStats groupStat : report.groupStats.values()) {
+                    groupFsMetrics.update(groupStat, groupStat.groupName);
+                }
+                groupFsMetrics.collect(mfs, sampleNameFilter);
+            }
+
+            // Path stats
+            if (report.hasPathStats() && pathFsMetrics.isRequested(sampleNameFilter)) {
+                for (FsImageReporter.PathStats pathStat : report.pathStats.values()) {
+                    pathFsMetrics.update(pathStat, pathStat.path);
+                }
+                pathFsMetrics.collect(mfs, sampleNameFilter);
+            }
+
+            // Path set stats
+            if (report.hasPathSetStats() && pathSetFsMetrics.isRequested(sampleNameFilter)) {
+                for (FsImageReporter.PathStats pathStat : report.pathSetStats.values()) {
+                    pathSetFsMetrics.update(pathStat, pathStat.path);
+                }
+                pathSetFsMetrics.collect(mfs, sampleNameFilter);
+            }
+
+            report.collect(mfs, sampleNameFilter);
+        }
+
+        /**
+         * Drops all labeled metrics, e.g. of users or paths not existing anymore.
+         */
+        void clear() {
+            userFsMetrics.clear();
+            groupFsMetrics.clear();
+            pathFsMetrics.clear();
+            pathSetFsMetrics.clear();
+        }
+    }
+
+    private final ReportMetrics reportMetrics = new ReportMetrics();
 
     private final Summary metricLoadDuration = Summary.build()
             .name(FsImageCollector.METRIC_PREFIX + "load_duration_seconds")
@@ -113,131 +209,739 @@ class FsImageUpdateHandler {
     private final Gauge metricLoadSize = Gauge.build()
             .name(FsImageCollector.METRIC_PREFIX + "load_file_size_bytes")
             .help("Size of raw FSImage").create();
+    private final Gauge metricComputePhaseDuration = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "compute_phase_duration_seconds")
+            .labelNames(LABEL_PHASE)
+            .help("Time spent per phase for the current report").create();
+    private final Gauge metricComputePhaseInodeRate = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "compute_phase_inodes_per_second")
+            .labelNames(LABEL_PHASE)
+            .help("Processed inodes per second per phase for the current report").create();
+    private final Gauge metricComputePhaseAllocated = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "compute_phase_allocated_bytes")
+            .labelNames(LABEL_PHASE)
+            .help("Heap bytes allocated by worker threads per phase for the current report,"
+                    + " only if its cycle did not overlap another load or compute cycle").create();
+    private final Gauge metricComputeGcPause = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "compute_gc_pause_seconds")
+            .help("JVM GC pause time overlapping the load and compute cycle of the current report,"
+                    + " or NaN if the cycle overlapped another load or compute cycle").create();
+    private final Gauge metricComputeGcCollections = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "compute_gc_collections")
+            .help("JVM GC collections overlapping the load and compute cycle of the current report,"
+                    + " or NaN if the cycle overlapped another load or compute cycle").create();
+    private final Gauge metricLoadHeapPeak = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "load_heap_peak_bytes")
+            .help("JVM peak heap usage until FSImage of the current report was loaded,"
+                    + " or NaN if the cycle overlapped another load or compute cycle").create();
+    private final Gauge metricComputeHeapPeak = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "compute_heap_peak_bytes")
+            .help("JVM peak heap usage during the load and compute cycle of the current report,"
+                    + " or NaN if the cycle overlapped another load or compute cycle").create();
+    private final Gauge metricPathComputeDuration = Gauge.build()
+            .name(METRIC_PREFIX_PATH + "compute_duration_seconds")
+            .labelNames(LABEL_PATH)
+            .help("Time for computing path stats for the current report").create();
+    private final Gauge metricPathSetComputeDuration = Gauge.build()
+            .name(METRIC_PREFIX_PATH_SET + "compute_duration_seconds")
+            .labelNames(LABEL_PATH_SET)
+            .help("Time for computing path set stats for the current report").create();
 
-    private final ReentrantLock lock = new ReentrantLock();
-    private final Condition reportUpdated = lock.newCondition();
+    /**
+     * Processing phase of the FSImage update handler.
+     */
+    enum Phase {
+        /** No FSImage load or stats computation in progress */
+        IDLE,
+        /** Waiting for other namespaces to finish loading, limited by max concurrent loads */
+        WAITING,
+        /** Loading/parsing FSImage */
+        LOADING,
+        /** Computing stats for loaded FSImage */
+        COMPUTING;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    static final String LABEL_PHASE = "phase";
+    private final Gauge metricReportReady = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "report_ready")
+            .help("Report readiness, with 1 if a computed report is available and 0 otherwise").create();
+    private final Gauge metricPhase = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "report_phase")
+            .labelNames(LABEL_PHASE)
+            .help("Current processing phase, with 1 for the active phase").create();
+    private final Gauge metricPhaseElapsed = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "report_phase_elapsed_seconds")
+            .help("Time spent in current processing phase").create();
+
+    private final Gauge metricReportGeneration = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "report_generation")
+            .help("Generation of the current report, increasing with each started FSImage reload").create();
+    private final Gauge metricReportCompacted = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "report_compacted")
+            .help("Serving a compacted snapshot of the previous report during a low memory reload, with 1 if so")
+            .create();
+    private final Counter metricReportsSuperseded = Counter.build()
+            .name(FsImageCollector.METRIC_PREFIX + "report_superseded_total")
+            .help("Number of computed reports discarded, as a later started reload published first").create();
+
+    // Load and compute cycles of all namespaces, as GC, heap and allocation metrics are process-wide
+    private static int cyclesInProgress;
+    private static long cyclesStarted;
+
+    private final CountDownLatch firstReport = new CountDownLatch(1);
+    // Published report, only ever replaced by a report of a later generation
     private final AtomicReference<FsImageReporter.Report> report = new AtomicReference<>();
-    private final Config config;
+    // Compacted previous report, replacing the published report during a low memory reload
+    private final AtomicReference<ReportSnapshot> reportSnapshot = new AtomicReference<>();
+    private final AtomicLong generations = new AtomicLong();
+    private final AtomicInteger reloadsInFlight = new AtomicInteger();
+    // Orders updates of metrics derived from published reports, never taken by scrapes
+    private final Object publishedMetricsLock = new Object();
+    private final List<Consumer<FsImageReporter.Report>> reportListeners = new CopyOnWriteArrayList<>();
+    private volatile Phase phase = Phase.IDLE;
+    private volatile long phaseStartTime = System.currentTimeMillis();
+    // Replaced when reconfiguring
+    private volatile Config config;
+    // Last changed FSImage, for recomputing the report on config changes
+    private volatile File lastFsImageFile;
+    // Progress of the latest started reload, or null if none started yet
+    private volatile ComputeProgress progress;
+
+    private final ReportHistory reportHistory;
+    private final Semaphore loadPermits;
 
     public FsImageUpdateHandler(Config config) {
+        this(config, null);
+    }
+
+    /**
+     * @param config      the configuration
+     * @param loadPermits optional permits shared by several namespaces for limiting FSImages in memory, or null
+     */
+    FsImageUpdateHandler(Config config, Semaphore loadPermits) {
         this.config = config;
+        this.loadPermits = loadPermits;
+        reportHistory = config.getReportHistorySize() > 0 ? new ReportHistory(config.getReportHistorySize()) : null;
     }
 
     /**
      * Collects MFS.
+     * <p>
+     * Never blocks: if no report has been computed yet, only the readiness and progress metrics get collected.
      *
      * @param mfs the sampled metrics
      * @return true if error occurred
      */
     public boolean collectFsImageSamples(List<Collector.MetricFamilySamples> mfs) {
+        return collectFsImageSamples(mfs, null);
+    }
+
+    /**
+     * Collects MFS requested by sample name filter.
+     * <p>
+     * Skips building any metric family not requested, such as expensive path or user histograms.
+     *
+     * @param mfs              the sampled metrics
+     * @param sampleNameFilter the sample name filter, or null for all metric families
+     * @return true if error occurred
+     */
+    public boolean collectFsImageSamples(List<Collector.MetricFamilySamples> mfs, Predicate<String> sampleNameFilter) {
         FsImageReporter.Report currentReport = getFsImageReport();
-        updateMetricsFromReport(mfs, currentReport);
+        final ReportSnapshot snapshot = null == currentReport ? reportSnapshot.get() : null;
+        if (null != currentReport) {
+            reportMetrics.collect(mfs, currentReport, sampleNameFilter);
+            metricReportGeneration.set(currentReport.generation);
+            collectIfRequested(mfs, metricReportGeneration, sampleNameFilter);
+        } else if (null != snapshot) {
+            snapshot.collect(mfs, sampleNameFilter);
+            metricReportGeneration.set(snapshot.generation);
+            collectIfRequested(mfs, metricReportGeneration, sampleNameFilter);
+        }
+        metricReportCompacted.set(null != snapshot ? 1 : 0);
+        collectIfRequested(mfs, metricReportCompacted, sampleNameFilter);
+        collectIfRequested(mfs, metricReportsSuperseded, sampleNameFilter);
+
+        if (null != reportHistory) {
+            reportHistory.collect(mfs, sampleNameFilter);
+        }
 
         mfs.addAll(metricLoadDuration.collect());
         mfs.addAll(metricVisitDuration.collect());
         mfs.addAll(metricLoadSize.collect());
+        collectIfRequested(mfs, metricComputePhaseDuration, sampleNameFilter);
+        collectIfRequested(mfs, metricComputePhaseInodeRate, sampleNameFilter);
+        collectIfRequested(mfs, metricComputePhaseAllocated, sampleNameFilter);
+        collectIfRequested(mfs, metricComputeGcPause, sampleNameFilter);
+        collectIfRequested(mfs, metricComputeGcCollections, sampleNameFilter);
+        collectIfRequested(mfs, metricLoadHeapPeak, sampleNameFilter);
+        collectIfRequested(mfs, metricComputeHeapPeak, sampleNameFilter);
+        collectIfRequested(mfs, metricPathComputeDuration, sampleNameFilter);
+        collectIfRequested(mfs, metricPathSetComputeDuration, sampleNameFilter);
+        collectProgress(mfs, null != currentReport || null != snapshot);
+
+        return null != currentReport ? currentReport.error : null != snapshot && snapshot.error;
+    }
 
-        return currentReport.error;
+    private void collectProgress(List<Collector.MetricFamilySamples> mfs, boolean ready) {
+        metricReportReady.set(ready ? 1 : 0);
+        final Phase currentPhase = phase;
+        for (Phase p : Phase.values()) {
+            metricPhase.labels(p.label).set(p == currentPhase ? 1 : 0);
+        }
+        metricPhaseElapsed.set((System.currentTimeMillis() - phaseStartTime) / 1000.0);
+
+        mfs.addAll(metricReportReady.collect());
+        mfs.addAll(metricPhase.collect());
+        mfs.addAll(metricPhaseElapsed.collect());
     }
 
-    private void updateMetricsFromReport(List<Collector.MetricFamilySamples> mfs,
-                                         FsImageReporter.Report currentReport) {
-        // Overall stats
-        overall.update(currentReport.overallStats);
-        overall.collect(mfs);
+    private void enterPhase(Phase newPhase) {
+        phaseStartTime = System.currentTimeMillis();
+        phase = newPhase;
+    }
 
-        // User stats
-        for (FsImageReporter.UserStats userStat : currentReport.userStats.values()) {
-            userFsMetrics.update(userStat, userStat.userName);
+    /**
+     * Loads the FSImage and computes and publishes its report.
+     * <p>
+     * Loads and computes without holding any lock, so overlapping reloads may run concurrently
+     * (limited by the optional load permits). Each reload gets a generation number,
+     * and publishes atomically unless a reload of a later generation published first.
+     *
+     * @param fsImageFile the FSImage file
+     */
+    void onFsImageChange(File fsImageFile) {
+        final Config config = this.config; // Same config for whole reload, even if reconfigured meanwhile
+        lastFsImageFile = fsImageFile;
+        final long generation = generations.incrementAndGet();
+        // Created before compacting, for estimating from the previous report
+        final ComputeProgress reloadProgress = new ComputeProgress(fsImageFile, report.get());
+        progress = reloadProgress;
+        ComputeProgress.Status outcome = ComputeProgress.Status.FAILED;
+        FsImageReporter.Report newReport = null;
+        reloadsInFlight.incrementAndGet();
+        try {
+            acquireLoadPermit();
+            final long cycle = beginCycle();
+            try {
+                reloadProgress.checkAborted();
+                if (config.isLowMemoryReloadEnabled()) {
+                    compactReport();
+                }
+
+                // Load new fsimage ...
+                enterPhase(Phase.LOADING);
+                final long gcPauseMillis = gcPauseMillis();
+                final long gcCollections = gcCollections();
+                if (cycle >= 0) {
+                    resetHeapPeakUsage(); // Not resetting peaks of another cycle in progress
+                }
+                final PhaseEvent loadEvent = new PhaseEvent(ComputePhase.LOAD);
+                loadEvent.fsImage = fsImageFile.getAbsolutePath();
+                // Spilling to disk streams the fsimage while computing, instead of loading into heap
+                FsImageData fsImageData = config.isSpillToDiskEnabled() ? null : loadFsImage(fsImageFile);
+                loadEvent.finish();
+                final long loadHeapPeak = heapPeakUsage();
+
+                // ... compute stats
+                enterPhase(Phase.COMPUTING);
+                try (Summary.Timer timer = metricVisitDuration.startTimer()) {
+                    if (null == fsImageData) {
+                        newReport = ExternalMemoryReporter.computeStatsReport(fsImageFile, config, reloadProgress);
+                    } else {
+                        newReport = FsImageReporter.computeStatsReport(fsImageData, fsImageFile, config,
+                                reloadProgress);
+                    }
+                    newReport.generation = generation;
+                    // Inodes known after visiting
+                    newReport.recordPhase(loadEvent, newReport.getInodes());
+                }
+                fsImageData = null; // Not referenced while publishing, for collecting early
+                reloadProgress.checkAborted();
+                final boolean exclusive = isExclusiveCycle(cycle);
+                if (publish(newReport)) {
+                    outcome = ComputeProgress.Status.COMPLETED;
+                    synchronized (publishedMetricsLock) {
+                        // Skip, if already superseded by a later report
+                        if (report.get() == newReport) {
+                            updateComputeMetrics(newReport, exclusive);
+                            metricLoadHeapPeak.set(exclusive ? loadHeapPeak : Double.NaN);
+                            metricComputeHeapPeak.set(exclusive ? heapPeakUsage() : Double.NaN);
+                            metricComputeGcPause.set(exclusive
+                                    ? (gcPauseMillis() - gcPauseMillis) / 1000.0 : Double.NaN);
+                            metricComputeGcCollections.set(exclusive
+                                    ? gcCollections() - gcCollections : Double.NaN);
+                            if (null != reportHistory) {
+                                reportHistory.add(newReport, fsImageFile.lastModified());
+                            }
+                        }
+                    }
+                } else {
+                    LOGGER.info("Discarding report of generation {} for {}, superseded by generation {}",
+                            generation, fsImageFile, publishedGeneration());
+                    metricReportsSuperseded.inc();
+                    newReport = null;
+                }
+            } finally {
+                endCycle();
+                releaseLoadPermit();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while waiting for loading FSImage {}", fsImageFile);
+        } catch (CancellationException e) {
+            LOGGER.warn("Aborted loading FSImage {} in phase {}, keeping {}",
+                    fsImageFile, reloadProgress.getPhase().label, keptReport());
+            outcome = ComputeProgress.Status.ABORTED;
+        } catch (Exception e) {
+            LOGGER.error("Can not load FSImage {}, keeping {}", fsImageFile, keptReport(), e);
+        } finally {
+            reloadProgress.finish(outcome);
+            if (reloadsInFlight.decrementAndGet() == 0) {
+                enterPhase(Phase.IDLE);
+            }
         }
-        userFsMetrics.collect(mfs);
 
-        // Group stats
-        for (FsImageReporter.GroupStats groupStat : currentReport.groupStats.values()) {
-            groupFsMetrics.update(groupStat, groupStat.groupName);
+        if (null != newReport) {
+            notifyReportListenersIfPublished(newReport);
+            firstReport.countDown(); // Notify any waits
         }
-        groupFsMetrics.collect(mfs);
+    }
 
-        // Path stats
-        if (currentReport.hasPathStats()) {
-            for (FsImageReporter.PathStats pathStat : currentReport.pathStats.values()) {
-                pathFsMetrics.update(pathStat, pathStat.path);
+    /**
+     * Applies a changed config, recomputing only the report parts affected by the change.
+     * <p>
+     * Recomputes changed path and path set stats from the namespace index of the current report,
+     * sharing overall, group and user stats. Recomputes the whole report from the last FSImage instead,
+     * if other report options changed, or if no namespace index is retained or covers all configured paths.
+     *
+     * @param newConfig the changed config
+     */
+    void reconfigure(Config newConfig) {
+        final Config oldConfig = config;
+        config = newConfig;
+        if (!isSameStatsConfig(oldConfig, newConfig)) {
+            LOGGER.info("Recomputing report of {}, as changed config requires", lastFsImageFile);
+            recomputeReport();
+            return;
+        }
+        final boolean pathStatsChanged = !isSamePathStatsConfig(oldConfig, newConfig);
+        final boolean pathSetStatsChanged = !isSamePathSetStatsConfig(oldConfig, newConfig);
+        if (!pathStatsChanged && !pathSetStatsChanged) {
+            LOGGER.info("Applied changed config, not affecting the report");
+            return;
+        }
+
+        final FsImageReporter.Report currentReport = report.get();
+        if (null != currentReport) {
+            final long generation = generations.incrementAndGet();
+            reloadsInFlight.incrementAndGet();
+            enterPhase(Phase.COMPUTING);
+            final long cycle = beginCycle();
+            try {
+                final long start = System.currentTimeMillis();
+                final FsImageReporter.Report newReport = FsImageReporter.recomputePathStats(currentReport, newConfig,
+                        pathStatsChanged, pathSetStatsChanged);
+                if (null != newReport) {
+                    newReport.generation = generation;
+                    final boolean exclusive = isExclusiveCycle(cycle);
+                    if (publish(newReport)) {
+                        synchronized (publishedMetricsLock) {
+                            if (report.get() == newReport) {
+                                updateComputeMetrics(newReport, exclusive);
+                            }
+                        }
+                        LOGGER.info("Recomputed {}{} from namespace index in {}ms",
+                                pathStatsChanged ? "path stats " : "", pathSetStatsChanged ? "path set stats " : "",
+                                System.currentTimeMillis() - start);
+                        notifyReportListenersIfPublished(newReport);
+                    }
+                    return;
+                }
+                LOGGER.info("Recomputing report of {}, as namespace index does not cover changed paths",
+                        lastFsImageFile);
+            } catch (IOException e) {
+                LOGGER.warn("Can not recompute path stats from namespace index, recomputing report of {}",
+                        lastFsImageFile, e);
+            } finally {
+                endCycle();
+                if (reloadsInFlight.decrementAndGet() == 0) {
+                    enterPhase(Phase.IDLE);
+                }
             }
-            pathFsMetrics.collect(mfs);
+        } else if (null != reportSnapshot.get()) {
+            LOGGER.info("Recomputing report of {}, as compacted report has no namespace index", lastFsImageFile);
+        }
+        recomputeReport();
+    }
+
+    /**
+     * @return the description of the report kept after an aborted or failed reload
+     */
+    private String keptReport() {
+        return null == report.get() && null != reportSnapshot.get()
+                ? "compacted previous report until next successful reload" : "previous report";
+    }
+
+    /**
+     * Requests aborting the latest started reload, keeping the previous report.
+     * <p>
+     * Aborts computing with the next visited inode or phase, and loading once the FSImage has been loaded.
+     * The aborted FSImage only gets reloaded when forced or when a newer FSImage appears.
+     * With low memory reloads, only the compacted previous report is kept, see {@link #compactReport()}.
+     *
+     * @return true, if a reload was running
+     */
+    boolean abort() {
+        final ComputeProgress currentProgress = progress;
+        return null != currentProgress && currentProgress.abort();
+    }
+
+    /**
+     * @return the progress of the latest started reload, or null if none started yet
+     */
+    ComputeProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return the current processing phase
+     */
+    Phase getPhase() {
+        return phase;
+    }
+
+    private void recomputeReport() {
+        final File fsImageFile = lastFsImageFile;
+        if (null != fsImageFile) {
+            onFsImageChange(fsImageFile);
         }
+    }
 
-        // Path set stats
-        if (currentReport.hasPathSetStats()) {
-            for (FsImageReporter.PathStats pathStat : currentReport.pathSetStats.values()) {
-                pathSetFsMetrics.update(pathStat, pathStat.path);
+    /**
+     * @return true, if configs result in same overall, group and user stats and namespace index
+     */
+    static boolean isSameStatsConfig(Config a, Config b) {
+        return Objects.equals(a.getFileSizeDistributionBuckets(), b.getFileSizeDistributionBuckets())
+                && a.isSkipFileDistributionForUserStats() == b.isSkipFileDistributionForUserStats()
+                && a.isSkipFileDistributionForGroupStats() == b.isSkipFileDistributionForGroupStats()
+                && a.isNamespaceIndexEnabled() == b.isNamespaceIndexEnabled()
+                && a.getNamespaceIndexMaxDepth() == b.getNamespaceIndexMaxDepth()
+                && a.isDirectoryFanOutEnabled() == b.isDirectoryFanOutEnabled()
+                && a.getDirectoryFanOutTopK() == b.getDirectoryFanOutTopK()
+                && a.isAnomalyDetectionEnabled() == b.isAnomalyDetectionEnabled()
+                && Objects.equals(a.getAnomalySmallFileSize(), b.getAnomalySmallFileSize())
+                && a.getAnomalyExpectedReplication() == b.getAnomalyExpectedReplication()
+                && a.getAnomalyLastBlockFillPercent() == b.getAnomalyLastBlockFillPercent()
+                && a.isFileExtensionStatsEnabled() == b.isFileExtensionStatsEnabled()
+                && Objects.equals(a.getFileExtensions(), b.getFileExtensions())
+                && a.getFileExtensionTopK() == b.getFileExtensionTopK();
+    }
+
+    static boolean isSamePathStatsConfig(Config a, Config b) {
+        return Objects.equals(a.getPaths(), b.getPaths())
+                && a.isSkipFileDistributionForPathStats() == b.isSkipFileDistributionForPathStats();
+    }
+
+    static boolean isSamePathSetStatsConfig(Config a, Config b) {
+        return Objects.equals(a.getPathSets(), b.getPathSets())
+                && a.isSkipFileDistributionForPathSetStats() == b.isSkipFileDistributionForPathSetStats();
+    }
+
+    /**
+     * Publishes the report via a single atomic swap, unless a report of a later generation is already published.
+     *
+     * @param newReport the report
+     * @return true, if published
+     */
+    boolean publish(FsImageReporter.Report newReport) {
+        FsImageReporter.Report currentReport;
+        ReportSnapshot snapshot;
+        do {
+            currentReport = report.get();
+            snapshot = reportSnapshot.get();
+            if (null != currentReport ? currentReport.generation > newReport.generation
+                    : null != snapshot && snapshot.generation > newReport.generation) {
+                return false;
             }
-            pathSetFsMetrics.collect(mfs);
+        } while (!report.compareAndSet(currentReport, newReport));
+        if (null != snapshot) {
+            reportSnapshot.compareAndSet(snapshot, null); // Unless compacted again meanwhile
         }
+        return true;
+    }
 
-        currentReport.collect(mfs);
+    /**
+     * Replaces the published report by a compacted snapshot of its metric samples, before loading the next FSImage.
+     * <p>
+     * Drops the report structures, such as per user histograms and the namespace index, so that the heap only
+     * holds one report at a time. Scrapes get served from the snapshot until the next report is published,
+     * also if the reload fails or gets aborted. Until then, the namespace index is unavailable and
+     * a changed config recomputes the whole report.
+     */
+    void compactReport() {
+        final FsImageReporter.Report currentReport = report.get();
+        if (null == currentReport) {
+            return;
+        }
+        final List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        reportMetrics.collect(mfs, currentReport, null);
+        reportMetrics.clear(); // Labeled children get recreated by the next collect
+        // Publish snapshot before dropping the report, for never serving an empty report
+        reportSnapshot.set(new ReportSnapshot(currentReport.generation, currentReport.error, mfs));
+        if (report.compareAndSet(currentReport, null)) {
+            LOGGER.info("Compacted report of generation {} into {} metric families before loading",
+                    currentReport.generation, mfs.size());
+        }
     }
 
+    private long publishedGeneration() {
+        final FsImageReporter.Report currentReport = report.get();
+        if (null != currentReport) {
+            return currentReport.generation;
+        }
+        final ReportSnapshot snapshot = reportSnapshot.get();
+        return null != snapshot ? snapshot.generation : 0;
+    }
 
-    void onFsImageChange(File fsImageFile) {
-        try {
-            lock.lock();
+    /**
+     * Immutable metric samples of a compacted report.
+     */
+    static class ReportSnapshot {
+        final long generation;
+        final boolean error;
+        private final List<Collector.MetricFamilySamples> mfs;
+
+        ReportSnapshot(long generation, boolean error, List<Collector.MetricFamilySamples> mfs) {
+            this.generation = generation;
+            this.error = error;
+            this.mfs = List.copyOf(mfs);
+        }
 
-            // Load new fsimage ...
-            FsImageData fsImageData = loadFsImage(fsImageFile);
+        void collect(List<Collector.MetricFamilySamples> mfs, Predicate<String> sampleNameFilter) {
+            for (Collector.MetricFamilySamples family : this.mfs) {
+                if (null == sampleNameFilter || isRequested(family, sampleNameFilter)) {
+                    mfs.add(family);
+                }
+            }
+        }
 
-            // ... compute stats
-            try (Summary.Timer timer = metricVisitDuration.startTimer()) {
-                report.set(FsImageReporter.computeStatsReport(fsImageData, config));
+        private static boolean isRequested(Collector.MetricFamilySamples family, Predicate<String> sampleNameFilter) {
+            for (String name : family.getNames()) {
+                if (sampleNameFilter.test(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param newReport the published report
+     * @param exclusive true, if its cycle did not overlap another cycle, so that allocations can be attributed
+     */
+    private void updateComputeMetrics(FsImageReporter.Report newReport, boolean exclusive) {
+        for (ComputePhase phase : ComputePhase.values()) {
+            final double seconds = newReport.phaseDurationNanos.get(phase).sum() / 1e9;
+            metricComputePhaseDuration.labels(phase.label).set(seconds);
+            final long inodes = newReport.phaseInodes.get(phase).sum();
+            if (inodes > 0 && seconds > 0) {
+                metricComputePhaseInodeRate.labels(phase.label).set(inodes / seconds);
+            } else {
+                metricComputePhaseInodeRate.remove(phase.label);
+            }
+            final long allocatedBytes = newReport.phaseAllocatedBytes.get(phase).sum();
+            if (exclusive && allocatedBytes > 0) {
+                metricComputePhaseAllocated.labels(phase.label).set(allocatedBytes);
+            } else {
+                metricComputePhaseAllocated.remove(phase.label);
+            }
+        }
+
+        metricPathComputeDuration.clear();
+        for (FsImageReporter.PathStats pathStat : newReport.pathStats.values()) {
+            metricPathComputeDuration.labels(pathStat.path).set(pathStat.computeDurationNanos / 1e9);
+        }
+        metricPathSetComputeDuration.clear();
+        for (FsImageReporter.PathStats pathStat : newReport.pathSetStats.values()) {
+            metricPathSetComputeDuration.labels(pathStat.path).set(pathStat.computeDurationNanos / 1e9);
+        }
+    }
+
+    /**
+     * Starts a load or compute cycle.
+     *
+     * @return the cycle, or -1 if another cycle of any namespace is already in progress
+     */
+    static synchronized long beginCycle() {
+        cyclesInProgress++;
+        cyclesStarted++;
+        return cyclesInProgress == 1 ? cyclesStarted : -1;
+    }
+
+    /**
+     * @param cycle the cycle, as returned by {@link #beginCycle()}
+     * @return true, if no other cycle ran while the cycle was in progress
+     */
+    static synchronized boolean isExclusiveCycle(long cycle) {
+        return cycle >= 0 && cyclesStarted == cycle;
+    }
+
+    static synchronized void endCycle() {
+        cyclesInProgress--;
+    }
+
+    /**
+     * Sums up GC time of stop-the-world collectors, skipping concurrent cycles such as 'ZGC Cycles'.
+     */
+    private static long gcPauseMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (isPausingCollector(gc)) {
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+        }
+        return millis;
+    }
+
+    private static long gcCollections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (isPausingCollector(gc)) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+        }
+        return count;
+    }
+
+    private static boolean isPausingCollector(GarbageCollectorMXBean gc) {
+        return !gc.getName().contains("Cycles") && !gc.getName().contains("Concurrent");
+    }
+
+    private static void resetHeapPeakUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Sums up peak usage of heap memory pools, an upper bound as pools peak at different times.
+     */
+    private static long heapPeakUsage() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    private void acquireLoadPermit() throws InterruptedException {
+        if (null != loadPermits) {
+            enterPhase(Phase.WAITING);
+            loadPermits.acquire();
+        }
+    }
+
+    private void releaseLoadPermit() {
+        if (null != loadPermits) {
+            loadPermits.release();
+        }
+    }
+
+    /**
+     * Notifies the report listeners, unless a later report got published meanwhile.
+     * <p>
+     * Notifies while holding the lock, so that listeners of a later report run after listeners of this report.
+     * A report compacted by a later low memory reload still counts as published.
+     *
+     * @param newReport the published report
+     */
+    void notifyReportListenersIfPublished(FsImageReporter.Report newReport) {
+        synchronized (publishedMetricsLock) {
+            if (publishedGeneration() != newReport.generation) {
+                LOGGER.info("Not notifying report listeners of generation {}, superseded by generation {}",
+                        newReport.generation, publishedGeneration());
+                return;
+            }
+            for (Consumer<FsImageReporter.Report> reportListener : reportListeners) {
+                try {
+                    reportListener.accept(newReport);
+                } catch (Exception e) {
+                    LOGGER.error("Report listener {} failed", reportListener, e);
+                }
             }
-            reportUpdated.signalAll(); // Notify any waits
-        } catch (Exception e) {
-            LOGGER.error("Can not load FSImage {}", fsImageFile, e);
-        } finally {
-            lock.unlock();
         }
     }
 
+    /**
+     * Adds a listener invoked once for each computed report, e.g. for pushing metrics instead of being scraped.
+     * <p>
+     * Listeners run in the background thread computing the report, after the report became current.
+     * Listeners are not notified of a report already superseded by a later report.
+     *
+     * @param reportListener the listener
+     */
+    void addReportListener(Consumer<FsImageReporter.Report> reportListener) {
+        reportListeners.add(reportListener);
+    }
+
     private FsImageData loadFsImage(File fsImageFile) throws IOException {
         metricLoadSize.set(fsImageFile.length());
+        try (Summary.Timer timer = metricLoadDuration.startTimer()) {
+            return load(fsImageFile);
+        }
+    }
 
+    /**
+     * Loads and parses a FSImage file.
+     *
+     * @param fsImageFile the FSImage file
+     * @return the loaded FSImage
+     * @throws IOException on error
+     */
+    static FsImageData load(File fsImageFile) throws IOException {
         try (RandomAccessFile raFile = new RandomAccessFile(fsImageFile, "r")) {
             long time = System.currentTimeMillis();
-            try (Summary.Timer timer = metricLoadDuration.startTimer()) {
-                final FsImageData fsImageData = new FsImageLoader.Builder()
-                        .parallel().build()
-                        .load(raFile);
-                if (LOGGER.isInfoEnabled()) {
-                    LOGGER.info("Loaded {} with {}MiB in {}ms", fsImageFile.getAbsoluteFile(),
-                            String.format("%.1f", fsImageFile.length() / 1024.0 / 1024.0),
-                            System.currentTimeMillis() - time);
-                }
-                return fsImageData;
+            final FsImageData fsImageData = new FsImageLoader.Builder()
+                    .parallel().build()
+                    .load(raFile);
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Loaded {} with {}MiB in {}ms", fsImageFile.getAbsoluteFile(),
+                        String.format("%.1f", fsImageFile.length() / 1024.0 / 1024.0),
+                        System.currentTimeMillis() - time);
             }
+            return fsImageData;
         }
     }
 
     /**
      * Gets the current report.
      * <p>
-     * Blocks if the current report has never been computed before and is still pending / in computation
+     * Never blocks, even if a new report is currently in computation.
      *
-     * @return the current FSImage report, or null on computation error
+     * @return the current FSImage report, or null if no report has been computed yet
      * @see #onFsImageChange(File)
      */
     FsImageReporter.Report getFsImageReport() {
-        // Use the current report if exists, otherwise wait
-        if (null == report.get()) {
-            // Blocks till there is a computed report
-            lock.lock();
-            try {
-                while (null == report.get()) {
-                    reportUpdated.awaitUninterruptibly();
-                }
-            } finally {
-                lock.unlock();
-            }
-        }
-
         return report.get();
     }
+
+    /**
+     * Waits for the first computed report.
+     * <p>
+     * Not for use by scrapes, which should never block.
+     *
+     * @param timeout the max time to wait
+     * @param unit    the time unit of the timeout
+     * @return true if a report is available, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitFsImageReport(long timeout, TimeUnit unit) throws InterruptedException {
+        return firstReport.await(timeout, unit);
+    }
 }
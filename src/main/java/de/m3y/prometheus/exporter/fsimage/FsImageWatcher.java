@@ -70,6 +70,14 @@ public class FsImageWatcher implements Runnable {
         }
     }
 
+    /**
+     * Rescans and triggers the update handler, even if the latest fsimage did not change.
+     */
+    public void reload() {
+        latestFsImageFile = null;
+        run();
+    }
+
     static File findLatestFSImageFile(File fsImageDir) {
         // Check dir
         if (!fsImageDir.exists()) {
@@ -86,4 +94,22 @@ public class FsImageWatcher implements Runnable {
 
         return files[0];  // Youngest fsimage with the highest increment counter
     }
+
+    /**
+     * Gets the transaction id of a fsimage, which is the increment counter of its file name.
+     *
+     * @param fsImageFile the fsimage file
+     * @return the transaction id, or -1 if not a fsimage file name
+     */
+    static long getTxId(File fsImageFile) {
+        final String name = fsImageFile.getName();
+        if (FSImageFilenameFilter.FS_IMAGE_PATTERN.matcher(name).matches()) {
+            try {
+                return Long.parseLong(name.substring(name.indexOf('_') + 1));
+            } catch (NumberFormatException e) {
+                return -1; // Exceeds long
+            }
+        }
+        return -1;
+    }
 }
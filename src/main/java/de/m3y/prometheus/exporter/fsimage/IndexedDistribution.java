@@ -0,0 +1,116 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Labeled file size histogram or summary, derived from the per bucket file counts and sizes of the namespace index.
+ * <p>
+ * Adds the counts and sums of a whole bucket at once, as the simpleclient histogram and summary only
+ * observe single values. Collects the samples from the non-cumulative bucket counts,
+ * like {@link DirectoryFanOut}.
+ */
+class IndexedDistribution extends Collector implements Collector.Describable {
+    private final String name;
+    private final String help;
+    private final String labelName;
+    // Upper bounds of the histogram buckets excluding +Inf, or null for a summary
+    private final double[] buckets;
+    private final Map<String, Child> children = new ConcurrentHashMap<>();
+
+    /**
+     * @param name      the metric family name
+     * @param help      the help text
+     * @param labelName the label name
+     * @param buckets   the upper bounds of the histogram buckets excluding +Inf, or null for a summary
+     */
+    IndexedDistribution(String name, String help, String labelName, double[] buckets) {
+        this.name = name;
+        this.help = help;
+        this.labelName = labelName;
+        this.buckets = null == buckets ? null : buckets.clone();
+    }
+
+    /**
+     * Non-cumulative file counts and sum of file sizes for a label value.
+     */
+    class Child implements FsImageReporter.MetricAdapter {
+        // Non-cumulative counts per bucket, with last bucket for +Inf
+        private final AtomicLongArray counts = new AtomicLongArray(null == buckets ? 1 : buckets.length + 1);
+        private final LongAdder sum = new LongAdder();
+
+        @Override
+        public void observe(long metricValue) {
+            observeBucket(null == buckets ? 0 : NamespaceIndex.bucket(buckets, metricValue), 1, metricValue);
+        }
+
+        /**
+         * Observes the values of a histogram bucket at once.
+         *
+         * @param bucket the bucket index, matching the namespace index buckets
+         * @param count  the number of values
+         * @param sum    the sum of values
+         */
+        void observeBucket(int bucket, long count, long sum) {
+            counts.addAndGet(null == buckets ? 0 : bucket, count);
+            this.sum.add(sum);
+        }
+
+        @Override
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        @Override
+        public double sum() {
+            return sum.sum();
+        }
+    }
+
+    /**
+     * @param labelValue the label value
+     * @return the existing or created child
+     */
+    Child labels(String labelValue) {
+        return children.computeIfAbsent(labelValue, l -> new Child());
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<String> labelNames = List.of(labelName);
+        final List<String> bucketLabelNames = List.of(labelName, "le");
+        final List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        for (Map.Entry<String, Child> entry : children.entrySet()) {
+            final List<String> labelValues = List.of(entry.getKey());
+            final Child child = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < child.counts.length(); i++) {
+                cumulative += child.counts.get(i);
+                if (null != buckets) {
+                    samples.add(new MetricFamilySamples.Sample(name + "_bucket", bucketLabelNames,
+                            List.of(entry.getKey(), i < buckets.length ? doubleToGoString(buckets[i]) : "+Inf"),
+                            cumulative));
+                }
+            }
+            samples.add(new MetricFamilySamples.Sample(name + "_count", labelNames, labelValues, cumulative));
+            samples.add(new MetricFamilySamples.Sample(name + "_sum", labelNames, labelValues, child.sum()));
+        }
+        return List.of(new MetricFamilySamples(name, null == buckets ? Type.SUMMARY : Type.HISTOGRAM, help, samples));
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return List.of(new MetricFamilySamples(name, null == buckets ? Type.SUMMARY : Type.HISTOGRAM, help,
+                List.of()));
+    }
+}
@@ -0,0 +1,217 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import de.m3y.hadoop.hdfs.hfsa.util.FsUtil;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
+
+/**
+ * Visits the FSImage inode tree by inode id, without building a path string per visited directory.
+ * <p>
+ * Callbacks get the parent {@link Directory} context, carrying inode id and depth,
+ * and resolve the path only if required.
+ */
+interface InodeVisitor {
+    /**
+     * @param inode  the file inode
+     * @param parent the parent directory
+     */
+    void onFile(FsImageProto.INodeSection.INode inode, Directory parent);
+
+    /**
+     * @param inode     the directory inode
+     * @param directory the visited directory, with {@link Directory#getParent()} being null for the start directory
+     */
+    void onDirectory(FsImageProto.INodeSection.INode inode, Directory directory);
+
+    /**
+     * @param inode  the symlink inode
+     * @param parent the parent directory
+     */
+    void onSymLink(FsImageProto.INodeSection.INode inode, Directory parent);
+
+    /**
+     * Invoked after visiting all children of a directory, counted while iterating its directory entries.
+     *
+     * @param directory      the visited directory
+     * @param files          the number of direct child files
+     * @param subdirectories the number of direct child directories
+     */
+    default void onDirectoryChildren(Directory directory, int files, int subdirectories) {
+        // Nothing by default
+    }
+
+    /**
+     * Traversal context of a visited directory, created once per directory.
+     */
+    final class Directory {
+        private final long id;
+        private final Directory parent;
+        private final int depth;
+        private final ByteString name;
+        private String path; // Resolved lazily
+
+        private Directory(long id, String path) {
+            this.id = id;
+            this.parent = null;
+            this.depth = NamespaceIndex.depth(path);
+            this.name = ByteString.EMPTY;
+            this.path = path;
+        }
+
+        private Directory(long id, Directory parent, ByteString name) {
+            this.id = id;
+            this.parent = parent;
+            this.depth = parent.depth + 1;
+            this.name = name;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        /**
+         * @return the parent directory, or null for the start directory of the traversal
+         */
+        Directory getParent() {
+            return parent;
+        }
+
+        /**
+         * @return the number of path elements, with root being 0
+         */
+        int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @param maxDepth the max depth
+         * @return this directory, or the ancestor at max depth if deeper
+         */
+        Directory ancestor(int maxDepth) {
+            Directory directory = this;
+            while (directory.depth > maxDepth && null != directory.parent) {
+                directory = directory.parent;
+            }
+            return directory;
+        }
+
+        /**
+         * @return the absolute path, resolved and cached on first access
+         */
+        String getPath() {
+            String p = path;
+            if (null == p) {
+                final String parentPath = parent.getPath();
+                p = (NamespaceIndex.ROOT.equals(parentPath) ? NamespaceIndex.ROOT : parentPath + '/')
+                        + name.toStringUtf8();
+                path = p; // Benign race, as strings are immutable
+            }
+            return p;
+        }
+
+        @Override
+        public String toString() {
+            return getPath();
+        }
+    }
+
+    /**
+     * Traverses the inode tree, optionally in parallel across the children of the start directory.
+     */
+    class Builder {
+        // Inode kinds
+        private static final int FILE = 0;
+        private static final int DIRECTORY = 1;
+        private static final int SYMLINK = 2;
+        private static final int KINDS = 3;
+
+        private boolean parallel;
+        private ComputeProgress progress;
+
+        Builder parallel() {
+            parallel = true;
+            return this;
+        }
+
+        /**
+         * @param progress the progress counting visited inodes and aborting on request, or null
+         * @return this builder
+         */
+        Builder progress(ComputeProgress progress) {
+            this.progress = progress;
+            return this;
+        }
+
+        void visit(FsImageData fsImageData, InodeVisitor visitor) throws IOException {
+            visit(fsImageData, visitor, NamespaceIndex.ROOT);
+        }
+
+        void visit(FsImageData fsImageData, InodeVisitor visitor, String path) throws IOException {
+            final FsImageProto.INodeSection.INode inode = fsImageData.getINodeFromPath(path);
+            final Directory directory = new Directory(inode.getId(), path);
+            if (null != progress) {
+                progress.onInode();
+            }
+            visitor.onDirectory(inode, directory);
+            final long[] childIds = fsImageData.getChildINodeIds(inode.getId());
+            final AtomicIntegerArray kinds = new AtomicIntegerArray(KINDS);
+            try {
+                if (parallel) {
+                    Arrays.stream(childIds).parallel()
+                            .forEach(id -> kinds.incrementAndGet(visit(fsImageData, visitor, id, directory)));
+                } else {
+                    for (long id : childIds) {
+                        kinds.incrementAndGet(visit(fsImageData, visitor, id, directory));
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            visitor.onDirectoryChildren(directory, kinds.get(FILE), kinds.get(DIRECTORY));
+        }
+
+        /**
+         * @return the kind of the visited inode
+         */
+        private int visit(FsImageData fsImageData, InodeVisitor visitor, long id, Directory parent) {
+            final FsImageProto.INodeSection.INode inode;
+            try {
+                inode = fsImageData.getINode(id);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (null != progress) {
+                progress.onInode();
+            }
+            if (FsUtil.isFile(inode)) {
+                visitor.onFile(inode, parent);
+                return FILE;
+            } else if (FsUtil.isSymlink(inode)) {
+                visitor.onSymLink(inode, parent);
+                return SYMLINK;
+            } else {
+                final Directory directory = new Directory(id, parent, inode.getName());
+                visitor.onDirectory(inode, directory);
+                // Primitive counters, as most directories have few children
+                int files = 0;
+                int subdirectories = 0;
+                for (long childId : fsImageData.getChildINodeIds(id)) {
+                    final int kind = visit(fsImageData, visitor, childId, directory);
+                    if (kind == FILE) {
+                        files++;
+                    } else if (kind == DIRECTORY) {
+                        subdirectories++;
+                    }
+                }
+                visitor.onDirectoryChildren(directory, files, subdirectories);
+                return DIRECTORY;
+            }
+        }
+    }
+}
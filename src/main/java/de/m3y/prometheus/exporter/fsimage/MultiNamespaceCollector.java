@@ -0,0 +1,179 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Predicate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Exports several namespaces in one process, e.g. of federated NameNodes, adding a cluster label to all metrics.
+ * <p>
+ * Namespaces share load permits, so that at most the configured max concurrent loads FSImages are in memory at once.
+ */
+class MultiNamespaceCollector extends Collector implements Collector.Describable {
+    static final String LABEL_CLUSTER = "cluster";
+    static final String DEFAULT_CLUSTER = "";
+
+    private final Map<String, FsImageCollector> collectors = new LinkedHashMap<>();
+
+    /**
+     * Creates the collectors of all namespaces, without starting the background FSImage parsing.
+     *
+     * @param config         the configuration
+     * @param reportListener an optional listener invoked after each computed report, or null
+     */
+    MultiNamespaceCollector(Config config, Consumer<FsImageReporter.Report> reportListener) {
+        validate(config);
+        final Semaphore loadPermits = new Semaphore(config.getMaxConcurrentLoads(), true);
+        for (Config namespace : config.getNamespaces()) {
+            collectors.put(namespace.getCluster(), new FsImageCollector(namespace, reportListener, loadPermits));
+        }
+    }
+
+    static void validate(Config config) {
+        if (null != config.getFsImagePath()) {
+            throw new IllegalArgumentException("Configure either fsImagePath or namespaces, but not both");
+        }
+        if (config.getMaxConcurrentLoads() < 1) {
+            throw new IllegalArgumentException("Expected maxConcurrentLoads >= 1, but got " + config.getMaxConcurrentLoads());
+        }
+        final Config first = config.getNamespaces().get(0);
+        final List<String> clusters = new ArrayList<>();
+        for (Config namespace : config.getNamespaces()) {
+            final String cluster = namespace.getCluster();
+            if (null == cluster || cluster.isEmpty()) {
+                throw new IllegalArgumentException("Please set the cluster name for namespace with fsImagePath "
+                        + namespace.getFsImagePath());
+            }
+            if (clusters.contains(cluster)) {
+                throw new IllegalArgumentException("Duplicate cluster name " + cluster);
+            }
+            clusters.add(cluster);
+            // Same metric families must have same metric type (histogram or summary) for all namespaces
+            if (namespace.isSkipFileDistributionForUserStats() != first.isSkipFileDistributionForUserStats()
+                    || namespace.isSkipFileDistributionForGroupStats() != first.isSkipFileDistributionForGroupStats()
+                    || namespace.isSkipFileDistributionForPathStats() != first.isSkipFileDistributionForPathStats()
+                    || namespace.isSkipFileDistributionForPathSetStats() != first.isSkipFileDistributionForPathSetStats()) {
+                throw new IllegalArgumentException("Expected same skipFileDistribution* options for all namespaces, "
+                        + "but cluster " + cluster + " differs from cluster " + first.getCluster());
+            }
+        }
+    }
+
+    /**
+     * Starts the background FSImage parsing of all namespaces.
+     *
+     * @return this collector
+     */
+    MultiNamespaceCollector start() {
+        collectors.values().forEach(FsImageCollector::start);
+        return this;
+    }
+
+    /**
+     * @return the FSImage collectors by cluster name
+     */
+    Map<String, FsImageCollector> getCollectors() {
+        return Collections.unmodifiableMap(collectors);
+    }
+
+    /**
+     * Creates and registers the collectors for the configured namespaces,
+     * or a single collector without cluster label if no namespaces are configured.
+     * <p>
+     * Starts the background FSImage parsing after registering, so that report listeners
+     * rendering the registry always see the metrics of the computed report.
+     *
+     * @param config         the configuration
+     * @param reportListener an optional listener invoked after each computed report, or null
+     * @param registry       the registry
+     * @return the FSImage collectors by cluster name
+     */
+    static Map<String, FsImageCollector> register(Config config, Consumer<FsImageReporter.Report> reportListener,
+                                                  CollectorRegistry registry) {
+        if (config.hasNamespaces()) {
+            final MultiNamespaceCollector multiNamespaceCollector = new MultiNamespaceCollector(config, reportListener);
+            multiNamespaceCollector.register(registry);
+            return multiNamespaceCollector.start().getCollectors();
+        }
+
+        final FsImageCollector fsImageCollector = new FsImageCollector(config, reportListener, null);
+        fsImageCollector.register(registry);
+        fsImageCollector.start();
+        return Map.of(Objects.toString(config.getCluster(), DEFAULT_CLUSTER), fsImageCollector);
+    }
+
+    /**
+     * Waits for the first computed report of all collectors.
+     *
+     * @param collectors the collectors
+     * @param timeout    the max time to wait
+     * @param unit       the time unit of the timeout
+     * @return true if a report is available for all collectors, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static boolean awaitFsImageReports(Collection<FsImageCollector> collectors, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (FsImageCollector collector : collectors) {
+            if (!collector.awaitFsImageReport(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Describes no metric families, as families depend on the computed reports.
+     *
+     * @return an empty list
+     * @see FsImageCollector#describe()
+     */
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        return collect(null);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+        // Merge same metric families of all namespaces
+        final Map<String, MetricFamilySamples> families = new LinkedHashMap<>();
+        for (Map.Entry<String, FsImageCollector> entry : collectors.entrySet()) {
+            for (MetricFamilySamples family : entry.getValue().collect(sampleNameFilter)) {
+                final List<MetricFamilySamples.Sample> samples = families.computeIfAbsent(family.name,
+                        name -> new MetricFamilySamples(name, family.unit, family.type, family.help, new ArrayList<>())
+                ).samples;
+                for (MetricFamilySamples.Sample sample : family.samples) {
+                    samples.add(withCluster(sample, entry.getKey()));
+                }
+            }
+        }
+        return new ArrayList<>(families.values());
+    }
+
+    static MetricFamilySamples.Sample withCluster(MetricFamilySamples.Sample sample, String cluster) {
+        final List<String> labelNames = new ArrayList<>(sample.labelNames.size() + 1);
+        labelNames.add(LABEL_CLUSTER);
+        labelNames.addAll(sample.labelNames);
+        final List<String> labelValues = new ArrayList<>(sample.labelValues.size() + 1);
+        labelValues.add(cluster);
+        labelValues.addAll(sample.labelValues);
+        return new MetricFamilySamples.Sample(sample.name, labelNames, labelValues, sample.value,
+                sample.exemplar, sample.timestampMs);
+    }
+}
@@ -0,0 +1,137 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
+
+/**
+ * Matches inode names against a path element regex, on the raw UTF-8 name bytes where possible.
+ * <p>
+ * Patterns of the form <code>literal</code>, <code>prefix.*</code>, <code>.*suffix</code>
+ * or <code>prefix.*suffix</code> (with optionally escaped literal characters) match byte-wise,
+ * while any other pattern falls back to regex matching of the decoded name.
+ */
+abstract class NameMatcher implements Predicate<FsImageProto.INodeSection.INode> {
+    private static final String WILDCARD = ".*";
+    private static final String REGEX_META_CHARS = "\\^$.|?*+()[]{}";
+
+    /**
+     * @param name the raw UTF-8 name
+     * @return true, if name matches
+     */
+    abstract boolean matches(ByteString name);
+
+    @Override
+    public boolean test(FsImageProto.INodeSection.INode inode) {
+        return matches(inode.getName());
+    }
+
+    /**
+     * @param regex the path element regex, e.g. <code>user_.*</code>
+     * @return the matcher
+     */
+    static NameMatcher compile(String regex) {
+        final int wildcard = regex.indexOf(WILDCARD);
+        final String prefix = unescape(-1 == wildcard ? regex : regex.substring(0, wildcard));
+        final String suffix = -1 == wildcard ? null : unescape(regex.substring(wildcard + WILDCARD.length()));
+        if (null == prefix || (-1 != wildcard && null == suffix)) {
+            return new RegexMatcher(Pattern.compile(regex));
+        }
+        if (-1 == wildcard) {
+            return new LiteralMatcher(ByteString.copyFromUtf8(prefix));
+        }
+        return new WildcardMatcher(ByteString.copyFromUtf8(prefix), ByteString.copyFromUtf8(suffix));
+    }
+
+    /**
+     * @param regex the regex
+     * @return the literal, or null if regex contains any unescaped meta characters
+     */
+    static String unescape(String regex) {
+        StringBuilder buf = null;
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if ('\\' == c) {
+                // Only escaped meta characters are literals, as e.g. \d or \Q have special meaning
+                if (i + 1 == regex.length() || REGEX_META_CHARS.indexOf(regex.charAt(i + 1)) < 0) {
+                    return null;
+                }
+                if (null == buf) {
+                    buf = new StringBuilder(regex.length()).append(regex, 0, i);
+                }
+                buf.append(regex.charAt(++i));
+            } else if (REGEX_META_CHARS.indexOf(c) >= 0) {
+                return null;
+            } else if (null != buf) {
+                buf.append(c);
+            }
+        }
+        return null == buf ? regex : buf.toString();
+    }
+
+    /**
+     * Checks for line terminators, as not matched by regex <code>.</code> without DOTALL flag.
+     *
+     * @param name the raw UTF-8 name
+     * @param from the start index, inclusive
+     * @param to   the end index, exclusive
+     * @return true, if the UTF-8 bytes in given range contain CR, LF, NEL, line or paragraph separator
+     */
+    static boolean hasLineTerminator(ByteString name, int from, int to) {
+        for (int i = from; i < to; i++) {
+            final int b = name.byteAt(i) & 0xFF;
+            if (b == '\n' || b == '\r'
+                    || (b == 0xC2 && i + 1 < to && (name.byteAt(i + 1) & 0xFF) == 0x85)
+                    || (b == 0xE2 && i + 2 < to && (name.byteAt(i + 1) & 0xFF) == 0x80
+                    && ((name.byteAt(i + 2) & 0xFF) == 0xA8 || (name.byteAt(i + 2) & 0xFF) == 0xA9))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static class LiteralMatcher extends NameMatcher {
+        private final ByteString literal;
+
+        LiteralMatcher(ByteString literal) {
+            this.literal = literal;
+        }
+
+        @Override
+        boolean matches(ByteString name) {
+            return literal.equals(name);
+        }
+    }
+
+    static class WildcardMatcher extends NameMatcher {
+        private final ByteString prefix;
+        private final ByteString suffix;
+
+        WildcardMatcher(ByteString prefix, ByteString suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        @Override
+        boolean matches(ByteString name) {
+            return name.size() >= prefix.size() + suffix.size()
+                    && name.startsWith(prefix) && name.endsWith(suffix)
+                    && !hasLineTerminator(name, prefix.size(), name.size() - suffix.size());
+        }
+    }
+
+    static class RegexMatcher extends NameMatcher {
+        private final Pattern pattern;
+
+        RegexMatcher(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean matches(ByteString name) {
+            return pattern.matcher(name.toStringUtf8()).matches();
+        }
+    }
+}
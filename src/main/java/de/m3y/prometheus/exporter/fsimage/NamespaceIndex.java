@@ -0,0 +1,326 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compact per-directory aggregate index of the namespace, for drill-down queries without touching the NameNode.
+ * <p>
+ * Each indexed directory holds the rolled-up stats of its subtree, including a per-user split.
+ * Directories deeper than the max depth are aggregated into their indexed ancestor.
+ * <p>
+ * Nodes also hold file counts and sizes per file size bucket, for deriving path stats of indexed directories
+ * without visiting the FSImage again.
+ */
+class NamespaceIndex {
+    static final String ROOT = "/";
+
+    /**
+     * Rolled-up usage.
+     */
+    static class Usage {
+        long files;
+        long size;
+        long consumedSize;
+
+        void add(Usage other) {
+            files += other.files;
+            size += other.size;
+            consumedSize += other.consumedSize;
+        }
+    }
+
+    /**
+     * Indexed directory with rolled-up stats of its subtree.
+     */
+    static class Node extends Usage {
+        final String path;
+        long directories;
+        long blocks;
+        long symLinks;
+        // Space quota of directory, or -1 if none
+        long spaceQuota = -1;
+        // Number of files and sum of file sizes, per file size bucket
+        final long[] bucketFiles;
+        final long[] bucketSizes;
+        final Map<String, Usage> users = new HashMap<>();
+        final List<Node> children = new ArrayList<>();
+
+        Node(String path, int buckets) {
+            this.path = path;
+            bucketFiles = new long[buckets];
+            bucketSizes = new long[buckets];
+        }
+
+        /**
+         * @return the name of the directory, or empty for root
+         */
+        String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        /**
+         * @param limit max number of users
+         * @return users ordered descending by size
+         */
+        List<Map.Entry<String, Usage>> topUsers(int limit) {
+            return users.entrySet().stream()
+                    .sorted(Comparator.comparingLong((Map.Entry<String, Usage> e) -> e.getValue().size).reversed())
+                    .limit(limit)
+                    .toList();
+        }
+
+        /**
+         * @param limit max number of children
+         * @return children ordered descending by size
+         */
+        List<Node> topChildren(int limit) {
+            return children.subList(0, Math.min(limit, children.size()));
+        }
+    }
+
+    private final Map<String, Node> nodes;
+    private final int maxDepth;
+    private final double[] fileSizeBuckets;
+
+    private NamespaceIndex(Map<String, Node> nodes, int maxDepth, double[] fileSizeBuckets) {
+        this.nodes = nodes;
+        this.maxDepth = maxDepth;
+        this.fileSizeBuckets = fileSizeBuckets;
+    }
+
+    /**
+     * Looks up an indexed directory.
+     *
+     * @param path the absolute directory path
+     * @return the node, or null if not a directory or deeper than max depth
+     */
+    Node get(String path) {
+        return nodes.get(normalize(path));
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the upper bounds of the file size buckets, excluding the implicit +Inf bucket
+     */
+    double[] getFileSizeBuckets() {
+        return fileSizeBuckets.clone();
+    }
+
+    /**
+     * @param fileSizeBuckets the upper bounds of file size buckets, excluding +Inf
+     * @param fileSize        the file size
+     * @return the index of the first bucket with upper bound of at least file size
+     */
+    static int bucket(double[] fileSizeBuckets, long fileSize) {
+        int i = 0;
+        while (i < fileSizeBuckets.length && fileSize > fileSizeBuckets[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    static String normalize(String path) {
+        if (path.length() > 1 && path.endsWith("/")) {
+            return path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    static int depth(String path) {
+        if (ROOT.equals(path)) {
+            return 0;
+        }
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Truncates a directory path to the max depth, e.g. /a/b/c to /a/b for max depth 2.
+     */
+    static String truncate(String path, int maxDepth) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/' && ++depth > maxDepth) {
+                return 0 == i ? ROOT : path.substring(0, i);
+            }
+        }
+        return path;
+    }
+
+    static String parent(String path) {
+        int idx = path.lastIndexOf('/');
+        return idx <= 0 ? ROOT : path.substring(0, idx);
+    }
+
+    /**
+     * Aggregates stats while visiting the FSImage, safe for use by parallel visitors.
+     */
+    static class Builder {
+        private final int maxDepth;
+        private final double[] fileSizeBuckets;
+        // Keyed by directory identity, as paths get resolved only once when building the index
+        private final Map<InodeVisitor.Directory, Aggregate> aggregates = new ConcurrentHashMap<>();
+
+        private static class UserAggregate {
+            final LongAdder files = new LongAdder();
+            final LongAdder size = new LongAdder();
+            final LongAdder consumedSize = new LongAdder();
+        }
+
+        private static class Aggregate extends UserAggregate {
+            final LongAdder directories = new LongAdder();
+            final LongAdder blocks = new LongAdder();
+            final LongAdder symLinks = new LongAdder();
+            final AtomicLongArray bucketFiles;
+            final AtomicLongArray bucketSizes;
+            final Map<String, UserAggregate> users = new ConcurrentHashMap<>();
+            // Set once when visiting the indexed directory itself
+            long spaceQuota = -1;
+
+            Aggregate(int buckets) {
+                bucketFiles = new AtomicLongArray(buckets);
+                bucketSizes = new AtomicLongArray(buckets);
+            }
+        }
+
+        Builder(int maxDepth) {
+            this(maxDepth, new double[0]);
+        }
+
+        /**
+         * @param maxDepth        the max depth of indexed directories
+         * @param fileSizeBuckets the upper bounds of file size buckets, excluding +Inf
+         */
+        Builder(int maxDepth, double[] fileSizeBuckets) {
+            if (maxDepth < 0) {
+                throw new IllegalArgumentException("Expected max depth >= 0, but got " + maxDepth);
+            }
+            this.maxDepth = maxDepth;
+            this.fileSizeBuckets = fileSizeBuckets.clone();
+        }
+
+        private Aggregate aggregate(InodeVisitor.Directory directory) {
+            return aggregates.computeIfAbsent(directory.ancestor(maxDepth),
+                    d -> new Aggregate(fileSizeBuckets.length + 1));
+        }
+
+        void onFile(InodeVisitor.Directory parent, String userName, long fileSize, long fileConsumedSize,
+                    long fileBlocks) {
+            final Aggregate aggregate = aggregate(parent);
+            aggregate.files.increment();
+            aggregate.size.add(fileSize);
+            aggregate.consumedSize.add(fileConsumedSize);
+            aggregate.blocks.add(fileBlocks);
+            final int bucket = bucket(fileSizeBuckets, fileSize);
+            aggregate.bucketFiles.incrementAndGet(bucket);
+            aggregate.bucketSizes.addAndGet(bucket, fileSize);
+
+            final UserAggregate userAggregate = aggregate.users.computeIfAbsent(userName, u -> new UserAggregate());
+            userAggregate.files.increment();
+            userAggregate.size.add(fileSize);
+            userAggregate.consumedSize.add(fileConsumedSize);
+        }
+
+        void onDirectory(InodeVisitor.Directory directory) {
+            onDirectory(directory, -1);
+        }
+
+        /**
+         * @param directory  the directory
+         * @param spaceQuota the space quota of the directory, or -1 if none
+         */
+        void onDirectory(InodeVisitor.Directory directory, long spaceQuota) {
+            if (directory.getDepth() <= maxDepth) {
+                aggregate(directory).spaceQuota = spaceQuota; // Index empty directories, too
+            }
+            final InodeVisitor.Directory parent = directory.getParent();
+            if (null != parent) { // Root directory has no parent
+                aggregate(parent).directories.increment();
+            }
+        }
+
+        void onSymLink(InodeVisitor.Directory parent) {
+            aggregate(parent).symLinks.increment();
+        }
+
+        /**
+         * Rolls up the aggregated stats into the index.
+         *
+         * @return the index
+         */
+        NamespaceIndex build() {
+            Map<String, Node> nodes = new HashMap<>(aggregates.size() * 4 / 3 + 1);
+            for (Map.Entry<InodeVisitor.Directory, Aggregate> entry : aggregates.entrySet()) {
+                final Node node = getOrCreate(nodes, entry.getKey().getPath());
+                final Aggregate aggregate = entry.getValue();
+                node.files += aggregate.files.sum();
+                node.size += aggregate.size.sum();
+                node.consumedSize += aggregate.consumedSize.sum();
+                node.directories += aggregate.directories.sum();
+                node.blocks += aggregate.blocks.sum();
+                node.symLinks += aggregate.symLinks.sum();
+                node.spaceQuota = aggregate.spaceQuota;
+                for (int i = 0; i < node.bucketFiles.length; i++) {
+                    node.bucketFiles[i] += aggregate.bucketFiles.get(i);
+                    node.bucketSizes[i] += aggregate.bucketSizes.get(i);
+                }
+                aggregate.users.forEach((userName, userAggregate) -> {
+                    final Usage usage = node.users.computeIfAbsent(userName, u -> new Usage());
+                    usage.files += userAggregate.files.sum();
+                    usage.size += userAggregate.size.sum();
+                    usage.consumedSize += userAggregate.consumedSize.sum();
+                });
+            }
+            rollUp(getOrCreate(nodes, ROOT));
+            return new NamespaceIndex(nodes, maxDepth, fileSizeBuckets);
+        }
+
+        private Node getOrCreate(Map<String, Node> nodes, String path) {
+            Node node = nodes.get(path);
+            if (null == node) {
+                node = new Node(path, fileSizeBuckets.length + 1);
+                nodes.put(path, node);
+                if (!ROOT.equals(path)) {
+                    getOrCreate(nodes, parent(path)).children.add(node);
+                }
+            }
+            return node;
+        }
+
+        private static void rollUp(Node node) {
+            for (Node child : node.children) {
+                rollUp(child); // Recursion bound by max depth
+                node.add(child);
+                node.directories += child.directories;
+                node.blocks += child.blocks;
+                node.symLinks += child.symLinks;
+                for (int i = 0; i < node.bucketFiles.length; i++) {
+                    node.bucketFiles[i] += child.bucketFiles[i];
+                    node.bucketSizes[i] += child.bucketSizes[i];
+                }
+                child.users.forEach((userName, usage) ->
+                        node.users.computeIfAbsent(userName, u -> new Usage()).add(usage));
+            }
+            node.children.sort(Comparator.comparingLong((Node n) -> n.size).reversed());
+        }
+    }
+}
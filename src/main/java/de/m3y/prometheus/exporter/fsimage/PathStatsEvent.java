@@ -0,0 +1,29 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for computing the stats of a single path or path set.
+ */
+@Name("de.m3y.prometheus.exporter.fsimage.PathStats")
+@Label("FSImage Path Stats")
+@Category("FSImage Exporter")
+@Description("Computing the stats of a configured path or path set")
+@StackTrace(false)
+class PathStatsEvent extends Event {
+    @Label("Path")
+    @Description("The path, or the path set name")
+    String path;
+
+    @Label("Path Set")
+    boolean pathSet;
+
+    @Label("Inodes")
+    @Description("Number of processed inodes")
+    long inodes;
+}
@@ -0,0 +1,80 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a {@link ComputePhase}, e.g. for profiling slow recomputations in production via
+ * <code>jcmd &lt;pid&gt; JFR.start</code>.
+ */
+@Name("de.m3y.prometheus.exporter.fsimage.Phase")
+@Label("FSImage Compute Phase")
+@Category("FSImage Exporter")
+@Description("Loading a FSImage or computing a part of its report")
+@StackTrace(false)
+class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Inodes")
+    @Description("Number of processed inodes")
+    long inodes;
+
+    @Label("FSImage")
+    String fsImage;
+
+    @Label("Allocated")
+    @Description("Heap bytes allocated by worker threads, or -1 if not measured")
+    @DataAmount
+    long allocatedBytes = -1;
+
+    final transient ComputePhase computePhase;
+    private final transient long startNanos;
+    private final transient AllocationCounter allocationCounter;
+    private transient long durationNanos = -1;
+
+    /**
+     * Creates and begins the event, counting allocations.
+     *
+     * @param computePhase the phase
+     */
+    PhaseEvent(ComputePhase computePhase) {
+        this(computePhase, true);
+    }
+
+    /**
+     * Creates and begins the event.
+     *
+     * @param computePhase      the phase
+     * @param countAllocations false for phases running concurrently with each other, as worker allocations
+     *                         can not be attributed to one of them
+     */
+    PhaseEvent(ComputePhase computePhase, boolean countAllocations) {
+        this.computePhase = computePhase;
+        phase = computePhase.label;
+        allocationCounter = countAllocations ? new AllocationCounter() : null;
+        startNanos = System.nanoTime();
+        begin();
+    }
+
+    /**
+     * Ends the event, if not ended yet. Subsequent calls return the initial duration.
+     *
+     * @return the duration in nanoseconds
+     */
+    long finish() {
+        if (durationNanos < 0) {
+            end();
+            durationNanos = System.nanoTime() - startNanos;
+            if (null != allocationCounter) {
+                allocatedBytes = allocationCounter.getAllocatedBytes();
+            }
+        }
+        return durationNanos;
+    }
+}
@@ -0,0 +1,485 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Predicate;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static de.m3y.prometheus.exporter.fsimage.FsImageUpdateHandler.*;
+
+/**
+ * Bounded history of compact report summaries, for computing per user and per path growth rates.
+ * <p>
+ * Keeps the absolute values of the oldest and latest report, and for every report in between only the
+ * zigzag varint encoded deltas to its predecessor. Unchanged values take a single byte per report.
+ * <p>
+ * Computes the growth rate of a user or path from the first retained report containing it,
+ * omitting the rate until contained by two reports. Users and paths not contained by any retained report
+ * get removed.
+ */
+class ReportHistory {
+    // Tracked values per user or path
+    static final int FILES = 0;
+    static final int SIZE = 1;
+    static final int CONSUMED_SIZE = 2;
+    // 1 if contained by report, else 0
+    static final int PRESENT = 3;
+    static final int VALUES_PER_KEY = 4;
+
+    /**
+     * Maps a user name or path to a stable index of the value arrays.
+     */
+    static class Dictionary {
+        private final Map<String, Integer> index = new HashMap<>();
+
+        int indexOf(String name) {
+            return index.computeIfAbsent(name, n -> index.size());
+        }
+
+        int size() {
+            return index.size();
+        }
+
+        /**
+         * Removes names, keeping the order of the remaining indices.
+         *
+         * @param retained true by index, if retaining name
+         * @return the new index by previous index, or -1 if removed
+         */
+        int[] retain(boolean[] retained) {
+            final String[] names = new String[index.size()];
+            index.forEach((name, i) -> names[i] = name);
+            final int[] mapping = new int[names.length];
+            index.clear();
+            for (int i = 0; i < names.length; i++) {
+                mapping[i] = retained[i] ? indexOf(names[i]) : -1;
+            }
+            return mapping;
+        }
+    }
+
+    /**
+     * A report summary, with values delta encoded to the previous summary.
+     *
+     * @param timestamp the report timestamp in milliseconds
+     * @param users     the encoded user value deltas, or null for the oldest summary
+     * @param paths     the encoded path value deltas, or null for the oldest summary
+     */
+    record Entry(long timestamp, byte[] users, byte[] paths) {
+    }
+
+    /**
+     * Values of the first retained report containing a user or path.
+     *
+     * @param values     the values by key offset
+     * @param timestamps the report timestamps by key index, or {@link Long#MIN_VALUE} if not contained
+     */
+    private record FirstSeen(long[] values, long[] timestamps) {
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Entry> entries;
+    private final Dictionary userDictionary = new Dictionary();
+    private final Dictionary pathDictionary = new Dictionary();
+    private long[] oldestUsers = new long[0];
+    private long[] oldestPaths = new long[0];
+    private long[] latestUsers = new long[0];
+    private long[] latestPaths = new long[0];
+    // Metric families of the latest update, swapped atomically so that scrapes never block on adding a report
+    private volatile List<Collector.MetricFamilySamples> metricFamilies = List.of();
+
+    private final Gauge metricReports = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "report_history_reports")
+            .help("Number of reports retained in history").create();
+    private final Gauge metricWindow = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "report_history_window_seconds")
+            .help("Time between oldest and latest report in history, used for computing growth rates").create();
+    private final Gauge metricBytes = Gauge.build()
+            .name(FsImageCollector.METRIC_PREFIX + "report_history_bytes")
+            .help("Approximate memory used by report history values").create();
+
+    private final Gauge userFilesGrowth = Gauge.build()
+            .name(METRIC_PREFIX_USER + "files_growth_per_second")
+            .labelNames(LABEL_USER_NAME)
+            .help("Per user growth of number of files over report history window").create();
+    private final Gauge userSizeGrowth = Gauge.build()
+            .name(METRIC_PREFIX_USER + FSIZE + "_growth_bytes_per_second")
+            .labelNames(LABEL_USER_NAME)
+            .help("Per user growth of file size over report history window").create();
+    private final Gauge userConsumedSizeGrowth = Gauge.build()
+            .name(METRIC_PREFIX_USER + CSIZE + "_growth_bytes_per_second")
+            .labelNames(LABEL_USER_NAME)
+            .help("Per user growth of consumed file size over report history window").create();
+
+    private final Gauge pathFilesGrowth = Gauge.build()
+            .name(METRIC_PREFIX_PATH + "files_growth_per_second")
+            .labelNames(LABEL_PATH)
+            .help("Path specific growth of number of files over report history window").create();
+    private final Gauge pathSizeGrowth = Gauge.build()
+            .name(METRIC_PREFIX_PATH + FSIZE + "_growth_bytes_per_second")
+            .labelNames(LABEL_PATH)
+            .help("Path specific growth of file size over report history window").create();
+    private final Gauge pathConsumedSizeGrowth = Gauge.build()
+            .name(METRIC_PREFIX_PATH + CSIZE + "_growth_bytes_per_second")
+            .labelNames(LABEL_PATH)
+            .help("Path specific growth of consumed file size over report history window").create();
+    private final Gauge pathSpaceQuota = Gauge.build()
+            .name(METRIC_PREFIX_PATH + "space_quota_bytes")
+            .labelNames(LABEL_PATH)
+            .help("Path specific space quota, if set").create();
+    private final Gauge pathTimeToQuota = Gauge.build()
+            .name(METRIC_PREFIX_PATH + "time_to_quota_seconds")
+            .labelNames(LABEL_PATH)
+            .help("Path specific projected time till consumed file size reaches space quota, if growing").create();
+
+    ReportHistory(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Expected report history size >= 2 for computing growth, but got "
+                    + capacity);
+        }
+        this.capacity = capacity;
+        entries = new ArrayDeque<>(capacity + 1);
+    }
+
+    /**
+     * Adds a report summary and updates growth metrics.
+     * <p>
+     * Replaces the latest summary for the same timestamp, such as when recomputing the same FSImage
+     * for a forced reload or changed config, and ignores summaries older than the latest one.
+     *
+     * @param report    the report
+     * @param timestamp the report timestamp in milliseconds, such as the FSImage modification time
+     */
+    synchronized void add(FsImageReporter.Report report, long timestamp) {
+        if (!entries.isEmpty() && timestamp < entries.getLast().timestamp()) {
+            return;
+        }
+        final long[] users = values(report.userStats.values(), userDictionary, u -> u.userName);
+        final long[] paths = values(report.pathStats.values(), pathDictionary, p -> p.path);
+
+        if (entries.isEmpty()) {
+            oldestUsers = users;
+            oldestPaths = paths;
+            entries.add(new Entry(timestamp, null, null));
+        } else if (timestamp > entries.getLast().timestamp()) {
+            entries.add(new Entry(timestamp, encode(subtract(users, latestUsers)), encode(subtract(paths, latestPaths))));
+        } else if (entries.size() == 1) {
+            oldestUsers = users;
+            oldestPaths = paths;
+        } else {
+            // Replace latest, re-encoding deltas to the previous summary
+            final Entry latest = entries.removeLast();
+            final long[] previousUsers = subtract(latestUsers, decode(latest.users()));
+            final long[] previousPaths = subtract(latestPaths, decode(latest.paths()));
+            entries.add(new Entry(timestamp, encode(subtract(users, previousUsers)),
+                    encode(subtract(paths, previousPaths))));
+        }
+        latestUsers = users;
+        latestPaths = paths;
+
+        if (entries.size() > capacity) {
+            entries.removeFirst();
+            // Rebase oldest to absolute values
+            final Entry oldest = entries.removeFirst();
+            oldestUsers = add(oldestUsers, decode(oldest.users()));
+            oldestPaths = add(oldestPaths, decode(oldest.paths()));
+            entries.addFirst(new Entry(oldest.timestamp(), null, null));
+        }
+        prune();
+
+        updateMetrics(report);
+        metricFamilies = collectMetrics();
+    }
+
+    /**
+     * Removes users and paths not contained by any retained summary, such as after evicting or replacing a summary.
+     */
+    private void prune() {
+        final int[] userMapping = retain(userDictionary,
+                firstSeen(oldestUsers, Entry::users, userDictionary.size()).timestamps());
+        final int[] pathMapping = retain(pathDictionary,
+                firstSeen(oldestPaths, Entry::paths, pathDictionary.size()).timestamps());
+        if (null == userMapping && null == pathMapping) {
+            return;
+        }
+        oldestUsers = remap(oldestUsers, userMapping);
+        latestUsers = remap(latestUsers, userMapping);
+        oldestPaths = remap(oldestPaths, pathMapping);
+        latestPaths = remap(latestPaths, pathMapping);
+        final int size = entries.size();
+        for (int i = 0; i < size; i++) {
+            final Entry entry = entries.removeFirst();
+            entries.addLast(null == entry.users() ? entry : new Entry(entry.timestamp(),
+                    encode(remap(decode(entry.users()), userMapping)),
+                    encode(remap(decode(entry.paths()), pathMapping))));
+        }
+    }
+
+    /**
+     * @return the new index by previous index, or null if retaining all names
+     */
+    private static int[] retain(Dictionary dictionary, long[] firstSeenTimestamps) {
+        final boolean[] retained = new boolean[firstSeenTimestamps.length];
+        boolean removing = false;
+        for (int i = 0; i < retained.length; i++) {
+            retained[i] = firstSeenTimestamps[i] != Long.MIN_VALUE;
+            removing |= !retained[i];
+        }
+        return removing ? dictionary.retain(retained) : null;
+    }
+
+    /**
+     * Moves the values of each key to its new index, dropping removed keys.
+     */
+    static long[] remap(long[] values, int[] mapping) {
+        if (null == mapping) {
+            return values;
+        }
+        final long[] result = new long[(int) Arrays.stream(mapping).filter(i -> i >= 0).count() * VALUES_PER_KEY];
+        for (int key = 0; key < mapping.length; key++) {
+            if (mapping[key] >= 0) {
+                for (int i = 0; i < VALUES_PER_KEY; i++) {
+                    result[mapping[key] * VALUES_PER_KEY + i] = valueAt(values, key * VALUES_PER_KEY + i);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void updateMetrics(FsImageReporter.Report report) {
+        metricReports.set(entries.size());
+        metricBytes.set(estimateBytes());
+        final double windowSeconds = (entries.getLast().timestamp() - entries.getFirst().timestamp()) / 1000.0;
+        metricWindow.set(windowSeconds);
+
+        userFilesGrowth.clear();
+        userSizeGrowth.clear();
+        userConsumedSizeGrowth.clear();
+        pathFilesGrowth.clear();
+        pathSizeGrowth.clear();
+        pathConsumedSizeGrowth.clear();
+        pathSpaceQuota.clear();
+        pathTimeToQuota.clear();
+
+        for (FsImageReporter.PathStats pathStat : report.pathStats.values()) {
+            if (pathStat.spaceQuota > 0) {
+                pathSpaceQuota.labels(pathStat.path).set(pathStat.spaceQuota);
+            }
+        }
+
+        if (windowSeconds <= 0) {
+            return; // Need at least two reports
+        }
+        final long latestTimestamp = entries.getLast().timestamp();
+
+        final FirstSeen firstUsers = firstSeen(oldestUsers, Entry::users, userDictionary.size());
+        for (FsImageReporter.UserStats userStat : report.userStats.values()) {
+            final int key = userDictionary.indexOf(userStat.userName);
+            final double seconds = (latestTimestamp - firstUsers.timestamps()[key]) / 1000.0;
+            if (seconds <= 0) {
+                continue; // Need two reports containing user
+            }
+            final int offset = key * VALUES_PER_KEY;
+            final long[] first = firstUsers.values();
+            userFilesGrowth.labels(userStat.userName).set(rate(latestUsers, first, offset + FILES, seconds));
+            userSizeGrowth.labels(userStat.userName).set(rate(latestUsers, first, offset + SIZE, seconds));
+            userConsumedSizeGrowth.labels(userStat.userName)
+                    .set(rate(latestUsers, first, offset + CONSUMED_SIZE, seconds));
+        }
+
+        final FirstSeen firstPaths = firstSeen(oldestPaths, Entry::paths, pathDictionary.size());
+        for (FsImageReporter.PathStats pathStat : report.pathStats.values()) {
+            final int key = pathDictionary.indexOf(pathStat.path);
+            final double seconds = (latestTimestamp - firstPaths.timestamps()[key]) / 1000.0;
+            if (seconds <= 0) {
+                continue; // Need two reports containing path
+            }
+            final int offset = key * VALUES_PER_KEY;
+            final long[] first = firstPaths.values();
+            pathFilesGrowth.labels(pathStat.path).set(rate(latestPaths, first, offset + FILES, seconds));
+            pathSizeGrowth.labels(pathStat.path).set(rate(latestPaths, first, offset + SIZE, seconds));
+            final double consumedSizeRate = rate(latestPaths, first, offset + CONSUMED_SIZE, seconds);
+            pathConsumedSizeGrowth.labels(pathStat.path).set(consumedSizeRate);
+
+            if (pathStat.spaceQuota > 0) {
+                final long remaining = pathStat.spaceQuota - valueAt(latestPaths, offset + CONSUMED_SIZE);
+                if (remaining <= 0) {
+                    pathTimeToQuota.labels(pathStat.path).set(0);
+                } else if (consumedSizeRate > 0) {
+                    pathTimeToQuota.labels(pathStat.path).set(remaining / consumedSizeRate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays the retained deltas from the oldest report, finding the first report containing each key.
+     *
+     * @param oldest the absolute values of the oldest report
+     * @param deltas the encoded deltas of an entry, or null for the oldest entry
+     * @param keys   the number of keys
+     * @return the first seen values and timestamps
+     */
+    private FirstSeen firstSeen(long[] oldest, Function<Entry, byte[]> deltas, int keys) {
+        final long[] values = new long[keys * VALUES_PER_KEY];
+        final long[] timestamps = new long[keys];
+        Arrays.fill(timestamps, Long.MIN_VALUE);
+        int remaining = keys;
+        long[] current = oldest;
+        for (Entry entry : entries) {
+            if (remaining == 0) {
+                break;
+            }
+            final byte[] encoded = deltas.apply(entry);
+            if (null != encoded) {
+                current = add(current, decode(encoded));
+            }
+            for (int key = 0; key < keys; key++) {
+                final int offset = key * VALUES_PER_KEY;
+                if (timestamps[key] == Long.MIN_VALUE && valueAt(current, offset + PRESENT) != 0) {
+                    timestamps[key] = entry.timestamp();
+                    System.arraycopy(current, offset, values, offset, VALUES_PER_KEY);
+                    remaining--;
+                }
+            }
+        }
+        return new FirstSeen(values, timestamps);
+    }
+
+    private List<Collector.MetricFamilySamples> collectMetrics() {
+        final List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        for (Gauge gauge : List.of(metricReports, metricWindow, metricBytes,
+                userFilesGrowth, userSizeGrowth, userConsumedSizeGrowth,
+                pathFilesGrowth, pathSizeGrowth, pathConsumedSizeGrowth, pathSpaceQuota, pathTimeToQuota)) {
+            mfs.addAll(gauge.collect());
+        }
+        return mfs;
+    }
+
+    /**
+     * Collects the metrics of the latest added report, never blocking.
+     *
+     * @param mfs              the sampled metrics
+     * @param sampleNameFilter the sample name filter, or null for all metric families
+     */
+    void collect(List<Collector.MetricFamilySamples> mfs, Predicate<String> sampleNameFilter) {
+        for (Collector.MetricFamilySamples family : metricFamilies) {
+            // Gauge sample names equal the family name
+            if (null == sampleNameFilter || sampleNameFilter.test(family.name)) {
+                mfs.add(family);
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of tracked users and paths
+     */
+    synchronized int keys() {
+        return userDictionary.size() + pathDictionary.size();
+    }
+
+    private long estimateBytes() {
+        long bytes = 8L * (oldestUsers.length + oldestPaths.length + latestUsers.length + latestPaths.length);
+        for (Entry entry : entries) {
+            bytes += 8 + (null == entry.users() ? 0 : entry.users().length)
+                    + (null == entry.paths() ? 0 : entry.paths().length);
+        }
+        return bytes;
+    }
+
+    private static <T extends FsImageReporter.AbstractFileSystemStats> long[] values(
+            Collection<T> stats, Dictionary dictionary, Function<T, String> name) {
+        List<T> statsList = new ArrayList<>(stats);
+        for (T stat : statsList) {
+            dictionary.indexOf(name.apply(stat));
+        }
+        final long[] values = new long[dictionary.size() * VALUES_PER_KEY];
+        for (T stat : statsList) {
+            final int offset = dictionary.indexOf(name.apply(stat)) * VALUES_PER_KEY;
+            values[offset + FILES] = stat.fileSize.count();
+            values[offset + SIZE] = (long) stat.fileSize.sum();
+            values[offset + CONSUMED_SIZE] = (long) stat.fileConsumedSize.sum();
+            values[offset + PRESENT] = 1;
+        }
+        return values;
+    }
+
+    private static double rate(long[] latest, long[] first, int index, double seconds) {
+        return (valueAt(latest, index) - valueAt(first, index)) / seconds;
+    }
+
+    private static long valueAt(long[] values, int index) {
+        return index < values.length ? values[index] : 0; // Dictionary grew later
+    }
+
+    static long[] subtract(long[] a, long[] b) {
+        final long[] result = new long[Math.max(a.length, b.length)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = valueAt(a, i) - valueAt(b, i);
+        }
+        return result;
+    }
+
+    static long[] add(long[] a, long[] b) {
+        final long[] result = new long[Math.max(a.length, b.length)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = valueAt(a, i) + valueAt(b, i);
+        }
+        return result;
+    }
+
+    /**
+     * Encodes values as zigzag varints, using one byte for values between -64 and 63.
+     */
+    static byte[] encode(long[] values) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(values.length + 4);
+        writeVarLong(os, values.length);
+        for (long value : values) {
+            writeVarLong(os, (value << 1) ^ (value >> 63));
+        }
+        return os.toByteArray();
+    }
+
+    static long[] decode(byte[] bytes) {
+        final int[] pos = {0};
+        final long[] values = new long[(int) readVarLong(bytes, pos)];
+        for (int i = 0; i < values.length; i++) {
+            final long zigzag = readVarLong(bytes, pos);
+            values[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        return values;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream os, long value) {
+        while ((value & ~0x7FL) != 0) {
+            os.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    private static long readVarLong(byte[] bytes, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,588 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import org.apache.hadoop.hdfs.protocol.proto.HdfsProtos;
+import org.apache.hadoop.hdfs.server.namenode.FSImageFormatProtobuf;
+import org.apache.hadoop.hdfs.server.namenode.FSImageUtil;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
+import org.apache.hadoop.thirdparty.protobuf.CodedInputStream;
+import org.apache.hadoop.thirdparty.protobuf.CodedOutputStream;
+import org.apache.hadoop.thirdparty.protobuf.WireFormat;
+import org.apache.hadoop.util.LimitInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the INODE section of an FSImage file, decoding only the INode fields required for computing stats
+ * (type, id, permission, replication, block sizes and type, space quota and optionally directory names)
+ * and skipping all others, such as times, ACLs and XAttrs.
+ * <p>
+ * Avoids building the protobuf object graph per INode. In parallel mode, records are read sequentially in batches,
+ * and batches get decoded in parallel by the common fork join pool.
+ * <p>
+ * Supports uncompressed FSImages only, as resolving compression codecs requires the full Hadoop configuration.
+ * <p>
+ * Note: The INODE section contains all inodes, including any inodes only referenced by snapshots,
+ * such as files deleted after a snapshot. For FSImages with snapshot diffs, the reader first marks the inodes
+ * reachable from root via current directory children in a bitmap, and skips all other inodes,
+ * matching the in-heap traversal of directory children.
+ */
+class SelectiveINodeReader {
+    private static final Logger LOG = LoggerFactory.getLogger(SelectiveINodeReader.class);
+    private static final int BATCH_BYTES = 256 * 1024;
+
+    /**
+     * Callbacks for decoded INodes, invoked concurrently in parallel mode.
+     */
+    interface Visitor {
+        /**
+         * @param id          the inode id
+         * @param permission  the encoded permission, see {@link #getUserId(long)} and {@link #getGroupId(long)}
+         * @param replication the replication
+         * @param fileSize    the sum of block sizes
+         * @param blocks      the number of blocks
+         */
+        void onFile(long id, long permission, int replication, long fileSize, long blocks);
+
+        /**
+         * Extends {@link #onFile(long, long, int, long, long)} by the block layout, e.g. for detecting anomalies.
+         *
+         * @param lastBlockSize      the size of the last block, or 0 if none
+         * @param preferredBlockSize the preferred block size
+         * @param striped            true, if erasure coded using striped blocks
+         */
+        default void onFile(long id, long permission, int replication, long fileSize, long blocks,
+                            long lastBlockSize, long preferredBlockSize, boolean striped) {
+            onFile(id, permission, replication, fileSize, blocks);
+        }
+
+        /**
+         * @param id         the inode id
+         * @param permission the encoded permission
+         * @param dsQuota    the space quota, or -1 if none
+         * @param name       the raw UTF-8 name if decoding directory names, or null
+         */
+        void onDirectory(long id, long permission, long dsQuota, ByteString name);
+
+        void onSymLink(long id, long permission);
+    }
+
+    /**
+     * Callback for INODE_DIR entries.
+     */
+    interface DirectoryEntryVisitor {
+        /**
+         * @param parent      the parent directory inode id
+         * @param children    the child inode ids, excluding snapshot references, reused for the next entry
+         * @param numChildren the number of children
+         * @throws IOException on error
+         */
+        void onEntry(long parent, long[] children, int numChildren) throws IOException;
+    }
+
+    /**
+     * Bitmap of inodes reachable from root via current directory children, with one bit per inode id.
+     */
+    static class ReachableINodes {
+        private final long[] bits;
+
+        ReachableINodes(long lastInodeId) {
+            bits = new long[(int) ((lastInodeId - FsImageData.ROOT_INODE_ID) >>> 6) + 1];
+        }
+
+        boolean contains(long id) {
+            final long offset = id - FsImageData.ROOT_INODE_ID;
+            return offset >= 0 && offset < (long) bits.length << 6
+                    && (bits[(int) (offset >>> 6)] & (1L << offset)) != 0;
+        }
+
+        private void add(long id) {
+            final long offset = id - FsImageData.ROOT_INODE_ID;
+            if (offset >= 0 && offset < (long) bits.length << 6) {
+                bits[(int) (offset >>> 6)] |= 1L << offset;
+            }
+        }
+
+        /**
+         * @return true, if removed, or false if not contained
+         */
+        private boolean remove(long id) {
+            if (!contains(id)) {
+                return false;
+            }
+            final long offset = id - FsImageData.ROOT_INODE_ID;
+            bits[(int) (offset >>> 6)] &= ~(1L << offset);
+            return true;
+        }
+
+        long size() {
+            return Arrays.stream(bits).map(Long::bitCount).sum();
+        }
+
+        /**
+         * Marks root and all listed children, and then removes children of unreachable directories,
+         * such as deleted directories retained by snapshots, until no more changes.
+         * Requires a pass over the INODE_DIR section per nesting level of unreachable directories.
+         *
+         * @param fsImageFile the FSImage file
+         * @param summary     the FSImage summary
+         * @return the reachable inodes
+         * @throws IOException on error reading
+         */
+        static ReachableINodes load(File fsImageFile, FsImageProto.FileSummary summary) throws IOException {
+            final long lastInodeId;
+            try (InputStream in = openSection(fsImageFile, summary, FSImageFormatProtobuf.SectionName.INODE)) {
+                lastInodeId = FsImageProto.INodeSection.parseDelimitedFrom(in).getLastInodeId();
+            }
+            final ReachableINodes reachable = new ReachableINodes(lastInodeId);
+            reachable.add(FsImageData.ROOT_INODE_ID);
+            try (InputStream in = openSection(fsImageFile, summary, FSImageFormatProtobuf.SectionName.INODE_DIR)) {
+                readDirectoryEntries(in, (parent, children, numChildren) -> {
+                    for (int i = 0; i < numChildren; i++) {
+                        reachable.add(children[i]);
+                    }
+                });
+            }
+            final boolean[] changed = new boolean[1];
+            int passes = 1;
+            do {
+                changed[0] = false;
+                try (InputStream in = openSection(fsImageFile, summary,
+                        FSImageFormatProtobuf.SectionName.INODE_DIR)) {
+                    readDirectoryEntries(in, (parent, children, numChildren) -> {
+                        if (!reachable.contains(parent)) {
+                            for (int i = 0; i < numChildren; i++) {
+                                changed[0] |= reachable.remove(children[i]);
+                            }
+                        }
+                    });
+                }
+                passes++;
+            } while (changed[0]);
+            LOG.debug("Marked {} reachable INodes of {} in {} passes", reachable.size(), fsImageFile, passes);
+            return reachable;
+        }
+    }
+
+    private boolean parallel;
+    private boolean directoryNames;
+    // Inodes to decode, or null for all
+    private ReachableINodes reachable;
+
+    /**
+     * Decodes batches in parallel.
+     *
+     * @return this reader
+     */
+    SelectiveINodeReader parallel() {
+        parallel = true;
+        return this;
+    }
+
+    /**
+     * Decodes directory names, which are skipped by default.
+     *
+     * @return this reader
+     */
+    SelectiveINodeReader directoryNames() {
+        directoryNames = true;
+        return this;
+    }
+
+    /**
+     * Reads all INodes of given FSImage.
+     *
+     * @param fsImageFile the FSImage file
+     * @param visitor     the visitor
+     * @return true, if read, or false if not supported for compressed FSImage
+     * @throws IOException on error reading or decoding
+     */
+    boolean read(File fsImageFile, Visitor visitor) throws IOException {
+        final FsImageProto.FileSummary summary = loadSummary(fsImageFile);
+        if (isCompressed(summary)) {
+            LOG.info("Skipping selective decoding of {} compressed with {}", fsImageFile, summary.getCodec());
+            return false;
+        }
+        if (hasSnapshotDiffs(summary)) {
+            reachable = ReachableINodes.load(fsImageFile, summary);
+        }
+        try (InputStream in = openSection(fsImageFile, summary, FSImageFormatProtobuf.SectionName.INODE)) {
+            final long inodes = read(in, visitor);
+            LOG.debug("Decoded {} INodes of {}", inodes, fsImageFile);
+            return true;
+        }
+    }
+
+    long read(InputStream in, Visitor visitor) throws IOException {
+        final FsImageProto.INodeSection inodeSection = FsImageProto.INodeSection.parseDelimitedFrom(in);
+        final long numInodes = inodeSection.getNumInodes();
+        if (parallel) {
+            readParallel(in, numInodes, visitor);
+        } else {
+            final CodedInputStream codedIn = CodedInputStream.newInstance(in);
+            for (long i = 0; i < numInodes; i++) {
+                codedIn.resetSizeCounter(); // Size limit applies per record
+                decodeRecord(codedIn, visitor);
+            }
+        }
+        return numInodes;
+    }
+
+    private void readParallel(InputStream in, long numInodes, Visitor visitor) throws IOException {
+        // Bounds the batches in flight, and recycles their buffers
+        final int maxBatches = 2 * ForkJoinPool.getCommonPoolParallelism();
+        final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(maxBatches);
+        for (int i = 0; i < maxBatches; i++) {
+            buffers.add(new byte[BATCH_BYTES]);
+        }
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try {
+            byte[] batch = buffers.take();
+            int used = 0;
+            for (long i = 0; i < numInodes; i++) {
+                final int length = readRawVarint32(in);
+                final int recordLength = CodedOutputStream.computeUInt32SizeNoTag(length) + length;
+                if (used + recordLength > batch.length) {
+                    if (used > 0) {
+                        tasks.add(submit(batch, used, buffers, visitor));
+                    } else if (batch.length == BATCH_BYTES) {
+                        buffers.add(batch);
+                    }
+                    // Oversized records get a dedicated buffer
+                    batch = recordLength > BATCH_BYTES ? new byte[recordLength] : buffers.take();
+                    used = 0;
+                }
+                used = writeRawVarint32(batch, used, length);
+                readFully(in, batch, used, length);
+                used += length;
+            }
+            if (used > 0) {
+                tasks.add(submit(batch, used, buffers, visitor));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading INodes", e);
+        } finally {
+            try {
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private ForkJoinTask<?> submit(byte[] batch, int length, BlockingQueue<byte[]> buffers, Visitor visitor) {
+        return ForkJoinPool.commonPool().submit(() -> {
+            try {
+                decode(CodedInputStream.newInstance(batch, 0, length), visitor);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                if (batch.length == BATCH_BYTES) {
+                    buffers.add(batch);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes length delimited INode records.
+     */
+    void decode(CodedInputStream in, Visitor visitor) throws IOException {
+        while (!in.isAtEnd()) {
+            decodeRecord(in, visitor);
+        }
+    }
+
+    private void decodeRecord(CodedInputStream in, Visitor visitor) throws IOException {
+        final int limit = in.pushLimit(in.readRawVarint32());
+        int type = 0;
+        long id = 0;
+        long permission = 0;
+        int replication = 0;
+        long fileSize = 0;
+        long blocks = 0;
+        long lastBlockSize = 0;
+        long preferredBlockSize = 0;
+        boolean striped = false;
+        long dsQuota = -1;
+        ByteString name = null;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case FsImageProto.INodeSection.INode.TYPE_FIELD_NUMBER:
+                    type = in.readEnum();
+                    break;
+                case FsImageProto.INodeSection.INode.ID_FIELD_NUMBER:
+                    id = in.readUInt64();
+                    if (null != reachable && !reachable.contains(id)) {
+                        // Only referenced by snapshots
+                        in.skipRawBytes(in.getBytesUntilLimit());
+                        in.popLimit(limit);
+                        return;
+                    }
+                    break;
+                case FsImageProto.INodeSection.INode.NAME_FIELD_NUMBER:
+                    if (directoryNames) {
+                        name = in.readBytes();
+                    } else {
+                        in.skipField(tag);
+                    }
+                    break;
+                case FsImageProto.INodeSection.INode.FILE_FIELD_NUMBER: {
+                    final int fileLimit = in.pushLimit(in.readRawVarint32());
+                    int fileTag;
+                    while ((fileTag = in.readTag()) != 0) {
+                        switch (WireFormat.getTagFieldNumber(fileTag)) {
+                            case FsImageProto.INodeSection.INodeFile.REPLICATION_FIELD_NUMBER:
+                                replication = in.readUInt32();
+                                break;
+                            case FsImageProto.INodeSection.INodeFile.PERMISSION_FIELD_NUMBER:
+                                permission = in.readFixed64();
+                                break;
+                            case FsImageProto.INodeSection.INodeFile.PREFERREDBLOCKSIZE_FIELD_NUMBER:
+                                preferredBlockSize = in.readUInt64();
+                                break;
+                            case FsImageProto.INodeSection.INodeFile.BLOCKS_FIELD_NUMBER:
+                                lastBlockSize = readBlockSize(in);
+                                fileSize += lastBlockSize;
+                                blocks++;
+                                break;
+                            case FsImageProto.INodeSection.INodeFile.BLOCKTYPE_FIELD_NUMBER:
+                                striped = in.readEnum() == HdfsProtos.BlockTypeProto.STRIPED_VALUE;
+                                break;
+                            default:
+                                in.skipField(fileTag);
+                        }
+                    }
+                    in.popLimit(fileLimit);
+                    break;
+                }
+                case FsImageProto.INodeSection.INode.DIRECTORY_FIELD_NUMBER: {
+                    final int directoryLimit = in.pushLimit(in.readRawVarint32());
+                    int directoryTag;
+                    while ((directoryTag = in.readTag()) != 0) {
+                        switch (WireFormat.getTagFieldNumber(directoryTag)) {
+                            case FsImageProto.INodeSection.INodeDirectory.PERMISSION_FIELD_NUMBER:
+                                permission = in.readFixed64();
+                                break;
+                            case FsImageProto.INodeSection.INodeDirectory.DSQUOTA_FIELD_NUMBER:
+                                dsQuota = in.readUInt64();
+                                break;
+                            default:
+                                in.skipField(directoryTag);
+                        }
+                    }
+                    in.popLimit(directoryLimit);
+                    break;
+                }
+                case FsImageProto.INodeSection.INode.SYMLINK_FIELD_NUMBER:
+                    permission = readPermission(in, FsImageProto.INodeSection.INodeSymlink.PERMISSION_FIELD_NUMBER);
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        in.popLimit(limit);
+
+        switch (type) {
+            case FsImageProto.INodeSection.INode.Type.FILE_VALUE:
+                visitor.onFile(id, permission, replication, fileSize, blocks, lastBlockSize, preferredBlockSize,
+                        striped);
+                break;
+            case FsImageProto.INodeSection.INode.Type.DIRECTORY_VALUE:
+                visitor.onDirectory(id, permission, dsQuota, name);
+                break;
+            case FsImageProto.INodeSection.INode.Type.SYMLINK_VALUE:
+                visitor.onSymLink(id, permission);
+                break;
+            default:
+                throw new IOException("Unsupported INode type " + type);
+        }
+    }
+
+    /**
+     * @param permission the encoded permission
+     * @return the user string table id
+     */
+    static int getUserId(long permission) {
+        return (int) ((permission >>> 40) & ((1 << 24) - 1));
+    }
+
+    /**
+     * @param permission the encoded permission
+     * @return the group string table id
+     */
+    static int getGroupId(long permission) {
+        return (int) ((permission >>> 16) & ((1 << 24) - 1));
+    }
+
+    static FsImageProto.FileSummary loadSummary(File fsImageFile) throws IOException {
+        try (RandomAccessFile raFile = new RandomAccessFile(fsImageFile, "r")) {
+            return FSImageUtil.loadSummary(raFile);
+        }
+    }
+
+    static boolean isCompressed(FsImageProto.FileSummary summary) {
+        return summary.hasCodec() && !summary.getCodec().isEmpty();
+    }
+
+    /**
+     * @return true, if snapshot diffs may retain inodes not reachable via current directory children
+     */
+    static boolean hasSnapshotDiffs(FsImageProto.FileSummary summary) {
+        return summary.getSectionsList().stream().anyMatch(section ->
+                FSImageFormatProtobuf.SectionName.SNAPSHOT_DIFF.name().equals(section.getName())
+                        && section.getLength() > 0);
+    }
+
+    /**
+     * Reads the entries of the INODE_DIR section, skipping snapshot references as the in-heap traversal does.
+     *
+     * @param in      the INODE_DIR section
+     * @param visitor the visitor
+     * @throws IOException on error reading or decoding
+     */
+    static void readDirectoryEntries(InputStream in, DirectoryEntryVisitor visitor) throws IOException {
+        final CodedInputStream codedIn = CodedInputStream.newInstance(in);
+        long[] children = new long[1024];
+        while (!codedIn.isAtEnd()) {
+            codedIn.resetSizeCounter(); // Size limit applies per entry
+            final int limit = codedIn.pushLimit(codedIn.readRawVarint32());
+            long parent = -1;
+            int numChildren = 0;
+            int tag;
+            while ((tag = codedIn.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case FsImageProto.INodeDirectorySection.DirEntry.PARENT_FIELD_NUMBER:
+                        parent = codedIn.readUInt64();
+                        break;
+                    case FsImageProto.INodeDirectorySection.DirEntry.CHILDREN_FIELD_NUMBER:
+                        if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                            final int packedLimit = codedIn.pushLimit(codedIn.readRawVarint32());
+                            while (codedIn.getBytesUntilLimit() > 0) {
+                                children = append(children, numChildren++, codedIn.readUInt64());
+                            }
+                            codedIn.popLimit(packedLimit);
+                        } else {
+                            children = append(children, numChildren++, codedIn.readUInt64());
+                        }
+                        break;
+                    default:
+                        codedIn.skipField(tag); // Including snapshot references
+                }
+            }
+            codedIn.popLimit(limit);
+            visitor.onEntry(parent, children, numChildren);
+        }
+    }
+
+    private static long[] append(long[] values, int index, long value) {
+        final long[] a = index < values.length ? values : Arrays.copyOf(values, values.length * 2);
+        a[index] = value;
+        return a;
+    }
+
+    /**
+     * Opens given section of an uncompressed FSImage.
+     *
+     * @param fsImageFile the FSImage file
+     * @param summary     the FSImage summary
+     * @param sectionName the section
+     * @return the buffered section input stream, limited to the section length
+     * @throws IOException if section does not exist
+     */
+    static InputStream openSection(File fsImageFile, FsImageProto.FileSummary summary,
+                                   FSImageFormatProtobuf.SectionName sectionName) throws IOException {
+        for (FsImageProto.FileSummary.Section section : summary.getSectionsList()) {
+            if (sectionName.name().equals(section.getName())) {
+                final FileInputStream fin = new FileInputStream(fsImageFile);
+                try {
+                    fin.getChannel().position(section.getOffset());
+                    return new BufferedInputStream(new LimitInputStream(fin, section.getLength()), 64 * 1024);
+                } catch (IOException e) {
+                    fin.close();
+                    throw e;
+                }
+            }
+        }
+        throw new IOException("No " + sectionName + " section in " + fsImageFile);
+    }
+
+    private static long readBlockSize(CodedInputStream in) throws IOException {
+        final int limit = in.pushLimit(in.readRawVarint32());
+        long numBytes = 0;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == HdfsProtos.BlockProto.NUMBYTES_FIELD_NUMBER) {
+                numBytes = in.readUInt64();
+            } else {
+                in.skipField(tag);
+            }
+        }
+        in.popLimit(limit);
+        return numBytes;
+    }
+
+    private static long readPermission(CodedInputStream in, int permissionFieldNumber) throws IOException {
+        final int limit = in.pushLimit(in.readRawVarint32());
+        long permission = 0;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == permissionFieldNumber) {
+                permission = in.readFixed64();
+            } else {
+                in.skipField(tag);
+            }
+        }
+        in.popLimit(limit);
+        return permission;
+    }
+
+    private static int readRawVarint32(InputStream in) throws IOException {
+        final int firstByte = in.read();
+        if (firstByte < 0) {
+            throw new EOFException("Expected INode record, but reached end of INODE section");
+        }
+        return CodedInputStream.readRawVarint32(firstByte, in);
+    }
+
+    private static int writeRawVarint32(byte[] buf, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            final int count = in.read(buf, off + n, len - n);
+            if (count < 0) {
+                throw new EOFException("Expected " + len + " bytes of INode record, but got " + n);
+            }
+            n += count;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.apache.log4j.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.log4j.Logger.getRootLogger;
+
+/**
+ * Pushes metrics into a <a href="https://github.com/prometheus/node_exporter#textfile-collector">node_exporter
+ * textfile collector</a> file, as alternative to being scraped via {@link WebServer}.
+ * <p>
+ * Renders the metrics once per computed FSImage report of any namespace and replaces the textfile atomically,
+ * by writing to a temporary file in the same directory and renaming it.
+ * Runs without any listening socket.
+ */
+public class TextfileExporter {
+    private static final Logger LOG = LoggerFactory.getLogger(TextfileExporter.class);
+
+    private final Path textfile;
+    private final CollectorRegistry registry = new CollectorRegistry();
+    private Map<String, FsImageCollector> fsImageCollectors;
+
+    /**
+     * @param textfile the textfile to write, e.g. /var/lib/node_exporter/textfile_collector/fsimage.prom
+     */
+    TextfileExporter(Path textfile) {
+        this.textfile = textfile.toAbsolutePath();
+        if (!Files.isDirectory(this.textfile.getParent())) {
+            throw new IllegalArgumentException("The textfile directory " + this.textfile.getParent() + " does not exist");
+        }
+    }
+
+    /**
+     * Starts background FSImage parsing, writing the textfile for each computed report.
+     *
+     * @param config the configuration
+     * @return this exporter
+     */
+    TextfileExporter start(Config config) {
+        fsImageCollectors = MultiNamespaceCollector.register(config, report -> writeTextfile(), registry);
+        return this;
+    }
+
+    private synchronized void writeTextfile() {
+        try {
+            long time = System.currentTimeMillis();
+            final byte[] content = render();
+            final Path tmpFile = Files.createTempFile(textfile.getParent(), "." + textfile.getFileName(), ".tmp");
+            try {
+                setReadableByAll(tmpFile);
+                Files.write(tmpFile, content);
+                Files.move(tmpFile, textfile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+            LOG.info("Wrote {} with {} bytes in {}ms", textfile, content.length, System.currentTimeMillis() - time);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not write textfile " + textfile, e);
+        }
+    }
+
+    private byte[] render() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(1 << 16);
+        try (Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8)) {
+            TextFormat.write004(writer, registry.metricFamilySamples());
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Temporary files are only readable by owner, but node_exporter usually runs as another user.
+     */
+    private static void setReadableByAll(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException e) {
+            LOG.debug("Can not set POSIX permissions for {}", file, e);
+        }
+    }
+
+    /**
+     * Waits for the first computed FSImage report of all namespaces and its written textfile.
+     *
+     * @param timeout the max time to wait
+     * @param unit    the time unit of the timeout
+     * @return true if a report is available, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitFsImageReport(long timeout, TimeUnit unit) throws InterruptedException {
+        return MultiNamespaceCollector.awaitFsImageReports(fsImageCollectors.values(), timeout, unit);
+    }
+
+    public void stop() {
+        fsImageCollectors.values().forEach(FsImageCollector::shutdown);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TextfileExporter [-Dlog.level=[WARN|INFO|DEBUG]] <textfile> <yml configuration file>"); // NOSONAR
+            System.exit(1);
+        }
+
+        getRootLogger().setLevel(Level.toLevel(System.getProperty("log.level"), Level.INFO));
+
+        new TextfileExporter(Paths.get(args[0])).start(ConfigWatcher.load(new File(args[1])));
+    }
+}
@@ -1,5 +1,7 @@
 package de.m3y.prometheus.exporter.fsimage;
 
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Info;
 import io.prometheus.client.exporter.HTTPServer;
@@ -7,31 +9,62 @@ import io.prometheus.client.hotspot.DefaultExports;
 import org.apache.log4j.Level;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.yaml.snakeyaml.Yaml;
 
-import java.io.FileInputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.apache.log4j.Logger.getRootLogger;
 
 public class WebServer {
     private static final Logger LOG = LoggerFactory.getLogger(WebServer.class);
 
-    static class HTTPServerWithCustomHandler extends HTTPServer {
+    static class HTTPServerWithCustomHandler implements Closeable {
+        private final HttpServer server;
+        private final ExecutorService executorService;
 
-        HTTPServerWithCustomHandler(InetSocketAddress addr) throws IOException {
-            super(addr, CollectorRegistry.defaultRegistry, true);
+        HTTPServerWithCustomHandler(InetSocketAddress addr, ExecutorService executorService) throws IOException {
+            this.executorService = executorService;
+            server = HttpServer.create(addr, 3);
+            server.setExecutor(executorService);
+            server.createContext("/-/healthy", new HTTPServer.HTTPMetricHandler(CollectorRegistry.defaultRegistry));
         }
 
-        void replaceRootHandler(ConfigHttpHandler configHttpHandler) {
-            server.removeContext("/");
-            server.createContext("/", configHttpHandler);
+        void addHandler(String path, HttpHandler httpHandler) {
+            server.createContext(path, httpHandler);
+        }
+
+        /**
+         * Starts the server, using a daemon thread so that the server dispatcher thread becomes a daemon thread.
+         */
+        void start() throws InterruptedException {
+            Thread starter = new Thread(server::start, "fsimage-exporter-http-starter");
+            starter.setDaemon(true);
+            starter.start();
+            starter.join();
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            executorService.shutdown();
         }
     }
 
     private HTTPServerWithCustomHandler httpServer;
-    private FsImageCollector fsImageCollector;
+    private Map<String, FsImageCollector> fsImageCollectors;
+    private Config config;
+    private ConfigHttpHandler configHttpHandler;
+    private AdminHttpHandler adminHttpHandler;
+    private ScheduledExecutorService configWatchScheduler;
     private final Info buildInfo = Info.build()
             .name("fsimage_exporter_build")
             .help("Hadoop FSImage exporter build info")
@@ -39,6 +72,7 @@ public class WebServer {
 
 
     WebServer configure(Config config, String address, int port) throws IOException {
+        this.config = config;
         // Exporter own JVM metrics
         DefaultExports.initialize();
 
@@ -51,22 +85,152 @@ public class WebServer {
         );
         buildInfo.register();
 
+        // Parses fsimage(s) in background, scrapes report readiness till first report is available
+        fsImageCollectors = MultiNamespaceCollector.register(config, null, CollectorRegistry.defaultRegistry);
+
         // Configure HTTP server
         InetSocketAddress inetAddress = new InetSocketAddress(address, port);
-        httpServer = new HTTPServerWithCustomHandler(inetAddress);
-        httpServer.replaceRootHandler(new ConfigHttpHandler(config));
+        httpServer = new HTTPServerWithCustomHandler(inetAddress, createHttpExecutor(config));
+        configHttpHandler = new ConfigHttpHandler(config);
+        httpServer.addHandler("/", configHttpHandler);
+        CoalescingMetricsHttpHandler metricsHttpHandler = new CoalescingMetricsHttpHandler(CollectorRegistry.defaultRegistry);
+        metricsHttpHandler.register(CollectorRegistry.defaultRegistry);
+        httpServer.addHandler(CoalescingMetricsHttpHandler.METRICS_PATH, metricsHttpHandler);
+        httpServer.addHandler(DuHttpHandler.PATH, new DuHttpHandler(fsImageCollectors));
+        adminHttpHandler = new AdminHttpHandler(fsImageCollectors, config.getAdminToken());
+        httpServer.addHandler(AdminHttpHandler.PATH, adminHttpHandler);
+        try {
+            httpServer.start();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while starting HTTP server", e);
+        }
         LOG.info("FSImage exporter started and listening on http://{}:{}", inetAddress.getHostName(), inetAddress.getPort());
 
-        // Waits for parsed fsimage, so should run last after started HTTP server
-        fsImageCollector = new FsImageCollector(config);
-        fsImageCollector.register();
+        return this;
+    }
 
+    /**
+     * Watches the config file for changes, if config reload is enabled.
+     *
+     * @param configFile the loaded config file
+     * @return this web server
+     */
+    WebServer watchConfig(File configFile) {
+        if (config.isConfigReloadEnabled()) {
+            configWatchScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fsimage-exporter-config-watcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            configWatchScheduler.scheduleWithFixedDelay(new ConfigWatcher(configFile, this::reconfigure),
+                    config.getFsImageWatchIntervalSeconds(), config.getFsImageWatchIntervalSeconds(), TimeUnit.SECONDS);
+            LOG.info("Watching {} for config changes", configFile.getAbsoluteFile());
+        }
         return this;
     }
 
+    /**
+     * Applies a changed config to the FSImage collectors of all namespaces.
+     * <p>
+     * Ignores changes of HTTP server options and of the configured namespaces, as requiring a restart,
+     * and an invalid config as a whole.
+     *
+     * @param newConfig the changed config
+     */
+    void reconfigure(Config newConfig) {
+        if (config.hasNamespaces() != newConfig.hasNamespaces()) {
+            LOG.warn("Ignoring changed config switching between fsImagePath and namespaces, requiring restart");
+            return;
+        }
+        if (config.getHttpServerThreads() != newConfig.getHttpServerThreads()
+                || config.isHttpServerVirtualThreads() != newConfig.isHttpServerVirtualThreads()) {
+            LOG.warn("Ignoring changed HTTP server options, requiring restart");
+        }
+        try {
+            if (newConfig.hasNamespaces()) {
+                MultiNamespaceCollector.validate(newConfig);
+                for (Config namespace : newConfig.getNamespaces()) {
+                    FsImageCollector.validate(namespace);
+                }
+            } else {
+                FsImageCollector.validate(newConfig);
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Ignoring invalid changed config : {}", e.getMessage());
+            return;
+        }
+        if (newConfig.hasNamespaces()) {
+            if (config.getMaxConcurrentLoads() != newConfig.getMaxConcurrentLoads()) {
+                LOG.warn("Ignoring changed maxConcurrentLoads {}, requiring restart", newConfig.getMaxConcurrentLoads());
+            }
+            final Map<String, Config> namespaces = new HashMap<>();
+            for (Config namespace : newConfig.getNamespaces()) {
+                namespaces.put(namespace.getCluster(), namespace);
+            }
+            if (!namespaces.keySet().equals(fsImageCollectors.keySet())) {
+                LOG.warn("Ignoring added or removed namespaces {}, requiring restart", namespaces.keySet());
+            }
+            fsImageCollectors.forEach((cluster, collector) -> {
+                final Config namespace = namespaces.get(cluster);
+                if (null != namespace) {
+                    collector.reconfigure(namespace);
+                }
+            });
+        } else {
+            fsImageCollectors.values().forEach(collector -> collector.reconfigure(newConfig));
+        }
+        config = newConfig;
+        configHttpHandler.setConfig(newConfig);
+        adminHttpHandler.setAdminToken(newConfig.getAdminToken());
+    }
+
+    /**
+     * Creates the executor for serving HTTP requests.
+     * <p>
+     * Uses virtual threads if configured and supported by the JVM (Java 21+),
+     * otherwise a thread pool bounded by the configured number of HTTP server threads.
+     *
+     * @param config the configuration
+     * @return the executor service
+     */
+    static ExecutorService createHttpExecutor(Config config) {
+        if (config.isHttpServerVirtualThreads()) {
+            try {
+                // Reflective lookup, as virtual threads require Java 21+ while building with Java 17
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.warn("Virtual threads not supported by JVM {}, falling back to {} HTTP server threads",
+                        System.getProperty("java.version"), config.getHttpServerThreads());
+            }
+        }
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        return Executors.newFixedThreadPool(config.getHttpServerThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "fsimage-exporter-http-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Waits for the first computed FSImage report of all namespaces.
+     *
+     * @param timeout the max time to wait
+     * @param unit    the time unit of the timeout
+     * @return true if a report is available, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitFsImageReport(long timeout, TimeUnit unit) throws InterruptedException {
+        return MultiNamespaceCollector.awaitFsImageReports(fsImageCollectors.values(), timeout, unit);
+    }
+
     public void stop() {
+        if (null != configWatchScheduler) {
+            configWatchScheduler.shutdown();
+        }
         httpServer.close();
-        fsImageCollector.shutdown();
+        fsImageCollectors.values().forEach(FsImageCollector::shutdown);
     }
 
     public static void main(String[] args) throws Exception {
@@ -77,9 +241,8 @@ public class WebServer {
 
         getRootLogger().setLevel(Level.toLevel(System.getProperty("log.level"), Level.INFO));
 
-        try (FileInputStream reader = new FileInputStream(args[2])) {
-            Config config = new Yaml().loadAs(reader, Config.class);
-            new WebServer().configure(config, args[0], Integer.parseInt(args[1]));
-        }
+        final File configFile = new File(args[2]);
+        new WebServer().configure(ConfigWatcher.load(configFile), args[0], Integer.parseInt(args[1]))
+                .watchConfig(configFile);
     }
 }
@@ -0,0 +1,39 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AllocationCounterTest {
+    private static volatile Object sink;
+
+    @Test
+    public void testGetAllocatedBytes() throws Exception {
+        Assume.assumeTrue(AllocationCounter.isSupported());
+
+        final AllocationCounter allocationCounter = new AllocationCounter();
+        // Current thread
+        sink = new byte[10 << 20];
+        assertThat(allocationCounter.getAllocatedBytes()).isGreaterThanOrEqualTo(10 << 20);
+
+        // Common pool workers
+        ForkJoinPool.commonPool().submit(() -> IntStream.range(0, 8).parallel()
+                .forEach(i -> sink = new byte[10 << 20])).get();
+        assertThat(allocationCounter.getAllocatedBytes()).isGreaterThanOrEqualTo(90L << 20);
+    }
+
+    @Test
+    public void testOtherThreadsNotCounted() throws Exception {
+        Assume.assumeTrue(AllocationCounter.isSupported());
+
+        final AllocationCounter allocationCounter = new AllocationCounter();
+        final Thread thread = new Thread(() -> sink = new byte[100 << 20], "other");
+        thread.start();
+        thread.join();
+        assertThat(allocationCounter.getAllocatedBytes()).isLessThan(100 << 20);
+    }
+}
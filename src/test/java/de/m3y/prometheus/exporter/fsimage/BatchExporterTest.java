@@ -0,0 +1,79 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public class BatchExporterTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testOpenMetrics() throws Exception {
+        final Path outputDir = temporaryFolder.getRoot().toPath();
+        final List<File> fsImages = BatchExporter.listFsImages(List.of("src/test/resources"));
+        assertThat(fsImages).extracting(File::getName).containsExactly("fsimage_0001");
+        final long timestamp = fsImages.get(0).lastModified();
+
+        // Budget smaller than fsimage still processes fsimage
+        BatchExporter batchExporter = new BatchExporter(new Config(), outputDir,
+                BatchExporter.Format.OPENMETRICS, 2, 1);
+        assertThat(batchExporter.run(fsImages)).isZero();
+
+        final Path outputFile = outputDir.resolve("fsimage_0001.txt");
+        assertThat(new String(Files.readAllBytes(outputFile), StandardCharsets.UTF_8))
+                .contains("fsimage_dirs 14.0 " + String.format("%d.%03d", timestamp / 1000, timestamp % 1000))
+                .contains("fsimage_user_dirs{user_name=\"mm\"} 14.0 ")
+                .doesNotContain("fsimage_load_duration_seconds")
+                .endsWith("# EOF\n");
+        assertThat(temporaryFolder.getRoot().list()).containsExactly("fsimage_0001.txt");
+
+        // Skips existing output
+        Files.write(outputFile, new byte[0]);
+        assertThat(batchExporter.run(fsImages)).isZero();
+        assertThat(outputFile).isEmptyFile();
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        final Path outputDir = temporaryFolder.getRoot().toPath();
+        final List<File> fsImages = BatchExporter.listFsImages(List.of("src/test/resources/fsimage_0001"));
+        final long timestamp = fsImages.get(0).lastModified();
+
+        BatchExporter batchExporter = new BatchExporter(new Config(), outputDir, BatchExporter.Format.CSV, 1,
+                1L << 30);
+        assertThat(batchExporter.run(fsImages)).isZero();
+
+        assertThat(Files.readAllLines(outputDir.resolve("fsimage_0001.csv"), StandardCharsets.UTF_8))
+                .startsWith("timestamp,name,labels,value")
+                .contains(timestamp + ",fsimage_dirs,,14.0",
+                        timestamp + ",fsimage_user_dirs,user_name=mm,14.0");
+    }
+
+    @Test
+    public void testCsvField() {
+        assertThat(BatchExporter.csvField("path=/a")).isEqualTo("path=/a");
+        assertThat(BatchExporter.csvField("path=/a,b")).isEqualTo("\"path=/a,b\"");
+        assertThat(BatchExporter.csvField("path=/\"a\"")).isEqualTo("\"path=/\"\"a\"\"\"");
+    }
+
+    @Test
+    public void testInvalid() {
+        final Path outputDir = temporaryFolder.getRoot().toPath();
+        assertThatIllegalArgumentException().isThrownBy(() ->
+                BatchExporter.listFsImages(List.of("src/test/resources/non-existing")));
+        assertThatIllegalArgumentException().isThrownBy(() ->
+                new BatchExporter(new Config(), outputDir.resolve("non-existing"), BatchExporter.Format.CSV, 1, 1));
+        assertThatIllegalArgumentException().isThrownBy(() ->
+                new BatchExporter(new Config(), outputDir, BatchExporter.Format.CSV, 0, 1));
+    }
+}
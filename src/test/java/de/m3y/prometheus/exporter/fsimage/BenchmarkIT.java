@@ -21,6 +21,8 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.concurrent.TimeUnit;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 /**
  * Benchmark and stress fsimage exporter
  */
@@ -41,6 +43,7 @@ public class BenchmarkIT {
                 config = new Yaml().loadAs(reader, Config.class);
             }
             server = new WebServer().configure(config, "localhost", 9709);
+            assertThat(server.awaitFsImageReport(30, TimeUnit.SECONDS)).isTrue();
 
             // Prepare request fetching
             client = new OkHttpClient();
@@ -0,0 +1,331 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import de.m3y.prometheus.exporter.fsimage.CoalescingMetricsHttpHandler.Scope;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.GaugeMetricFamily;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CoalescingMetricsHttpHandlerTest {
+    private static final String COALESCED = FsImageCollector.METRIC_PREFIX + "http_requests_coalesced_total";
+    private static final String SHARED_RENDER_TIMEOUTS =
+            FsImageCollector.METRIC_PREFIX + "http_shared_render_timeouts_total";
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCoalescesConcurrentRequests() throws Exception {
+        final BlockingCollector collector = new BlockingCollector();
+        final CollectorRegistry metricsRegistry = new CollectorRegistry();
+        final CoalescingMetricsHttpHandler handler = newHandler(collector, metricsRegistry);
+
+        final TestExchange first = new TestExchange("/metrics?name%5B%5D=test_a");
+        final Future<?> firstRequest = executor.submit(() -> {
+            handler.handle(first);
+            return null;
+        });
+        assertThat(collector.started.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+
+        final TestExchange second = new TestExchange("/metrics?name%5b%5d=test_a");
+        final Future<?> secondRequest = executor.submit(() -> {
+            handler.handle(second);
+            return null;
+        });
+        awaitCoalesced(metricsRegistry, 1);
+        collector.release.countDown();
+        firstRequest.get(10, TimeUnit.SECONDS);
+        secondRequest.get(10, TimeUnit.SECONDS);
+
+        assertThat(collector.calls).hasValue(1);
+        assertThat(first.responseCode).isEqualTo(200);
+        assertThat(second.responseCode).isEqualTo(200);
+        assertThat(first.body()).contains("test_a 1.0").doesNotContain("test_b");
+        assertThat(second.body()).isEqualTo(first.body());
+        assertThat(metricsRegistry.getSampleValue(COALESCED)).isEqualTo(1.0);
+    }
+
+    @Test
+    public void testDoesNotCoalesceDifferentNameFilters() throws Exception {
+        final BlockingCollector collector = new BlockingCollector();
+        final CollectorRegistry metricsRegistry = new CollectorRegistry();
+        final CoalescingMetricsHttpHandler handler = newHandler(collector, metricsRegistry);
+
+        final TestExchange first = new TestExchange("/metrics?name%5B%5D=test_a");
+        final Future<?> firstRequest = executor.submit(() -> {
+            handler.handle(first);
+            return null;
+        });
+        final TestExchange second = new TestExchange("/metrics?name%5B%5D=test_b");
+        final Future<?> secondRequest = executor.submit(() -> {
+            handler.handle(second);
+            return null;
+        });
+        // Both renders collect while blocked
+        assertThat(collector.started.tryAcquire(2, 10, TimeUnit.SECONDS)).isTrue();
+        collector.release.countDown();
+        firstRequest.get(10, TimeUnit.SECONDS);
+        secondRequest.get(10, TimeUnit.SECONDS);
+
+        assertThat(collector.calls).hasValue(2);
+        assertThat(first.body()).contains("test_a 1.0").doesNotContain("test_b");
+        assertThat(second.body()).contains("test_b 2.0").doesNotContain("test_a");
+        assertThat(metricsRegistry.getSampleValue(COALESCED)).isZero();
+    }
+
+    @Test
+    public void testRendersOnOwnAfterSharedRenderTimeout() throws Exception {
+        final BlockingCollector collector = new BlockingCollector();
+        final CollectorRegistry metricsRegistry = new CollectorRegistry();
+        final CoalescingMetricsHttpHandler handler = newHandler(collector, metricsRegistry, 100);
+
+        final TestExchange first = new TestExchange("/metrics?name%5B%5D=test_a");
+        final Future<?> firstRequest = executor.submit(() -> {
+            handler.handle(first);
+            return null;
+        });
+        assertThat(collector.started.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+
+        // Waits for stuck shared render, then renders on its own
+        final TestExchange second = new TestExchange("/metrics?name%5B%5D=test_a");
+        final Future<?> secondRequest = executor.submit(() -> {
+            handler.handle(second);
+            return null;
+        });
+        assertThat(collector.started.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(metricsRegistry.getSampleValue(COALESCED)).isEqualTo(1.0);
+        assertThat(metricsRegistry.getSampleValue(SHARED_RENDER_TIMEOUTS)).isEqualTo(1.0);
+        collector.release.countDown();
+        firstRequest.get(10, TimeUnit.SECONDS);
+        secondRequest.get(10, TimeUnit.SECONDS);
+
+        assertThat(collector.calls).hasValue(2);
+        assertThat(second.responseCode).isEqualTo(200);
+        assertThat(second.body()).isEqualTo(first.body()).contains("test_a 1.0");
+    }
+
+    private static CoalescingMetricsHttpHandler newHandler(Collector collector, CollectorRegistry metricsRegistry) {
+        return newHandler(collector, metricsRegistry, CoalescingMetricsHttpHandler.SHARED_RENDER_TIMEOUT_MILLIS);
+    }
+
+    private static CoalescingMetricsHttpHandler newHandler(Collector collector, CollectorRegistry metricsRegistry,
+                                                           long sharedRenderTimeoutMillis) {
+        final CollectorRegistry registry = new CollectorRegistry();
+        registry.register(collector);
+        final CoalescingMetricsHttpHandler handler = new CoalescingMetricsHttpHandler(registry,
+                sharedRenderTimeoutMillis);
+        handler.register(metricsRegistry);
+        return handler;
+    }
+
+    private static void awaitCoalesced(CollectorRegistry metricsRegistry, double expected)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (metricsRegistry.getSampleValue(COALESCED) < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(metricsRegistry.getSampleValue(COALESCED)).isEqualTo(expected);
+    }
+
+    /**
+     * Blocks collecting until released, counting the collect calls.
+     */
+    private static class BlockingCollector extends Collector implements Collector.Describable {
+        final AtomicInteger calls = new AtomicInteger();
+        final Semaphore started = new Semaphore(0);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            calls.incrementAndGet();
+            started.release();
+            try {
+                if (!release.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Not released");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            return describe();
+        }
+
+        @Override
+        public List<MetricFamilySamples> describe() {
+            return List.of(new GaugeMetricFamily("test_a", "help", 1),
+                    new GaugeMetricFamily("test_b", "help", 2));
+        }
+    }
+
+    /**
+     * Captures the response of a GET request.
+     */
+    private static class TestExchange extends HttpExchange {
+        private final URI requestURI;
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        private int responseCode = -1;
+
+        TestExchange(String requestURI) {
+            this.requestURI = URI.create(requestURI);
+        }
+
+        String body() {
+            return responseBody.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return requestURI;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "GET";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return responseBody;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            responseCode = rCode;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            // Not used
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            // Not used
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+
+    @Test
+    public void testParseNameFilter() {
+        assertThat(CoalescingMetricsHttpHandler.parseNameFilter(null)).isNull();
+        assertThat(CoalescingMetricsHttpHandler.parseNameFilter("")).isNull();
+        assertThat(CoalescingMetricsHttpHandler.parseNameFilter("foo=bar")).isNull();
+        assertThat(CoalescingMetricsHttpHandler.parseNameFilter("name[]=fsimage_dirs"))
+                .containsExactly("fsimage_dirs");
+        assertThat(CoalescingMetricsHttpHandler.parseNameFilter(
+                "name%5B%5D=fsimage_dirs&foo=bar&name[]=fsimage_blocks"))
+                .containsExactly("fsimage_blocks", "fsimage_dirs");
+    }
+
+    @Test
+    public void testRenderKeyIgnoresNameOrder() {
+        assertThat(new CoalescingMetricsHttpHandler.RenderKey(Scope.ALL, "text/plain",
+                CoalescingMetricsHttpHandler.parseNameFilter("name[]=a&name[]=b")))
+                .isEqualTo(new CoalescingMetricsHttpHandler.RenderKey(Scope.ALL, "text/plain",
+                        CoalescingMetricsHttpHandler.parseNameFilter("name[]=b&name[]=a")));
+    }
+
+    @Test
+    public void testScope() {
+        assertThat(Scope.fromPath("/metrics")).isEqualTo(Scope.ALL);
+        assertThat(Scope.fromPath("/metrics/")).isEqualTo(Scope.ALL);
+        assertThat(Scope.fromPath("/metrics/overall")).isEqualTo(Scope.OVERALL);
+        assertThat(Scope.fromPath("/metrics/users/")).isEqualTo(Scope.USERS);
+        assertThat(Scope.fromPath("/metrics/paths")).isEqualTo(Scope.PATHS);
+        assertThat(Scope.fromPath("/metrics/foo")).isNull();
+
+        assertThat(Scope.OVERALL.sampleNameFilter.test("fsimage_fsize_count")).isTrue();
+        assertThat(Scope.OVERALL.sampleNameFilter.test("fsimage_scrape_requests_total")).isTrue();
+        assertThat(Scope.OVERALL.sampleNameFilter.test("fsimage_user_fsize_count")).isFalse();
+        assertThat(Scope.OVERALL.sampleNameFilter.test("fsimage_path_set_dirs")).isFalse();
+        assertThat(Scope.USERS.sampleNameFilter.test("fsimage_user_fsize_count")).isTrue();
+        assertThat(Scope.USERS.sampleNameFilter.test("fsimage_group_dirs")).isTrue();
+        assertThat(Scope.USERS.sampleNameFilter.test("fsimage_dirs")).isFalse();
+        assertThat(Scope.PATHS.sampleNameFilter.test("fsimage_path_dirs")).isTrue();
+        assertThat(Scope.PATHS.sampleNameFilter.test("fsimage_path_set_fsize_sum")).isTrue();
+        assertThat(Scope.PATHS.sampleNameFilter.test("fsimage_user_dirs")).isFalse();
+    }
+}
@@ -0,0 +1,157 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Benchmarks the FSImage load and compute hot path, by phase.
+ * <p>
+ * Disabled by default, run via
+ * <pre>
+ * mvn verify -Dit.test=ComputeBenchmarkIT -Djmh.compute=true [-Djmh.fsimage=/path/fsimage_A,/path/fsimage_B] [-Djmh.xmx=8g]
+ * </pre>
+ * Benchmarks the test fsimage unless other fsimages are given, such as production snapshots or generated namespaces.
+ * Reports throughput including inodes per second, and allocation rate via GC profiler,
+ * as JSON in target/jmh-reports/ (override via -Djmh.result=...) for comparing commits.
+ */
+public class ComputeBenchmarkIT {
+
+    /**
+     * Counts processed inodes per operation, for reporting inode throughput.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class InodeCounter {
+        public long inodes;
+    }
+
+    @State(Scope.Benchmark)
+    public static class BenchmarkState {
+        @Param({"src/test/resources/fsimage_0001"})
+        String fsImage;
+        @Param({"10", "1000"})
+        int paths;
+
+        File fsImageFile;
+        FsImageData fsImageData;
+        long inodes;
+        Config overallConfig;
+        Config selectiveConfig;
+        Config pathConfig;
+        Config pathSetConfig;
+        List<String> pathPatterns;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            fsImageFile = new File(fsImage);
+            fsImageData = FsImageUpdateHandler.load(fsImageFile);
+            overallConfig = new Config();
+            inodes = FsImageReporter.computeStatsReport(fsImageData, overallConfig).getInodes();
+
+            // Second level directories, or fewer if the fsimage has less
+            pathPatterns = List.of("/.*/.*");
+            final Set<String> pathSet = new TreeSet<>(FsImageReporter.expandPaths(fsImageData, pathPatterns))
+                    .stream().limit(paths).collect(Collectors.toSet());
+            selectiveConfig = new Config();
+            selectiveConfig.setSelectiveDecodingEnabled(true);
+
+            pathConfig = new Config();
+            pathConfig.setPaths(pathSet);
+
+            // Distribute paths across ten path sets
+            final Map<String, List<String>> pathSets = new HashMap<>();
+            int i = 0;
+            for (String path : pathSet) {
+                pathSets.computeIfAbsent("set" + (i++ % 10), k -> new ArrayList<>()).add(path);
+            }
+            pathSetConfig = new Config();
+            pathSetConfig.setPathSets(pathSets);
+        }
+    }
+
+    @Benchmark
+    public void load(Blackhole blackhole, BenchmarkState state, InodeCounter counter) throws IOException {
+        blackhole.consume(FsImageUpdateHandler.load(state.fsImageFile));
+        counter.inodes += state.inodes;
+    }
+
+    @Benchmark
+    public void computeOverallUserGroupStats(Blackhole blackhole, BenchmarkState state, InodeCounter counter)
+            throws IOException {
+        blackhole.consume(FsImageReporter.computeStatsReport(state.fsImageData, state.overallConfig));
+        counter.inodes += state.inodes;
+    }
+
+    @Benchmark
+    public void computeOverallUserGroupStatsSelective(Blackhole blackhole, BenchmarkState state,
+                                                      InodeCounter counter) throws IOException {
+        blackhole.consume(FsImageReporter.computeStatsReport(state.fsImageData, state.fsImageFile,
+                state.selectiveConfig));
+        counter.inodes += state.inodes;
+    }
+
+    @Benchmark
+    public void computePathStats(Blackhole blackhole, BenchmarkState state) throws IOException {
+        final FsImageReporter.Report report = new FsImageReporter.Report(state.pathConfig);
+        FsImageReporter.computePathStats(state.fsImageData, state.pathConfig, report);
+        blackhole.consume(report);
+    }
+
+    @Benchmark
+    public void computePathSetStats(Blackhole blackhole, BenchmarkState state) {
+        final FsImageReporter.Report report = new FsImageReporter.Report(state.pathSetConfig);
+        FsImageReporter.computePathSetStatsParallel(state.fsImageData, state.pathSetConfig, report);
+        blackhole.consume(report);
+    }
+
+    @Benchmark
+    public void expandPaths(Blackhole blackhole, BenchmarkState state) throws IOException {
+        blackhole.consume(FsImageReporter.expandPaths(state.fsImageData, state.pathPatterns));
+    }
+
+    @Test
+    public void runMicroBenchMark() throws RunnerException {
+        Assume.assumeTrue("Enable via -Djmh.compute=true", Boolean.getBoolean("jmh.compute"));
+
+        new File("target/jmh-reports/").mkdirs();
+        ChainedOptionsBuilder opt = new OptionsBuilder()
+                .include(getClass().getName())
+                .warmupIterations(1)
+                .measurementIterations(3)
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .addProfiler(GCProfiler.class)
+                .jvmArgs("-server", "-XX:+UseG1GC", "-Xmx" + System.getProperty("jmh.xmx", "4g"))
+                .shouldDoGC(true)
+                .forks(1)
+                .resultFormat(ResultFormatType.JSON)
+                .result(System.getProperty("jmh.result",
+                        "target/jmh-reports/" + getClass().getSimpleName() + ".json"));
+        final String fsImages = System.getProperty("jmh.fsimage");
+        if (null != fsImages) {
+            opt.param("fsImage", fsImages.split(","));
+        }
+
+        new Runner(opt.build()).run();
+    }
+}
@@ -0,0 +1,51 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConfigWatcherTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testDetectsChangedConfig() throws IOException {
+        final File configFile = temporaryFolder.newFile("config.yml");
+        write(configFile, "fsImagePath : /tmp\npaths:\n  - /user/.*\n");
+        final List<Config> changedConfigs = new ArrayList<>();
+        final ConfigWatcher configWatcher = new ConfigWatcher(configFile, changedConfigs::add);
+
+        configWatcher.run();
+        assertThat(changedConfigs).isEmpty();
+
+        write(configFile, "fsImagePath : /tmp\npaths:\n  - /user/.*\n  - /datalake/.*\n");
+        configWatcher.run();
+        assertThat(changedConfigs).hasSize(1);
+        assertThat(changedConfigs.get(0).getPaths()).containsExactlyInAnyOrder("/user/.*", "/datalake/.*");
+
+        // Unchanged
+        configWatcher.run();
+        assertThat(changedConfigs).hasSize(1);
+
+        // Invalid config keeps previous config
+        write(configFile, "fsImagePath : /tmp\nnoSuchOption: true\n");
+        configWatcher.run();
+        assertThat(changedConfigs).hasSize(1);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        final long lastModified = file.lastModified();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        // Changed size suffices, but ensure changed modification time on coarse grained file systems, too
+        assertThat(file.setLastModified(lastModified + 1000)).isTrue();
+    }
+}
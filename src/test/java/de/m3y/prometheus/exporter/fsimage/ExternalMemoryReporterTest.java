@@ -0,0 +1,147 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ExternalMemoryReporterTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testSpillToDiskMatchesInMemory() throws IOException {
+        final Config config = new Config();
+        // Names subasset1 and subasset2 share the name key of the first eight bytes
+        config.setPaths(new HashSet<>(Arrays.asList("/tmp" /* Non existent */, "/datalake/.*", "/datalake/.*/.*",
+                "/user/m.*", "/")));
+        final Map<String, List<String>> pathSets = new HashMap<>();
+        pathSets.put("userdata", Arrays.asList("/user/mm", "/datalake/asset1"));
+        pathSets.put("datalake", Arrays.asList("/datalake/asset[13]", "/datalake/asset2"));
+        config.setPathSets(pathSets);
+        assertSameReport(new File("src/test/resources/fsimage_0001"), config);
+    }
+
+    @Test
+    public void testSpillToDiskMatchesInMemoryForGeneratedImage() throws IOException {
+        final FsImageGenerator generator = new FsImageGenerator();
+        for (String option : new String[]{"inodes=20000", "fanOut=4", "maxDepth=5", "users=10", "groups=3",
+                "fileSizeDistribution=log_normal", "meanFileSize=256 MiB", "emptyFileRatio=0.1"}) {
+            generator.configure(option);
+        }
+        final File fsImageFile = temporaryFolder.newFile("fsimage_0042");
+        generator.write(fsImageFile);
+
+        final Config config = new Config();
+        config.setPaths(new HashSet<>(Arrays.asList("/d0", "/d1/.*", "/d.*/d\\d/d[23]")));
+        config.setPathSets(Map.of("mixed", Arrays.asList("/d2", "/d3/d0", "/d0/d.*")));
+        assertSameReport(fsImageFile, config);
+
+        // Without paths, only overall, group and user stats
+        assertSameReport(fsImageFile, new Config());
+    }
+
+    @Test
+    public void testSpillToDiskSkipsINodesOnlyReferencedBySnapshots() throws IOException {
+        final FsImageGenerator generator = new FsImageGenerator()
+                .inodes(5000).fanOut(4).users(10)
+                .snapshots(2, 3)
+                .deletedFiles(10);
+        final File fsImageFile = temporaryFolder.newFile("fsimage_0043");
+        generator.write(fsImageFile);
+
+        final Config config = new Config();
+        config.setPaths(new HashSet<>(Arrays.asList("/", "/d0", "/d1/.*")));
+        config.setPathSets(Map.of("snapshottable", Arrays.asList("/d0", "/d1")));
+        assertSameReport(fsImageFile, config);
+        assertSameReport(fsImageFile, new Config());
+    }
+
+    @Test
+    public void testSpillDirectoryCleanedUp() throws IOException {
+        final File spillDirectory = temporaryFolder.newFolder();
+        final Config config = new Config();
+        config.setSpillDirectory(spillDirectory.getAbsolutePath());
+        config.setPaths(new HashSet<>(Arrays.asList("/datalake/.*")));
+        final FsImageReporter.Report report = ExternalMemoryReporter.computeStatsReport(
+                new File("src/test/resources/fsimage_0001"), config);
+        assertThat(report.pathStats).containsKey("/datalake/asset1");
+        assertThat(spillDirectory.list()).isEmpty();
+    }
+
+    @Test
+    public void testSpillToDiskTracksProgressAndAborts() throws IOException {
+        final File spillDirectory = temporaryFolder.newFolder();
+        final Config config = new Config();
+        config.setSpillDirectory(spillDirectory.getAbsolutePath());
+        config.setPaths(new HashSet<>(Arrays.asList("/datalake/.*")));
+        final File fsImageFile = new File("src/test/resources/fsimage_0001");
+
+        final ComputeProgress progress = new ComputeProgress(fsImageFile, null);
+        ExternalMemoryReporter.computeStatsReport(fsImageFile, config, 4096, progress);
+        assertThat(progress.getPhase()).isEqualTo(ComputePhase.PATH_STATS);
+        assertThat(progress.getInodes()).isPositive();
+
+        final ComputeProgress aborted = new ComputeProgress(fsImageFile, null) {
+            @Override
+            void onInode() {
+                abort(); // While streaming inodes
+                super.onInode();
+            }
+        };
+        assertThatThrownBy(() -> ExternalMemoryReporter.computeStatsReport(fsImageFile, config, 4096, aborted))
+                .isInstanceOf(CancellationException.class);
+        assertThat(spillDirectory.list()).isEmpty();
+    }
+
+    private static void assertSameReport(File fsImageFile, Config config) throws IOException {
+        final FsImageReporter.Report expected = FsImageReporter.computeStatsReport(
+                FsImageUpdateHandler.load(fsImageFile), config);
+        // Tiny buffer, for spilling many runs
+        final FsImageReporter.Report actual = ExternalMemoryReporter.computeStatsReport(fsImageFile, config, 4096,
+                null);
+
+        assertThat(actual.getInodes()).isEqualTo(expected.getInodes());
+        assertSameStats(actual.overallStats, expected.overallStats);
+        assertThat(actual.userStats.keySet()).isEqualTo(expected.userStats.keySet());
+        for (Map.Entry<String, FsImageReporter.UserStats> entry : expected.userStats.entrySet()) {
+            assertSameStats(actual.userStats.get(entry.getKey()), entry.getValue());
+        }
+        assertThat(actual.groupStats.keySet()).isEqualTo(expected.groupStats.keySet());
+        for (Map.Entry<String, FsImageReporter.GroupStats> entry : expected.groupStats.entrySet()) {
+            assertSameStats(actual.groupStats.get(entry.getKey()), entry.getValue());
+        }
+        assertThat(actual.pathStats.keySet()).isEqualTo(expected.pathStats.keySet());
+        for (Map.Entry<String, FsImageReporter.PathStats> entry : expected.pathStats.entrySet()) {
+            final FsImageReporter.PathStats pathStats = actual.pathStats.get(entry.getKey());
+            assertSameStats(pathStats, entry.getValue());
+            assertThat(pathStats.spaceQuota).isEqualTo(entry.getValue().spaceQuota);
+        }
+        assertThat(actual.pathSetStats.keySet()).isEqualTo(expected.pathSetStats.keySet());
+        for (Map.Entry<String, FsImageReporter.PathStats> entry : expected.pathSetStats.entrySet()) {
+            assertSameStats(actual.pathSetStats.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    private static void assertSameStats(FsImageReporter.AbstractFileSystemStats actual,
+                                        FsImageReporter.AbstractFileSystemStats expected) {
+        assertThat(actual).isNotNull();
+        assertThat(actual.sumDirectories.sum()).isEqualTo(expected.sumDirectories.sum());
+        assertThat(actual.sumSymLinks.sum()).isEqualTo(expected.sumSymLinks.sum());
+        assertThat(actual.sumBlocks.sum()).isEqualTo(expected.sumBlocks.sum());
+        assertThat(actual.fileSize.count()).isEqualTo(expected.fileSize.count());
+        assertThat(actual.fileSize.sum()).isEqualTo(expected.fileSize.sum());
+        assertThat(actual.fileConsumedSize.sum()).isEqualTo(expected.fileConsumedSize.sum());
+    }
+}
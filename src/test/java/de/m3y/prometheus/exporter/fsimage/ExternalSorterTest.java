@@ -0,0 +1,89 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExternalSorterTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testSortSpillingRuns() throws IOException {
+        final Path directory = temporaryFolder.newFolder().toPath();
+        final Random random = new Random(42);
+        final long[][] expected = new long[10000][];
+        // Buffer of 100 records, merging 100 runs
+        try (ExternalSorter sorter = new ExternalSorter(directory, "test", 3, 100 * 3 * 8)) {
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = new long[]{random.nextInt(1000), random.nextLong(), i};
+                sorter.add(expected[i]);
+            }
+            assertThat(sorter.size()).isEqualTo(expected.length);
+            try (Stream<Path> files = Files.list(directory)) {
+                assertThat(files.count()).isEqualTo(expected.length / 100 - 1);
+            }
+
+            Arrays.sort(expected, Comparator.<long[]>comparingLong(r -> r[0]).thenComparingLong(r -> r[1]));
+            try (ExternalSorter.SortedFile sorted = sorter.sort()) {
+                assertThat(sorted.size).isEqualTo(expected.length);
+                try (ExternalSorter.RecordReader reader = sorted.reader()) {
+                    for (long[] record : expected) {
+                        assertThat(reader.next()).isTrue();
+                        assertThat(reader.record).containsExactly(record);
+                    }
+                    assertThat(reader.next()).isFalse();
+                }
+
+                final long[] record = new long[3];
+                sorted.read(42, record);
+                assertThat(record).containsExactly(expected[42]);
+                for (long key : new long[]{-1, 0, 500, 999, 1000}) {
+                    int index = 0;
+                    while (index < expected.length && expected[index][0] < key) {
+                        index++;
+                    }
+                    assertThat(sorted.lowerBound(key, record)).isEqualTo(index);
+                }
+                for (long[] expectedRecord : new long[][]{expected[0], expected[42], expected[expected.length - 1]}) {
+                    final long index = sorted.lowerBound(expectedRecord[0], expectedRecord[1], record);
+                    sorted.read(index, record);
+                    assertThat(record).containsExactly(expectedRecord);
+                }
+                assertThat(sorted.lowerBound(999, Long.MAX_VALUE, record)).isEqualTo(expected.length);
+            }
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files).hasSize(1); // Only sorted file, with runs deleted
+        }
+    }
+
+    @Test
+    public void testSortEmpty() throws IOException {
+        final Path directory = temporaryFolder.newFolder().toPath();
+        try (ExternalSorter sorter = new ExternalSorter(directory, "test", 2, 1024);
+             ExternalSorter.SortedFile sorted = sorter.sort();
+             ExternalSorter.RecordReader reader = sorted.reader()) {
+            assertThat(sorted.size).isZero();
+            assertThat(reader.next()).isFalse();
+            assertThat(sorted.lowerBound(1, new long[2])).isZero();
+        }
+    }
+
+    @Test
+    public void testHeapSort() {
+        final long[] records = {3, 1, 1, 2, 3, 0, 1, 1};
+        ExternalSorter.sort(records, 2, 4);
+        assertThat(records).containsExactly(1, 1, 1, 2, 3, 0, 3, 1);
+    }
+}
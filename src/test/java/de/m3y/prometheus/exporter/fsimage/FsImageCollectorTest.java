@@ -1,23 +1,27 @@
 package de.m3y.prometheus.exporter.fsimage;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.SampleNameFilter;
 import org.junit.Test;
 
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.assertThat;
 import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.labelValues;
 import static de.m3y.prometheus.assertj.MetricFamilySamplesUtils.getMetricFamilySamples;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
 public class FsImageCollectorTest {
     @Test
-    public void testCollect() {
+    public void testCollect() throws InterruptedException {
         Config config = new Config();
         config.setFsImagePath("src/test/resources");
         FsImageCollector fsImageCollector = new FsImageCollector(config);
+        assertThat(fsImageCollector.awaitFsImageReport(10, TimeUnit.SECONDS)).isTrue();
         final List<Collector.MetricFamilySamples> metricFamilySamples = fsImageCollector.collect();
 
         assertThat(getMetricFamilySamples(metricFamilySamples, "fsimage_scrape_requests"))
@@ -42,11 +46,84 @@ public class FsImageCollectorTest {
     }
 
     @Test
-    public void testCollectNonExistingPath() {
+    public void testCollectFiltered() throws InterruptedException {
+        Config config = new Config();
+        config.setFsImagePath("src/test/resources");
+        config.setPaths(new HashSet<>(Collections.singletonList("/datalake/.*")));
+        FsImageCollector fsImageCollector = new FsImageCollector(config);
+        assertThat(fsImageCollector.awaitFsImageReport(10, TimeUnit.SECONDS)).isTrue();
+        final List<Collector.MetricFamilySamples> metricFamilySamples = fsImageCollector.collect(
+                SampleNameFilter.restrictToNamesEqualTo(null, Collections.singleton("fsimage_dirs")));
+
+        assertThat(getMetricFamilySamples(metricFamilySamples, "fsimage_dirs"))
+                .hasTypeOfGauge()
+                .hasSampleValue(14.0);
+        // Not requested families are skipped
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> getMetricFamilySamples(metricFamilySamples, "fsimage_fsize"));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> getMetricFamilySamples(metricFamilySamples, "fsimage_user_dirs"));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> getMetricFamilySamples(metricFamilySamples, "fsimage_path_fsize"));
+    }
+
+    @Test
+    public void testInvalidWatchInterval() {
+        Config config = new Config();
+        config.setFsImagePath("src/test/resources");
+        config.setFsImageWatchIntervalSeconds(0);
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new FsImageCollector(config))
+                .withMessageContaining("fsImageWatchIntervalSeconds");
+    }
+
+    @Test
+    public void testReconfigureInvalid() {
+        Config config = new Config();
+        config.setFsImagePath("src/test/resources");
+        FsImageCollector fsImageCollector = new FsImageCollector(config, null, null);
+
+        Config invalid = new Config();
+        invalid.setFsImagePath("src/test/resources");
+        invalid.setAnomalyLastBlockFillPercent(101);
+        fsImageCollector.reconfigure(invalid);
+        assertThat(fsImageCollector.getConfig()).isSameAs(config);
+
+        invalid.setAnomalyLastBlockFillPercent(10);
+        invalid.setSpillToDiskEnabled(true);
+        invalid.setSpillBufferMiB(0);
+        fsImageCollector.reconfigure(invalid);
+        assertThat(fsImageCollector.getConfig()).isSameAs(config);
+        fsImageCollector.shutdown();
+    }
+
+    @Test
+    public void testReconfigureKeepsNewConfig() {
+        Config config = new Config();
+        config.setFsImagePath("src/test/resources");
+        FsImageCollector fsImageCollector = new FsImageCollector(config, null, null);
+
+        Config newConfig = new Config();
+        newConfig.setFsImagePath("src/test");
+        newConfig.setFsImageWatchIntervalSeconds(config.getFsImageWatchIntervalSeconds() + 1);
+        newConfig.setReportHistorySize(config.getReportHistorySize() + 1);
+        fsImageCollector.reconfigure(newConfig);
+
+        // Options requiring a restart are ignored, without changing the caller's config
+        assertThat(fsImageCollector.getConfig()).isSameAs(newConfig);
+        assertThat(newConfig.getFsImagePath()).isEqualTo("src/test");
+        assertThat(newConfig.getFsImageWatchIntervalSeconds()).isEqualTo(config.getFsImageWatchIntervalSeconds() + 1);
+        assertThat(newConfig.getReportHistorySize()).isEqualTo(config.getReportHistorySize() + 1);
+        fsImageCollector.shutdown();
+    }
+
+    @Test
+    public void testCollectNonExistingPath() throws InterruptedException {
         Config config = new Config();
         config.setFsImagePath("src/test/resources");
         config.setPaths(new HashSet<>(Collections.singletonList("/non/existing/path/.*")));
         FsImageCollector fsImageCollector = new FsImageCollector(config);
+        assertThat(fsImageCollector.awaitFsImageReport(10, TimeUnit.SECONDS)).isTrue();
         final List<Collector.MetricFamilySamples> metricFamilySamples = fsImageCollector.collect();
 
         // Check no path metrics exist
@@ -59,13 +136,45 @@ public class FsImageCollectorTest {
     }
 
     @Test
-    public void testCollectForPath() {
+    public void testCollectForPath() throws InterruptedException {
         Config config = new Config();
         config.setFsImagePath("src/test/resources");
         config.setPaths(new HashSet<>(Collections.singletonList("/datalake/.*")));
         FsImageCollector fsImageCollector = new FsImageCollector(config);
+        assertThat(fsImageCollector.awaitFsImageReport(10, TimeUnit.SECONDS)).isTrue();
         final List<Collector.MetricFamilySamples> metricFamilySamples = fsImageCollector.collect();
 
+        final Collector.MetricFamilySamples phaseDuration =
+                getMetricFamilySamples(metricFamilySamples, "fsimage_compute_phase_duration_seconds");
+        assertThat(phaseDuration).hasTypeOfGauge().hasSampleLabelNames("phase")
+                .hasSampleValue(labelValues("path_set_stats"), 0);
+        assertThat(sampleValue(phaseDuration, "load")).isGreaterThan(0).isLessThan(1);
+        assertThat(sampleValue(phaseDuration, "stats")).isGreaterThan(0).isLessThan(1);
+        assertThat(sampleValue(phaseDuration, "path_stats")).isGreaterThan(0).isLessThan(1);
+        final Collector.MetricFamilySamples phaseInodeRate =
+                getMetricFamilySamples(metricFamilySamples, "fsimage_compute_phase_inodes_per_second");
+        assertThat(sampleValue(phaseInodeRate, "load")).isGreaterThan(0);
+        assertThat(sampleValue(phaseInodeRate, "stats")).isGreaterThan(0);
+        if (AllocationCounter.isSupported()) {
+            final Collector.MetricFamilySamples phaseAllocated =
+                    getMetricFamilySamples(metricFamilySamples, "fsimage_compute_phase_allocated_bytes");
+            assertThat(sampleValue(phaseAllocated, "load")).isGreaterThan(0);
+            assertThat(sampleValue(phaseAllocated, "stats")).isGreaterThan(0);
+        }
+        assertThat(getMetricFamilySamples(metricFamilySamples, "fsimage_compute_gc_pause_seconds"))
+                .hasTypeOfGauge()
+                .hasSampleValue(da -> da.isGreaterThanOrEqualTo(0));
+        assertThat(getMetricFamilySamples(metricFamilySamples, "fsimage_compute_gc_collections"))
+                .hasSampleValue(da -> da.isGreaterThanOrEqualTo(0));
+        assertThat(getMetricFamilySamples(metricFamilySamples, "fsimage_load_heap_peak_bytes"))
+                .hasSampleValue(da -> da.isGreaterThan(0));
+        assertThat(getMetricFamilySamples(metricFamilySamples, "fsimage_compute_heap_peak_bytes"))
+                .hasSampleValue(da -> da.isGreaterThan(0));
+        final Collector.MetricFamilySamples pathDuration =
+                getMetricFamilySamples(metricFamilySamples, "fsimage_path_compute_duration_seconds");
+        assertThat(pathDuration).hasTypeOfGauge().hasSampleLabelNames("path");
+        assertThat(sampleValue(pathDuration, "/datalake/asset1")).isGreaterThan(0).isLessThan(1);
+        assertThat(sampleValue(pathDuration, "/datalake/asset3")).isGreaterThan(0).isLessThan(1);
         assertThat(getMetricFamilySamples(metricFamilySamples, "fsimage_path_dirs"))
                 .hasTypeOfGauge()
                 .hasSampleLabelNames("path")
@@ -111,4 +220,11 @@ public class FsImageCollectorTest {
                 .hasSampleBucketValue(labelValues("/datalake/asset3"), Double.POSITIVE_INFINITY, 3.0)
         ;
     }
+
+    private static double sampleValue(Collector.MetricFamilySamples mfs, String labelValue) {
+        return mfs.samples.stream()
+                .filter(sample -> sample.labelValues.equals(Collections.singletonList(labelValue)))
+                .findFirst().orElseThrow(() -> new AssertionError("No sample for " + labelValue))
+                .value;
+    }
 }
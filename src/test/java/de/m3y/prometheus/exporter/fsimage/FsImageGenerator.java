@@ -0,0 +1,641 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import de.m3y.hadoop.hdfs.hfsa.util.IECBinary;
+import org.apache.hadoop.hdfs.protocol.proto.HdfsProtos;
+import org.apache.hadoop.hdfs.server.namenode.FSImageUtil;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+import org.apache.hadoop.hdfs.server.namenode.NameNodeLayoutVersion;
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
+import org.apache.hadoop.thirdparty.protobuf.CodedOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Generates synthetic, valid protobuf FSImage files without HDFS cluster.
+ * <p>
+ * Directories form a complete tree with given fan-out below root, limited by max depth.
+ * Files are distributed evenly across all directories.
+ * Directories are named d0, d1, ... and files f0, f1, ... within their parent directory,
+ * so that e.g. /d0/d1 is the second child directory of the first top level directory.
+ * The content is deterministic for a given seed.
+ * <p>
+ * Writes streaming with little heap, e.g. 100M inodes result in a FSImage of about 6 GiB:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     de.m3y.prometheus.exporter.fsimage.FsImageGenerator \
+ *     /tmp/fsimage_0001 inodes=100000000 fanOut=20 maxDepth=6 users=5000 fileSizeDistribution=log_normal
+ * </pre>
+ */
+class FsImageGenerator {
+    private static final long BLOCK_SIZE = 128L * 1024L * 1024L;
+    private static final long MODIFICATION_TIME = 1_500_000_000_000L;
+    /** RS-6-3-1024k, the default HDFS erasure coding policy */
+    static final int EC_POLICY_ID = 1;
+    private static final int EC_DATA_UNITS = 6;
+    /** COLD, WARM, ONE_SSD and ALL_SSD */
+    static final int[] STORAGE_POLICY_IDS = {2, 5, 10, 12};
+
+    /**
+     * File size distribution, with configured mean file size.
+     */
+    enum FileSizeDistribution {
+        /** All files of mean size */
+        FIXED,
+        /** Uniform between zero and twice the mean */
+        UNIFORM,
+        EXPONENTIAL,
+        /** Heavy-tailed, many small and few huge files, as typical for HDFS */
+        LOG_NORMAL
+    }
+
+    private long inodes = 1000;
+    private int fanOut = 10;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int filesPerDirectory = 10;
+    private int users = 10;
+    private int groups = 3;
+    private double userSkew = 1;
+    private FileSizeDistribution fileSizeDistribution = FileSizeDistribution.EXPONENTIAL;
+    private long meanFileSize = 32L * 1024L * 1024L;
+    private double emptyFileRatio = 0;
+    private double erasureCodedRatio = 0;
+    private double storagePolicyRatio = 0;
+    private int snapshottableDirectories = 0;
+    private int snapshotsPerDirectory = 0;
+    private int deletedFiles = 0;
+    private long seed = 42;
+
+    // Computed on write
+    private long directoryCount;
+    private long fileTotal;
+
+    /**
+     * @param inodes the total number of inodes, including root
+     */
+    FsImageGenerator inodes(long inodes) {
+        this.inodes = inodes;
+        return this;
+    }
+
+    /**
+     * @param fanOut the number of child directories per directory
+     */
+    FsImageGenerator fanOut(int fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    /**
+     * @param maxDepth the max directory depth, with 0 for root only.
+     *                 Limiting depth increases the files per directory for given inodes.
+     */
+    FsImageGenerator maxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * @param filesPerDirectory the files per directory, if not limited by max depth
+     */
+    FsImageGenerator filesPerDirectory(int filesPerDirectory) {
+        this.filesPerDirectory = filesPerDirectory;
+        return this;
+    }
+
+    FsImageGenerator users(int users) {
+        this.users = users;
+        return this;
+    }
+
+    FsImageGenerator groups(int groups) {
+        this.groups = groups;
+        return this;
+    }
+
+    /**
+     * @param userSkew the skew of inode ownership, with 1 for uniform and larger values
+     *                 for few users owning most inodes
+     */
+    FsImageGenerator userSkew(double userSkew) {
+        this.userSkew = userSkew;
+        return this;
+    }
+
+    FsImageGenerator fileSizeDistribution(FileSizeDistribution fileSizeDistribution) {
+        this.fileSizeDistribution = fileSizeDistribution;
+        return this;
+    }
+
+    FsImageGenerator meanFileSize(long meanFileSize) {
+        this.meanFileSize = meanFileSize;
+        return this;
+    }
+
+    FsImageGenerator emptyFileRatio(double emptyFileRatio) {
+        this.emptyFileRatio = emptyFileRatio;
+        return this;
+    }
+
+    /**
+     * @param erasureCodedRatio the ratio of erasure coded files, using RS-6-3-1024k
+     */
+    FsImageGenerator erasureCodedRatio(double erasureCodedRatio) {
+        this.erasureCodedRatio = erasureCodedRatio;
+        return this;
+    }
+
+    /**
+     * @param storagePolicyRatio the ratio of files with explicit storage policy, such as COLD
+     */
+    FsImageGenerator storagePolicyRatio(double storagePolicyRatio) {
+        this.storagePolicyRatio = storagePolicyRatio;
+        return this;
+    }
+
+    /**
+     * @param snapshottableDirectories the number of snapshottable top level directories
+     * @param snapshotsPerDirectory    the number of snapshots per snapshottable directory
+     */
+    FsImageGenerator snapshots(int snapshottableDirectories, int snapshotsPerDirectory) {
+        this.snapshottableDirectories = snapshottableDirectories;
+        this.snapshotsPerDirectory = snapshotsPerDirectory;
+        return this;
+    }
+
+    /**
+     * Adds files deleted after the last snapshot of the first snapshottable directory, only retained by the snapshot.
+     * The first file is deleted from /d0, and the other files are in the deleted directory /d0/deleted.
+     * The deleted inodes remain in the INODE section, but are not children of any current directory.
+     *
+     * @param deletedFiles the number of deleted files
+     */
+    FsImageGenerator deletedFiles(int deletedFiles) {
+        this.deletedFiles = deletedFiles;
+        return this;
+    }
+
+    FsImageGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    long getDirectories() {
+        // Complete tree size limited by max depth
+        long maxDirectories = 0;
+        long level = 1;
+        for (int depth = 0; depth <= maxDepth && maxDirectories < inodes; depth++) {
+            maxDirectories += level;
+            level = level > Long.MAX_VALUE / fanOut ? Long.MAX_VALUE / 2 : level * fanOut;
+        }
+        return Math.max(1, Math.min(maxDirectories, inodes / (filesPerDirectory + 1)));
+    }
+
+    long getFiles() {
+        return Math.max(0, inodes - getDirectories());
+    }
+
+    /**
+     * @return the number of top level directories
+     */
+    long getTopLevelDirectories() {
+        return Math.min(fanOut, getDirectories() - 1);
+    }
+
+    static String userName(int user) {
+        return "user" + user;
+    }
+
+    static String groupName(int group) {
+        return "group" + group;
+    }
+
+    /**
+     * Gets the path of a directory.
+     *
+     * @param directory the directory index, with 0 for root
+     * @return the absolute path
+     */
+    String directoryPath(long directory) {
+        if (0 == directory) {
+            return "/";
+        }
+        StringBuilder buf = new StringBuilder();
+        for (long d = directory; d > 0; d = (d - 1) / fanOut) {
+            buf.insert(0, "/d" + (d - 1) % fanOut);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Writes the FSImage file.
+     *
+     * @param file the target file
+     * @throws IOException on error
+     */
+    void write(File file) throws IOException {
+        if (fanOut < 1 || filesPerDirectory < 0 || users < 1 || groups < 1 || maxDepth < 0 || userSkew < 1) {
+            throw new IllegalArgumentException("Expected fanOut, users, groups and userSkew >= 1, "
+                    + "and filesPerDirectory and maxDepth >= 0");
+        }
+        if (snapshottableDirectories > getTopLevelDirectories()) {
+            throw new IllegalArgumentException("Expected at most " + getTopLevelDirectories()
+                    + " snapshottable top level directories");
+        }
+        if (deletedFiles > 0 && (snapshottableDirectories < 1 || snapshotsPerDirectory < 1)) {
+            throw new IllegalArgumentException("Expected snapshots for retaining deleted files");
+        }
+        directoryCount = getDirectories();
+        fileTotal = getFiles();
+        try (CountingOutputStream out = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+            out.write(FSImageUtil.MAGIC_HEADER);
+            FsImageProto.FileSummary.Builder summary = FsImageProto.FileSummary.newBuilder()
+                    .setOndiskVersion(FSImageUtil.FILE_VERSION)
+                    .setLayoutVersion(NameNodeLayoutVersion.CURRENT_LAYOUT_VERSION);
+
+            long offset = out.count;
+            writeStringTable(out);
+            summary.addSections(section("STRING_TABLE", offset, out.count));
+
+            offset = out.count;
+            writeINodes(out);
+            summary.addSections(section("INODE", offset, out.count));
+
+            offset = out.count;
+            writeINodeDirectories(out);
+            summary.addSections(section("INODE_DIR", offset, out.count));
+
+            if (snapshottableDirectories > 0) {
+                offset = out.count;
+                writeSnapshots(out);
+                summary.addSections(section("SNAPSHOT", offset, out.count));
+
+                offset = out.count;
+                writeSnapshotDiffs(out);
+                summary.addSections(section("SNAPSHOT_DIFF", offset, out.count));
+            }
+
+            final FsImageProto.FileSummary fileSummary = summary.build();
+            fileSummary.writeDelimitedTo(out);
+            final int summaryLength = CodedOutputStream.computeUInt32SizeNoTag(fileSummary.getSerializedSize())
+                    + fileSummary.getSerializedSize();
+            out.write(ByteBuffer.allocate(4).putInt(summaryLength).array());
+        }
+    }
+
+    private static FsImageProto.FileSummary.Section section(String name, long offset, long end) {
+        return FsImageProto.FileSummary.Section.newBuilder()
+                .setName(name).setOffset(offset).setLength(end - offset).build();
+    }
+
+    /**
+     * String ids are 1..users for users, followed by groups.
+     */
+    private void writeStringTable(OutputStream out) throws IOException {
+        FsImageProto.StringTableSection.newBuilder()
+                .setNumEntry(users + groups)
+                .build().writeDelimitedTo(out);
+        for (int i = 0; i < users; i++) {
+            FsImageProto.StringTableSection.Entry.newBuilder()
+                    .setId(i + 1).setStr(userName(i))
+                    .build().writeDelimitedTo(out);
+        }
+        for (int i = 0; i < groups; i++) {
+            FsImageProto.StringTableSection.Entry.newBuilder()
+                    .setId(users + i + 1).setStr(groupName(i))
+                    .build().writeDelimitedTo(out);
+        }
+    }
+
+    private long permission(SplittableRandom random, short mode) {
+        final int user = (int) (users * Math.pow(random.nextDouble(), userSkew));
+        final int group = user % groups;
+        return ((long) (user + 1) << 40) | ((long) (users + group + 1) << 16) | mode;
+    }
+
+    private long fileSize(SplittableRandom random) {
+        if (emptyFileRatio > 0 && random.nextDouble() < emptyFileRatio) {
+            return 0;
+        }
+        switch (fileSizeDistribution) {
+            case FIXED:
+                return meanFileSize;
+            case UNIFORM:
+                return (long) (random.nextDouble() * 2 * meanFileSize);
+            case LOG_NORMAL:
+                // Mean is exp(mu + sigma^2 / 2), with sigma 2
+                final double mu = Math.log(meanFileSize) - 2;
+                return (long) Math.exp(mu + 2 * nextGaussian(random));
+            default:
+                return (long) (-Math.log(1.0 - random.nextDouble()) * meanFileSize);
+        }
+    }
+
+    private static double nextGaussian(SplittableRandom random) {
+        // Box-Muller
+        return Math.sqrt(-2 * Math.log(1.0 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    private long directoryId(long directory) {
+        return FsImageData.ROOT_INODE_ID + directory;
+    }
+
+    private long firstFile(long directory) {
+        return directory * (fileTotal / directoryCount) + Math.min(directory, fileTotal % directoryCount);
+    }
+
+    private long fileCount(long directory) {
+        return fileTotal / directoryCount + (directory < fileTotal % directoryCount ? 1 : 0);
+    }
+
+    private long fileId(long directory, long file) {
+        return FsImageData.ROOT_INODE_ID + directoryCount + firstFile(directory) + file;
+    }
+
+    /**
+     * @return the id of the deleted directory, followed by the deleted files
+     */
+    private long deletedDirectoryId() {
+        return FsImageData.ROOT_INODE_ID + directoryCount + fileTotal;
+    }
+
+    private FsImageProto.INodeSection.INodeDirectory.Builder directory(long directory, SplittableRandom random) {
+        return FsImageProto.INodeSection.INodeDirectory.newBuilder()
+                .setModificationTime(MODIFICATION_TIME)
+                .setNsQuota(0 == directory ? Long.MAX_VALUE : -1)
+                .setDsQuota(-1)
+                .setPermission(permission(random, (short) 0755));
+    }
+
+    private void writeINodes(OutputStream out) throws IOException {
+        final long directories = directoryCount;
+        final long files = fileTotal;
+        final long deletedINodes = deletedFiles > 0 ? deletedFiles + 1L : 0;
+        FsImageProto.INodeSection.newBuilder()
+                .setLastInodeId(FsImageData.ROOT_INODE_ID + directories + files + deletedINodes - 1)
+                .setNumInodes(directories + files + deletedINodes)
+                .build().writeDelimitedTo(out);
+
+        final SplittableRandom random = new SplittableRandom(seed);
+        for (long d = 0; d < directories; d++) {
+            FsImageProto.INodeSection.INode.newBuilder()
+                    .setType(FsImageProto.INodeSection.INode.Type.DIRECTORY)
+                    .setId(directoryId(d))
+                    .setName(0 == d ? ByteString.EMPTY : ByteString.copyFromUtf8("d" + (d - 1) % fanOut))
+                    .setDirectory(directory(d, random))
+                    .build().writeDelimitedTo(out);
+        }
+
+        long blockId = 1L << 30;
+        for (long d = 0; d < directories; d++) {
+            final long fileCount = fileCount(d);
+            for (long f = 0; f < fileCount; f++) {
+                blockId = writeFile(out, fileId(d, f), ByteString.copyFromUtf8("f" + f), random, blockId);
+            }
+        }
+
+        if (deletedFiles > 0) {
+            // Separate random, keeping the current inodes independent of deleted files
+            final SplittableRandom deletedRandom = new SplittableRandom(seed + 1);
+            final long deletedDirectory = deletedDirectoryId();
+            FsImageProto.INodeSection.INode.newBuilder()
+                    .setType(FsImageProto.INodeSection.INode.Type.DIRECTORY)
+                    .setId(deletedDirectory)
+                    .setName(ByteString.copyFromUtf8("deleted"))
+                    .setDirectory(directory(1, deletedRandom))
+                    .build().writeDelimitedTo(out);
+            for (int f = 0; f < deletedFiles; f++) {
+                blockId = writeFile(out, deletedDirectory + 1 + f, ByteString.copyFromUtf8("deleted" + f),
+                        deletedRandom, blockId);
+            }
+        }
+    }
+
+    /**
+     * @return the next block id
+     */
+    private long writeFile(OutputStream out, long id, ByteString name, SplittableRandom random, long blockId)
+            throws IOException {
+        final long size = fileSize(random);
+        final FsImageProto.INodeSection.INodeFile.Builder file = FsImageProto.INodeSection.INodeFile.newBuilder()
+                .setModificationTime(MODIFICATION_TIME)
+                .setAccessTime(MODIFICATION_TIME)
+                .setPreferredBlockSize(BLOCK_SIZE)
+                .setPermission(permission(random, (short) 0644));
+        final long blockSize;
+        if (erasureCodedRatio > 0 && random.nextDouble() < erasureCodedRatio) {
+            // Striped block groups, spanning data units of cells
+            file.setBlockType(HdfsProtos.BlockTypeProto.STRIPED).setErasureCodingPolicyID(EC_POLICY_ID);
+            blockSize = BLOCK_SIZE * EC_DATA_UNITS;
+        } else {
+            file.setReplication(3);
+            blockSize = BLOCK_SIZE;
+        }
+        if (storagePolicyRatio > 0 && random.nextDouble() < storagePolicyRatio) {
+            file.setStoragePolicyID(STORAGE_POLICY_IDS[random.nextInt(STORAGE_POLICY_IDS.length)]);
+        }
+        for (long remaining = size; remaining > 0; remaining -= blockSize) {
+            file.addBlocks(HdfsProtos.BlockProto.newBuilder()
+                    .setBlockId(blockId++)
+                    .setGenStamp(1001)
+                    .setNumBytes(Math.min(remaining, blockSize)));
+        }
+        FsImageProto.INodeSection.INode.newBuilder()
+                .setType(FsImageProto.INodeSection.INode.Type.FILE)
+                .setId(id)
+                .setName(name)
+                .setFile(file)
+                .build().writeDelimitedTo(out);
+        return blockId;
+    }
+
+    private void writeINodeDirectories(OutputStream out) throws IOException {
+        final long directories = directoryCount;
+        int[] childDirectoryOrder = null;
+        int[] fileOrder = null;
+        for (long d = 0; d < directories; d++) {
+            final long firstChild = d * fanOut + 1;
+            final int childDirectories = (int) Math.max(0, Math.min(fanOut, directories - firstChild));
+            final int files = (int) fileCount(d);
+            if (childDirectories + files == 0) {
+                continue;
+            }
+            // Children sorted by name, as in HDFS: child directories d* before files f*
+            if (null == childDirectoryOrder || childDirectoryOrder.length != childDirectories) {
+                childDirectoryOrder = lexicographicOrder(childDirectories);
+            }
+            if (null == fileOrder || fileOrder.length != files) {
+                fileOrder = lexicographicOrder(files);
+            }
+            final FsImageProto.INodeDirectorySection.DirEntry.Builder dirEntry =
+                    FsImageProto.INodeDirectorySection.DirEntry.newBuilder().setParent(directoryId(d));
+            for (int c : childDirectoryOrder) {
+                dirEntry.addChildren(directoryId(firstChild + c));
+            }
+            for (int f : fileOrder) {
+                dirEntry.addChildren(fileId(d, f));
+            }
+            dirEntry.build().writeDelimitedTo(out);
+        }
+
+        // Deleted directory keeps its children, but is only referenced by the snapshot diff
+        if (deletedFiles > 1) {
+            final long deletedDirectory = deletedDirectoryId();
+            final FsImageProto.INodeDirectorySection.DirEntry.Builder dirEntry =
+                    FsImageProto.INodeDirectorySection.DirEntry.newBuilder().setParent(deletedDirectory);
+            for (int f = 1; f < deletedFiles; f++) {
+                dirEntry.addChildren(deletedDirectory + 1 + f);
+            }
+            dirEntry.build().writeDelimitedTo(out);
+        }
+    }
+
+    /**
+     * @return 0..n-1 sorted by their decimal string representation, e.g. 0, 1, 10, 11, 2
+     */
+    static int[] lexicographicOrder(int n) {
+        return IntStream.range(0, n).boxed()
+                .sorted(Comparator.comparing(String::valueOf))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Snapshots of top level directories, named s0, s1, ...
+     */
+    private void writeSnapshots(OutputStream out) throws IOException {
+        final int numSnapshots = snapshottableDirectories * snapshotsPerDirectory;
+        final FsImageProto.SnapshotSection.Builder snapshotSection = FsImageProto.SnapshotSection.newBuilder()
+                .setSnapshotCounter(numSnapshots)
+                .setNumSnapshots(numSnapshots);
+        for (int i = 0; i < snapshottableDirectories; i++) {
+            snapshotSection.addSnapshottableDir(directoryId(1L + i));
+        }
+        snapshotSection.build().writeDelimitedTo(out);
+
+        final SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < snapshottableDirectories; i++) {
+            for (int s = 0; s < snapshotsPerDirectory; s++) {
+                FsImageProto.SnapshotSection.Snapshot.newBuilder()
+                        .setSnapshotId(i * snapshotsPerDirectory + s)
+                        .setRoot(FsImageProto.INodeSection.INode.newBuilder()
+                                .setType(FsImageProto.INodeSection.INode.Type.DIRECTORY)
+                                .setId(directoryId(1L + i))
+                                .setName(ByteString.copyFromUtf8("s" + s))
+                                .setDirectory(directory(1L + i, random)))
+                        .build().writeDelimitedTo(out);
+            }
+        }
+    }
+
+    /**
+     * Unmodified snapshots, with snapshot roots only, except for deleted files of the last snapshot of /d0.
+     */
+    private void writeSnapshotDiffs(OutputStream out) throws IOException {
+        for (int i = 0; i < snapshottableDirectories; i++) {
+            final long directory = 1L + i;
+            FsImageProto.SnapshotDiffSection.DiffEntry.newBuilder()
+                    .setType(FsImageProto.SnapshotDiffSection.DiffEntry.Type.DIRECTORYDIFF)
+                    .setInodeId(directoryId(directory))
+                    .setNumOfDiff(snapshotsPerDirectory)
+                    .build().writeDelimitedTo(out);
+            final long firstChild = directory * fanOut + 1;
+            final int children = (int) (Math.max(0, Math.min(fanOut, directoryCount - firstChild))
+                    + fileCount(directory));
+            for (int s = snapshotsPerDirectory - 1; s >= 0; s--) {
+                final FsImageProto.SnapshotDiffSection.DirectoryDiff.Builder diff =
+                        FsImageProto.SnapshotDiffSection.DirectoryDiff.newBuilder()
+                                .setSnapshotId(i * snapshotsPerDirectory + s)
+                                .setChildrenSize(children)
+                                .setIsSnapshotRoot(true)
+                                .setName(ByteString.copyFromUtf8("s" + s))
+                                .setCreatedListSize(0);
+                if (deletedFiles > 0 && i == 0 && s == snapshotsPerDirectory - 1) {
+                    diff.setChildrenSize(children + 2)
+                            .addDeletedINode(deletedDirectoryId())
+                            .addDeletedINode(deletedDirectoryId() + 1);
+                }
+                diff.build().writeDelimitedTo(out);
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Configures generator via name=value options, named like the setters.
+     */
+    void configure(String option) {
+        final int idx = option.indexOf('=');
+        if (idx <= 0) {
+            throw new IllegalArgumentException("Expected option=value, but got " + option);
+        }
+        final String value = option.substring(idx + 1);
+        switch (option.substring(0, idx)) {
+            case "inodes" -> inodes(Long.parseLong(value));
+            case "fanOut" -> fanOut(Integer.parseInt(value));
+            case "maxDepth" -> maxDepth(Integer.parseInt(value));
+            case "filesPerDirectory" -> filesPerDirectory(Integer.parseInt(value));
+            case "users" -> users(Integer.parseInt(value));
+            case "groups" -> groups(Integer.parseInt(value));
+            case "userSkew" -> userSkew(Double.parseDouble(value));
+            case "fileSizeDistribution" ->
+                    fileSizeDistribution(FileSizeDistribution.valueOf(value.toUpperCase(Locale.ROOT)));
+            case "meanFileSize" -> meanFileSize(IECBinary.parse(value));
+            case "emptyFileRatio" -> emptyFileRatio(Double.parseDouble(value));
+            case "erasureCodedRatio" -> erasureCodedRatio(Double.parseDouble(value));
+            case "storagePolicyRatio" -> storagePolicyRatio(Double.parseDouble(value));
+            case "snapshottableDirectories" -> snapshottableDirectories = Integer.parseInt(value);
+            case "snapshotsPerDirectory" -> snapshotsPerDirectory = Integer.parseInt(value);
+            case "deletedFiles" -> deletedFiles(Integer.parseInt(value));
+            case "seed" -> seed(Long.parseLong(value));
+            default -> throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: FsImageGenerator <fsimage file> [option=value ...]"); // NOSONAR
+            System.exit(1);
+        }
+        final FsImageGenerator generator = new FsImageGenerator();
+        Arrays.stream(args).skip(1).forEach(generator::configure);
+
+        final File file = new File(args[0]);
+        long time = System.currentTimeMillis();
+        generator.write(file);
+        System.out.printf("Generated %s with %d directories, %d files and %.1f MiB in %dms%n", // NOSONAR
+                file, generator.getDirectories(), generator.getFiles(), file.length() / 1024.0 / 1024.0,
+                System.currentTimeMillis() - time);
+    }
+}
@@ -0,0 +1,108 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import org.apache.hadoop.hdfs.protocol.proto.HdfsProtos;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FsImageGeneratorTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testGenerate() throws Exception {
+        final FsImageGenerator generator = new FsImageGenerator()
+                .inodes(1000).fanOut(5).filesPerDirectory(9).users(7).groups(2);
+        final File fsImageFile = temporaryFolder.newFile("fsimage_0042");
+        generator.write(fsImageFile);
+
+        final FsImageData fsImageData = FsImageUpdateHandler.load(fsImageFile);
+        final Config config = new Config();
+        config.setPaths(Set.of("/d0/d1"));
+        final FsImageReporter.Report report = FsImageReporter.computeStatsReport(fsImageData, config);
+
+        assertThat(generator.getDirectories()).isEqualTo(100);
+        assertThat(report.overallStats.sumDirectories.longValue()).isEqualTo(100);
+        assertThat(report.overallStats.fileSize.count()).isEqualTo(900);
+        assertThat(report.userStats).hasSize(7).containsKey(FsImageGenerator.userName(6));
+        assertThat(report.groupStats).hasSize(2);
+
+        // Directory 7 is the second child of first top level directory
+        assertThat(generator.directoryPath(7)).isEqualTo("/d0/d1");
+        final FsImageReporter.PathStats pathStats = report.pathStats.get("/d0/d1");
+        // Child directories 36..40 and each with 9 files
+        assertThat(pathStats.sumDirectories.longValue()).isEqualTo(5);
+        assertThat(pathStats.fileSize.count()).isEqualTo(6 * 9);
+
+        // Deterministic for same seed
+        final File other = temporaryFolder.newFile("fsimage_0043");
+        generator.write(other);
+        assertThat(other).hasSameBinaryContentAs(fsImageFile);
+    }
+
+    @Test
+    public void testGenerateFeatures() throws Exception {
+        final FsImageGenerator generator = new FsImageGenerator();
+        for (String option : new String[]{"inodes=2000", "fanOut=4", "maxDepth=2", "users=50", "groups=5",
+                "userSkew=3", "fileSizeDistribution=log_normal", "meanFileSize=1 MiB", "emptyFileRatio=0.1",
+                "erasureCodedRatio=0.2", "storagePolicyRatio=0.3", "snapshottableDirectories=2",
+                "snapshotsPerDirectory=3", "seed=7"}) {
+            generator.configure(option);
+        }
+        final File fsImageFile = temporaryFolder.newFile("fsimage_0044");
+        generator.write(fsImageFile);
+
+        final FsImageData fsImageData = FsImageUpdateHandler.load(fsImageFile);
+        final FsImageReporter.Report report = FsImageReporter.computeStatsReport(fsImageData, new Config());
+
+        // Depth limits directories to 1 + 4 + 16, remaining inodes are files
+        assertThat(generator.getDirectories()).isEqualTo(21);
+        assertThat(report.overallStats.sumDirectories.longValue()).isEqualTo(21);
+        assertThat(report.overallStats.fileSize.count()).isEqualTo(2000 - 21);
+        assertThat(fsImageData.getChildINodeIds(FsImageData.ROOT_INODE_ID)).hasSize(4 + (2000 - 21) / 21 + 1);
+
+        // Skewed ownership
+        final long user0Files = report.userStats.get(FsImageGenerator.userName(0)).fileSize.count();
+        final long user49Files = report.userStats.containsKey(FsImageGenerator.userName(49))
+                ? report.userStats.get(FsImageGenerator.userName(49)).fileSize.count() : 0;
+        assertThat(user0Files).isGreaterThan(10 * user49Files);
+
+        // Erasure coded files have no replication
+        final Map<Integer, Long> ecPolicies = new HashMap<>();
+        final Map<Integer, Long> storagePolicies = new HashMap<>();
+        for (long id : fsImageData.getChildINodeIds(FsImageData.ROOT_INODE_ID)) {
+            final FsImageProto.INodeSection.INode inode = fsImageData.getINode(id);
+            if (inode.hasFile()) {
+                final FsImageProto.INodeSection.INodeFile file = inode.getFile();
+                if (file.getBlockType() == HdfsProtos.BlockTypeProto.STRIPED) {
+                    assertThat(file.getReplication()).isZero();
+                    ecPolicies.merge(file.getErasureCodingPolicyID(), 1L, Long::sum);
+                }
+                if (file.hasStoragePolicyID()) {
+                    storagePolicies.merge(file.getStoragePolicyID(), 1L, Long::sum);
+                }
+            }
+        }
+        assertThat(ecPolicies).containsOnlyKeys(FsImageGenerator.EC_POLICY_ID);
+        assertThat(storagePolicies).isNotEmpty();
+        assertThat(storagePolicies.keySet()).isSubsetOf(
+                Arrays.stream(FsImageGenerator.STORAGE_POLICY_IDS).boxed().collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void testLexicographicOrder() {
+        assertThat(FsImageGenerator.lexicographicOrder(12)).containsExactly(0, 1, 10, 11, 2, 3, 4, 5, 6, 7, 8, 9);
+        assertThat(FsImageGenerator.lexicographicOrder(0)).isEmpty();
+    }
+}
@@ -1,39 +1,368 @@
 package de.m3y.prometheus.exporter.fsimage;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import io.prometheus.client.Collector;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.assertThat;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.labelValues;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesUtils.getMetricFamilySamples;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
 public class FsImageReportUpdaterTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
     @Test(timeout = 1000L)
-    public void testGetReportWhenFileChanges() throws ExecutionException, InterruptedException {
+    public void testGetReportWhenFileChanges() throws InterruptedException {
         Config config = new Config();
         FsImageUpdateHandler fsImageReportUpdater = new FsImageUpdateHandler(config);
 
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        final Future<FsImageReporter.Report> submit = executorService.submit(fsImageReportUpdater::getFsImageReport);
-        assertThat(submit.isDone()).isFalse();
+        // No report yet, but scraping does not block
+        assertThat(fsImageReportUpdater.getFsImageReport()).isNull();
+        assertThat(fsImageReportUpdater.awaitFsImageReport(1, TimeUnit.MILLISECONDS)).isFalse();
+        List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        assertThat(fsImageReportUpdater.collectFsImageSamples(mfs)).isFalse();
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_ready")).hasTypeOfGauge().hasSampleValue(0);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_phase"))
+                .hasSampleValue(labelValues("idle"), 1)
+                .hasSampleValue(labelValues("loading"), 0)
+                .hasSampleValue(labelValues("computing"), 0);
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> getMetricFamilySamples(mfs, "fsimage_dirs"));
 
         // Trigger report generation
         final File fsImageFile = new File("src/test/resources/fsimage_0001");
         fsImageReportUpdater.onFsImageChange(fsImageFile);
 
         // Verify result
-        final FsImageReporter.Report report = submit.get();
+        assertThat(fsImageReportUpdater.awaitFsImageReport(1, TimeUnit.MILLISECONDS)).isTrue();
+        final FsImageReporter.Report report = fsImageReportUpdater.getFsImageReport();
         assertThat(report.error).isFalse();
 
+        List<Collector.MetricFamilySamples> mfsWithReport = new ArrayList<>();
+        fsImageReportUpdater.collectFsImageSamples(mfsWithReport);
+        assertThat(mfsWithReport).hasSize(35);
+        assertThat(getMetricFamilySamples(mfsWithReport, "fsimage_report_ready")).hasSampleValue(1);
+        assertThat(getMetricFamilySamples(mfsWithReport, "fsimage_report_generation")).hasSampleValue(1);
+
+        // Reload
+        fsImageReportUpdater.onFsImageChange(fsImageFile);
+        assertThat(fsImageReportUpdater.getFsImageReport()).isNotSameAs(report);
+        assertThat(fsImageReportUpdater.getFsImageReport().generation).isEqualTo(2);
+    }
+
+    @Test
+    public void testPublishSkipsSupersededReport() {
+        Config config = new Config();
+        FsImageUpdateHandler fsImageReportUpdater = new FsImageUpdateHandler(config);
+
+        final FsImageReporter.Report first = new FsImageReporter.Report(config);
+        first.generation = 1;
+        final FsImageReporter.Report second = new FsImageReporter.Report(config);
+        second.generation = 2;
+
+        // Reload of generation 2 finishes before overlapping reload of generation 1
+        assertThat(fsImageReportUpdater.publish(second)).isTrue();
+        assertThat(fsImageReportUpdater.publish(first)).isFalse();
+        assertThat(fsImageReportUpdater.getFsImageReport()).isSameAs(second);
+    }
+
+    @Test
+    public void testReportListenersSkipSupersededReport() {
+        Config config = new Config();
+        FsImageUpdateHandler fsImageReportUpdater = new FsImageUpdateHandler(config);
+        final List<FsImageReporter.Report> notified = new ArrayList<>();
+        fsImageReportUpdater.addReportListener(notified::add);
+
+        final FsImageReporter.Report first = new FsImageReporter.Report(config);
+        first.generation = 1;
+        final FsImageReporter.Report second = new FsImageReporter.Report(config);
+        second.generation = 2;
+
+        // Reload of generation 2 publishes after generation 1 published, but before its listeners got notified
+        assertThat(fsImageReportUpdater.publish(first)).isTrue();
+        assertThat(fsImageReportUpdater.publish(second)).isTrue();
+        fsImageReportUpdater.notifyReportListenersIfPublished(first);
+        assertThat(notified).isEmpty();
+        fsImageReportUpdater.notifyReportListenersIfPublished(second);
+        assertThat(notified).containsExactly(second);
+
+        // Still notified, if compacted by a later low memory reload meanwhile
+        fsImageReportUpdater.compactReport();
+        fsImageReportUpdater.notifyReportListenersIfPublished(second);
+        assertThat(notified).containsExactly(second, second);
+    }
+
+    @Test
+    public void testLowMemoryReload() {
+        Config config = new Config();
+        config.setLowMemoryReloadEnabled(true);
+        FsImageUpdateHandler fsImageReportUpdater = new FsImageUpdateHandler(config);
+        final File fsImageFile = new File("src/test/resources/fsimage_0001");
+        fsImageReportUpdater.onFsImageChange(fsImageFile);
+        final FsImageReporter.Report report = fsImageReportUpdater.getFsImageReport();
+
+        // Scrapes get served from snapshot, as during loading
+        fsImageReportUpdater.compactReport();
+        assertThat(fsImageReportUpdater.getFsImageReport()).isNull();
+        List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        assertThat(fsImageReportUpdater.collectFsImageSamples(mfs)).isFalse();
+        assertThat(mfs).hasSize(35);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_dirs")).hasSampleValue(14.0);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_user_dirs")).hasSampleValue(labelValues("mm"), 14.0);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_ready")).hasSampleValue(1);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_compacted")).hasSampleValue(1);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_generation")).hasSampleValue(1);
+
+        // Filtered scrape
+        final List<Collector.MetricFamilySamples> filteredMfs = new ArrayList<>();
+        fsImageReportUpdater.collectFsImageSamples(filteredMfs, name -> name.startsWith("fsimage_user_"));
+        assertThat(getMetricFamilySamples(filteredMfs, "fsimage_user_dirs")).hasSampleValue(labelValues("mm"), 14.0);
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> getMetricFamilySamples(filteredMfs, "fsimage_dirs"));
+
+        // Older generation does not replace snapshot
+        final FsImageReporter.Report stale = new FsImageReporter.Report(config);
+        stale.generation = 0;
+        assertThat(fsImageReportUpdater.publish(stale)).isFalse();
+
+        fsImageReportUpdater.onFsImageChange(fsImageFile);
+        assertThat(fsImageReportUpdater.getFsImageReport()).isNotSameAs(report);
+        assertThat(fsImageReportUpdater.getFsImageReport().generation).isEqualTo(2);
+        final List<Collector.MetricFamilySamples> mfsAfterReload = new ArrayList<>();
+        fsImageReportUpdater.collectFsImageSamples(mfsAfterReload);
+        assertThat(getMetricFamilySamples(mfsAfterReload, "fsimage_report_compacted")).hasSampleValue(0);
+        assertThat(getMetricFamilySamples(mfsAfterReload, "fsimage_dirs")).hasSampleValue(14.0);
+    }
+
+    @Test
+    public void testFailedLowMemoryReload() throws IOException {
+        Config config = new Config();
+        config.setLowMemoryReloadEnabled(true);
+        config.setNamespaceIndexEnabled(true);
+        FsImageUpdateHandler fsImageReportUpdater = new FsImageUpdateHandler(config);
+        fsImageReportUpdater.onFsImageChange(new File("src/test/resources/fsimage_0001"));
+        assertThat(fsImageReportUpdater.getFsImageReport().namespaceIndex).isNotNull();
+
+        // Keeps serving the compacted report, but without namespace index
+        final File invalidFsImageFile = temporaryFolder.newFile("fsimage_0002");
+        Files.write(invalidFsImageFile.toPath(), "Not an fsimage".getBytes(StandardCharsets.UTF_8));
+        fsImageReportUpdater.onFsImageChange(invalidFsImageFile);
+        assertThat(fsImageReportUpdater.getProgress().getStatus()).isEqualTo(ComputeProgress.Status.FAILED);
+        assertThat(fsImageReportUpdater.getFsImageReport()).isNull();
+        List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        assertThat(fsImageReportUpdater.collectFsImageSamples(mfs)).isFalse();
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_compacted")).hasSampleValue(1);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_generation")).hasSampleValue(1);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_dirs")).hasSampleValue(14.0);
+
+        // Changed paths recompute the whole report, as no namespace index is retained
+        final ComputeProgress failedProgress = fsImageReportUpdater.getProgress();
+        Config newConfig = new Config();
+        newConfig.setLowMemoryReloadEnabled(true);
+        newConfig.setNamespaceIndexEnabled(true);
+        newConfig.setPaths(new HashSet<>(Collections.singletonList("/datalake")));
+        fsImageReportUpdater.reconfigure(newConfig);
+        assertThat(fsImageReportUpdater.getProgress()).isNotSameAs(failedProgress);
+        assertThat(fsImageReportUpdater.getProgress().getStatus()).isEqualTo(ComputeProgress.Status.FAILED);
+        assertThat(fsImageReportUpdater.getFsImageReport()).isNull();
+
+        // Next successful reload replaces the compacted report
+        fsImageReportUpdater.onFsImageChange(new File("src/test/resources/fsimage_0001"));
+        assertThat(fsImageReportUpdater.getFsImageReport().generation).isEqualTo(4);
+        final List<Collector.MetricFamilySamples> mfsAfterReload = new ArrayList<>();
+        fsImageReportUpdater.collectFsImageSamples(mfsAfterReload);
+        assertThat(getMetricFamilySamples(mfsAfterReload, "fsimage_report_compacted")).hasSampleValue(0);
+    }
+
+    @Test
+    public void testReconfigure() {
+        Config config = new Config();
+        config.setNamespaceIndexEnabled(true);
+        FsImageUpdateHandler fsImageReportUpdater = new FsImageUpdateHandler(config);
+        final File fsImageFile = new File("src/test/resources/fsimage_0001");
+        fsImageReportUpdater.onFsImageChange(fsImageFile);
+        final FsImageReporter.Report report = fsImageReportUpdater.getFsImageReport();
+
+        // Added path set gets recomputed from namespace index
+        Config newConfig = new Config();
+        newConfig.setNamespaceIndexEnabled(true);
+        newConfig.setPathSets(Collections.singletonMap("userdata", Arrays.asList("/user/mm", "/datalake/asset1")));
+        fsImageReportUpdater.reconfigure(newConfig);
+        final FsImageReporter.Report pathSetReport = fsImageReportUpdater.getFsImageReport();
+        assertThat(pathSetReport.generation).isEqualTo(2);
+        assertThat(pathSetReport.overallStats).isSameAs(report.overallStats);
+        List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        fsImageReportUpdater.collectFsImageSamples(mfs);
+        final FsImageUpdateHandler expectedUpdater = new FsImageUpdateHandler(newConfig);
+        expectedUpdater.onFsImageChange(fsImageFile);
+        List<Collector.MetricFamilySamples> expectedMfs = new ArrayList<>();
+        expectedUpdater.collectFsImageSamples(expectedMfs);
+        for (String name : new String[]{"fsimage_path_set_dirs", "fsimage_path_set_fsize"}) {
+            assertThat(getMetricFamilySamples(mfs, name).samples)
+                    .filteredOn(sample -> !sample.name.endsWith("_created"))
+                    .isEqualTo(getMetricFamilySamples(expectedMfs, name).samples.stream()
+                            .filter(sample -> !sample.name.endsWith("_created")).toList());
+        }
+
+        // Changed file size buckets recompute the report of the FSImage
+        newConfig = new Config();
+        newConfig.setNamespaceIndexEnabled(true);
+        newConfig.setFileSizeDistributionBuckets(Arrays.asList("0", "1MiB"));
+        fsImageReportUpdater.reconfigure(newConfig);
+        assertThat(fsImageReportUpdater.getFsImageReport().generation).isEqualTo(3);
+        assertThat(fsImageReportUpdater.getFsImageReport().overallStats).isNotSameAs(report.overallStats);
+        assertThat(fsImageReportUpdater.getFsImageReport().hasPathSetStats()).isFalse();
+    }
+
+    @Test
+    public void testProcessWideMetricsOnlyForExclusiveCycles() {
+        Config config = new Config();
+        FsImageUpdateHandler fsImageReportUpdater = new FsImageUpdateHandler(config);
+        final File fsImageFile = new File("src/test/resources/fsimage_0001");
+
+        // Cycle of another namespace in progress
+        final long otherCycle = FsImageUpdateHandler.beginCycle();
+        try {
+            fsImageReportUpdater.onFsImageChange(fsImageFile);
+        } finally {
+            FsImageUpdateHandler.endCycle();
+        }
+        assertThat(FsImageUpdateHandler.isExclusiveCycle(otherCycle)).isFalse();
+        List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        fsImageReportUpdater.collectFsImageSamples(mfs);
+        for (String name : new String[]{"fsimage_compute_gc_pause_seconds", "fsimage_compute_gc_collections",
+                "fsimage_load_heap_peak_bytes", "fsimage_compute_heap_peak_bytes"}) {
+            assertThat(getMetricFamilySamples(mfs, name).samples.get(0).value).as(name).isNaN();
+        }
+        assertThat(getMetricFamilySamples(mfs, "fsimage_compute_phase_allocated_bytes").samples).isEmpty();
+
+        fsImageReportUpdater.onFsImageChange(fsImageFile);
+        mfs = new ArrayList<>();
+        fsImageReportUpdater.collectFsImageSamples(mfs);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_compute_gc_pause_seconds"))
+                .hasSampleValue(da -> da.isGreaterThanOrEqualTo(0));
+        assertThat(getMetricFamilySamples(mfs, "fsimage_compute_heap_peak_bytes"))
+                .hasSampleValue(da -> da.isGreaterThan(0));
+        if (AllocationCounter.isSupported()) {
+            assertThat(getMetricFamilySamples(mfs, "fsimage_compute_phase_allocated_bytes").samples).isNotEmpty();
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void testProgressAndAbort() throws Exception {
+        Config config = new Config();
+        final Semaphore loadPermits = new Semaphore(0);
+        FsImageUpdateHandler fsImageReportUpdater = new FsImageUpdateHandler(config, loadPermits);
+        assertThat(fsImageReportUpdater.getProgress()).isNull();
+        assertThat(fsImageReportUpdater.abort()).isFalse();
+        final File fsImageFile = new File("src/test/resources/fsimage_0001");
+
+        // Abort reload waiting for load permit
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> reload = executorService.submit(() -> fsImageReportUpdater.onFsImageChange(fsImageFile));
+            while (fsImageReportUpdater.getPhase() != FsImageUpdateHandler.Phase.WAITING) {
+                Thread.sleep(1);
+            }
+            final ComputeProgress progress = fsImageReportUpdater.getProgress();
+            assertThat(progress.fsImage).isEqualTo("fsimage_0001");
+            assertThat(progress.txId).isEqualTo(1);
+            assertThat(progress.getStatus()).isEqualTo(ComputeProgress.Status.RUNNING);
+            assertThat(progress.getEtaNanos()).isEqualTo(-1); // No previous report
+            assertThat(fsImageReportUpdater.abort()).isTrue();
+            loadPermits.release();
+            reload.get();
+            assertThat(progress.getStatus()).isEqualTo(ComputeProgress.Status.ABORTED);
+            assertThat(progress.isAbortRequested()).isTrue();
+            assertThat(fsImageReportUpdater.getFsImageReport()).isNull();
+            assertThat(fsImageReportUpdater.getPhase()).isEqualTo(FsImageUpdateHandler.Phase.IDLE);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // Completed reload
+        fsImageReportUpdater.onFsImageChange(fsImageFile);
+        final ComputeProgress progress = fsImageReportUpdater.getProgress();
+        assertThat(progress.getStatus()).isEqualTo(ComputeProgress.Status.COMPLETED);
+        assertThat(progress.getEtaNanos()).isZero();
+        assertThat(fsImageReportUpdater.abort()).isFalse();
+        final FsImageReporter.Report report = fsImageReportUpdater.getFsImageReport();
+        assertThat(report.generation).isEqualTo(2);
+
+        // Estimates from previous report, counting inodes of current phase
+        final ComputeProgress next = new ComputeProgress(fsImageFile, report);
+        assertThat(next.getEtaNanos()).isPositive();
+        next.enterPhase(ComputePhase.STATS);
+        assertThat(next.getEstimatedInodes()).isEqualTo(report.getInodes());
+        next.onInode();
+        assertThat(next.getInodes()).isEqualTo(1);
+        assertThat(next.getEtaNanos()).isPositive();
+        next.abort();
+        assertThatExceptionOfType(CancellationException.class).isThrownBy(next::onInode);
+    }
+
+    @Test
+    public void testOverlappingReloads() throws Exception {
+        assertOverlappingReloads(false);
+    }
+
+    @Test
+    public void testOverlappingLowMemoryReloads() throws Exception {
+        assertOverlappingReloads(true);
+    }
+
+    private static void assertOverlappingReloads(boolean lowMemoryReload) throws Exception {
+        Config config = new Config();
+        config.setLowMemoryReloadEnabled(lowMemoryReload);
+        FsImageUpdateHandler fsImageReportUpdater = new FsImageUpdateHandler(config);
+        final File fsImageFile = new File("src/test/resources/fsimage_0001");
+        fsImageReportUpdater.onFsImageChange(fsImageFile);
+
+        // Scrape continuously while reloading concurrently
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> reloads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                reloads.add(executorService.submit(() -> fsImageReportUpdater.onFsImageChange(fsImageFile)));
+            }
+            while (!reloads.stream().allMatch(Future::isDone)) {
+                List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+                assertThat(fsImageReportUpdater.collectFsImageSamples(mfs)).isFalse();
+                assertThat(getMetricFamilySamples(mfs, "fsimage_dirs")).hasSampleValue(14.0);
+            }
+            for (Future<?> reload : reloads) {
+                reload.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
         List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
         fsImageReportUpdater.collectFsImageSamples(mfs);
-        assertThat(mfs).hasSize(20);
+        final double superseded = getMetricFamilySamples(mfs, "fsimage_report_superseded").samples.get(0).value;
+        assertThat(fsImageReportUpdater.getFsImageReport().generation).isEqualTo(5);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_generation")).hasSampleValue(5);
+        assertThat(superseded).isBetween(0.0, 3.0);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_phase")).hasSampleValue(labelValues("idle"), 1);
     }
 }
@@ -2,16 +2,33 @@ package de.m3y.prometheus.exporter.fsimage;
 
 import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
 import de.m3y.hadoop.hdfs.hfsa.core.FsImageLoader;
+import io.prometheus.client.Collector;
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
 import org.junit.Test;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.assertThat;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.labelValues;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesUtils.getMetricFamilySamples;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 
 public class FsImageReporterTest {
 
@@ -55,4 +72,347 @@ public class FsImageReporterTest {
                 .hasSize(1)
                 .contains("/test3/foo/bar");
     }
+
+    @Test
+    public void testPhaseEvents() throws IOException {
+        final Config config = new Config();
+        config.setPaths(new HashSet<>(Collections.singletonList("/datalake/.*")));
+        config.setPathSets(Collections.singletonMap("userdata", Arrays.asList("/user/mm", "/datalake/asset1")));
+
+        final Path recordingFile = Files.createTempFile("phase-events", ".jfr");
+        final FsImageReporter.Report report;
+        try (Recording recording = new Recording()) {
+            recording.enable("de.m3y.prometheus.exporter.fsimage.Phase");
+            recording.enable("de.m3y.prometheus.exporter.fsimage.PathStats");
+            recording.start();
+            report = FsImageReporter.computeStatsReport(
+                    FsImageUpdateHandler.load(new File("src/test/resources/fsimage_0001")), config);
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        try {
+            final List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile);
+            assertThat(events)
+                    .filteredOn(e -> e.getEventType().getName().endsWith(".Phase"))
+                    .extracting(e -> e.getString("phase"))
+                    .contains("stats", "path_expansion", "path_stats", "path_set_stats")
+                    .doesNotContain("namespace_index");
+            assertThat(events)
+                    .filteredOn(e -> e.getEventType().getName().endsWith(".PathStats"))
+                    .extracting(e -> e.getString("path"), e -> e.getBoolean("pathSet"))
+                    .contains(tuple("/datalake/asset1", false), tuple("userdata", true));
+            assertThat(events)
+                    .filteredOn(e -> e.getEventType().getName().endsWith(".Phase")
+                            && "stats".equals(e.getString("phase")))
+                    .extracting(e -> e.getLong("inodes"))
+                    .containsExactly(report.getInodes());
+            // Path set stats do not include expanding the path sets
+            final List<RecordedEvent> phaseEvents = events.stream()
+                    .filter(e -> e.getEventType().getName().endsWith(".Phase")).toList();
+            final RecordedEvent pathSetStats = phaseEvents.stream()
+                    .filter(e -> "path_set_stats".equals(e.getString("phase"))).findFirst().orElseThrow();
+            assertThat(phaseEvents)
+                    .filteredOn(e -> "path_expansion".equals(e.getString("phase")))
+                    .hasSize(2)
+                    .allSatisfy(e -> assertThat(e.getEndTime()).isBeforeOrEqualTo(pathSetStats.getStartTime()));
+        } finally {
+            Files.delete(recordingFile);
+        }
+
+        assertThat(report.getInodes()).isEqualTo(report.overallStats.sumDirectories.sum()
+                + report.overallStats.fileSize.count() + report.overallStats.sumSymLinks.sum());
+        assertThat(report.phaseInodes.get(ComputePhase.STATS).sum()).isEqualTo(report.getInodes());
+        assertThat(report.phaseDurationNanos.get(ComputePhase.STATS).sum()).isPositive();
+        assertThat(report.phaseInodes.get(ComputePhase.PATH_STATS).sum()).isPositive();
+        if (AllocationCounter.isSupported()) {
+            assertThat(report.phaseAllocatedBytes.get(ComputePhase.STATS).sum()).isPositive();
+            assertThat(report.phaseAllocatedBytes.get(ComputePhase.PATH_SET_STATS).sum()).isPositive();
+        }
+        assertThat(report.pathStats.get("/datalake/asset1").computeDurationNanos).isPositive();
+        assertThat(report.pathSetStats.get("userdata").computeDurationNanos).isPositive();
+    }
+
+    @Test
+    public void testDirectoryFanOut() throws IOException {
+        final FsImageData fsImageData = FsImageUpdateHandler.load(new File("src/test/resources/fsimage_0001"));
+        final Config config = new Config();
+        config.setDirectoryFanOutEnabled(true);
+        config.setDirectoryFanOutTopK(1);
+        config.setPaths(new HashSet<>(Collections.singletonList("/datalake")));
+        final FsImageReporter.Report report = FsImageReporter.computeStatsReport(fsImageData, config);
+
+        final DirectoryFanOut fanOut = report.directoryFanOut;
+        assertThat(fanOut.count()).isEqualTo(14);
+        assertThat(fanOut.sumFiles()).isEqualTo(16);
+        assertThat(fanOut.sumSubdirectories()).isEqualTo(13);
+        assertThat(fanOut.topFiles()).containsExactly(new DirectoryFanOut.TopK.Entry("/test3/foo/bar", 6));
+        assertThat(fanOut.topSubdirectories()).containsExactly(new DirectoryFanOut.TopK.Entry("/", 5));
+
+        // Including start directory of path
+        final DirectoryFanOut pathFanOut = report.pathStats.get("/datalake").directoryFanOut;
+        assertThat(pathFanOut.count()).isEqualTo(6);
+        assertThat(pathFanOut.sumFiles()).isEqualTo(5);
+        assertThat(pathFanOut.sumSubdirectories()).isEqualTo(5);
+        assertThat(pathFanOut.topFiles()).isEmpty();
+
+        final List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        report.collect(mfs, null);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_dir_files"))
+                .hasTypeOfHistogram()
+                .hasSampleBucketValue(labelValues(), 0, 6)
+                .hasSampleBucketValue(labelValues(), 1, 10)
+                .hasSampleBucketValue(labelValues(), 10, 14)
+                .hasSampleBucketValue(labelValues(), Double.POSITIVE_INFINITY, 14)
+                .hasSampleCountValue(14)
+                .hasSampleSumValue(sum -> sum.isEqualTo(16));
+        assertThat(getMetricFamilySamples(mfs, "fsimage_dir_top_subdirs"))
+                .hasSampleValue(labelValues("/"), 5);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_path_dir_subdirs"))
+                .hasTypeOfHistogram()
+                .hasSampleCountValue(labelValues("/datalake"), 6);
+
+        // Filtered
+        final List<Collector.MetricFamilySamples> filteredMfs = new ArrayList<>();
+        report.collect(filteredMfs, name -> name.startsWith("fsimage_dir_top_"));
+        assertThat(filteredMfs).extracting(family -> family.name)
+                .containsExactlyInAnyOrder("fsimage_dir_top_files", "fsimage_dir_top_subdirs");
+    }
+
+    @Test
+    public void testFileAnomalyDetector() {
+        final Config config = new Config();
+        config.setAnomalySmallFileSize("1KiB");
+        final FileAnomalies.Detector detector = new FileAnomalies.Detector(config);
+        final long blockSize = 128L << 20;
+
+        assertThat(detector.detect(0, 3, 0, 0, blockSize, false)).isEqualTo(FileAnomalies.Anomaly.EMPTY.mask);
+        assertThat(detector.detect(1023, 3, 1, 1023, blockSize, false)).isEqualTo(FileAnomalies.Anomaly.SMALL.mask);
+        assertThat(detector.detect(1024, 3, 1, 1024, blockSize, false)).isZero();
+        assertThat(detector.detect(1024, 4, 1, 1024, blockSize, false))
+                .isEqualTo(FileAnomalies.Anomaly.OVER_REPLICATED.mask);
+        assertThat(detector.detect(100, 1, 1, 100, blockSize, false))
+                .isEqualTo(FileAnomalies.Anomaly.SMALL.mask | FileAnomalies.Anomaly.UNDER_REPLICATED.mask);
+        // Last block filled less than 10 percent
+        assertThat(detector.detect(blockSize + 1024, 3, 2, 1024, blockSize, false))
+                .isEqualTo(FileAnomalies.Anomaly.PARTIAL_LAST_BLOCK.mask);
+        assertThat(detector.detect(blockSize + blockSize / 5, 3, 2, blockSize / 5, blockSize, false)).isZero();
+        // Erasure coded
+        assertThat(detector.detect(blockSize + 1024, 0, 2, 1024, blockSize, true)).isZero();
+
+        config.setAnomalyExpectedReplication(0);
+        config.setAnomalyLastBlockFillPercent(0);
+        final FileAnomalies.Detector disabledDetector = new FileAnomalies.Detector(config);
+        assertThat(disabledDetector.detect(blockSize + 1024, 1, 2, 1024, blockSize, false)).isZero();
+
+        final FileAnomalies anomalies = new FileAnomalies();
+        anomalies.observe(FileAnomalies.Anomaly.SMALL.mask | FileAnomalies.Anomaly.UNDER_REPLICATED.mask);
+        anomalies.observe(FileAnomalies.Anomaly.SMALL.mask);
+        anomalies.observe(0);
+        assertThat(anomalies.get(FileAnomalies.Anomaly.SMALL)).isEqualTo(2);
+        assertThat(anomalies.get(FileAnomalies.Anomaly.UNDER_REPLICATED)).isEqualTo(1);
+        assertThat(anomalies.get(FileAnomalies.Anomaly.EMPTY)).isZero();
+    }
+
+    @Test
+    public void testFileAnomalies() throws IOException {
+        final FsImageData fsImageData = FsImageUpdateHandler.load(new File("src/test/resources/fsimage_0001"));
+        final Config config = new Config();
+        config.setAnomalyDetectionEnabled(true);
+        config.setPaths(new HashSet<>(Arrays.asList("/", "/datalake")));
+        config.setPathSets(Collections.singletonMap("all", Collections.singletonList("/")));
+        final FsImageReporter.Report report = FsImageReporter.computeStatsReport(fsImageData, config);
+
+        final FileAnomalies overall = report.overallAnomalies;
+        final FileAnomalies root = report.pathStats.get("/").anomalies;
+        final FileAnomalies all = report.pathSetStats.get("all").anomalies;
+        long anomalousFiles = 0;
+        for (FileAnomalies.Anomaly anomaly : FileAnomalies.Anomaly.values()) {
+            assertThat(root.get(anomaly)).as(anomaly.label).isEqualTo(overall.get(anomaly));
+            assertThat(all.get(anomaly)).as(anomaly.label).isEqualTo(overall.get(anomaly));
+            assertThat(report.userAnomalies.values().stream().mapToLong(a -> a.get(anomaly)).sum())
+                    .as(anomaly.label).isEqualTo(overall.get(anomaly));
+            anomalousFiles += overall.get(anomaly);
+        }
+        assertThat(anomalousFiles).isPositive();
+        // Empty and small files are exclusive
+        assertThat(overall.get(FileAnomalies.Anomaly.EMPTY) + overall.get(FileAnomalies.Anomaly.SMALL))
+                .isLessThanOrEqualTo(report.overallStats.fileSize.count());
+
+        final List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        report.collect(mfs, null);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_anomaly_files"))
+                .hasTypeOfGauge()
+                .hasSampleValue(labelValues("small"), overall.get(FileAnomalies.Anomaly.SMALL))
+                .hasSampleValue(labelValues("empty"), overall.get(FileAnomalies.Anomaly.EMPTY));
+        assertThat(getMetricFamilySamples(mfs, "fsimage_path_anomaly_files"))
+                .hasSampleValue(labelValues("/datalake", "small"),
+                        report.pathStats.get("/datalake").anomalies.get(FileAnomalies.Anomaly.SMALL));
+        assertThat(getMetricFamilySamples(mfs, "fsimage_path_set_anomaly_files"))
+                .hasSampleValue(labelValues("all", "small"), all.get(FileAnomalies.Anomaly.SMALL));
+        assertThat(mfs).extracting(family -> family.name).contains("fsimage_user_anomaly_files");
+    }
+
+    @Test
+    public void testFileExtensionSuffixTable() {
+        final FileExtensionStats.SuffixTable suffixes = new FileExtensionStats.SuffixTable(
+                Arrays.asList(".gz", ".tar.gz", "_SUCCESS", "", ".gz", ".d\u00e4"));
+        assertThat(suffixes.size()).isEqualTo(4);
+        assertThat(suffixes.match(ByteString.copyFromUtf8("a.tar.gz"))).isEqualTo(1);
+        assertThat(suffixes.match(ByteString.copyFromUtf8("a.gz"))).isZero();
+        assertThat(suffixes.match(ByteString.copyFromUtf8("gz"))).isEqualTo(-1);
+        assertThat(suffixes.match(ByteString.copyFromUtf8("_SUCCESS"))).isEqualTo(2);
+        assertThat(suffixes.match(ByteString.copyFromUtf8("SUCCESS"))).isEqualTo(-1);
+        assertThat(suffixes.match(ByteString.copyFromUtf8("x.d\u00e4"))).isEqualTo(3);
+        assertThat(suffixes.match(ByteString.copyFromUtf8("x.da"))).isEqualTo(-1);
+        assertThat(suffixes.match(ByteString.EMPTY)).isEqualTo(-1);
+
+        assertThat(FileExtensionStats.extension(ByteString.copyFromUtf8("a.tar.gz")))
+                .isEqualTo(ByteString.copyFromUtf8(".gz"));
+        assertThat(FileExtensionStats.extension(ByteString.copyFromUtf8(".bashrc"))).isNull();
+        assertThat(FileExtensionStats.extension(ByteString.copyFromUtf8("file."))).isNull();
+        assertThat(FileExtensionStats.extension(ByteString.copyFromUtf8("part-00000"))).isNull();
+        assertThat(FileExtensionStats.extension(ByteString.copyFromUtf8("a.0123456789abcdefg"))).isNull();
+    }
+
+    @Test
+    public void testFileExtensionStatsIgnoresInvalidUtf8() {
+        final FileExtensionStats extensionStats = new FileExtensionStats(
+                new FileExtensionStats.SuffixTable(List.of(".crc")), true);
+        // Both would decode to the replacement character
+        extensionStats.observe(-1, ByteString.copyFrom(new byte[]{'a', '.', (byte) 0xff}), 1);
+        extensionStats.observe(-1, ByteString.copyFrom(new byte[]{'a', '.', (byte) 0xfe}), 2);
+        extensionStats.observe(-1, ByteString.copyFromUtf8("a.d\u00e4"), 4);
+        extensionStats.observe(0, ByteString.copyFrom(new byte[]{(byte) 0xff, '.', 'c', 'r', 'c'}), 8);
+
+        assertThat(extensionStats.getTopDiscovered(10)).hasSize(1);
+        assertThat(extensionStats.getTopDiscovered(10).get(0).getKey()).isEqualTo(".d\u00e4");
+        assertThat(extensionStats.getTopDiscovered(10).get(0).getValue()).containsExactly(1, 4);
+        assertThat(extensionStats.getFiles(0)).isEqualTo(1);
+    }
+
+    @Test
+    public void testFileExtensionStats() throws IOException {
+        final FsImageData fsImageData = FsImageUpdateHandler.load(new File("src/test/resources/fsimage_0001"));
+        final Config config = new Config();
+        config.setFileExtensionStatsEnabled(true);
+        config.setFileExtensions(Arrays.asList("_2MiB.img", ".crc"));
+        config.setFileExtensionTopK(1);
+        final FsImageReporter.Report report = FsImageReporter.computeStatsReport(fsImageData, config);
+
+        final FileExtensionStats extensionStats = report.extensionStats;
+        assertThat(extensionStats.getFiles(0)).isEqualTo(5);
+        assertThat(extensionStats.getSize(0)).isEqualTo(5 * 2097152L);
+        assertThat(extensionStats.getFiles(1)).isZero();
+        // Discovered, excluding files with configured suffix
+        final List<Map.Entry<String, long[]>> discovered = extensionStats.getTopDiscovered(1);
+        assertThat(discovered).hasSize(1);
+        assertThat(discovered.get(0).getKey()).isEqualTo(".img");
+        assertThat(discovered.get(0).getValue())
+                .containsExactly(11, (long) report.overallStats.fileSize.sum() - 5 * 2097152L);
+        assertThat(report.userExtensionStats.values().stream().mapToLong(stats -> stats.getFiles(0)).sum())
+                .isEqualTo(5);
+
+        final List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        report.collect(mfs, null);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_extension_files"))
+                .hasTypeOfGauge()
+                .hasSampleValue(labelValues("_2MiB.img"), 5)
+                .hasSampleValue(labelValues(".crc"), 0)
+                .hasSampleValue(labelValues(".img"), 11);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_extension_fsize_bytes"))
+                .hasSampleValue(labelValues("_2MiB.img"), 5 * 2097152L);
+        final Collector.MetricFamilySamples userFiles = getMetricFamilySamples(mfs, "fsimage_user_extension_files");
+        // Only configured suffixes per user
+        assertThat(userFiles.samples).extracting(sample -> sample.labelValues.get(1))
+                .containsOnly("_2MiB.img", ".crc");
+    }
+
+    @Test
+    public void testRecomputePathStatsFromNamespaceIndex() throws IOException {
+        final FsImageData fsImageData = FsImageUpdateHandler.load(new File("src/test/resources/fsimage_0001"));
+        final Config config = new Config();
+        config.setNamespaceIndexEnabled(true);
+        config.setPaths(new HashSet<>(Collections.singletonList("/datalake/asset1")));
+        final FsImageReporter.Report previous = FsImageReporter.computeStatsReport(fsImageData, config);
+
+        // Changed paths and added path set
+        final Config newConfig = new Config();
+        newConfig.setNamespaceIndexEnabled(true);
+        newConfig.setPaths(new HashSet<>(Arrays.asList("/datalake/.*", "/user/m.*", "/", "/tmp" /* Non existent */)));
+        newConfig.setPathSets(Collections.singletonMap("userdata", Arrays.asList("/user/mm", "/datalake/asset1")));
+        final FsImageReporter.Report report = FsImageReporter.recomputePathStats(previous, newConfig, true, true);
+        assertThat(report).isNotNull();
+        assertThat(report.overallStats).isSameAs(previous.overallStats);
+        assertThat(report.userStats).isSameAs(previous.userStats);
+        assertThat(report.phaseDurationNanos.get(ComputePhase.STATS).sum())
+                .isEqualTo(previous.phaseDurationNanos.get(ComputePhase.STATS).sum());
+
+        final FsImageReporter.Report expected = FsImageReporter.computeStatsReport(fsImageData, newConfig);
+        assertThat(report.pathStats.keySet()).isEqualTo(expected.pathStats.keySet());
+        for (FsImageReporter.PathStats pathStats : expected.pathStats.values()) {
+            assertSameStats(report.pathStats.get(pathStats.path), pathStats);
+            assertThat(report.pathStats.get(pathStats.path).spaceQuota).isEqualTo(pathStats.spaceQuota);
+        }
+        assertThat(report.pathSetStats.keySet()).isEqualTo(expected.pathSetStats.keySet());
+        assertSameStats(report.pathSetStats.get("userdata"), expected.pathSetStats.get("userdata"));
+        assertSameSamples(report, expected, "fsimage_path_fsize", "fsimage_path_csize",
+                "fsimage_path_set_fsize", "fsimage_path_set_csize");
+
+        // Only path sets changed, sharing path stats
+        final FsImageReporter.Report pathSetReport = FsImageReporter.recomputePathStats(report, newConfig, false, true);
+        assertThat(pathSetReport.pathStats).isSameAs(report.pathStats);
+        assertThat(pathSetReport.pathSetStats).isNotSameAs(report.pathSetStats);
+        assertSameStats(pathSetReport.pathSetStats.get("userdata"), expected.pathSetStats.get("userdata"));
+        assertSameSamples(pathSetReport, expected, "fsimage_path_set_fsize", "fsimage_path_set_csize");
+    }
+
+    @Test
+    public void testRecomputePathStatsExceedingNamespaceIndex() throws IOException {
+        final FsImageData fsImageData = FsImageUpdateHandler.load(new File("src/test/resources/fsimage_0001"));
+        final Config config = new Config();
+        config.setNamespaceIndexEnabled(true);
+        config.setNamespaceIndexMaxDepth(1);
+        final FsImageReporter.Report previous = FsImageReporter.computeStatsReport(fsImageData, config);
+
+        config.setPaths(new HashSet<>(Collections.singletonList("/datalake")));
+        assertThat(FsImageReporter.recomputePathStats(previous, config, true, false)).isNotNull();
+        config.setPaths(new HashSet<>(Collections.singletonList("/datalake/asset1")));
+        assertThat(FsImageReporter.recomputePathStats(previous, config, true, false)).isNull();
+        config.setPaths(new HashSet<>(Collections.singletonList("/datalake/a.*")));
+        assertThat(FsImageReporter.recomputePathStats(previous, config, true, false)).isNull();
+
+        // Without index
+        config.setNamespaceIndexEnabled(false);
+        assertThat(FsImageReporter.recomputePathStats(FsImageReporter.computeStatsReport(fsImageData, config),
+                config, true, false)).isNull();
+    }
+
+    private static void assertSameStats(FsImageReporter.PathStats actual, FsImageReporter.PathStats expected) {
+        assertThat(actual).isNotNull();
+        assertThat(actual.sumDirectories.sum()).isEqualTo(expected.sumDirectories.sum());
+        assertThat(actual.sumSymLinks.sum()).isEqualTo(expected.sumSymLinks.sum());
+        assertThat(actual.sumBlocks.sum()).isEqualTo(expected.sumBlocks.sum());
+        assertThat(actual.fileConsumedSize.count()).isEqualTo(expected.fileConsumedSize.count());
+        assertThat(actual.fileConsumedSize.sum()).isEqualTo(expected.fileConsumedSize.sum());
+        assertThat(actual.fileSize.count()).isEqualTo(expected.fileSize.count());
+        assertThat(actual.fileSize.sum()).isEqualTo(expected.fileSize.sum());
+    }
+
+    private static void assertSameSamples(FsImageReporter.Report actual, FsImageReporter.Report expected,
+                                          String... names) {
+        for (String name : names) {
+            assertThat(collectSamples(actual, name)).containsExactlyInAnyOrderElementsOf(collectSamples(expected, name));
+        }
+    }
+
+    private static List<Collector.MetricFamilySamples.Sample> collectSamples(FsImageReporter.Report report,
+                                                                             String name) {
+        final List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        report.collect(mfs, null);
+        return getMetricFamilySamples(mfs, name).samples.stream()
+                // Index derived distributions have no created timestamps
+                .filter(sample -> !sample.name.endsWith("_created"))
+                .collect(Collectors.toList());
+    }
 }
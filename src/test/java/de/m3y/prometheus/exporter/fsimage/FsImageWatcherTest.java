@@ -41,6 +41,13 @@ public class FsImageWatcherTest {
         assertEquals(file_3, FsImageWatcher.findLatestFSImageFile(tempDirectory));
     }
 
+    @Test
+    public void testGetTxId() {
+        assertEquals(1650677390L, FsImageWatcher.getTxId(new File("fsimage_0000000001650677390")));
+        assertEquals(-1L, FsImageWatcher.getTxId(new File("fsimage_0000000001650677390.md5")));
+        assertEquals(-1L, FsImageWatcher.getTxId(new File("fsimage_99999999999999999999")));
+    }
+
     @Test
     public void testFindLatestFSImageFileWhileCopying() throws IOException {
         File tempDirectory = Files.createTempDirectory("findLatestFSImageFile").toFile();
@@ -0,0 +1,51 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Histogram;
+import org.junit.Test;
+
+import java.util.List;
+
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.assertThat;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.labelValues;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexedDistributionTest {
+
+    @Test
+    public void testObserveHistogram() {
+        final double[] buckets = {10, 100, 1000};
+        final Histogram expected = Histogram.build("fsize", "help").labelNames("path").buckets(buckets).create();
+        final IndexedDistribution actual = new IndexedDistribution("fsize", "help", "path", buckets);
+
+        // Values within (10, 100], (100, 1000] and +Inf bucket
+        for (long value : new long[]{11, 50, 100, 101, 999, 5000, 7000}) {
+            expected.labels("/a").observe(value);
+        }
+        expected.labels("/a").observe(0);
+        final IndexedDistribution.Child child = actual.labels("/a");
+        child.observeBucket(1, 3, 161);
+        child.observeBucket(2, 2, 1100);
+        child.observeBucket(3, 1, 5000);
+        child.observe(7000);
+        child.observeBucket(0, 1, 0);
+
+        assertThat(child.count()).isEqualTo(8);
+        assertThat(child.sum()).isEqualTo(13261);
+        final List<Collector.MetricFamilySamples.Sample> expectedSamples = expected.collect().get(0).samples;
+        expectedSamples.removeIf(sample -> sample.name.endsWith("_created"));
+        assertThat(actual.collect().get(0).samples).containsExactlyElementsOf(expectedSamples);
+    }
+
+    @Test
+    public void testObserveSummary() {
+        final IndexedDistribution summary = new IndexedDistribution("csize", "help", "path", null);
+        summary.labels("/a").observe(5);
+        summary.labels("/a").observeBucket(0, 1000, 123456);
+
+        assertThat(summary.collect().get(0))
+                .hasTypeOfSummary()
+                .hasSampleCountValue(labelValues("/a"), 1001);
+        assertThat(summary.labels("/a").sum()).isEqualTo(123461);
+    }
+}
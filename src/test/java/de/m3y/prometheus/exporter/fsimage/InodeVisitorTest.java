@@ -0,0 +1,96 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageLoader;
+import de.m3y.hadoop.hdfs.hfsa.core.FsVisitor;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InodeVisitorTest {
+    private static FsImageData fsImageData;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile("src/test/resources/fsimage_0001", "r")) {
+            fsImageData = new FsImageLoader.Builder().build().load(file);
+        }
+    }
+
+    /**
+     * Collects visited inodes as "type:parentPath:name".
+     */
+    static class PathRecordingVisitor implements InodeVisitor {
+        final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        @Override
+        public void onFile(FsImageProto.INodeSection.INode inode, Directory parent) {
+            visited.add("f:" + parent.getPath() + ":" + inode.getName().toStringUtf8());
+        }
+
+        @Override
+        public void onDirectory(FsImageProto.INodeSection.INode inode, Directory directory) {
+            final Directory parent = directory.getParent();
+            assertThat(directory.getId()).isEqualTo(inode.getId());
+            assertThat(directory.getDepth()).isEqualTo(NamespaceIndex.depth(directory.getPath()));
+            visited.add("d:" + (null == parent ? directory.getPath() : parent.getPath())
+                    + ":" + inode.getName().toStringUtf8());
+        }
+
+        @Override
+        public void onSymLink(FsImageProto.INodeSection.INode inode, Directory parent) {
+            visited.add("s:" + parent.getPath() + ":" + inode.getName().toStringUtf8());
+        }
+    }
+
+    @Test
+    public void testVisitMatchesPathVisitor() throws IOException {
+        for (String path : new String[]{"/", "/test3"}) {
+            final Set<String> expected = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            new FsVisitor.Builder().visit(fsImageData, new FsVisitor() {
+                @Override
+                public void onFile(FsImageProto.INodeSection.INode inode, String parentPath) {
+                    expected.add("f:" + parentPath + ":" + inode.getName().toStringUtf8());
+                }
+
+                @Override
+                public void onDirectory(FsImageProto.INodeSection.INode inode, String parentPath) {
+                    expected.add("d:" + parentPath + ":" + inode.getName().toStringUtf8());
+                }
+
+                @Override
+                public void onSymLink(FsImageProto.INodeSection.INode inode, String parentPath) {
+                    expected.add("s:" + parentPath + ":" + inode.getName().toStringUtf8());
+                }
+            }, path);
+
+            final PathRecordingVisitor visitor = new PathRecordingVisitor();
+            new InodeVisitor.Builder().visit(fsImageData, visitor, path);
+            assertThat(visitor.visited).isEqualTo(expected);
+
+            final PathRecordingVisitor parallelVisitor = new PathRecordingVisitor();
+            new InodeVisitor.Builder().parallel().visit(fsImageData, parallelVisitor, path);
+            assertThat(parallelVisitor.visited).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testAncestor() throws IOException {
+        final Set<String> ancestors = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        new InodeVisitor.Builder().visit(fsImageData, new PathRecordingVisitor() {
+            @Override
+            public void onFile(FsImageProto.INodeSection.INode inode, Directory parent) {
+                ancestors.add(parent.ancestor(1).getPath());
+            }
+        });
+        assertThat(ancestors).allMatch(p -> NamespaceIndex.depth(p) <= 1).contains("/test3", "/datalake");
+    }
+}
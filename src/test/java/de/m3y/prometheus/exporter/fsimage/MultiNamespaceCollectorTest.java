@@ -0,0 +1,115 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.assertThat;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.labelValues;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesUtils.getMetricFamilySamples;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public class MultiNamespaceCollectorTest {
+
+    @Test
+    public void testCollect() throws InterruptedException {
+        Config ns2 = namespace("ns2");
+        ns2.setPaths(new HashSet<>(Collections.singletonList("/datalake/asset3")));
+        Config config = new Config();
+        config.setNamespaces(List.of(namespace("ns1"), ns2));
+
+        MultiNamespaceCollector collector = new MultiNamespaceCollector(config, null).start();
+        try {
+            assertThat(collector.getCollectors()).containsOnlyKeys("ns1", "ns2");
+            assertThat(MultiNamespaceCollector.awaitFsImageReports(collector.getCollectors().values(),
+                    10, TimeUnit.SECONDS)).isTrue();
+
+            final List<Collector.MetricFamilySamples> mfs = collector.collect();
+            assertThat(getMetricFamilySamples(mfs, "fsimage_dirs"))
+                    .hasTypeOfGauge()
+                    .hasSampleLabelNames(MultiNamespaceCollector.LABEL_CLUSTER)
+                    .hasSampleValue(labelValues("ns1"), 14)
+                    .hasSampleValue(labelValues("ns2"), 14);
+            assertThat(getMetricFamilySamples(mfs, "fsimage_user_dirs"))
+                    .hasSampleLabelNames(MultiNamespaceCollector.LABEL_CLUSTER, FsImageUpdateHandler.LABEL_USER_NAME)
+                    .hasSampleValue(labelValues("ns1", "mm"), 14)
+                    .hasSampleValue(labelValues("ns2", "mm"), 14);
+            // Own paths per namespace
+            assertThat(getMetricFamilySamples(mfs, "fsimage_path_dirs"))
+                    .hasSampleValue(labelValues("ns2", "/datalake/asset3"), 2);
+            assertThat(getMetricFamilySamples(mfs, "fsimage_report_phase"))
+                    .hasSampleValue(labelValues("ns1", "idle"), 1)
+                    .hasSampleValue(labelValues("ns2", "idle"), 1);
+        } finally {
+            collector.getCollectors().values().forEach(FsImageCollector::shutdown);
+        }
+    }
+
+    @Test
+    public void testRegisterBeforeFirstReport() throws Exception {
+        assertRegisteredBeforeFirstReport(namespace(null));
+        Config config = new Config();
+        config.setNamespaces(List.of(namespace("ns1"), namespace("ns2")));
+        assertRegisteredBeforeFirstReport(config);
+    }
+
+    /**
+     * Renders the registry in the report listener, like the textfile exporter.
+     */
+    private static void assertRegisteredBeforeFirstReport(Config config) throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        final CompletableFuture<List<String>> firstNames = new CompletableFuture<>();
+        final Map<String, FsImageCollector> collectors = MultiNamespaceCollector.register(config,
+                report -> firstNames.complete(Collections.list(registry.metricFamilySamples()).stream()
+                        .map(family -> family.name).toList()),
+                registry);
+        try {
+            assertThat(firstNames.get(10, TimeUnit.SECONDS)).contains("fsimage_dirs");
+        } finally {
+            collectors.values().forEach(FsImageCollector::shutdown);
+        }
+    }
+
+    @Test
+    public void testValidate() {
+        Config config = new Config();
+        config.setNamespaces(List.of(namespace("ns1"), namespace("ns1")));
+        assertThatIllegalArgumentException().isThrownBy(() -> MultiNamespaceCollector.validate(config))
+                .withMessageContaining("Duplicate cluster name ns1");
+
+        config.setNamespaces(List.of(namespace("ns1"), namespace(null)));
+        assertThatIllegalArgumentException().isThrownBy(() -> MultiNamespaceCollector.validate(config))
+                .withMessageContaining("cluster name");
+
+        Config ns2 = namespace("ns2");
+        ns2.setSkipFileDistributionForUserStats(true);
+        config.setNamespaces(List.of(namespace("ns1"), ns2));
+        assertThatIllegalArgumentException().isThrownBy(() -> MultiNamespaceCollector.validate(config))
+                .withMessageContaining("skipFileDistribution");
+
+        config.setNamespaces(List.of(namespace("ns1"), namespace("ns2")));
+        config.setMaxConcurrentLoads(0);
+        assertThatIllegalArgumentException().isThrownBy(() -> MultiNamespaceCollector.validate(config))
+                .withMessageContaining("maxConcurrentLoads");
+
+        config.setMaxConcurrentLoads(1);
+        config.setFsImagePath("src/test/resources");
+        assertThatIllegalArgumentException().isThrownBy(() -> MultiNamespaceCollector.validate(config))
+                .withMessageContaining("either fsImagePath or namespaces");
+    }
+
+    private static Config namespace(String cluster) {
+        Config config = new Config();
+        config.setCluster(cluster);
+        config.setFsImagePath("src/test/resources");
+        return config;
+    }
+}
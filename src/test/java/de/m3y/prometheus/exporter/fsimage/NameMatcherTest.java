@@ -0,0 +1,45 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NameMatcherTest {
+
+    @Test
+    public void testCompile() {
+        assertThat(NameMatcher.compile("user")).isInstanceOf(NameMatcher.LiteralMatcher.class);
+        assertThat(NameMatcher.compile("user_.*")).isInstanceOf(NameMatcher.WildcardMatcher.class);
+        assertThat(NameMatcher.compile(".*\\.tmp")).isInstanceOf(NameMatcher.WildcardMatcher.class);
+        assertThat(NameMatcher.compile("a.*b")).isInstanceOf(NameMatcher.WildcardMatcher.class);
+        assertThat(NameMatcher.compile(".*")).isInstanceOf(NameMatcher.WildcardMatcher.class);
+        assertThat(NameMatcher.compile("a.*b.*c")).isInstanceOf(NameMatcher.RegexMatcher.class);
+        assertThat(NameMatcher.compile("asset[13]")).isInstanceOf(NameMatcher.RegexMatcher.class);
+        assertThat(NameMatcher.compile("d\\d+")).isInstanceOf(NameMatcher.RegexMatcher.class);
+        assertThat(NameMatcher.compile("a\\.*")).isInstanceOf(NameMatcher.RegexMatcher.class);
+
+        assertThat(NameMatcher.unescape("a\\.b\\*")).isEqualTo("a.b*");
+        assertThat(NameMatcher.unescape("a\\")).isNull();
+    }
+
+    @Test
+    public void testMatchesLikeRegex() {
+        final String[] regexes = {"user", "user_.*", ".*\\.tmp", "a.*b", ".*", "", "a.*b.*c", "asset[13]",
+                "d\\d+", "a\\.*", "ü.*", ".*ß", "x\\[1\\]"};
+        final String[] names = {"", "user", "users", "user_", "user_mm", "x.tmp", "xtmp", ".tmp", "ab", "a_b",
+                "ba", "abc", "a_b_c", "asset1", "asset2", "d42", "a.", "a..", "über", "ußß", "x[1]",
+                "user_a\nb", "a\rb", "a\u0085b", "a\u2028b", "a\u2029b", "a\u2027b", "\u00e2\u0080b"};
+        for (String regex : regexes) {
+            final Pattern pattern = Pattern.compile(regex);
+            final NameMatcher matcher = NameMatcher.compile(regex);
+            for (String name : names) {
+                assertThat(matcher.matches(ByteString.copyFromUtf8(name)))
+                        .as("%s matching %s", regex, name)
+                        .isEqualTo(pattern.matcher(name).matches());
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageLoader;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NamespaceIndexTest {
+
+    @Test
+    public void testPathHelpers() {
+        assertThat(NamespaceIndex.depth("/")).isZero();
+        assertThat(NamespaceIndex.depth("/a")).isEqualTo(1);
+        assertThat(NamespaceIndex.depth("/a/b")).isEqualTo(2);
+
+        assertThat(NamespaceIndex.truncate("/", 0)).isEqualTo("/");
+        assertThat(NamespaceIndex.truncate("/a", 0)).isEqualTo("/");
+        assertThat(NamespaceIndex.truncate("/a/b/c", 1)).isEqualTo("/a");
+        assertThat(NamespaceIndex.truncate("/a/b/c", 2)).isEqualTo("/a/b");
+        assertThat(NamespaceIndex.truncate("/a/b/c", 3)).isEqualTo("/a/b/c");
+
+        assertThat(NamespaceIndex.parent("/a")).isEqualTo("/");
+        assertThat(NamespaceIndex.parent("/a/b")).isEqualTo("/a");
+
+        assertThat(NamespaceIndex.normalize("/a/")).isEqualTo("/a");
+        assertThat(NamespaceIndex.normalize("/")).isEqualTo("/");
+    }
+
+    @Test
+    public void testComputeIndex() throws IOException {
+        Config config = new Config();
+        config.setNamespaceIndexEnabled(true);
+        config.setNamespaceIndexMaxDepth(2);
+
+        final FsImageData fsImageData;
+        try (RandomAccessFile file = new RandomAccessFile("src/test/resources/fsimage_0001", "r")) {
+            fsImageData = new FsImageLoader.Builder().build().load(file);
+        }
+        final NamespaceIndex index = FsImageReporter.computeStatsReport(fsImageData, config).namespaceIndex;
+
+        // Root rolls up everything
+        NamespaceIndex.Node root = index.get("/");
+        assertThat(root.files).isEqualTo(16);
+        assertThat(root.directories).isEqualTo(13);
+        assertThat(root.users).containsOnlyKeys("mm", "foo", "root");
+
+        // Top children ordered by size
+        NamespaceIndex.Node datalake = index.get("/datalake/");
+        assertThat(datalake.files).isEqualTo(5);
+        assertThat(datalake.size).isEqualTo(1024 + 4 * 2097152L);
+        assertThat(datalake.directories).isEqualTo(5);
+        assertThat(datalake.topChildren(2)).extracting(n -> n.path)
+                .containsExactly("/datalake/asset3", "/datalake/asset2");
+        assertThat(index.get("/datalake/asset1").files).isZero();
+
+        // Deeper directories aggregate into ancestor at max depth
+        NamespaceIndex.Node foo = index.get("/test3/foo");
+        assertThat(foo.files).isEqualTo(8);
+        assertThat(foo.size).isEqualTo(179196928L);
+        assertThat(foo.directories).isEqualTo(1);
+        assertThat(foo.children).isEmpty();
+        assertThat(index.get("/test3/foo/bar")).isNull();
+
+        // Per user split
+        NamespaceIndex.Node test3 = index.get("/test3");
+        assertThat(test3.size).isEqualTo(348017664L);
+        assertThat(test3.topUsers(2)).extracting(e -> e.getKey()).containsExactly("mm", "foo");
+        assertThat(test3.users.get("foo").size).isEqualTo(167772160L);
+        assertThat(test3.users.get("root").files).isEqualTo(1);
+        assertThat(test3.users.get("root").size).isEqualTo(1024);
+
+        assertThat(index.get("/non-existing")).isNull();
+    }
+
+    @Test
+    public void testDisabledIndex() throws IOException {
+        final FsImageData fsImageData;
+        try (RandomAccessFile file = new RandomAccessFile("src/test/resources/fsimage_0001", "r")) {
+            fsImageData = new FsImageLoader.Builder().build().load(file);
+        }
+        assertThat(FsImageReporter.computeStatsReport(fsImageData, new Config()).namespaceIndex).isNull();
+    }
+}
@@ -0,0 +1,183 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.Collector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.assertThat;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.labelValues;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesUtils.getMetricFamilySamples;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public class ReportHistoryTest {
+    private static final long HOUR = 3600L * 1000L;
+
+    @Test
+    public void testEncodeDecode() {
+        long[] values = {0, 1, -1, 63, -64, 64, 1L << 40, -(1L << 40), Long.MAX_VALUE, Long.MIN_VALUE};
+        assertThat(ReportHistory.decode(ReportHistory.encode(values))).containsExactly(values);
+
+        // Unchanged values take one byte each
+        assertThat(ReportHistory.encode(new long[100])).hasSize(101);
+    }
+
+    @Test
+    public void testInvalidSize() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new ReportHistory(1));
+    }
+
+    @Test
+    public void testGrowth() {
+        ReportHistory history = new ReportHistory(3);
+
+        history.add(report(1, 1000), 0);
+        List<Collector.MetricFamilySamples> mfs = collect(history);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_history_reports")).hasSampleValue(1);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_path_space_quota_bytes"))
+                .hasSampleValue(labelValues("/data"), 100_000);
+        // No growth for single report
+        assertThatExceptionOfType(AssertionError.class).isThrownBy(() ->
+                assertThat(getMetricFamilySamples(mfs, "fsimage_user_fsize_growth_bytes_per_second"))
+                        .hasSampleValue(labelValues("mm"), 0));
+
+        history.add(report(2, 4600), HOUR);
+        history.add(report(3, 8200), 2 * HOUR);
+        List<Collector.MetricFamilySamples> mfs2 = collect(history);
+        assertThat(getMetricFamilySamples(mfs2, "fsimage_report_history_window_seconds")).hasSampleValue(7200);
+        assertThat(getMetricFamilySamples(mfs2, "fsimage_user_files_growth_per_second"))
+                .hasSampleValue(labelValues("mm"), 2 / 7200.0);
+        assertThat(getMetricFamilySamples(mfs2, "fsimage_user_fsize_growth_bytes_per_second"))
+                .hasSampleValue(labelValues("mm"), 1.0);
+        assertThat(getMetricFamilySamples(mfs2, "fsimage_path_csize_growth_bytes_per_second"))
+                .hasSampleValue(labelValues("/data"), 1.0);
+        // Remaining 100000 - 8200 bytes at 1 byte/s
+        assertThat(getMetricFamilySamples(mfs2, "fsimage_path_time_to_quota_seconds"))
+                .hasSampleValue(labelValues("/data"), 91_800);
+
+        // Evicts oldest report, rebasing next oldest
+        history.add(report(4, 15_400), 3 * HOUR);
+        assertThat(history.size()).isEqualTo(3);
+        List<Collector.MetricFamilySamples> mfs3 = collect(history);
+        assertThat(getMetricFamilySamples(mfs3, "fsimage_report_history_window_seconds")).hasSampleValue(7200);
+        assertThat(getMetricFamilySamples(mfs3, "fsimage_user_fsize_growth_bytes_per_second"))
+                .hasSampleValue(labelValues("mm"), (15_400 - 4600) / 7200.0);
+
+        // Exceeded quota
+        history.add(report(5, 200_000), 4 * HOUR);
+        assertThat(getMetricFamilySamples(collect(history), "fsimage_path_time_to_quota_seconds"))
+                .hasSampleValue(labelValues("/data"), 0);
+    }
+
+    @Test
+    public void testGrowthOfNewUsersAndPaths() {
+        ReportHistory history = new ReportHistory(5);
+        history.add(report(1, 1000), 0);
+
+        // New user and path, without growth before contained by two reports
+        final FsImageReporter.Report second = report(2, 4600);
+        addUserAndPath(second, "foo", "/foo", 10_000);
+        history.add(second, HOUR);
+        List<Collector.MetricFamilySamples> mfs = collect(history);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_user_fsize_growth_bytes_per_second"))
+                .hasSampleValue(labelValues("mm"), 1.0);
+        assertThatExceptionOfType(AssertionError.class).isThrownBy(() ->
+                assertThat(getMetricFamilySamples(mfs, "fsimage_user_fsize_growth_bytes_per_second"))
+                        .hasSampleValue(labelValues("foo"), 0));
+        assertThatExceptionOfType(AssertionError.class).isThrownBy(() ->
+                assertThat(getMetricFamilySamples(mfs, "fsimage_path_fsize_growth_bytes_per_second"))
+                        .hasSampleValue(labelValues("/foo"), 0));
+
+        // Growth since first contained, not counting the initial size
+        final FsImageReporter.Report third = report(3, 8200);
+        addUserAndPath(third, "foo", "/foo", 17_200);
+        history.add(third, 2 * HOUR);
+        List<Collector.MetricFamilySamples> mfs2 = collect(history);
+        assertThat(getMetricFamilySamples(mfs2, "fsimage_user_fsize_growth_bytes_per_second"))
+                .hasSampleValue(labelValues("foo"), 2.0)
+                .hasSampleValue(labelValues("mm"), 1.0);
+        assertThat(getMetricFamilySamples(mfs2, "fsimage_path_fsize_growth_bytes_per_second"))
+                .hasSampleValue(labelValues("/foo"), 2.0);
+        assertThat(getMetricFamilySamples(mfs2, "fsimage_user_files_growth_per_second"))
+                .hasSampleValue(labelValues("foo"), 0);
+    }
+
+    @Test
+    public void testReplacesSameTimestamp() {
+        ReportHistory history = new ReportHistory(3);
+        history.add(report(1, 1000), 0);
+        history.add(report(1, 2000), 0); // Recomputed, e.g. for changed config
+        assertThat(history.size()).isEqualTo(1);
+
+        history.add(report(2, 4600), HOUR);
+        history.add(report(2, 8200), HOUR);
+        history.add(report(9, 99_000), HOUR / 2); // Older, ignored
+        assertThat(history.size()).isEqualTo(2);
+        final List<Collector.MetricFamilySamples> mfs = collect(history);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_report_history_window_seconds")).hasSampleValue(3600);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_user_fsize_growth_bytes_per_second"))
+                .hasSampleValue(labelValues("mm"), (8200 - 2000) / 3600.0);
+        assertThat(getMetricFamilySamples(mfs, "fsimage_user_files_growth_per_second"))
+                .hasSampleValue(labelValues("mm"), 1 / 3600.0);
+    }
+
+    @Test
+    public void testPrunesUsersAndPathsNoLongerRetained() {
+        ReportHistory history = new ReportHistory(2);
+        history.add(report(1, 1000), 0);
+        final FsImageReporter.Report second = report(2, 4600);
+        addUserAndPath(second, "foo", "/foo", 10_000);
+        history.add(second, HOUR);
+        assertThat(history.keys()).isEqualTo(4);
+
+        history.add(report(3, 8200), 2 * HOUR);
+        assertThat(history.keys()).isEqualTo(4); // Still retained by second report
+
+        history.add(report(4, 15_400), 3 * HOUR);
+        assertThat(history.keys()).isEqualTo(2);
+        assertThat(getMetricFamilySamples(collect(history), "fsimage_user_fsize_growth_bytes_per_second"))
+                .hasSampleValue(labelValues("mm"), (15_400 - 8200) / 3600.0);
+
+        final FsImageReporter.Report withBar = report(4, 15_400);
+        addUserAndPath(withBar, "bar", "/bar", 1);
+        history.add(withBar, 4 * HOUR);
+        assertThat(history.keys()).isEqualTo(4);
+        // Replacing latest report, without user and path bar
+        history.add(report(5, 16_000), 4 * HOUR);
+        assertThat(history.keys()).isEqualTo(2);
+        assertThat(getMetricFamilySamples(collect(history), "fsimage_user_fsize_growth_bytes_per_second"))
+                .hasSampleValue(labelValues("mm"), (16_000 - 15_400) / 3600.0);
+    }
+
+    private static void addUserAndPath(FsImageReporter.Report report, String userName, String path, long size) {
+        report.userStats.computeIfAbsent(userName, report.createUserStat).fileSize.observe(size);
+        report.pathStats.computeIfAbsent(path, report.createPathStat).fileSize.observe(size);
+    }
+
+    private static List<Collector.MetricFamilySamples> collect(ReportHistory history) {
+        List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        history.collect(mfs, null);
+        return mfs;
+    }
+
+    /**
+     * Creates a report with a single user and path, containing given number of files of equal size.
+     */
+    private static FsImageReporter.Report report(int files, long totalSize) {
+        FsImageReporter.Report report = new FsImageReporter.Report(new Config());
+        FsImageReporter.UserStats userStats = report.userStats.computeIfAbsent("mm", report.createUserStat);
+        FsImageReporter.PathStats pathStats = report.pathStats.computeIfAbsent("/data", report.createPathStat);
+        pathStats.spaceQuota = 100_000;
+        for (int i = 0; i < files; i++) {
+            final long size = totalSize / files + (i == 0 ? totalSize % files : 0);
+            userStats.fileSize.observe(size);
+            userStats.fileConsumedSize.observe(size);
+            pathStats.fileSize.observe(size);
+            pathStats.fileConsumedSize.observe(size);
+        }
+        return report;
+    }
+}
@@ -0,0 +1,162 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Predicate;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per scrape cost of collecting and serializing high cardinality reports.
+ * <p>
+ * Disabled by default, run via
+ * <pre>
+ * mvn verify -Dit.test=ScrapeBenchmarkIT -Djmh.scrape=true [-Djmh.cardinality=10000,100000] [-Djmh.xmx=4g]
+ * </pre>
+ * Builds synthetic reports with given number of users, groups and paths, and reports latency percentiles
+ * and allocation per scrape via GC profiler, as JSON in target/jmh-reports/ (override via -Djmh.result=...).
+ * Response sizes get logged per trial.
+ */
+public class ScrapeBenchmarkIT {
+    private static final Logger LOG = LoggerFactory.getLogger(ScrapeBenchmarkIT.class);
+    private static final int FILES_PER_ENTRY = 10;
+
+    @State(Scope.Benchmark)
+    public static class BenchmarkState {
+        /** Number of users, groups and paths each */
+        @Param({"10000", "100000"})
+        int cardinality;
+        @Param({"false", "true"})
+        boolean skipFileDistribution;
+        @Param({TextFormat.CONTENT_TYPE_004, TextFormat.CONTENT_TYPE_OPENMETRICS_100})
+        String contentType;
+
+        FsImageReporter.Report report;
+        // Reused across scrapes, as in FsImageUpdateHandler
+        FsImageUpdateHandler.ReportMetrics reportMetrics;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            final Config config = new Config();
+            config.setSkipFileDistributionForUserStats(skipFileDistribution);
+            config.setSkipFileDistributionForGroupStats(skipFileDistribution);
+            config.setSkipFileDistributionForPathStats(skipFileDistribution);
+            report = createReport(config, cardinality);
+            reportMetrics = new FsImageUpdateHandler.ReportMetrics();
+
+            final byte[] content = serialize(collect(this, null), contentType);
+            LOG.info("Response size for {} users/groups/paths as {}: {} bytes", cardinality, contentType,
+                    content.length);
+        }
+    }
+
+    static FsImageReporter.Report createReport(Config config, int cardinality) {
+        final FsImageReporter.Report report = new FsImageReporter.Report(config);
+        final Random random = new Random(cardinality);
+        for (int i = 0; i < cardinality; i++) {
+            observe(report.overallStats, random);
+            observe(report.userStats.computeIfAbsent("user" + i, report.createUserStat), random);
+            observe(report.groupStats.computeIfAbsent("group" + i, report.createGroupStats), random);
+            observe(report.pathStats.computeIfAbsent("/data/project" + i, report.createPathStat), random);
+        }
+        return report;
+    }
+
+    private static void observe(FsImageReporter.AbstractFileSystemStats stats, Random random) {
+        stats.sumDirectories.increment();
+        for (int f = 0; f < FILES_PER_ENTRY; f++) {
+            final long fileSize = (long) Math.exp(random.nextGaussian() * 3 + 16);
+            stats.fileSize.observe(fileSize);
+            stats.fileConsumedSize.observe(fileSize * 3);
+            stats.sumBlocks.add(1 + fileSize / (128 << 20));
+        }
+        if (stats instanceof FsImageReporter.UserStats userStats) {
+            userStats.replication.observe(3);
+        }
+    }
+
+    static List<Collector.MetricFamilySamples> collect(BenchmarkState state, Predicate<String> sampleNameFilter) {
+        final List<Collector.MetricFamilySamples> mfs = new ArrayList<>();
+        state.reportMetrics.collect(mfs, state.report, sampleNameFilter);
+        return mfs;
+    }
+
+    /**
+     * Serializes like {@link CoalescingMetricsHttpHandler}.
+     */
+    static byte[] serialize(List<Collector.MetricFamilySamples> mfs, String contentType) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(1 << 16);
+        try (Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8)) {
+            TextFormat.writeFormat(contentType, writer, Collections.enumeration(mfs));
+        }
+        return os.toByteArray();
+    }
+
+    @Benchmark
+    public void collect(Blackhole blackhole, BenchmarkState state) {
+        blackhole.consume(collect(state, null));
+    }
+
+    @Benchmark
+    public void collectUsers(Blackhole blackhole, BenchmarkState state) {
+        blackhole.consume(collect(state, CoalescingMetricsHttpHandler.Scope.USERS.sampleNameFilter));
+    }
+
+    @Benchmark
+    public void collectPaths(Blackhole blackhole, BenchmarkState state) {
+        blackhole.consume(collect(state, CoalescingMetricsHttpHandler.Scope.PATHS.sampleNameFilter));
+    }
+
+    @Benchmark
+    public void collectAndSerialize(Blackhole blackhole, BenchmarkState state) throws IOException {
+        blackhole.consume(serialize(collect(state, null), state.contentType));
+    }
+
+    @Test
+    public void runMicroBenchMark() throws RunnerException {
+        Assume.assumeTrue("Enable via -Djmh.scrape=true", Boolean.getBoolean("jmh.scrape"));
+
+        new File("target/jmh-reports/").mkdirs();
+        ChainedOptionsBuilder opt = new OptionsBuilder()
+                .include(getClass().getName())
+                .warmupIterations(2)
+                .measurementIterations(5)
+                .mode(Mode.SampleTime)
+                .timeUnit(TimeUnit.MILLISECONDS)
+                .addProfiler(GCProfiler.class)
+                .jvmArgs("-server", "-XX:+UseG1GC", "-Xmx" + System.getProperty("jmh.xmx", "4g"))
+                .shouldDoGC(true)
+                .forks(1)
+                .resultFormat(ResultFormatType.JSON)
+                .result(System.getProperty("jmh.result",
+                        "target/jmh-reports/" + getClass().getSimpleName() + ".json"));
+        final String cardinality = System.getProperty("jmh.cardinality");
+        if (null != cardinality) {
+            opt.param("cardinality", cardinality.split(","));
+        }
+
+        new Runner(opt.build()).run();
+    }
+}
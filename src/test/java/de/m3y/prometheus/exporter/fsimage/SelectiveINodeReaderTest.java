@@ -0,0 +1,140 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import de.m3y.hadoop.hdfs.hfsa.core.FsImageData;
+import org.apache.hadoop.hdfs.server.namenode.FSImageFormatProtobuf;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto;
+import org.apache.hadoop.thirdparty.protobuf.ByteString;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SelectiveINodeReaderTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testSelectiveDecodingMatchesVisitor() throws IOException {
+        assertSameStats(new File("src/test/resources/fsimage_0001"));
+
+        final FsImageGenerator generator = new FsImageGenerator();
+        for (String option : new String[]{"inodes=20000", "fanOut=5", "users=20", "groups=3",
+                "fileSizeDistribution=log_normal", "meanFileSize=512 MiB", "emptyFileRatio=0.1",
+                "erasureCodedRatio=0.2", "storagePolicyRatio=0.3"}) {
+            generator.configure(option);
+        }
+        final File fsImageFile = temporaryFolder.newFile("fsimage_0042");
+        generator.write(fsImageFile);
+        assertSameStats(fsImageFile);
+    }
+
+    @Test
+    public void testSkipsINodesOnlyReferencedBySnapshots() throws IOException {
+        final FsImageGenerator generator = new FsImageGenerator()
+                .inodes(5000).fanOut(4).users(10)
+                .snapshots(2, 3)
+                .deletedFiles(10);
+        final File fsImageFile = temporaryFolder.newFile("fsimage_0043");
+        generator.write(fsImageFile);
+
+        final FsImageProto.FileSummary summary = SelectiveINodeReader.loadSummary(fsImageFile);
+        assertThat(SelectiveINodeReader.hasSnapshotDiffs(summary)).isTrue();
+        final SelectiveINodeReader.ReachableINodes reachable =
+                SelectiveINodeReader.ReachableINodes.load(fsImageFile, summary);
+        final long inodes = generator.getDirectories() + generator.getFiles();
+        assertThat(reachable.size()).isEqualTo(inodes);
+        // Deleted directory and files
+        for (long id = FsImageData.ROOT_INODE_ID + inodes; id <= FsImageData.ROOT_INODE_ID + inodes + 10; id++) {
+            assertThat(reachable.contains(id)).isFalse();
+        }
+
+        try (InputStream in = SelectiveINodeReader.openSection(fsImageFile, summary,
+                FSImageFormatProtobuf.SectionName.INODE)) {
+            assertThat(FsImageProto.INodeSection.parseDelimitedFrom(in).getNumInodes()).isEqualTo(inodes + 11);
+        }
+        assertSameStats(fsImageFile);
+    }
+
+    @Test
+    public void testNotAppliedWithNamespaceIndex() throws IOException {
+        final File fsImageFile = new File("src/test/resources/fsimage_0001");
+        final Config config = new Config();
+        config.setSelectiveDecodingEnabled(true);
+        config.setNamespaceIndexEnabled(true);
+        final FsImageReporter.Report report = FsImageReporter.computeStatsReport(
+                FsImageUpdateHandler.load(fsImageFile), fsImageFile, config);
+        assertThat(report.namespaceIndex).isNotNull();
+        assertThat(report.namespaceIndex.get("/").files).isEqualTo(report.overallStats.fileSize.count());
+    }
+
+    private static void assertSameStats(File fsImageFile) throws IOException {
+        final FsImageData fsImageData = FsImageUpdateHandler.load(fsImageFile);
+        final Config config = new Config();
+        config.setAnomalyDetectionEnabled(true);
+        final FsImageReporter.Report expected = FsImageReporter.computeStatsReport(fsImageData, config);
+
+        config.setSelectiveDecodingEnabled(true);
+        final FsImageReporter.Report actual = FsImageReporter.computeStatsReport(fsImageData, fsImageFile, config);
+
+        assertThat(actual.getInodes()).isEqualTo(expected.getInodes());
+        final LongAdder inodes = new LongAdder();
+        assertThat(new SelectiveINodeReader().parallel().read(fsImageFile, new SelectiveINodeReader.Visitor() {
+            @Override
+            public void onFile(long id, long permission, int replication, long fileSize, long blocks) {
+                inodes.increment();
+            }
+
+            @Override
+            public void onDirectory(long id, long permission, long dsQuota, ByteString name) {
+                inodes.increment();
+            }
+
+            @Override
+            public void onSymLink(long id, long permission) {
+                inodes.increment();
+            }
+        })).isTrue();
+        assertThat(inodes.sum()).isEqualTo(expected.getInodes());
+        assertSameStats(actual.overallStats, expected.overallStats);
+        assertThat(actual.overallStats.replication.get().sum)
+                .isEqualTo(expected.overallStats.replication.get().sum);
+        assertThat(actual.userStats).hasSameSizeAs(expected.userStats);
+        for (Map.Entry<String, FsImageReporter.UserStats> entry : expected.userStats.entrySet()) {
+            assertSameStats(actual.userStats.get(entry.getKey()), entry.getValue());
+        }
+        assertThat(actual.groupStats).hasSameSizeAs(expected.groupStats);
+        for (Map.Entry<String, FsImageReporter.GroupStats> entry : expected.groupStats.entrySet()) {
+            assertSameStats(actual.groupStats.get(entry.getKey()), entry.getValue());
+        }
+        assertSameAnomalies(actual.overallAnomalies, expected.overallAnomalies);
+        assertThat(actual.userAnomalies).hasSameSizeAs(expected.userAnomalies);
+        for (Map.Entry<String, FileAnomalies> entry : expected.userAnomalies.entrySet()) {
+            assertSameAnomalies(actual.userAnomalies.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    private static void assertSameAnomalies(FileAnomalies actual, FileAnomalies expected) {
+        assertThat(actual).isNotNull();
+        for (FileAnomalies.Anomaly anomaly : FileAnomalies.Anomaly.values()) {
+            assertThat(actual.get(anomaly)).as(anomaly.label).isEqualTo(expected.get(anomaly));
+        }
+    }
+
+    private static void assertSameStats(FsImageReporter.AbstractFileSystemStats actual,
+                                        FsImageReporter.AbstractFileSystemStats expected) {
+        assertThat(actual).isNotNull();
+        assertThat(actual.sumDirectories.sum()).isEqualTo(expected.sumDirectories.sum());
+        assertThat(actual.sumSymLinks.sum()).isEqualTo(expected.sumSymLinks.sum());
+        assertThat(actual.sumBlocks.sum()).isEqualTo(expected.sumBlocks.sum());
+        assertThat(actual.fileSize.count()).isEqualTo(expected.fileSize.count());
+        assertThat(actual.fileSize.sum()).isEqualTo(expected.fileSize.sum());
+        assertThat(actual.fileConsumedSize.sum()).isEqualTo(expected.fileConsumedSize.sum());
+    }
+}
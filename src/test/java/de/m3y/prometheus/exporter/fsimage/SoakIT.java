@@ -0,0 +1,284 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Soak test simulating FSImage rotation by a NameNode, for detecting leaks across hundreds of reload cycles.
+ * <p>
+ * Disabled by default, run via
+ * <pre>
+ * mvn verify -Dit.test=SoakIT -Dsoak=true [-Dsoak.cycles=200] [-Dsoak.rotationSeconds=2] [-Dsoak.inodes=100000]
+ * </pre>
+ * Rotates generated FSImages with changing users, groups and directories into a temporary directory
+ * while scraping continuously. After each reload cycle, records heap after full GC, thread count,
+ * fsimage_* series count, scrape latency and live FSImageData and report instances,
+ * written as CSV to target/soak-reports/SoakIT.csv.
+ * <p>
+ * Fails on growing heap, threads or scrape latency, on series count changing for the same FSImage
+ * (e.g. stale label children of vanished users) and on retained FSImageData or reports.
+ */
+public class SoakIT {
+    private static final String FSIMAGE_DATA_CLASS = "de.m3y.hadoop.hdfs.hfsa.core.FsImageData";
+    private static final String REPORT_CLASS = FsImageReporter.Report.class.getName();
+    private static final String LOADS_SAMPLE = "fsimage_compute_stats_duration_seconds_count ";
+    private static final int RETAINED_FSIMAGES = 2;
+    // Users and fan-out vary, so that users, groups and expanded paths vanish and reappear
+    private static final int[][] VARIANTS = {{100, 5}, {200, 10}, {50, 8}};
+
+    record Scrape(long loads, long series) {
+    }
+
+    record Cycle(int cycle, int variant, long heapUsedAfterGc, int threads, long series,
+                 long scrapeP50Millis, long scrapeMaxMillis, long fsImageDataInstances, long reportInstances) {
+    }
+
+    private final int cycles = Integer.getInteger("soak.cycles", 200);
+    private final int rotationSeconds = Integer.getInteger("soak.rotationSeconds", 2);
+    private final long inodes = Long.getLong("soak.inodes", 100000L);
+
+    private Path fsImageDir;
+    private File[] variantFiles;
+    private WebServer server;
+    private Thread scraper;
+    private volatile Scrape lastScrape = new Scrape(0, 0);
+    private final ConcurrentLinkedQueue<Long> scrapeLatencies = new ConcurrentLinkedQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("Enable via -Dsoak=true", Boolean.getBoolean("soak"));
+
+        final File variantDir = new File("target/synthetic-fsimages");
+        variantDir.mkdirs();
+        variantFiles = new File[VARIANTS.length];
+        for (int v = 0; v < VARIANTS.length; v++) {
+            variantFiles[v] = new File(variantDir, "soak_" + inodes + "_" + v);
+            if (!variantFiles[v].exists()) {
+                new FsImageGenerator().inodes(inodes).users(VARIANTS[v][0]).groups(VARIANTS[v][0] / 10)
+                        .fanOut(VARIANTS[v][1]).seed(v).write(variantFiles[v]);
+            }
+        }
+        fsImageDir = Files.createTempDirectory("soak");
+        rotate(0);
+
+        final Config config = new Config();
+        config.setFsImagePath(fsImageDir.toString());
+        config.setFsImageWatchIntervalSeconds(1);
+        config.setPaths(new TreeSet<>(Arrays.asList("/d0/d.*", "/d1/.*")));
+        config.setPathSets(Map.of("set", Arrays.asList("/d2", "/d3")));
+        config.setNamespaceIndexEnabled(true);
+        config.setReportHistorySize(3);
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new WebServer().configure(config, "localhost", port);
+        assertThat(server.awaitFsImageReport(60, TimeUnit.SECONDS)).isTrue();
+
+        final OkHttpClient client = new OkHttpClient();
+        final Request request = new Request.Builder().url("http://localhost:" + port + "/metrics").build();
+        scraper = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    final long start = System.nanoTime();
+                    final String body;
+                    try (Response response = client.newCall(request).execute()) {
+                        body = response.body().string();
+                    }
+                    scrapeLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    lastScrape = parse(body);
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }, "soak-scraper");
+        scraper.setDaemon(true);
+        scraper.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != scraper) {
+            scraper.interrupt();
+        }
+        if (null != server) {
+            server.stop();
+        }
+        if (null != fsImageDir) {
+            try (var files = Files.list(fsImageDir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(fsImageDir);
+        }
+    }
+
+    static Scrape parse(String body) {
+        long loads = 0;
+        long series = 0;
+        for (String line : body.split("\n")) {
+            if (line.startsWith("fsimage_")) {
+                series++;
+                if (line.startsWith(LOADS_SAMPLE)) {
+                    loads = (long) Double.parseDouble(line.substring(LOADS_SAMPLE.length()).trim());
+                }
+            }
+        }
+        return new Scrape(loads, series);
+    }
+
+    /**
+     * Places the next FSImage atomically, and removes older FSImages like the NameNode does.
+     */
+    private void rotate(int cycle) throws IOException {
+        final Path tmpFile = fsImageDir.resolve("fsimage.ckpt");
+        Files.copy(variantFiles[cycle % variantFiles.length].toPath(), tmpFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpFile, fsImageDir.resolve(String.format("fsimage_%019d", cycle)), StandardCopyOption.ATOMIC_MOVE);
+        final File[] fsImages = fsImageDir.toFile().listFiles(FsImageWatcher.FSIMAGE_FILTER);
+        Arrays.sort(fsImages, FsImageWatcher.FSIMAGE_FILENAME_COMPARATOR);
+        for (int i = RETAINED_FSIMAGES; i < fsImages.length; i++) {
+            Files.delete(fsImages[i].toPath());
+        }
+    }
+
+    /**
+     * Forces a full GC and counts live instances by class name, like 'jcmd &lt;pid&gt; GC.class_histogram'.
+     */
+    static Map<String, Long> liveInstances(String... classNames) throws Exception {
+        final String histogram = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+                new Object[]{new String[0]}, new String[]{String[].class.getName()});
+        final Set<String> names = Set.of(classNames);
+        final Map<String, Long> instances = new HashMap<>();
+        for (String name : classNames) {
+            instances.put(name, 0L);
+        }
+        for (String line : histogram.split("\n")) {
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length >= 4 && names.contains(fields[3])) {
+                instances.put(fields[3], Long.parseLong(fields[1]));
+            }
+        }
+        return instances;
+    }
+
+    @Test
+    public void testSoak() throws Exception {
+        final List<Cycle> results = new ArrayList<>();
+        for (int cycle = 1; cycle <= cycles; cycle++) {
+            final long cycleStart = System.currentTimeMillis();
+            rotate(cycle);
+
+            // Wait for reload and a scrape of the new report
+            final long deadline = cycleStart + TimeUnit.SECONDS.toMillis(60);
+            while (lastScrape.loads() < cycle + 1) {
+                assertThat(System.currentTimeMillis()).as("Reload of cycle %d timed out", cycle)
+                        .isLessThan(deadline);
+                Thread.sleep(50);
+            }
+            final long series = lastScrape.series();
+            Thread.sleep(Math.max(0, cycleStart + TimeUnit.SECONDS.toMillis(rotationSeconds)
+                    - System.currentTimeMillis()));
+
+            final Map<String, Long> instances = liveInstances(FSIMAGE_DATA_CLASS, REPORT_CLASS);
+            final long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            final List<Long> latencies = new ArrayList<>();
+            for (Long latency = scrapeLatencies.poll(); null != latency; latency = scrapeLatencies.poll()) {
+                latencies.add(latency);
+            }
+            Collections.sort(latencies);
+            results.add(new Cycle(cycle, cycle % VARIANTS.length, heapUsed,
+                    ManagementFactory.getThreadMXBean().getThreadCount(), series,
+                    latencies.isEmpty() ? 0 : latencies.get(latencies.size() / 2),
+                    latencies.isEmpty() ? 0 : latencies.get(latencies.size() - 1),
+                    instances.get(FSIMAGE_DATA_CLASS), instances.get(REPORT_CLASS)));
+        }
+        writeCsv(results);
+        verify(results);
+    }
+
+    private static void writeCsv(List<Cycle> results) throws IOException {
+        final File reportDir = new File("target/soak-reports");
+        reportDir.mkdirs();
+        try (PrintWriter writer = new PrintWriter(new File(reportDir, "SoakIT.csv"))) {
+            writer.println("cycle,variant,heap_used_after_gc,threads,series,scrape_p50_ms,scrape_max_ms,"
+                    + "fsimage_data_instances,report_instances");
+            for (Cycle c : results) {
+                writer.println(c.cycle() + "," + c.variant() + "," + c.heapUsedAfterGc() + "," + c.threads() + ","
+                        + c.series() + "," + c.scrapeP50Millis() + "," + c.scrapeMaxMillis() + ","
+                        + c.fsImageDataInstances() + "," + c.reportInstances());
+            }
+        }
+    }
+
+    private static void verify(List<Cycle> results) {
+        // Skip warm up, e.g. JIT and filling report history
+        final List<Cycle> steady = results.subList(Math.min(results.size() - 1, Math.max(5, results.size() / 10)),
+                results.size());
+        final int quarter = Math.max(1, steady.size() / 4);
+        final List<Cycle> first = steady.subList(0, quarter);
+        final List<Cycle> last = steady.subList(steady.size() - quarter, steady.size());
+
+        for (Cycle c : results) {
+            assertThat(c.fsImageDataInstances()).as("Retained FsImageData in cycle %d", c.cycle())
+                    .isLessThanOrEqualTo(1);
+            assertThat(c.reportInstances()).as("Retained reports in cycle %d", c.cycle()).isLessThanOrEqualTo(2);
+        }
+
+        final Map<Integer, Set<Long>> seriesByVariant = new HashMap<>();
+        for (Cycle c : results) {
+            seriesByVariant.computeIfAbsent(c.variant(), v -> new TreeSet<>()).add(c.series());
+        }
+        for (Map.Entry<Integer, Set<Long>> entry : seriesByVariant.entrySet()) {
+            assertThat(entry.getValue()).as("Series count for same fsimage variant %d, e.g. stale label children",
+                    entry.getKey()).hasSize(1);
+        }
+
+        // Compare lowest heap usage, as concurrent scrapes and reloads add noise while leaks raise the floor
+        final long firstHeap = first.stream().mapToLong(Cycle::heapUsedAfterGc).min().orElse(0);
+        final long lastHeap = last.stream().mapToLong(Cycle::heapUsedAfterGc).min().orElse(0);
+        assertThat(lastHeap).as("Heap used after GC growing from %d to %d bytes", firstHeap, lastHeap)
+                .isLessThanOrEqualTo(firstHeap + firstHeap / 10 + (16 << 20));
+
+        final int firstThreads = first.stream().mapToInt(Cycle::threads).max().orElse(0);
+        final int lastThreads = last.stream().mapToInt(Cycle::threads).max().orElse(0);
+        assertThat(lastThreads).as("Thread count growing from %d to %d", firstThreads, lastThreads)
+                .isLessThanOrEqualTo(firstThreads + 2);
+
+        final long firstLatency = first.stream().mapToLong(Cycle::scrapeP50Millis).max().orElse(0);
+        final long lastLatency = last.stream().mapToLong(Cycle::scrapeP50Millis).max().orElse(0);
+        assertThat(lastLatency).as("Scrape latency growing from %dms to %dms", firstLatency, lastLatency)
+                .isLessThanOrEqualTo(2 * firstLatency + 100);
+    }
+}
@@ -0,0 +1,50 @@
+package de.m3y.prometheus.exporter.fsimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public class TextfileExporterTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteTextfile() throws Exception {
+        Config config = new Config();
+        config.setFsImagePath("src/test/resources");
+        final Path textfile = temporaryFolder.getRoot().toPath().resolve("fsimage.prom");
+
+        TextfileExporter textfileExporter = new TextfileExporter(textfile).start(config);
+        try {
+            assertThat(textfileExporter.awaitFsImageReport(10, TimeUnit.SECONDS)).isTrue();
+
+            // First written textfile, as written before the first report becomes available
+
+            assertThat(new String(Files.readAllBytes(textfile), StandardCharsets.UTF_8))
+                    .contains("fsimage_dirs 14.0")
+                    .contains("fsimage_blocks 17.0")
+                    .contains("fsimage_user_dirs{user_name=\"mm\",}")
+                    .contains("fsimage_report_ready 1.0");
+            // No left over temporary files
+            assertThat(temporaryFolder.getRoot().list()).containsExactly("fsimage.prom");
+        } finally {
+            textfileExporter.stop();
+        }
+    }
+
+    @Test
+    public void testNonExistingTextfileDirectory() {
+        final Path textfile = new File(temporaryFolder.getRoot(), "non-existing/fsimage.prom").toPath();
+
+        assertThatIllegalArgumentException().isThrownBy(() -> new TextfileExporter(textfile));
+    }
+}
@@ -2,6 +2,7 @@ package de.m3y.prometheus.exporter.fsimage;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 import org.junit.After;
 import org.junit.Before;
@@ -11,6 +12,7 @@ import org.yaml.snakeyaml.Yaml;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -61,6 +63,7 @@ public class WebServerIT {
         }
 
         server = new WebServer().configure(config, "localhost", 9709);
+        assertThat(server.awaitFsImageReport(30, TimeUnit.SECONDS)).isTrue();
         exporterBaseUrl = "http://localhost:9709";
         client = new OkHttpClient();
     }
@@ -87,6 +90,9 @@ public class WebServerIT {
                 .contains("fsimage_scrape_errors_total 0.0")
                 .contains("fsimage_load_duration_seconds_count 1.0")
                 .contains("fsimage_load_duration_seconds_sum ")
+                .contains("fsimage_report_ready 1.0")
+                .contains("fsimage_http_requests_in_flight 1.0")
+                .contains("fsimage_report_phase{phase=\"idle\",} 1.0")
 
                 // JVM GC Info
                 .contains("jvm_memory_pool_bytes_used{")
@@ -243,6 +249,76 @@ public class WebServerIT {
                 .contains("fsimage_user_replication_sum{user_name=\"mm\",} 20.0");
 
 
+        // Filtered by name
+        response = getResponse(exporterBaseUrl + "/metrics?name[]=fsimage_dirs&name[]=fsimage_blocks");
+        assertThat(response.code()).isEqualTo(200);
+        body = response.body().string();
+        assertThat(body)
+                .contains("fsimage_dirs 14.0")
+                .contains("fsimage_blocks 17.0")
+                .doesNotContain("fsimage_fsize")
+                .doesNotContain("fsimage_user_");
+
+        // Scoped endpoints
+        response = getResponse(exporterBaseUrl + "/metrics/overall");
+        assertThat(response.code()).isEqualTo(200);
+        body = response.body().string();
+        assertThat(body)
+                .contains("fsimage_dirs 14.0")
+                .contains("fsimage_report_ready 1.0")
+                .doesNotContain("fsimage_user_")
+                .doesNotContain("fsimage_group_")
+                .doesNotContain("fsimage_path_");
+
+        response = getResponse(exporterBaseUrl + "/metrics/users");
+        assertThat(response.code()).isEqualTo(200);
+        body = response.body().string();
+        assertThat(body)
+                .contains("fsimage_user_replication_count{user_name=\"mm\",} 14.0")
+                .contains("fsimage_group_dirs")
+                .doesNotContain("fsimage_dirs ")
+                .doesNotContain("fsimage_path_");
+
+        response = getResponse(exporterBaseUrl + "/metrics/paths");
+        assertThat(response.code()).isEqualTo(200);
+        body = response.body().string();
+        assertThat(body)
+                .contains("fsimage_path_set_fsize_count{path_set=\"datalakeAsset1and2\",} 2.0")
+                .doesNotContain("fsimage_dirs ")
+                .doesNotContain("fsimage_user_");
+
+        assertThat(getResponse(exporterBaseUrl + "/metrics/unknown").code()).isEqualTo(404);
+
+        // Drill-down query
+        response = getResponse(exporterBaseUrl + "/api/du?path=/datalake&depth=1&limit=2");
+        assertThat(response.code()).isEqualTo(200);
+        assertThat(response.header("Content-Type")).startsWith("application/json");
+        body = response.body().string();
+        assertThat(body)
+                .startsWith("{\"path\":\"/datalake\",\"directories\":5,\"files\":5,")
+                .contains("\"users\":[{\"user\":\"mm\",\"files\":5,\"size\":8389632,")
+                .contains("\"children\":[{\"path\":\"/datalake/asset3\"")
+                .contains("{\"path\":\"/datalake/asset2\"")
+                .doesNotContain("/datalake/asset1");
+        assertThat(getResponse(exporterBaseUrl + "/api/du?path=/non-existing").code()).isEqualTo(404);
+        assertThat(getResponse(exporterBaseUrl + "/api/du?depth=x").code()).isEqualTo(400);
+
+        // Admin endpoint
+        assertThat(getResponse(exporterBaseUrl + "/admin/progress").code()).isEqualTo(401);
+        response = getAdminResponse(exporterBaseUrl + "/admin/progress", null);
+        assertThat(response.code()).isEqualTo(200);
+        assertThat(response.body().string())
+                .startsWith("{\"namespaces\":[{\"cluster\":\"\",\"phase\":\"idle\",\"reportGeneration\":1,")
+                .contains("\"fsImage\":\"fsimage_0001\",\"txId\":1,")
+                .contains("\"status\":\"completed\"")
+                .contains("\"etaSeconds\":0.0");
+        assertThat(getAdminResponse(exporterBaseUrl + "/admin/reload", null).code()).isEqualTo(405);
+        assertThat(getAdminResponse(exporterBaseUrl + "/admin/reload?cluster=x", "").code()).isEqualTo(400);
+        response = getAdminResponse(exporterBaseUrl + "/admin/reload", "");
+        assertThat(response.code()).isEqualTo(202);
+        assertThat(response.body().string()).isEqualTo("{\"reloading\":[\"\"]}");
+        assertThat(getAdminResponse(exporterBaseUrl + "/admin/abort", "").code()).isEqualTo(200);
+
         // Test welcome page
         response = getResponse(exporterBaseUrl);
         assertThat(response.code()).isEqualTo(200);
@@ -254,6 +330,16 @@ public class WebServerIT {
                 .contains("Metrics");
     }
 
+    private Response getAdminResponse(String url, String postBody) throws IOException {
+        Request.Builder request = new Request.Builder()
+                .url(url)
+                .header("Authorization", "Bearer it-admin-token");
+        if (null != postBody) {
+            request.post(RequestBody.create(postBody, null));
+        }
+        return client.newCall(request.build()).execute();
+    }
+
     private Response getResponse(String url) throws IOException {
         Request request = new Request.Builder()
                 .url(url)